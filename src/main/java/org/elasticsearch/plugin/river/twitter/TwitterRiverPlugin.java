@@ -19,18 +19,36 @@
 
 package org.elasticsearch.plugin.river.twitter;
 
+import org.elasticsearch.common.collect.ImmutableList;
+import org.elasticsearch.common.component.LifecycleComponent;
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.inject.Module;
+import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.plugins.AbstractPlugin;
+import org.elasticsearch.rest.RestModule;
 import org.elasticsearch.river.RiversModule;
+import org.elasticsearch.river.twitter.TwitterIngestModule;
+import org.elasticsearch.river.twitter.TwitterIngestService;
+import org.elasticsearch.river.twitter.RiverStandbyService;
+import org.elasticsearch.river.twitter.StreamShardService;
+import org.elasticsearch.river.twitter.TwitterRiver;
 import org.elasticsearch.river.twitter.TwitterRiverModule;
+import org.elasticsearch.river.twitter.rest.RestTwitterRiverReindexAction;
+import org.elasticsearch.river.twitter.rest.RestTwitterRiverStatsAction;
+import org.elasticsearch.river.twitter.rest.RestTwitterRiverTailAction;
+
+import java.util.Collection;
 
 /**
  *
  */
 public class TwitterRiverPlugin extends AbstractPlugin {
 
+    private final Settings settings;
+
     @Inject
-    public TwitterRiverPlugin() {
+    public TwitterRiverPlugin(Settings settings) {
+        this.settings = settings;
     }
 
     @Override
@@ -43,7 +61,45 @@ public class TwitterRiverPlugin extends AbstractPlugin {
         return "River Twitter Plugin";
     }
 
+    /**
+     * Defines the twitter river thread pool. Additional settings are merged over the node settings, so we only
+     * give the ones which are not set under {@code threadpool.twitter_river}.
+     */
+    @Override
+    public Settings additionalSettings() {
+        int size = Math.max(4, Math.min(32, Runtime.getRuntime().availableProcessors() * 2));
+        Settings.Builder builder = Settings.builder();
+        putDefault(builder, "type", "fixed");
+        putDefault(builder, "size", Integer.toString(size));
+        putDefault(builder, "queue_size", "1000");
+        return builder.build();
+    }
+
+    private void putDefault(Settings.Builder builder, String name, String value) {
+        String key = "threadpool." + TwitterRiver.THREAD_POOL_NAME + "." + name;
+        if (settings.get(key) == null) {
+            builder.put(key, value);
+        }
+    }
+
+    @Override
+    public Collection<Class<? extends Module>> modules() {
+        return ImmutableList.<Class<? extends Module>>of(TwitterIngestModule.class);
+    }
+
+    @Override
+    public Collection<Class<? extends LifecycleComponent>> services() {
+        return ImmutableList.<Class<? extends LifecycleComponent>>of(TwitterIngestService.class, StreamShardService.class,
+                RiverStandbyService.class);
+    }
+
     public void onModule(RiversModule module) {
         module.registerRiver("twitter", TwitterRiverModule.class);
     }
+
+    public void onModule(RestModule module) {
+        module.addRestAction(RestTwitterRiverStatsAction.class);
+        module.addRestAction(RestTwitterRiverTailAction.class);
+        module.addRestAction(RestTwitterRiverReindexAction.class);
+    }
 }
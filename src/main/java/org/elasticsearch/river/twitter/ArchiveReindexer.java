@@ -0,0 +1,322 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.river.twitter;
+
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import twitter4j.Status;
+import twitter4j.TwitterObjectFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Builds documents again from the {@link StreamArchive}, into another index.
+ * <p/>
+ * Blocks of the requested time range are inflated and parsed in parallel, and their statuses go through the
+ * document pipeline of the river as it is configured now. Statuses deleted since they were archived are skipped.
+ * Documents are sent with their own bulks, so the river keeps indexing the stream meanwhile.
+ */
+public class ArchiveReindexer implements ToXContent {
+
+    /**
+     * The river side of the reindex
+     */
+    public interface Pipeline {
+        /**
+         * Creates the target index with the current mapping, if needed
+         */
+        void prepare(String index, String type) throws IOException;
+
+        /**
+         * @return the request indexing the status, or null if the river would not index it
+         */
+        IndexRequest build(Status status, String rawJSON, String index, String type) throws IOException;
+    }
+
+    private final ESLogger logger;
+    private final Client client;
+    private final Executor executor;
+    private final StreamArchive archive;
+    private final Pipeline pipeline;
+    private final String defaultType;
+
+    private volatile Job job;
+
+    public ArchiveReindexer(ESLogger logger, Client client, Executor executor, StreamArchive archive, Pipeline pipeline,
+                            String defaultType) {
+        this.logger = logger;
+        this.client = client;
+        this.executor = executor;
+        this.archive = archive;
+        this.pipeline = pipeline;
+        this.defaultType = defaultType;
+    }
+
+    /**
+     * Starts replaying statuses created in [from, to[
+     * @param type type of the documents, null for the type of the river
+     * @throws IllegalStateException if a reindex is already running
+     */
+    public synchronized void start(String index, String type, long from, long to, int concurrency, int bulkSize) {
+        if (job != null && job.running()) {
+            throw new IllegalStateException("a reindex to [" + job.index + "] is already running");
+        }
+        if (type == null) {
+            type = defaultType;
+        }
+        final Job started = new Job(index, type, from, to, Math.max(1, concurrency), Math.max(1, bulkSize));
+        job = started;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                started.start();
+            }
+        });
+    }
+
+    public boolean running() {
+        Job current = job;
+        return current != null && current.running();
+    }
+
+    /**
+     * Stops the running reindex, if any. Documents already built are still indexed.
+     */
+    public void cancel() {
+        Job current = job;
+        if (current != null) {
+            current.cancelled = true;
+        }
+    }
+
+    private class Job {
+        final String index;
+        final String type;
+        final long from;
+        final long to;
+        final int concurrency;
+        final int bulkSize;
+        final long startedAt = System.currentTimeMillis();
+
+        volatile boolean cancelled;
+        volatile long finishedAt = -1;
+        volatile String failure;
+        volatile int totalBlocks = -1;
+        long[] deletedIds;
+        BulkProcessor bulkProcessor;
+        final ConcurrentLinkedQueue<StreamArchive.Block> queue = new ConcurrentLinkedQueue<StreamArchive.Block>();
+        final AtomicInteger workers = new AtomicInteger();
+
+        final AtomicLong blocksDone = new AtomicLong();
+        final AtomicLong read = new AtomicLong();
+        final AtomicLong submitted = new AtomicLong();
+        final AtomicLong skipped = new AtomicLong();
+        final AtomicLong deleted = new AtomicLong();
+        final AtomicLong indexed = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+
+        Job(String index, String type, long from, long to, int concurrency, int bulkSize) {
+            this.index = index;
+            this.type = type;
+            this.from = from;
+            this.to = to;
+            this.concurrency = concurrency;
+            this.bulkSize = bulkSize;
+        }
+
+        boolean running() {
+            return finishedAt < 0;
+        }
+
+        void start() {
+            try {
+                archive.flush();
+                List<StreamArchive.Block> blocks = archive.blocks(from, to);
+                deletedIds = archive.deletedIds(blocks);
+                pipeline.prepare(index, type);
+                queue.addAll(blocks);
+                totalBlocks = blocks.size();
+            } catch (Exception e) {
+                logger.warn("failed to start reindex to [{}]", e, index);
+                failure = e.toString();
+                finishedAt = System.currentTimeMillis();
+                return;
+            }
+            logger.info("reindexing [{}] archive blocks created from [{}] to [{}] into [{}] with [{}] workers",
+                    totalBlocks, new Date(from), new Date(to), index, concurrency);
+            bulkProcessor = BulkProcessor.builder(client, new BulkProcessor.Listener() {
+                @Override
+                public void beforeBulk(long executionId, BulkRequest request) {
+                }
+
+                @Override
+                public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+                    long failures = 0;
+                    for (BulkItemResponse item : response.getItems()) {
+                        if (item.isFailed()) {
+                            failures++;
+                        }
+                    }
+                    if (failures > 0) {
+                        logger.warn("reindex bulk had [{}] failures: {}", failures, response.buildFailureMessage());
+                    }
+                    failed.addAndGet(failures);
+                    indexed.addAndGet(request.numberOfActions() - failures);
+                }
+
+                @Override
+                public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+                    logger.warn("reindex bulk failed", failure);
+                    failed.addAndGet(request.numberOfActions());
+                }
+            })
+                    .setName("twitter_river_reindex")
+                    .setBulkActions(bulkSize)
+                    .setConcurrentRequests(concurrency)
+                    .setFlushInterval(TimeValue.timeValueSeconds(5))
+                    .build();
+            workers.set(concurrency);
+            for (int i = 1; i < concurrency; i++) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        work();
+                    }
+                });
+            }
+            work();
+        }
+
+        void work() {
+            try {
+                StreamArchive.Block block;
+                while (!cancelled && (block = queue.poll()) != null) {
+                    try {
+                        StreamArchive.read(block, new StreamArchive.Visitor() {
+                            @Override
+                            public void onStatus(long id, long createdAt, String rawJSON) {
+                                replay(id, createdAt, rawJSON);
+                            }
+                        });
+                    } catch (IOException e) {
+                        logger.warn("failed to read archive block, skipping its [{}] statuses", e, block.count());
+                        skipped.addAndGet(block.count());
+                    }
+                    blocksDone.incrementAndGet();
+                }
+            } finally {
+                if (workers.decrementAndGet() == 0) {
+                    finish();
+                }
+            }
+        }
+
+        void replay(long id, long createdAt, String rawJSON) {
+            read.incrementAndGet();
+            // Blocks overlap the range, their statuses may not
+            if (cancelled || createdAt < from || createdAt >= to) {
+                skipped.incrementAndGet();
+                return;
+            }
+            if (Arrays.binarySearch(deletedIds, id) >= 0) {
+                deleted.incrementAndGet();
+                return;
+            }
+            try {
+                Status status = TwitterObjectFactory.createStatus(rawJSON);
+                IndexRequest request = pipeline.build(status, rawJSON, index, type);
+                if (request == null) {
+                    skipped.incrementAndGet();
+                    return;
+                }
+                bulkProcessor.add(request);
+                submitted.incrementAndGet();
+            } catch (Exception e) {
+                failed.incrementAndGet();
+                logger.debug("failed to rebuild archived status [{}]", e, id);
+            }
+        }
+
+        void finish() {
+            try {
+                if (!bulkProcessor.awaitClose(5, TimeUnit.MINUTES)) {
+                    logger.warn("timed out waiting for the last reindex bulks");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finishedAt = System.currentTimeMillis();
+            logger.info("reindex into [{}] {} in [{}]: [{}] indexed, [{}] deleted, [{}] skipped, [{}] failed", index,
+                    cancelled ? "cancelled" : "done", TimeValue.timeValueMillis(finishedAt - startedAt), indexed.get(),
+                    deleted.get(), skipped.get(), failed.get());
+        }
+
+        void toXContent(XContentBuilder builder) throws IOException {
+            builder.field("index", index);
+            builder.field("type", type);
+            builder.field("from", from);
+            builder.field("to", to);
+            builder.field("running", running());
+            builder.field("cancelled", cancelled);
+            builder.field("concurrency", concurrency);
+            builder.field("blocks", totalBlocks);
+            builder.field("blocks_done", blocksDone.get());
+            builder.field("read", read.get());
+            builder.field("submitted", submitted.get());
+            builder.field("indexed", indexed.get());
+            builder.field("deleted", deleted.get());
+            builder.field("skipped", skipped.get());
+            builder.field("failed", failed.get());
+            long end = finishedAt < 0 ? System.currentTimeMillis() : finishedAt;
+            builder.field("took_in_millis", end - startedAt);
+            if (failure != null) {
+                builder.field("failure", failure);
+            }
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        Job current = job;
+        builder.startObject("reindex");
+        if (current != null) {
+            current.toXContent(builder);
+        }
+        builder.endObject();
+        return builder;
+    }
+}
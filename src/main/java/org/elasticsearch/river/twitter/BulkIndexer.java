@@ -0,0 +1,52 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter;
+
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.common.xcontent.ToXContent;
+
+/**
+ * Where a river sends the requests it builds from the stream
+ */
+public interface BulkIndexer extends ToXContent {
+
+    void index(IndexRequest request);
+
+    void delete(DeleteRequest request);
+
+    void update(UpdateRequest request);
+
+    /**
+     * @return how many insert bulks can run at once, -1 if it can not be changed
+     */
+    int maxConcurrentInserts();
+
+    /**
+     * Changes how many insert bulks can run at once, when supported
+     */
+    void setMaxConcurrentInserts(int maxConcurrentBulk);
+
+    /**
+     * Flushes pending requests and releases resources
+     */
+    void close();
+}
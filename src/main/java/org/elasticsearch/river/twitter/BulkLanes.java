@@ -0,0 +1,525 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Sends index, delete and update requests through three distinct bulk processors (lanes), so
+ * deletions never wait behind a backlog of inserts.
+ * <p/>
+ * As lanes run concurrently, a delete or an update for a document is held back until every pending
+ * insert for the same document has been acknowledged.
+ * <p/>
+ * Adding a request to a bulk processor is synchronized. When documents are built by several threads, each
+ * lane can be split in stripes, each with its own bulk processor and flush timer. The concurrency of the lane
+ * is shared by its stripes: a lane has at most one processor per concurrent bulk, stripes beyond that share the
+ * processors, and a synchronous lane has a single processor. Requests are spread over the stripes by document id,
+ * so all the requests of a document use the same stripe.
+ */
+public class BulkLanes implements BulkIndexer {
+
+    /**
+     * Notified for every request when the bulk holding it is sent and once it has been executed
+     */
+    public interface Listener {
+        void onRequestSubmitted(ActionRequest request);
+
+        void onRequestDone(ActionRequest request, boolean failed);
+    }
+
+    private final ESLogger logger;
+
+    private final Listener listener;
+
+    private final Lane inserts;
+    private final Lane deletes;
+    private final Lane updates;
+
+    private final int stripes;
+    private final PendingInserts[] pending;
+    private final AtomicLong heldBackCount = new AtomicLong();
+
+    public BulkLanes(Client client, ESLogger logger, LaneSettings insertSettings, LaneSettings deleteSettings,
+                     LaneSettings updateSettings) {
+        this(client, logger, insertSettings, deleteSettings, updateSettings, null);
+    }
+
+    public BulkLanes(Client client, ESLogger logger, LaneSettings insertSettings, LaneSettings deleteSettings,
+                     LaneSettings updateSettings, Listener listener) {
+        this(client, logger, insertSettings, deleteSettings, updateSettings, listener, 1);
+    }
+
+    /**
+     * @param stripes number of bulk processors of each lane
+     */
+    public BulkLanes(Client client, ESLogger logger, LaneSettings insertSettings, LaneSettings deleteSettings,
+                     LaneSettings updateSettings, Listener listener, int stripes) {
+        this.logger = logger;
+        this.listener = listener;
+        this.stripes = Math.max(1, stripes);
+        this.pending = new PendingInserts[this.stripes];
+        for (int i = 0; i < this.stripes; i++) {
+            pending[i] = new PendingInserts();
+        }
+        this.inserts = new Lane("inserts", client, insertSettings) {
+            @Override
+            void onBulkDone(BulkRequest request) {
+                releaseInserts(request.requests());
+            }
+        };
+        this.deletes = new Lane("deletes", client, deleteSettings);
+        this.updates = new Lane("updates", client, updateSettings);
+    }
+
+    @Override
+    public void index(IndexRequest request) {
+        reserve(request);
+        submit(request);
+    }
+
+    /**
+     * Registers an insert as pending, so deletes and updates for the same document are held back
+     * until it is executed. The request must then be given to {@link #submit(IndexRequest)}.
+     */
+    void reserve(IndexRequest request) {
+        String key = key(request.index(), request.type(), request.id());
+        PendingInserts stripe = pending[stripe(request.id())];
+        synchronized (stripe) {
+            Integer count = stripe.inserts.get(key);
+            stripe.inserts.put(key, count == null ? 1 : count + 1);
+        }
+    }
+
+    void submit(IndexRequest request) {
+        inserts.add(request, stripe(request.id()));
+    }
+
+    /**
+     * Releases a reserved insert which will never be submitted
+     */
+    void cancel(IndexRequest request) {
+        releaseInserts(Collections.<ActionRequest>singletonList(request));
+    }
+
+    @Override
+    public void delete(DeleteRequest request) {
+        int stripe = stripe(request.id());
+        if (!holdBack(stripe, key(request.index(), request.type(), request.id()), request)) {
+            deletes.add(request, stripe);
+        }
+    }
+
+    @Override
+    public void update(UpdateRequest request) {
+        int stripe = stripe(request.id());
+        if (!holdBack(stripe, key(request.index(), request.type(), request.id()), request)) {
+            updates.add(request, stripe);
+        }
+    }
+
+    @Override
+    public int maxConcurrentInserts() {
+        return inserts.concurrency;
+    }
+
+    @Override
+    public void setMaxConcurrentInserts(int maxConcurrentBulk) {
+        inserts.setConcurrency(maxConcurrentBulk);
+    }
+
+    /**
+     * Flushes all lanes and waits for the pending bulks to be executed.
+     */
+    @Override
+    public void close() {
+        // Inserts first, so held back requests are released before the other lanes close
+        inserts.close();
+        updates.close();
+        deletes.close();
+    }
+
+    private boolean holdBack(int stripe, String key, ActionRequest request) {
+        PendingInserts pendingInserts = pending[stripe];
+        synchronized (pendingInserts) {
+            if (!pendingInserts.inserts.containsKey(key)) {
+                return false;
+            }
+            List<ActionRequest> requests = pendingInserts.heldBack.get(key);
+            if (requests == null) {
+                requests = new ArrayList<ActionRequest>(1);
+                pendingInserts.heldBack.put(key, requests);
+            }
+            requests.add(request);
+            heldBackCount.incrementAndGet();
+            return true;
+        }
+    }
+
+    private void releaseInserts(List<? extends ActionRequest> requests) {
+        List<ActionRequest> released = null;
+        for (ActionRequest action : requests) {
+            if (!(action instanceof IndexRequest)) {
+                continue;
+            }
+            IndexRequest indexRequest = (IndexRequest) action;
+            String key = key(indexRequest.index(), indexRequest.type(), indexRequest.id());
+            PendingInserts stripe = pending[stripe(indexRequest.id())];
+            List<ActionRequest> held;
+            synchronized (stripe) {
+                Integer count = stripe.inserts.get(key);
+                if (count == null) {
+                    continue;
+                }
+                if (count > 1) {
+                    stripe.inserts.put(key, count - 1);
+                    continue;
+                }
+                stripe.inserts.remove(key);
+                held = stripe.heldBack.remove(key);
+            }
+            if (held != null) {
+                if (released == null) {
+                    released = new ArrayList<ActionRequest>();
+                }
+                released.addAll(held);
+            }
+        }
+        if (released != null) {
+            heldBackCount.addAndGet(-released.size());
+            for (ActionRequest action : released) {
+                if (action instanceof DeleteRequest) {
+                    deletes.add(action, stripe(((DeleteRequest) action).id()));
+                } else {
+                    updates.add(action, stripe(((UpdateRequest) action).id()));
+                }
+            }
+        }
+    }
+
+    private static String key(String index, String type, String id) {
+        return index + '/' + type + '/' + id;
+    }
+
+    private int stripe(String id) {
+        if (stripes == 1 || id == null) {
+            return 0;
+        }
+        return (id.hashCode() & Integer.MAX_VALUE) % stripes;
+    }
+
+    /**
+     * Inserts not acknowledged yet, and the requests held back until they are
+     */
+    private static class PendingInserts {
+        final Map<String, Integer> inserts = new HashMap<String, Integer>();
+        final Map<String, List<ActionRequest>> heldBack = new HashMap<String, List<ActionRequest>>();
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("lanes");
+        inserts.toXContent(builder, params);
+        deletes.toXContent(builder, params);
+        updates.toXContent(builder, params);
+        builder.field("stripes", stripes);
+        builder.field("held_back", heldBackCount.get());
+        builder.endObject();
+        return builder;
+    }
+
+    /**
+     * Batching and concurrency of a single lane
+     */
+    public static class LaneSettings {
+        final int bulkSize;
+        final int maxConcurrentBulk;
+        final TimeValue flushInterval;
+
+        public LaneSettings(int bulkSize, int maxConcurrentBulk, TimeValue flushInterval) {
+            this.bulkSize = bulkSize;
+            this.maxConcurrentBulk = maxConcurrentBulk;
+            this.flushInterval = flushInterval;
+        }
+
+        /**
+         * Reads {@code bulk_size}, {@code max_concurrent_bulk} and {@code flush_interval} from a lane settings map
+         */
+        public static LaneSettings parse(Map<String, Object> settings, LaneSettings defaults) {
+            if (settings == null) {
+                return defaults;
+            }
+            return new LaneSettings(
+                    XContentMapValues.nodeIntegerValue(settings.get("bulk_size"), defaults.bulkSize),
+                    XContentMapValues.nodeIntegerValue(settings.get("max_concurrent_bulk"), defaults.maxConcurrentBulk),
+                    TimeValue.parseTimeValue(XContentMapValues.nodeStringValue(settings.get("flush_interval"), null),
+                            defaults.flushInterval));
+        }
+
+        @Override
+        public String toString() {
+            return "bulk_size [" + bulkSize + "], max_concurrent_bulk [" + maxConcurrentBulk + "], flush_interval [" + flushInterval + "]";
+        }
+    }
+
+    private class Lane implements ToXContent {
+        private final String name;
+        private final Client client;
+        private final LaneSettings settings;
+        private final Stripe[] stripes;
+        private volatile int concurrency;
+
+        private final AtomicLong succeeded = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong bulks = new AtomicLong();
+
+        Lane(String name, Client client, LaneSettings settings) {
+            this.name = name;
+            this.client = client;
+            this.settings = settings;
+            this.concurrency = settings.maxConcurrentBulk;
+            this.stripes = new Stripe[BulkLanes.this.stripes];
+            BulkProcessor[] processors = processors(concurrency);
+            for (int i = 0; i < stripes.length; i++) {
+                stripes[i] = new Stripe(processors[i % processors.length]);
+            }
+            logger.debug("{} lane created with {} and [{}] stripes over [{}] bulk processors", name, settings,
+                    stripes.length, processors.length);
+        }
+
+        /**
+         * Processors sharing the given concurrency, one per concurrent bulk at most
+         */
+        private BulkProcessor[] processors(int concurrency) {
+            int count = Math.max(1, Math.min(stripes.length, concurrency));
+            BulkProcessor[] processors = new BulkProcessor[count];
+            for (int i = 0; i < count; i++) {
+                processors[i] = build(share(concurrency, count, i));
+            }
+            return processors;
+        }
+
+        private BulkProcessor build(int concurrency) {
+            return BulkProcessor.builder(client, new BulkProcessor.Listener() {
+                @Override
+                public void beforeBulk(long executionId, BulkRequest request) {
+                    logger.debug("Going to execute new {} bulk composed of {} actions", name, request.numberOfActions());
+                    if (listener != null) {
+                        for (ActionRequest action : request.requests()) {
+                            listener.onRequestSubmitted(action);
+                        }
+                    }
+                }
+
+                @Override
+                public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+                    logger.debug("Executed {} bulk composed of {} actions", name, request.numberOfActions());
+                    bulks.incrementAndGet();
+                    long failures = 0;
+                    if (response.hasFailures()) {
+                        logger.warn("There was failures while executing {} bulk", name, response.buildFailureMessage());
+                        for (BulkItemResponse item : response.getItems()) {
+                            if (item.isFailed()) {
+                                failures++;
+                                if (logger.isDebugEnabled()) {
+                                    logger.debug("Error for {}/{}/{} for {} operation: {}", item.getIndex(),
+                                            item.getType(), item.getId(), item.getOpType(), item.getFailureMessage());
+                                }
+                            }
+                        }
+                    }
+                    failed.addAndGet(failures);
+                    succeeded.addAndGet(request.numberOfActions() - failures);
+                    if (listener != null) {
+                        BulkItemResponse[] items = response.getItems();
+                        List<ActionRequest> requests = request.requests();
+                        for (int i = 0; i < requests.size(); i++) {
+                            listener.onRequestDone(requests.get(i), items[i].isFailed());
+                        }
+                    }
+                    onBulkDone(request);
+                }
+
+                @Override
+                public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+                    logger.warn("Error executing {} bulk", failure, name);
+                    bulks.incrementAndGet();
+                    failed.addAndGet(request.numberOfActions());
+                    if (listener != null) {
+                        for (ActionRequest action : request.requests()) {
+                            listener.onRequestDone(action, true);
+                        }
+                    }
+                    onBulkDone(request);
+                }
+            })
+                    .setName(name)
+                    .setBulkActions(settings.bulkSize)
+                    .setConcurrentRequests(concurrency)
+                    .setFlushInterval(settings.flushInterval)
+                    .build();
+        }
+
+        void add(ActionRequest request, int stripe) {
+            stripes[stripe].add(request);
+        }
+
+        /**
+         * Part of the lane concurrency used by one of its processors. There are no more processors than
+         * concurrent bulks, so each one gets at least one, unless the lane is synchronous.
+         */
+        private int share(int concurrency, int processors, int processor) {
+            return concurrency / processors + (processor < concurrency % processors ? 1 : 0);
+        }
+
+        /**
+         * Switches every stripe to a new processor with its share of the given concurrency. The previous ones are
+         * flushed.
+         */
+        synchronized void setConcurrency(int concurrency) {
+            if (concurrency == this.concurrency) {
+                return;
+            }
+            this.concurrency = concurrency;
+            BulkProcessor[] processors = processors(concurrency);
+            Set<BulkProcessor> previous = new LinkedHashSet<BulkProcessor>();
+            for (int i = 0; i < stripes.length; i++) {
+                previous.add(stripes[i].swap(processors[i % processors.length]));
+            }
+            for (BulkProcessor bulkProcessor : previous) {
+                close(bulkProcessor);
+            }
+            logger.info("{} lane max_concurrent_bulk set to [{}] over [{}] bulk processors", name, concurrency,
+                    processors.length);
+        }
+
+        void onBulkDone(BulkRequest request) {
+        }
+
+        /**
+         * Distinct processors used by the stripes
+         */
+        private Set<BulkProcessor> currentProcessors() {
+            Set<BulkProcessor> processors = new LinkedHashSet<BulkProcessor>();
+            for (Stripe stripe : stripes) {
+                processors.add(stripe.bulkProcessor);
+            }
+            return processors;
+        }
+
+        void close() {
+            for (BulkProcessor bulkProcessor : currentProcessors()) {
+                close(bulkProcessor);
+            }
+        }
+
+        private void close(BulkProcessor bulkProcessor) {
+            try {
+                if (!bulkProcessor.awaitClose(settings.flushInterval.millis() + 30000, TimeUnit.MILLISECONDS)) {
+                    logger.warn("timed out while closing {} lane, some requests may be lost", name);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            long added = 0;
+            for (Stripe stripe : stripes) {
+                added += stripe.added.get();
+            }
+            builder.startObject(name);
+            builder.field("added", added);
+            builder.field("succeeded", succeeded.get());
+            builder.field("failed", failed.get());
+            builder.field("bulks", bulks.get());
+            builder.field("max_concurrent_bulk", concurrency);
+            builder.field("bulk_processors", currentProcessors().size());
+            builder.endObject();
+            return builder;
+        }
+    }
+
+    /**
+     * Entry of a lane for a part of the document ids. Stripes only share a bulk processor when the lane has fewer
+     * concurrent bulks than stripes.
+     */
+    private static class Stripe {
+        // The processor is replaced when the concurrency changes
+        private final ReadWriteLock processorLock = new ReentrantReadWriteLock();
+        private volatile BulkProcessor bulkProcessor;
+        private final AtomicLong added = new AtomicLong();
+
+        Stripe(BulkProcessor bulkProcessor) {
+            this.bulkProcessor = bulkProcessor;
+        }
+
+        void add(ActionRequest request) {
+            added.incrementAndGet();
+            processorLock.readLock().lock();
+            try {
+                bulkProcessor.add(request);
+            } finally {
+                processorLock.readLock().unlock();
+            }
+        }
+
+        /**
+         * @return the previous processor
+         */
+        BulkProcessor swap(BulkProcessor replacement) {
+            processorLock.writeLock().lock();
+            try {
+                BulkProcessor previous = bulkProcessor;
+                bulkProcessor = replacement;
+                return previous;
+            } finally {
+                processorLock.writeLock().unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,382 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.river.twitter;
+
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Relaxes the settings of the river indices while the cluster can not keep up with the stream.
+ * <p/>
+ * Every {@code check_interval}, the memory held by the documents waiting to be indexed and the mean time
+ * documents spent in their bulk since the previous check are compared to {@code backlog_above} and
+ * {@code latency_above}. When one of them is crossed, the {@code refresh_interval} of the indices is raised
+ * and their translog is synced asynchronously. Settings are restored once both values stayed under half
+ * their threshold for {@code calm_for}, after {@code max_duration} whatever the load, and when the river closes.
+ * <p/>
+ * Only settings which are stricter than the relaxed ones are changed. Their previous values are written to the
+ * {@code _bulk_load} document of the river before the indices are relaxed, so a river which did not close
+ * properly puts them back when it starts again.
+ */
+public class BulkLoadTuner implements ToXContent {
+
+    static final String REFRESH_INTERVAL = "index.refresh_interval";
+    static final String DURABILITY = "index.translog.durability";
+    static final String SYNC_INTERVAL = "index.translog.sync_interval";
+
+    static final String STATE_ID = "_bulk_load";
+
+    // Values in use when a setting was never set
+    private static final String DEFAULT_REFRESH_INTERVAL = "1s";
+    private static final String DEFAULT_DURABILITY = "request";
+    private static final String DEFAULT_SYNC_INTERVAL = "5s";
+
+    private final ESLogger logger;
+    private final Client client;
+    private final String riverIndexName;
+    private final String riverName;
+    private final String[] indices;
+
+    private final long backlogAbove;
+    private final TimeValue latencyAbove;
+    private final TimeValue calmFor;
+    private final TimeValue maxDuration;
+    private final TimeValue checkInterval;
+    private final TimeValue refreshInterval;
+    private final boolean asyncTranslog;
+    private final TimeValue syncInterval;
+
+    private final AtomicLong bulkDocs = new AtomicLong();
+    private final AtomicLong bulkMillis = new AtomicLong();
+
+    // Guarded by this. Settings to put back, by index, empty when nothing is relaxed
+    private final Map<String, Map<String, Object>> originals = new LinkedHashMap<String, Map<String, Object>>();
+    private long calmSince = -1;
+    private long holdUntil;
+    private boolean closed;
+    // Read by the stats without waiting for a running check
+    private volatile long relaxedAt = -1;
+    private volatile List<String> relaxedIndices = new ArrayList<String>();
+    private volatile long lastBacklog;
+    private volatile long lastLatency;
+    private volatile String lastReason;
+
+    private final AtomicLong relaxations = new AtomicLong();
+    private final AtomicLong restorations = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public BulkLoadTuner(ESLogger logger, Client client, String riverIndexName, String riverName,
+                         Collection<String> indices, Map<String, Object> settings) {
+        this.logger = logger;
+        this.client = client;
+        this.riverIndexName = riverIndexName;
+        this.riverName = riverName;
+        this.indices = new LinkedHashSet<String>(indices).toArray(new String[0]);
+        Object backlog = settings.get("backlog_above");
+        this.backlogAbove = backlog == null ? new ByteSizeValue(32, ByteSizeUnit.MB).bytes() :
+                ByteSizeValue.parseBytesSizeValue(backlog.toString()).bytes();
+        this.latencyAbove = XContentMapValues.nodeTimeValue(settings.get("latency_above"), TimeValue.timeValueSeconds(2));
+        this.calmFor = XContentMapValues.nodeTimeValue(settings.get("calm_for"), TimeValue.timeValueMinutes(5));
+        this.maxDuration = XContentMapValues.nodeTimeValue(settings.get("max_duration"), TimeValue.timeValueHours(2));
+        this.checkInterval = XContentMapValues.nodeTimeValue(settings.get("check_interval"), TimeValue.timeValueSeconds(10));
+        this.refreshInterval = XContentMapValues.nodeTimeValue(settings.get("refresh_interval"), TimeValue.timeValueSeconds(30));
+        this.asyncTranslog = "async".equals(XContentMapValues.nodeStringValue(settings.get("translog_durability"), "async"));
+        this.syncInterval = XContentMapValues.nodeTimeValue(settings.get("translog_sync_interval"), TimeValue.timeValueSeconds(5));
+        if (refreshInterval.millis() > TimeValue.timeValueMinutes(5).millis()) {
+            throw new IllegalArgumentException("bulk_load refresh_interval must be 5m at most, got [" + refreshInterval + "]");
+        }
+    }
+
+    public TimeValue checkInterval() {
+        return checkInterval;
+    }
+
+    /**
+     * Records the time a document spent in its bulk
+     */
+    public void onBulkDone(long millis) {
+        bulkDocs.incrementAndGet();
+        bulkMillis.addAndGet(Math.max(0, millis));
+    }
+
+    /**
+     * Compares the load since the previous check to the thresholds, and changes the settings if needed
+     * @param backlogBytes memory held by the documents waiting to be indexed
+     */
+    public synchronized void check(long backlogBytes, long nowInMillis) {
+        long docs = bulkDocs.getAndSet(0);
+        long millis = bulkMillis.getAndSet(0);
+        long latency = docs == 0 ? 0 : millis / docs;
+        lastBacklog = backlogBytes;
+        lastLatency = latency;
+        if (closed) {
+            return;
+        }
+
+        if (originals.isEmpty()) {
+            if (nowInMillis < holdUntil) {
+                return;
+            }
+            String reason = null;
+            if (backlogBytes >= backlogAbove) {
+                reason = "backlog of [" + new ByteSizeValue(backlogBytes) + "]";
+            } else if (latency >= latencyAbove.millis()) {
+                reason = "bulk latency of [" + TimeValue.timeValueMillis(latency) + "]";
+            }
+            if (reason != null) {
+                relax(reason, nowInMillis);
+            }
+            return;
+        }
+
+        if (nowInMillis - relaxedAt >= maxDuration.millis()) {
+            logger.info("index settings relaxed for more than [{}], restoring them", maxDuration);
+            restore("max_duration");
+            // Let the indices refresh for a while before relaxing them again
+            holdUntil = nowInMillis + calmFor.millis();
+            return;
+        }
+        if (backlogBytes >= backlogAbove / 2 || latency >= latencyAbove.millis() / 2) {
+            calmSince = -1;
+            return;
+        }
+        if (calmSince < 0) {
+            calmSince = nowInMillis;
+        }
+        if (nowInMillis - calmSince >= calmFor.millis()) {
+            logger.info("load fell for [{}], restoring index settings", calmFor);
+            restore("calm");
+        }
+    }
+
+    private void relax(String reason, long nowInMillis) {
+        GetSettingsResponse response;
+        try {
+            response = client.admin().indices().prepareGetSettings(indices)
+                    .setIndicesOptions(IndicesOptions.lenientExpandOpen()).get();
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            logger.warn("failed to read settings of {}, not relaxing them", e, Arrays.toString(indices));
+            return;
+        }
+        Map<String, Map<String, Object>> changes = new LinkedHashMap<String, Map<String, Object>>();
+        Map<String, Map<String, Object>> previousValues = new LinkedHashMap<String, Map<String, Object>>();
+        for (String index : indices) {
+            if (!response.getIndexToSettings().containsKey(index)) {
+                continue;
+            }
+            Map<String, Object> relaxed = new HashMap<String, Object>();
+            Map<String, Object> previous = new HashMap<String, Object>();
+            String refresh = setting(response, index, REFRESH_INTERVAL, DEFAULT_REFRESH_INTERVAL);
+            long refreshMillis = TimeValue.parseTimeValue(refresh, TimeValue.timeValueSeconds(1)).millis();
+            // -1 disables refreshes, which is more relaxed than anything we would set
+            if (refreshMillis >= 0 && refreshMillis < refreshInterval.millis()) {
+                relaxed.put(REFRESH_INTERVAL, refreshInterval.toString());
+                previous.put(REFRESH_INTERVAL, refresh);
+            }
+            String durability = setting(response, index, DURABILITY, DEFAULT_DURABILITY);
+            if (asyncTranslog && !"async".equalsIgnoreCase(durability)) {
+                relaxed.put(DURABILITY, "async");
+                previous.put(DURABILITY, durability);
+                String sync = setting(response, index, SYNC_INTERVAL, DEFAULT_SYNC_INTERVAL);
+                if (!syncInterval.toString().equals(sync)) {
+                    relaxed.put(SYNC_INTERVAL, syncInterval.toString());
+                    previous.put(SYNC_INTERVAL, sync);
+                }
+            }
+            if (!relaxed.isEmpty()) {
+                changes.put(index, relaxed);
+                previousValues.put(index, previous);
+            }
+        }
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        // Settings we could not put back must never be changed
+        if (!persist(previousValues, nowInMillis)) {
+            logger.warn("failed to save settings of {}, not relaxing them", changes.keySet());
+            return;
+        }
+        for (Map.Entry<String, Map<String, Object>> change : changes.entrySet()) {
+            String index = change.getKey();
+            try {
+                client.admin().indices().prepareUpdateSettings(index).setSettings(change.getValue()).get();
+                originals.put(index, previousValues.get(index));
+                logger.info("{}, relaxed settings of [{}] from {} to {}", reason, index, previousValues.get(index), change.getValue());
+            } catch (Exception e) {
+                failures.incrementAndGet();
+                logger.warn("failed to relax settings of [{}]", e, index);
+            }
+        }
+        if (originals.size() < changes.size()) {
+            persist(originals, nowInMillis);
+        }
+        relaxedIndices = new ArrayList<String>(originals.keySet());
+        if (!originals.isEmpty()) {
+            relaxations.incrementAndGet();
+            relaxedAt = nowInMillis;
+            calmSince = -1;
+            lastReason = reason;
+        }
+    }
+
+    private static String setting(GetSettingsResponse response, String index, String name, String defaultValue) {
+        String value = response.getSetting(index, name);
+        return value == null ? defaultValue : value;
+    }
+
+    /**
+     * Puts back the settings we changed. Indices which could not be restored are tried again at the next check.
+     */
+    private void restore(String reason) {
+        for (Iterator<Map.Entry<String, Map<String, Object>>> it = originals.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Map<String, Object>> entry = it.next();
+            try {
+                client.admin().indices().prepareUpdateSettings(entry.getKey()).setSettings(entry.getValue()).get();
+                logger.info("restored settings of [{}] to {}", entry.getKey(), entry.getValue());
+                it.remove();
+            } catch (Exception e) {
+                failures.incrementAndGet();
+                logger.warn("failed to restore settings of [{}] to {}", e, entry.getKey(), entry.getValue());
+            }
+        }
+        relaxedIndices = new ArrayList<String>(originals.keySet());
+        persist(originals, relaxedAt);
+        if (originals.isEmpty()) {
+            restorations.incrementAndGet();
+            relaxedAt = -1;
+            calmSince = -1;
+            lastReason = reason;
+        }
+    }
+
+    /**
+     * Puts back the settings saved by a previous run of the river, which stopped while indices were relaxed
+     */
+    @SuppressWarnings({"unchecked"})
+    public synchronized void recover() {
+        GetResponse response;
+        try {
+            response = client.prepareGet(riverIndexName, riverName, STATE_ID).get();
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            logger.warn("failed to read saved index settings of river [{}]", e, riverName);
+            return;
+        }
+        if (!response.isExists()) {
+            return;
+        }
+        Map<String, Object> saved = response.getSourceAsMap();
+        Object indicesValue = saved.get("indices");
+        if (indicesValue instanceof Map) {
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) indicesValue).entrySet()) {
+                if (entry.getValue() instanceof Map) {
+                    originals.put(entry.getKey(), new HashMap<String, Object>((Map<String, Object>) entry.getValue()));
+                }
+            }
+        }
+        relaxedAt = XContentMapValues.nodeLongValue(saved.get("relaxed_at"), System.currentTimeMillis());
+        logger.info("settings of {} were relaxed by a previous run, restoring them", originals.keySet());
+        restore("recover");
+    }
+
+    /**
+     * Saves the settings to put back, or removes them once everything is restored
+     * @return true if they are saved
+     */
+    private boolean persist(Map<String, Map<String, Object>> values, long relaxedSince) {
+        try {
+            if (values.isEmpty()) {
+                client.prepareDelete(riverIndexName, riverName, STATE_ID).get();
+                return true;
+            }
+            XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+            builder.field("relaxed_at", relaxedSince);
+            builder.startObject("indices");
+            for (Map.Entry<String, Map<String, Object>> entry : values.entrySet()) {
+                builder.field(entry.getKey(), entry.getValue());
+            }
+            builder.endObject();
+            builder.endObject();
+            client.prepareIndex(riverIndexName, riverName, STATE_ID).setSource(builder).get();
+            return true;
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            logger.warn("failed to save settings of river [{}] to restore", e, riverName);
+            return false;
+        }
+    }
+
+    /**
+     * Restores the settings for good, when the river closes
+     */
+    public synchronized void close() {
+        closed = true;
+        if (!originals.isEmpty()) {
+            restore("close");
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        List<String> relaxed = relaxedIndices;
+        long since = relaxedAt;
+        builder.startObject("bulk_load");
+        builder.field("relaxed", !relaxed.isEmpty());
+        builder.field("relaxed_indices", relaxed);
+        if (since >= 0) {
+            builder.field("relaxed_for_in_millis", System.currentTimeMillis() - since);
+        }
+        builder.byteSizeField("backlog_in_bytes", "backlog", lastBacklog);
+        builder.field("bulk_latency_in_millis", lastLatency);
+        builder.field("relaxations", relaxations.get());
+        builder.field("restorations", restorations.get());
+        builder.field("failures", failures.get());
+        if (lastReason != null) {
+            builder.field("last_reason", lastReason);
+        }
+        builder.endObject();
+        return builder;
+    }
+}
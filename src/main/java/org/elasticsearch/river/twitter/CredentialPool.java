@@ -0,0 +1,228 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import twitter4j.RateLimitStatus;
+import twitter4j.Twitter;
+import twitter4j.TwitterException;
+import twitter4j.TwitterResponse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spreads REST API calls over several OAuth tokens, to multiply the rate limits.
+ * <p/>
+ * The remaining budget of every token is tracked per resource, from the rate limit headers of the responses.
+ * A call goes to the token with the biggest budget left for its resource. When all of them are exhausted,
+ * it waits for the first rate limit window to reset. The first token is the one of the river.
+ */
+public class CredentialPool implements ToXContent {
+
+    /**
+     * Gives access to the REST API
+     */
+    public interface TwitterCall<T extends TwitterResponse> {
+        T call(Twitter twitter) throws TwitterException;
+    }
+
+    // Used when twitter does not tell us when a rate limit window resets
+    private static final long DEFAULT_WINDOW = TimeValue.timeValueMinutes(15).millis();
+
+    private final ESLogger logger;
+    private final List<Credential> credentials;
+    private volatile boolean closed;
+
+    private final AtomicLong rateLimitWaits = new AtomicLong();
+
+    public CredentialPool(ESLogger logger, List<Twitter> clients) {
+        this.logger = logger;
+        this.credentials = new ArrayList<Credential>(clients.size());
+        for (Twitter client : clients) {
+            credentials.add(new Credential(client));
+        }
+    }
+
+    public int size() {
+        return credentials.size();
+    }
+
+    /**
+     * Runs a call with any token
+     * @param resource rate limited resource, for example {@code /lists/members}
+     * @return null if the pool was closed while waiting for a rate limit reset
+     * @throws TwitterException if the call failed for another reason than a rate limit
+     */
+    public <T extends TwitterResponse> T call(String resource, TwitterCall<T> call) throws TwitterException {
+        return call(resource, call, false);
+    }
+
+    /**
+     * Runs a call with the token of the river, for calls which depend on the authenticated user
+     */
+    public <T extends TwitterResponse> T callAsPrimary(String resource, TwitterCall<T> call) throws TwitterException {
+        return call(resource, call, true);
+    }
+
+    private <T extends TwitterResponse> T call(String resource, TwitterCall<T> call, boolean primary) throws TwitterException {
+        while (!closed) {
+            Credential credential = acquire(resource, primary);
+            if (credential == null) {
+                return null;
+            }
+            try {
+                credential.requests.incrementAndGet();
+                T response = call.call(credential.twitter);
+                update(credential, resource, response.getRateLimitStatus(), false);
+                return response;
+            } catch (TwitterException e) {
+                if (!e.exceededRateLimitation()) {
+                    throw e;
+                }
+                credential.rateLimitHits.incrementAndGet();
+                update(credential, resource, e.getRateLimitStatus(), true);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Picks the token with the biggest budget left, waiting for a reset if needed
+     */
+    private synchronized Credential acquire(String resource, boolean primary) {
+        while (!closed) {
+            long now = System.currentTimeMillis();
+            Credential best = null;
+            int bestRemaining = 0;
+            long nextReset = Long.MAX_VALUE;
+            int candidates = primary ? 1 : credentials.size();
+            for (int i = 0; i < candidates; i++) {
+                Credential credential = credentials.get(i);
+                Budget budget = credential.budget(resource);
+                int remaining = budget.remaining(now);
+                if (remaining > bestRemaining) {
+                    best = credential;
+                    bestRemaining = remaining;
+                } else if (remaining == 0) {
+                    nextReset = Math.min(nextReset, budget.resetAt);
+                }
+            }
+            if (best != null) {
+                best.budget(resource).remaining--;
+                return best;
+            }
+            rateLimitWaits.incrementAndGet();
+            long waitMillis = Math.max(1000, nextReset - now);
+            logger.debug("rate limit of [{}] reached for all tokens, waiting [{}]", resource, TimeValue.timeValueMillis(waitMillis));
+            try {
+                wait(waitMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private synchronized void update(Credential credential, String resource, RateLimitStatus rateLimit, boolean exhausted) {
+        Budget budget = credential.budget(resource);
+        long now = System.currentTimeMillis();
+        if (rateLimit != null) {
+            budget.remaining = exhausted ? 0 : rateLimit.getRemaining();
+            budget.resetAt = now + Math.max(1, rateLimit.getSecondsUntilReset()) * 1000L;
+        } else if (exhausted) {
+            budget.remaining = 0;
+            budget.resetAt = now + DEFAULT_WINDOW;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Wakes up and stops the calls waiting for a rate limit reset
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    private static class Credential {
+        final Twitter twitter;
+        final ConcurrentMap<String, Budget> budgets = ConcurrentCollections.newConcurrentMap();
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong rateLimitHits = new AtomicLong();
+
+        Credential(Twitter twitter) {
+            this.twitter = twitter;
+        }
+
+        Budget budget(String resource) {
+            Budget budget = budgets.get(resource);
+            if (budget == null) {
+                budget = new Budget();
+                Budget previous = budgets.putIfAbsent(resource, budget);
+                if (previous != null) {
+                    budget = previous;
+                }
+            }
+            return budget;
+        }
+    }
+
+    /**
+     * Calls left in the current rate limit window. Only changed while holding the pool lock.
+     */
+    private static class Budget {
+        // Unknown until the first response
+        int remaining = Integer.MAX_VALUE;
+        long resetAt;
+
+        int remaining(long now) {
+            if (remaining == 0 && now >= resetAt) {
+                remaining = Integer.MAX_VALUE;
+            }
+            return remaining;
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("credentials");
+        builder.field("size", credentials.size());
+        builder.field("rate_limit_waits", rateLimitWaits.get());
+        builder.startArray("tokens");
+        for (Credential credential : credentials) {
+            builder.startObject();
+            builder.field("requests", credential.requests.get());
+            builder.field("rate_limit_hits", credential.rateLimitHits.get());
+            builder.endObject();
+        }
+        builder.endArray();
+        builder.endObject();
+        return builder;
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import twitter4j.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches statuses published while the stream was disconnected, using the REST API.
+ * <p/>
+ * Timelines of followed users are fetched in parallel. Calls go through a {@link CredentialPool}, which
+ * waits for a rate limit window to reset when all its tokens are exhausted.
+ */
+public class GapBackfiller implements ToXContent {
+
+    /**
+     * Receives the statuses found by the backfill
+     */
+    public interface Sink {
+        void onStatus(Status status);
+    }
+
+    // REST API maximum page size for timelines and search
+    private static final int TIMELINE_PAGE_SIZE = 200;
+    private static final int SEARCH_PAGE_SIZE = 100;
+
+    private final ESLogger logger;
+    private final Executor executor;
+    private final Sink sink;
+
+    private final boolean enabled;
+    private final int concurrency;
+    private final int maxPages;
+    private final TimeValue maxGap;
+    private final int firehoseCount;
+
+    // One flag per kind of backfill, so a filter stream backfills both its users and its tracks
+    private final AtomicBoolean usersRunning = new AtomicBoolean();
+    private final AtomicBoolean homeRunning = new AtomicBoolean();
+    private final AtomicBoolean searchRunning = new AtomicBoolean();
+    private volatile boolean stopped;
+
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong backfilled = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+
+    public GapBackfiller(ESLogger logger, Executor executor, Sink sink, Map<String, Object> settings) {
+        this.logger = logger;
+        this.executor = executor;
+        this.sink = sink;
+        if (settings == null) {
+            this.enabled = false;
+            this.concurrency = 2;
+            this.maxPages = 16;
+            this.maxGap = TimeValue.timeValueHours(6);
+            this.firehoseCount = 0;
+        } else {
+            this.enabled = XContentMapValues.nodeBooleanValue(settings.get("enabled"), true);
+            this.concurrency = XContentMapValues.nodeIntegerValue(settings.get("concurrency"), 2);
+            this.maxPages = XContentMapValues.nodeIntegerValue(settings.get("max_pages"), 16);
+            this.maxGap = XContentMapValues.nodeTimeValue(settings.get("max_gap"), TimeValue.timeValueHours(6));
+            this.firehoseCount = XContentMapValues.nodeIntegerValue(settings.get("firehose_count"), 0);
+        }
+    }
+
+    public boolean enabled() {
+        return enabled;
+    }
+
+    /**
+     * Number of statuses to ask to the firehose stream when reconnecting
+     */
+    public int firehoseCount() {
+        return firehoseCount;
+    }
+
+    /**
+     * @return true if a gap starting at this date can be backfilled
+     */
+    public boolean canBackfill(long lastCreatedAt) {
+        if (!enabled || lastCreatedAt <= 0) {
+            return false;
+        }
+        long gap = System.currentTimeMillis() - lastCreatedAt;
+        if (gap > maxGap.millis()) {
+            logger.info("gap of [{}] is bigger than max_gap [{}], skipping backfill", TimeValue.timeValueMillis(gap), maxGap);
+            return false;
+        }
+        return true;
+    }
+
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Fetches timelines of the given users, newer than sinceId
+     */
+    public void backfillUsers(final CredentialPool credentials, long[] userIds, final long sinceId) {
+        if (!usersRunning.compareAndSet(false, true)) {
+            logger.debug("timelines backfill already running, skipping");
+            return;
+        }
+        runs.incrementAndGet();
+        logger.info("backfilling timelines of {} users since status [{}]", userIds.length, sinceId);
+        final ConcurrentLinkedQueue<Long> queue = new ConcurrentLinkedQueue<Long>();
+        for (long userId : userIds) {
+            queue.add(userId);
+        }
+        int tasks = Math.min(concurrency, userIds.length);
+        if (tasks == 0) {
+            usersRunning.set(false);
+            return;
+        }
+        final AtomicLong remainingTasks = new AtomicLong(tasks);
+        for (int i = 0; i < tasks; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Long userId;
+                        while (!stopped && (userId = queue.poll()) != null) {
+                            final long id = userId;
+                            fetchTimeline(credentials, "/statuses/user_timeline", false, new TimelineCall() {
+                                @Override
+                                public ResponseList<Status> page(Twitter twitter, Paging paging) throws TwitterException {
+                                    return twitter.getUserTimeline(id, paging);
+                                }
+                            }, sinceId);
+                        }
+                    } finally {
+                        if (remainingTasks.decrementAndGet() == 0) {
+                            usersRunning.set(false);
+                            logger.info("backfill done");
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Fetches the timeline of the authenticated user, newer than sinceId
+     */
+    public void backfillHome(final CredentialPool credentials, final long sinceId) {
+        if (!homeRunning.compareAndSet(false, true)) {
+            logger.debug("home timeline backfill already running, skipping");
+            return;
+        }
+        runs.incrementAndGet();
+        logger.info("backfilling home timeline since status [{}]", sinceId);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // The home timeline belongs to the user of the river token
+                    fetchTimeline(credentials, "/statuses/home_timeline", true, new TimelineCall() {
+                        @Override
+                        public ResponseList<Status> page(Twitter twitter, Paging paging) throws TwitterException {
+                            return twitter.getHomeTimeline(paging);
+                        }
+                    }, sinceId);
+                } finally {
+                    homeRunning.set(false);
+                    logger.info("backfill done");
+                }
+            }
+        });
+    }
+
+    /**
+     * Searches statuses matching the tracked keywords, newer than sinceId
+     */
+    public void backfillSearch(final CredentialPool credentials, String[] tracks, final long sinceId) {
+        if (!searchRunning.compareAndSet(false, true)) {
+            logger.debug("search backfill already running, skipping");
+            return;
+        }
+        runs.incrementAndGet();
+        StringBuilder sb = new StringBuilder();
+        for (String track : tracks) {
+            if (sb.length() > 0) {
+                sb.append(" OR ");
+            }
+            sb.append(track.trim());
+        }
+        final String query = sb.toString();
+        logger.info("backfilling search [{}] since status [{}]", query, sinceId);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Query current = new Query(query).sinceId(sinceId).count(SEARCH_PAGE_SIZE).resultType(Query.ResultType.recent);
+                    for (int page = 0; current != null && page < maxPages && !stopped; page++) {
+                        final Query pageQuery = current;
+                        QueryResult result = call(credentials, "/search/tweets", false, new CredentialPool.TwitterCall<QueryResult>() {
+                            @Override
+                            public QueryResult call(Twitter twitter) throws TwitterException {
+                                return twitter.search(pageQuery);
+                            }
+                        });
+                        if (result == null) {
+                            break;
+                        }
+                        send(result.getTweets());
+                        current = result.nextQuery();
+                    }
+                } finally {
+                    searchRunning.set(false);
+                    logger.info("backfill done");
+                }
+            }
+        });
+    }
+
+    private interface TimelineCall {
+        ResponseList<Status> page(Twitter twitter, Paging paging) throws TwitterException;
+    }
+
+    private void fetchTimeline(CredentialPool credentials, String resource, boolean primary, final TimelineCall timeline,
+                               long sinceId) {
+        long maxId = -1;
+        for (int page = 0; page < maxPages && !stopped; page++) {
+            final Paging paging = new Paging(1, TIMELINE_PAGE_SIZE).sinceId(sinceId);
+            if (maxId > 0) {
+                paging.setMaxId(maxId);
+            }
+            ResponseList<Status> statuses = call(credentials, resource, primary, new CredentialPool.TwitterCall<ResponseList<Status>>() {
+                @Override
+                public ResponseList<Status> call(Twitter twitter) throws TwitterException {
+                    return timeline.page(twitter, paging);
+                }
+            });
+            if (statuses == null || statuses.isEmpty()) {
+                return;
+            }
+            send(statuses);
+            for (Status status : statuses) {
+                if (maxId < 0 || status.getId() <= maxId) {
+                    maxId = status.getId() - 1;
+                }
+            }
+        }
+    }
+
+    private void send(List<Status> statuses) {
+        for (Status status : statuses) {
+            if (stopped) {
+                return;
+            }
+            sink.onStatus(status);
+            backfilled.incrementAndGet();
+        }
+    }
+
+    /**
+     * Runs a REST call
+     * @param primary true if the call must use the token of the river
+     * @return null if the call failed
+     */
+    private <T extends TwitterResponse> T call(CredentialPool credentials, String resource, boolean primary,
+                                               CredentialPool.TwitterCall<T> call) {
+        if (stopped) {
+            return null;
+        }
+        try {
+            requests.incrementAndGet();
+            return primary ? credentials.callAsPrimary(resource, call) : credentials.call(resource, call);
+        } catch (TwitterException e) {
+            logger.warn("backfill request failed", e);
+            return null;
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("backfill");
+        builder.field("running", usersRunning.get() || homeRunning.get() || searchRunning.get());
+        builder.field("runs", runs.get());
+        builder.field("backfilled", backfilled.get());
+        builder.field("requests", requests.get());
+        builder.endObject();
+        return builder;
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter;
+
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import twitter4j.HashtagEntity;
+import twitter4j.Status;
+import twitter4j.URLEntity;
+import twitter4j.UserMentionEntity;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends statuses to other indices than the river one, depending on their content.
+ * <p/>
+ * Rules are evaluated in order and the first matching one wins. A rule matches when all its conditions match,
+ * each condition accepting a list of values:
+ * <ul>
+ * <li>{@code language}: language of the status</li>
+ * <li>{@code country_code}: country code of the place of the status</li>
+ * <li>{@code track}: keywords, with the semantics of the filter stream: every word of a phrase must be in the
+ * text, hashtags, mentions or urls</li>
+ * <li>{@code follow}: user ids, matching the author, the user replied to or the author of the retweeted status</li>
+ * </ul>
+ * A rule without any condition matches every status. Statuses matching no rule go to the river index.
+ */
+public class IndexRouter implements ToXContent {
+
+    /**
+     * Target of a rule, with the settings and mapping to create its index with
+     */
+    public static class Route {
+        private final String index;
+        private final String type;
+        private final Map<String, Object> settings;
+        private final Map<String, Object> mapping;
+
+        private final Set<String> languages;
+        private final Set<String> countryCodes;
+        private final List<String[]> tracks;
+        private final Set<Long> follow;
+
+        private final AtomicLong routed = new AtomicLong();
+
+        @SuppressWarnings({"unchecked"})
+        Route(Map<String, Object> rule, String defaultType) {
+            this.index = XContentMapValues.nodeStringValue(rule.get("index"), null);
+            if (index == null) {
+                throw new IllegalArgumentException("routing rules need an index");
+            }
+            this.type = XContentMapValues.nodeStringValue(rule.get("type"), defaultType);
+            this.settings = (Map<String, Object>) rule.get("settings");
+            this.mapping = (Map<String, Object>) rule.get("mapping");
+            this.languages = lowercase(values(rule.get("language")));
+            this.countryCodes = lowercase(values(rule.get("country_code")));
+            List<String> trackValues = values(rule.get("track"));
+            if (trackValues == null) {
+                this.tracks = null;
+            } else {
+                this.tracks = new ArrayList<String[]>(trackValues.size());
+                for (String track : trackValues) {
+                    List<String> words = words(track);
+                    if (!words.isEmpty()) {
+                        tracks.add(words.toArray(new String[words.size()]));
+                    }
+                }
+            }
+            List<String> followValues = values(rule.get("follow"));
+            if (followValues == null) {
+                this.follow = null;
+            } else {
+                this.follow = new HashSet<Long>();
+                for (String id : followValues) {
+                    follow.add(Long.parseLong(id.trim()));
+                }
+            }
+        }
+
+        public String index() {
+            return index;
+        }
+
+        public String type() {
+            return type;
+        }
+
+        /**
+         * @return index settings to create the index with, null for defaults
+         */
+        public Map<String, Object> settings() {
+            return settings;
+        }
+
+        /**
+         * @return mapping of the type, null for the river default
+         */
+        public Map<String, Object> mapping() {
+            return mapping;
+        }
+
+        boolean matches(Status status) {
+            if (languages != null && (status.getLang() == null || !languages.contains(status.getLang().toLowerCase(Locale.ROOT)))) {
+                return false;
+            }
+            if (countryCodes != null && (status.getPlace() == null || status.getPlace().getCountryCode() == null
+                    || !countryCodes.contains(status.getPlace().getCountryCode().toLowerCase(Locale.ROOT)))) {
+                return false;
+            }
+            if (follow != null && !follows(status)) {
+                return false;
+            }
+            if (tracks != null && !tracks(status)) {
+                return false;
+            }
+            return true;
+        }
+
+        private boolean follows(Status status) {
+            if (status.getUser() != null && follow.contains(status.getUser().getId())) {
+                return true;
+            }
+            if (status.getInReplyToUserId() != -1 && follow.contains(status.getInReplyToUserId())) {
+                return true;
+            }
+            return status.getRetweetedStatus() != null && status.getRetweetedStatus().getUser() != null
+                    && follow.contains(status.getRetweetedStatus().getUser().getId());
+        }
+
+        private boolean tracks(Status status) {
+            Set<String> words = new HashSet<String>(words(status.getText()));
+            if (status.getHashtagEntities() != null) {
+                for (HashtagEntity hashtag : status.getHashtagEntities()) {
+                    words.addAll(words(hashtag.getText()));
+                }
+            }
+            if (status.getUserMentionEntities() != null) {
+                for (UserMentionEntity mention : status.getUserMentionEntities()) {
+                    words.addAll(words(mention.getScreenName()));
+                }
+            }
+            if (status.getURLEntities() != null) {
+                for (URLEntity url : status.getURLEntities()) {
+                    if (url != null) {
+                        words.addAll(words(url.getExpandedURL()));
+                    }
+                }
+            }
+            for (String[] track : tracks) {
+                if (words.containsAll(Arrays.asList(track))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + index + "]/[" + type + "]";
+        }
+    }
+
+    private final List<Route> routes;
+    private final AtomicLong unrouted = new AtomicLong();
+
+    /**
+     * @param rules routing rules, as found in the river settings
+     * @param defaultType type used by rules which do not define one
+     */
+    @SuppressWarnings({"unchecked"})
+    public IndexRouter(List<Object> rules, String defaultType) {
+        List<Route> routes = new ArrayList<Route>(rules.size());
+        for (Object rule : rules) {
+            routes.add(new Route((Map<String, Object>) rule, defaultType));
+        }
+        this.routes = Collections.unmodifiableList(routes);
+    }
+
+    public List<Route> routes() {
+        return routes;
+    }
+
+    /**
+     * @return the first route matching the status, null if none does
+     */
+    public Route route(Status status) {
+        for (Route route : routes) {
+            if (route.matches(status)) {
+                route.routed.incrementAndGet();
+                return route;
+            }
+        }
+        unrouted.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Lowercased words, split on anything but letters and digits
+     */
+    static List<String> words(String text) {
+        List<String> words = new ArrayList<String>();
+        if (text == null) {
+            return words;
+        }
+        String lowercased = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= lowercased.length(); i++) {
+            if (i < lowercased.length() && Character.isLetterOrDigit(lowercased.charAt(i))) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                words.add(lowercased.substring(start, i));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Reads a list of values, or comma separated values
+     */
+    @SuppressWarnings({"unchecked"})
+    private static List<String> values(Object value) {
+        if (value == null) {
+            return null;
+        }
+        List<String> values = new ArrayList<String>();
+        if (value instanceof List) {
+            for (Object item : (List<Object>) value) {
+                values.add(item.toString());
+            }
+        } else {
+            values.addAll(Arrays.asList(Strings.commaDelimitedListToStringArray(value.toString())));
+        }
+        return values;
+    }
+
+    private static Set<String> lowercase(List<String> values) {
+        if (values == null) {
+            return null;
+        }
+        Set<String> lowercased = new HashSet<String>();
+        for (String value : values) {
+            lowercased.add(value.trim().toLowerCase(Locale.ROOT));
+        }
+        return lowercased;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("routing");
+        builder.startArray("rules");
+        for (Route route : routes) {
+            builder.startObject();
+            builder.field("index", route.index);
+            builder.field("type", route.type);
+            builder.field("routed", route.routed.get());
+            builder.endObject();
+        }
+        builder.endArray();
+        builder.field("unrouted", unrouted.get());
+        builder.endObject();
+        return builder;
+    }
+}
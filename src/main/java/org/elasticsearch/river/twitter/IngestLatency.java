@@ -0,0 +1,124 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+
+/**
+ * Time spent by statuses in each stage, from their creation on twitter to their indexation:
+ * <ul>
+ * <li>{@code stream}: from {@code created_at} to the reception by the river</li>
+ * <li>{@code build}: from the reception to the document being built</li>
+ * <li>{@code queue}: from the document being built to its bulk being sent</li>
+ * <li>{@code bulk}: from the bulk being sent to its response</li>
+ * <li>{@code freshness}: from {@code created_at} to the bulk response</li>
+ * </ul>
+ * Timings travel with the index request, in its context.
+ */
+public class IngestLatency implements ToXContent {
+
+    static final String CONTEXT_KEY = "twitter_status_timings";
+
+    /**
+     * When a status went through each stage, in milliseconds since epoch
+     */
+    public static class Timings {
+        final long statusId;
+        final long createdAt;
+        // -1 when unknown, for statuses read from the REST API
+        final long receivedAt;
+        final long builtAt;
+        volatile long submittedAt = -1;
+
+        public Timings(long statusId, long createdAt, long receivedAt, long builtAt) {
+            this.statusId = statusId;
+            this.createdAt = createdAt;
+            this.receivedAt = receivedAt;
+            this.builtAt = builtAt;
+        }
+
+        public long statusId() {
+            return statusId;
+        }
+
+        public long createdAt() {
+            return createdAt;
+        }
+
+        /**
+         * @return -1 if the request has not been sent in a bulk yet
+         */
+        public long submittedAt() {
+            return submittedAt;
+        }
+    }
+
+    private final LatencyHistogram stream = new LatencyHistogram("stream");
+    private final LatencyHistogram build = new LatencyHistogram("build");
+    private final LatencyHistogram queue = new LatencyHistogram("queue");
+    private final LatencyHistogram bulk = new LatencyHistogram("bulk");
+    private final LatencyHistogram freshness = new LatencyHistogram("freshness");
+
+    public static Timings timings(ActionRequest request) {
+        return request.getFromContext(CONTEXT_KEY);
+    }
+
+    public static void attach(ActionRequest request, Timings timings) {
+        request.putInContext(CONTEXT_KEY, timings);
+    }
+
+    public void onSubmitted(ActionRequest request) {
+        Timings timings = timings(request);
+        if (timings != null) {
+            timings.submittedAt = System.currentTimeMillis();
+        }
+    }
+
+    public void onDone(ActionRequest request) {
+        Timings timings = timings(request);
+        if (timings == null || timings.receivedAt < 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        stream.record(timings.receivedAt - timings.createdAt);
+        build.record(timings.builtAt - timings.receivedAt);
+        if (timings.submittedAt >= 0) {
+            queue.record(timings.submittedAt - timings.builtAt);
+            bulk.record(now - timings.submittedAt);
+        }
+        freshness.record(now - timings.createdAt);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("latency");
+        freshness.toXContent(builder, params);
+        stream.toXContent(builder, params);
+        build.toXContent(builder, params);
+        queue.toXContent(builder, params);
+        bulk.toXContent(builder, params);
+        builder.endObject();
+        return builder;
+    }
+}
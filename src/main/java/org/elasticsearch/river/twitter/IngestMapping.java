@@ -0,0 +1,198 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+
+import java.io.IOException;
+
+/**
+ * Mapping profile which favors indexing throughput over flexibility.
+ * <ul>
+ * <li>{@code _all} is disabled</li>
+ * <li>full text fields are analyzed without norms</li>
+ * <li>fields used for filtering and aggregations are not analyzed and use doc values</li>
+ * <li>fields nobody searches on, like entity offsets or image urls, are only kept in {@code _source}</li>
+ * </ul>
+ * Fields of raw documents which are not known here follow the same rules through dynamic templates. Raw
+ * documents keep dates as twitter sends them, like {@code Wed Aug 27 13:08:45 +0000 2008}, so their
+ * {@code created_at} fields are parsed with {@link #TWITTER_DATE_FORMAT}.
+ */
+public class IngestMapping {
+
+    public static final String PROFILE = "ingest";
+
+    public static final String TWITTER_DATE_FORMAT = "EEE MMM dd HH:mm:ss Z yyyy";
+
+    /**
+     * @param raw true if documents are the JSON sent by twitter
+     */
+    public static XContentBuilder mapping(String typeName, boolean raw) throws IOException {
+        XContentBuilder builder = XContentFactory.jsonBuilder().startObject().startObject(typeName);
+        builder.startObject("_all").field("enabled", false).endObject();
+
+        builder.startArray("dynamic_templates");
+        if (raw) {
+            // Statuses and users embedded in raw documents have their own created_at
+            builder.startObject().startObject("twitter_dates")
+                    .field("match", "created_at")
+                    .startObject("mapping");
+            twitterDate(builder);
+            builder.endObject()
+                    .endObject().endObject();
+        }
+        builder.startObject().startObject("offsets")
+                .field("match_pattern", "regex")
+                .field("match", "start|end|indices")
+                .startObject("mapping").field("index", "no").field("doc_values", false).endObject()
+                .endObject().endObject();
+        builder.startObject().startObject("embedded_texts")
+                .field("match_pattern", "regex")
+                .field("path_match", "(.*\\.)?(retweeted_status|quoted_status)\\.text")
+                .startObject("mapping")
+                    .field("type", "string")
+                    .startObject("norms").field("enabled", false).endObject()
+                .endObject()
+                .endObject().endObject();
+        builder.startObject().startObject("strings")
+                .field("match_mapping_type", "string")
+                .startObject("mapping")
+                    .field("type", "string")
+                    .field("index", "not_analyzed")
+                    .field("doc_values", true)
+                    .field("ignore_above", 256)
+                .endObject()
+                .endObject().endObject();
+        builder.endArray();
+
+        builder.startObject("properties");
+        text(builder, "text");
+        if (raw) {
+            builder.startObject("created_at");
+            twitterDate(builder);
+            builder.endObject();
+        } else {
+            builder.startObject("created_at").field("type", "date").field("doc_values", true).endObject();
+        }
+        unindexed(builder, "source", "string");
+        unindexed(builder, "truncated", "boolean");
+        keyword(builder, "language");
+        unindexed(builder, "sample_ratio", "float");
+        number(builder, "retweet_count", "integer");
+        builder.startObject("location").field("type", "geo_point").endObject();
+        number(builder, "contributor", "long");
+
+        builder.startObject("mention").startObject("properties");
+        number(builder, "id", "long");
+        text(builder, "name");
+        keyword(builder, "screen_name");
+        offsets(builder);
+        builder.endObject().endObject();
+
+        builder.startObject("hashtag").startObject("properties");
+        keyword(builder, "text");
+        offsets(builder);
+        builder.endObject().endObject();
+
+        builder.startObject("link").startObject("properties");
+        unindexed(builder, "url", "string");
+        unindexed(builder, "display_url", "string");
+        keyword(builder, "expand_url");
+        offsets(builder);
+        builder.endObject().endObject();
+
+        // Flat entities, for terms aggregations
+        keyword(builder, "hashtags");
+        number(builder, "mention_ids", "long");
+        keyword(builder, "urls");
+        keyword(builder, "resolved_urls");
+
+        builder.startObject("retweet").startObject("properties");
+        number(builder, "id", "long");
+        number(builder, "user_id", "long");
+        keyword(builder, "user_screen_name");
+        number(builder, "retweet_count", "integer");
+        builder.endObject().endObject();
+
+        builder.startObject("in_reply").startObject("properties");
+        number(builder, "status", "long");
+        number(builder, "user_id", "long");
+        keyword(builder, "user_screen_name");
+        builder.endObject().endObject();
+
+        builder.startObject("place").startObject("properties");
+        keyword(builder, "id");
+        text(builder, "name");
+        keyword(builder, "type");
+        text(builder, "full_name");
+        unindexed(builder, "street_address", "string");
+        keyword(builder, "country");
+        keyword(builder, "country_code");
+        unindexed(builder, "url", "string");
+        builder.endObject().endObject();
+
+        builder.startObject("user").startObject("properties");
+        number(builder, "id", "long");
+        text(builder, "name");
+        keyword(builder, "screen_name");
+        text(builder, "location");
+        text(builder, "description");
+        unindexed(builder, "profile_image_url", "string");
+        unindexed(builder, "profile_image_url_https", "string");
+        builder.endObject().endObject();
+
+        builder.endObject();
+        return builder.endObject().endObject();
+    }
+
+    private static void twitterDate(XContentBuilder builder) throws IOException {
+        // Day and month names are english whatever the locale of the node
+        builder.field("type", "date").field("format", TWITTER_DATE_FORMAT).field("locale", "en").field("doc_values", true);
+    }
+
+    private static void text(XContentBuilder builder, String name) throws IOException {
+        builder.startObject(name)
+                .field("type", "string")
+                .startObject("norms").field("enabled", false).endObject()
+                .endObject();
+    }
+
+    private static void keyword(XContentBuilder builder, String name) throws IOException {
+        builder.startObject(name)
+                .field("type", "string")
+                .field("index", "not_analyzed")
+                .field("doc_values", true)
+                .endObject();
+    }
+
+    private static void number(XContentBuilder builder, String name, String type) throws IOException {
+        builder.startObject(name).field("type", type).field("doc_values", true).endObject();
+    }
+
+    private static void unindexed(XContentBuilder builder, String name, String type) throws IOException {
+        builder.startObject(name).field("type", type).field("index", "no").field("doc_values", false).endObject();
+    }
+
+    private static void offsets(XContentBuilder builder) throws IOException {
+        unindexed(builder, "start", "integer");
+        unindexed(builder, "end", "integer");
+    }
+}
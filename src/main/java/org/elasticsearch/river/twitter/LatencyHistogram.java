@@ -0,0 +1,140 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter;
+
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of latencies in milliseconds, in the spirit of HdrHistogram.
+ * <p/>
+ * Values under 32 are recorded exactly. Above, every power of two is split in 16 buckets, which gives
+ * percentiles with a relative error under 7% whatever the magnitude, in a fixed amount of memory.
+ */
+public class LatencyHistogram implements ToXContent {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+
+    private static final double[] PERCENTILES = {50, 75, 90, 95, 99, 99.9};
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(64 * HALF);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            // Clocks are not perfectly in sync with twitter
+            value = 0;
+        }
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long currentMax;
+        while (value > (currentMax = max.get())) {
+            if (max.compareAndSet(currentMax, value)) {
+                break;
+            }
+        }
+    }
+
+    public long count() {
+        return count.get();
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+        return exponent * HALF + (int) (value >>> exponent);
+    }
+
+    /**
+     * Highest value recorded in a bucket
+     */
+    static long highestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / HALF - 1;
+        long subBucket = index - exponent * HALF;
+        return ((subBucket + 1) << exponent) - 1;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the value under which this percentage of the values are, or -1 if nothing was recorded
+     */
+    public long percentile(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return -1;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Field names can not hold dots: 50 gives {@code p50} and 99.9 gives {@code p99_9}
+     */
+    static String percentileName(double percentile) {
+        if (percentile == Math.rint(percentile)) {
+            return "p" + (long) percentile;
+        }
+        return "p" + Double.toString(percentile).replace('.', '_');
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(name);
+        long total = count.get();
+        builder.field("count", total);
+        if (total > 0) {
+            builder.field("mean_in_millis", sum.get() / total);
+            builder.field("max_in_millis", max.get());
+            builder.startObject("percentiles_in_millis");
+            for (double percentile : PERCENTILES) {
+                builder.field(percentileName(percentile), percentile(percentile));
+            }
+            builder.endObject();
+        }
+        builder.endObject();
+        return builder;
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.river.twitter;
+
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.threadpool.ThreadPool;
+import twitter4j.HashtagEntity;
+import twitter4j.Status;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Last documents built by the river, served to long polling clients as soon as they are produced.
+ * <p/>
+ * Documents are kept in a ring of {@code buffer_size} entries, numbered by a sequence. A client asks for
+ * the documents after the last sequence it saw: matching documents are sent at once if there are any,
+ * otherwise the request waits for the next ones, up to a timeout. A client which fell behind the ring
+ * gets the number of documents it missed, and goes on from the oldest one kept. At most
+ * {@code max_subscribers} requests wait at a time: the oldest one is answered when another one comes in.
+ */
+public class LiveTail implements ToXContent {
+
+    /**
+     * A document in the ring
+     */
+    public static class Entry {
+        final long seq;
+        final String id;
+        final String index;
+        final BytesReference source;
+        final String text;
+        final String language;
+        final String user;
+        final Set<String> hashtags;
+
+        Entry(long seq, String id, String index, BytesReference source, String text, String language, String user,
+              Set<String> hashtags) {
+            this.seq = seq;
+            this.id = id;
+            this.index = index;
+            this.source = source;
+            this.text = text;
+            this.language = language;
+            this.user = user;
+            this.hashtags = hashtags;
+        }
+
+        public long seq() {
+            return seq;
+        }
+
+        public String id() {
+            return id;
+        }
+
+        public String index() {
+            return index;
+        }
+
+        public BytesReference source() {
+            return source;
+        }
+    }
+
+    /**
+     * Documents a client is interested in. Empty criteria match everything.
+     */
+    public static class Filter {
+        private final String[] tracks;
+        private final Set<String> languages;
+        private final Set<String> users;
+        private final Set<String> hashtags;
+
+        public Filter(String tracks, String languages, String users, String hashtags) {
+            this.tracks = lowercase(tracks);
+            this.languages = new HashSet<String>(Arrays.asList(lowercase(languages)));
+            this.users = new HashSet<String>(Arrays.asList(lowercase(users)));
+            this.hashtags = new HashSet<String>(Arrays.asList(lowercase(hashtags)));
+        }
+
+        private static String[] lowercase(String values) {
+            String[] array = Strings.commaDelimitedListToStringArray(values == null ? null : values.toLowerCase(Locale.ROOT));
+            for (int i = 0; i < array.length; i++) {
+                array[i] = array[i].trim();
+            }
+            return array;
+        }
+
+        boolean matches(Entry entry) {
+            if (!languages.isEmpty() && !languages.contains(entry.language)) {
+                return false;
+            }
+            if (!users.isEmpty() && !users.contains(entry.user)) {
+                return false;
+            }
+            if (!hashtags.isEmpty()) {
+                boolean found = false;
+                for (String hashtag : entry.hashtags) {
+                    if (hashtags.contains(hashtag)) {
+                        found = true;
+                        break;
+                    }
+                }
+                if (!found) {
+                    return false;
+                }
+            }
+            if (tracks.length > 0) {
+                for (String track : tracks) {
+                    if (entry.text.contains(track)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Receives the answer to a poll
+     */
+    public interface Listener {
+        /**
+         * @param next sequence to ask for at the next poll
+         * @param missed documents which left the ring before the client could get them
+         */
+        void onDocuments(long next, long missed, List<Entry> entries);
+    }
+
+    private static class Waiter {
+        final Filter filter;
+        final long since;
+        final long missed;
+        final Listener listener;
+        volatile ScheduledFuture<?> timeout;
+
+        Waiter(Filter filter, long since, long missed, Listener listener) {
+            this.filter = filter;
+            this.since = since;
+            this.missed = missed;
+            this.listener = listener;
+        }
+    }
+
+    private final ThreadPool threadPool;
+    private final Entry[] ring;
+    private final int maxSubscribers;
+    private final TimeValue maxWait;
+
+    // Guarded by this
+    private long seq;
+    private final LinkedList<Waiter> waiters = new LinkedList<Waiter>();
+
+    private final AtomicLong polls = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong missed = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+
+    public LiveTail(ThreadPool threadPool, Map<String, Object> settings) {
+        this.threadPool = threadPool;
+        this.ring = new Entry[Math.max(1, XContentMapValues.nodeIntegerValue(settings.get("buffer_size"), 1000))];
+        this.maxSubscribers = XContentMapValues.nodeIntegerValue(settings.get("max_subscribers"), 100);
+        this.maxWait = XContentMapValues.nodeTimeValue(settings.get("max_wait"), TimeValue.timeValueSeconds(30));
+    }
+
+    public TimeValue maxWait() {
+        return maxWait;
+    }
+
+    /**
+     * Adds a document to the ring and answers the waiting requests it matches
+     */
+    public void publish(Status status, String index, BytesReference source) {
+        Set<String> hashtags = new HashSet<String>();
+        if (status.getHashtagEntities() != null) {
+            for (HashtagEntity hashtag : status.getHashtagEntities()) {
+                hashtags.add(hashtag.getText().toLowerCase(Locale.ROOT));
+            }
+        }
+        String text = status.getText() == null ? "" : status.getText().toLowerCase(Locale.ROOT);
+        String user = status.getUser() == null ? null : status.getUser().getScreenName().toLowerCase(Locale.ROOT);
+        String language = status.getLang() == null ? null : status.getLang().toLowerCase(Locale.ROOT);
+
+        List<Waiter> answered = null;
+        Entry entry;
+        synchronized (this) {
+            entry = new Entry(++seq, Long.toString(status.getId()), index, source, text, language, user, hashtags);
+            ring[(int) (entry.seq % ring.length)] = entry;
+            for (Iterator<Waiter> it = waiters.iterator(); it.hasNext(); ) {
+                Waiter waiter = it.next();
+                if (waiter.filter.matches(entry)) {
+                    it.remove();
+                    if (answered == null) {
+                        answered = new ArrayList<Waiter>();
+                    }
+                    answered.add(waiter);
+                }
+            }
+        }
+        if (answered != null) {
+            List<Entry> entries = new ArrayList<Entry>();
+            entries.add(entry);
+            for (Waiter waiter : answered) {
+                answer(waiter, entry.seq, entries);
+            }
+        }
+    }
+
+    /**
+     * Sends the documents after a sequence, or waits for the next matching one
+     * @param since last sequence the client saw, or a negative value to start from now
+     * @param wait how long to wait for a document, capped by {@code max_wait}
+     */
+    public void poll(Filter filter, long since, int size, TimeValue wait, Listener listener) {
+        polls.incrementAndGet();
+        List<Entry> entries = new ArrayList<Entry>();
+        long next;
+        long lost = 0;
+        Waiter waiter = null;
+        Waiter evictedWaiter = null;
+        synchronized (this) {
+            if (since < 0 || since > seq) {
+                since = seq;
+            }
+            long oldest = Math.max(1, seq - ring.length + 1);
+            if (since + 1 < oldest) {
+                lost = oldest - since - 1;
+                since = oldest - 1;
+            }
+            next = since;
+            for (long s = since + 1; s <= seq && entries.size() < size; s++) {
+                Entry entry = ring[(int) (s % ring.length)];
+                next = s;
+                if (filter.matches(entry)) {
+                    entries.add(entry);
+                }
+            }
+            if (entries.isEmpty() && wait.millis() > 0) {
+                waiter = new Waiter(filter, next, lost, listener);
+                waiters.add(waiter);
+                if (waiters.size() > maxSubscribers) {
+                    evictedWaiter = waiters.removeFirst();
+                }
+            }
+        }
+        missed.addAndGet(lost);
+        if (evictedWaiter != null) {
+            evicted.incrementAndGet();
+            answer(evictedWaiter, evictedWaiter.since, new ArrayList<Entry>());
+        }
+        if (waiter == null) {
+            delivered.addAndGet(entries.size());
+            listener.onDocuments(next, lost, entries);
+            return;
+        }
+        final Waiter timedWaiter = waiter;
+        timedWaiter.timeout = threadPool.schedule(TimeValue.timeValueMillis(Math.min(wait.millis(), maxWait.millis())),
+                ThreadPool.Names.GENERIC, new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean removed;
+                        long current;
+                        synchronized (LiveTail.this) {
+                            removed = waiters.remove(timedWaiter);
+                            current = seq;
+                        }
+                        if (removed) {
+                            // Nothing matched until now, no need to look at these documents again
+                            timedWaiter.listener.onDocuments(current, timedWaiter.missed, new ArrayList<Entry>());
+                        }
+                    }
+                });
+    }
+
+    private void answer(Waiter waiter, long next, List<Entry> entries) {
+        if (waiter.timeout != null) {
+            waiter.timeout.cancel(false);
+        }
+        delivered.addAndGet(entries.size());
+        waiter.listener.onDocuments(next, waiter.missed, entries);
+    }
+
+    /**
+     * Answers all the waiting requests, when the river stops
+     */
+    public void close() {
+        List<Waiter> pending;
+        synchronized (this) {
+            pending = new ArrayList<Waiter>(waiters);
+            waiters.clear();
+        }
+        for (Waiter waiter : pending) {
+            answer(waiter, waiter.since, new ArrayList<Entry>());
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        long current;
+        int waiting;
+        synchronized (this) {
+            current = seq;
+            waiting = waiters.size();
+        }
+        builder.startObject("tail");
+        builder.field("seq", current);
+        builder.field("buffer_size", ring.length);
+        builder.field("waiting", waiting);
+        builder.field("polls", polls.get());
+        builder.field("delivered", delivered.get());
+        builder.field("missed", missed.get());
+        builder.field("evicted", evicted.get());
+        builder.endObject();
+        return builder;
+    }
+}
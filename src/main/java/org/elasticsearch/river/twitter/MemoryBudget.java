@@ -0,0 +1,501 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounds the memory held by the documents of a river which have not been indexed yet.
+ * <p/>
+ * The bytes of every pending request are accounted against the river {@code limit} and against the
+ * node {@code request} circuit breaker, until the bulk holding the request has been executed. When
+ * there is no room left, new statuses are handled with the configured policy:
+ * <ul>
+ * <li>{@code block}: wait for room, up to {@code max_wait}, which slows down reading the stream</li>
+ * <li>{@code spool}: write the status to a local file, indexed again once there is room. When the file
+ * reaches {@code spool_max_size}, statuses are dropped.</li>
+ * <li>{@code sample}: only keep a {@code sample_ratio} of the statuses</li>
+ * <li>{@code drop}: drop the status</li>
+ * </ul>
+ * Deletes and updates are small and always accepted. Without memory settings, the memory is only accounted: every
+ * status is accepted, and the breaker is never tripped by the river.
+ * <p/>
+ * Waiting requests are woken up when some memory of the river is released. Memory released by the rest of the node
+ * is not signalled, so a request refused by the breaker checks it again every {@code 100ms}.
+ */
+public class MemoryBudget implements BulkIndexer {
+
+    public enum Policy {
+        BLOCK, SPOOL, SAMPLE, DROP;
+
+        public static Policy parse(String policy) {
+            try {
+                return valueOf(policy.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("unknown memory policy [" + policy + "], expected block, spool, sample or drop");
+            }
+        }
+    }
+
+    private static final String CONTEXT_KEY = "twitter_river_reserved_bytes";
+    private static final String BREAKER_LABEL = "<twitter_river>";
+    // Deletes and partial updates are small, let's use a rough estimate
+    private static final long SMALL_REQUEST_BYTES = 128;
+    private static final ByteSizeValue DEFAULT_SPOOL_MAX_SIZE = new ByteSizeValue(1, ByteSizeUnit.GB);
+    private static final TimeValue DEFAULT_MAX_WAIT = TimeValue.timeValueSeconds(1);
+    private static final long BREAKER_RECHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final ESLogger logger;
+    private final BulkIndexer delegate;
+    private final CircuitBreaker breaker;
+
+    // False when the river has no memory settings: memory is only accounted
+    private final boolean enforced;
+    private final long limit;
+    private final Policy policy;
+    private final TimeValue maxWait;
+    private final double sampleRatio;
+    private final File spoolFile;
+    private final long spoolMaxSize;
+    private volatile RequestSpool spool;
+    // Statuses are spooled until then, whatever the memory in use
+    private volatile long spoolUntil;
+    // Ids deleted while their status was waiting in the spool
+    private final Set<String> deletedWhileSpooled = ConcurrentCollections.newConcurrentSet();
+
+    private final AtomicLong used = new AtomicLong();
+    private final ReentrantLock roomLock = new ReentrantLock();
+    private final Condition roomReleased = roomLock.newCondition();
+    private final AtomicInteger roomWaiters = new AtomicInteger();
+    // Incremented on every release, so a waiter knows if it missed one
+    private final AtomicLong releases = new AtomicLong();
+    private final AtomicBoolean replaying = new AtomicBoolean();
+    private volatile boolean closed;
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong sampledOut = new AtomicLong();
+    private final AtomicLong spooled = new AtomicLong();
+    private final AtomicLong spoolFull = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong blocked = new AtomicLong();
+    private final AtomicLong blockedMillis = new AtomicLong();
+    private final AtomicLong breakerTrips = new AtomicLong();
+
+    /**
+     * @param breaker node circuit breaker, or null to only use the river limit
+     * @param settings memory settings of the river, may be null
+     * @param spoolDirectory where to spool statuses, unless {@code spool_path} is set. If null, {@code spool_path}
+     *                       is required to spool.
+     * @param spoolName name of the spool file
+     */
+    public MemoryBudget(ESLogger logger, BulkIndexer delegate, CircuitBreaker breaker, Map<String, Object> settings,
+                        File spoolDirectory, String spoolName) throws IOException {
+        this.logger = logger;
+        this.delegate = delegate;
+        this.breaker = breaker;
+        this.enforced = settings != null;
+        if (settings == null) {
+            this.limit = -1;
+            this.policy = Policy.BLOCK;
+            this.maxWait = DEFAULT_MAX_WAIT;
+            this.sampleRatio = 0.1;
+            this.spoolMaxSize = DEFAULT_SPOOL_MAX_SIZE.bytes();
+        } else {
+            Object limitSetting = settings.get("limit");
+            this.limit = limitSetting == null ? -1 :
+                    ByteSizeValue.parseBytesSizeValue(limitSetting.toString()).bytes();
+            this.policy = Policy.parse(XContentMapValues.nodeStringValue(settings.get("policy"), "block"));
+            this.maxWait = XContentMapValues.nodeTimeValue(settings.get("max_wait"), DEFAULT_MAX_WAIT);
+            this.sampleRatio = XContentMapValues.nodeDoubleValue(settings.get("sample_ratio"), 0.1);
+            Object spoolMaxSizeSetting = settings.get("spool_max_size");
+            this.spoolMaxSize = spoolMaxSizeSetting == null ? DEFAULT_SPOOL_MAX_SIZE.bytes() :
+                    ByteSizeValue.parseBytesSizeValue(spoolMaxSizeSetting.toString()).bytes();
+            if (settings.containsKey("spool_path")) {
+                spoolDirectory = new File(XContentMapValues.nodeStringValue(settings.get("spool_path"), null));
+            }
+        }
+        this.spoolFile = spoolDirectory == null ? null : new File(spoolDirectory, spoolName);
+        if (policy == Policy.SPOOL && spoolFile == null) {
+            throw new IllegalArgumentException("spool_path must be set on nodes without data path");
+        }
+        if (policy == Policy.SPOOL || (spoolFile != null && spoolFile.exists())) {
+            RequestSpool spool = openSpool();
+            if (!spool.isEmpty()) {
+                logger.info("found [{}] of spooled statuses in [{}], they will be indexed again",
+                        new ByteSizeValue(spool.sizeInBytes()), spoolFile);
+            }
+        }
+    }
+
+    private synchronized RequestSpool openSpool() throws IOException {
+        if (spool == null) {
+            if (spoolFile == null) {
+                throw new IOException("no spool_path on a node without data path");
+            }
+            spool = new RequestSpool(spoolFile, spoolMaxSize);
+        }
+        return spool;
+    }
+
+    /**
+     * Spools new statuses until the given time, even if there is memory left
+     */
+    public void spoolUntil(long timeInMillis) {
+        try {
+            openSpool();
+            spoolUntil = timeInMillis;
+        } catch (IOException e) {
+            logger.warn("failed to open spool [{}]", e, spoolFile);
+        }
+    }
+
+    @Override
+    public void index(IndexRequest request) {
+        long bytes = sizeOf(request);
+        // Spooled statuses go first, so statuses are indexed in order
+        if (spool != null && (!spool.isEmpty() || System.currentTimeMillis() < spoolUntil)) {
+            spool(request);
+            return;
+        }
+        if (!enforced) {
+            forceReserve(bytes);
+            send(request, bytes);
+            return;
+        }
+        if (tryReserve(bytes)) {
+            send(request, bytes);
+            return;
+        }
+        switch (policy) {
+            case BLOCK:
+                block(request, bytes);
+                break;
+            case SPOOL:
+                spool(request);
+                break;
+            case SAMPLE:
+                if (StatusSampler.keep(Long.parseLong(request.id()), sampleRatio)) {
+                    forceReserve(bytes);
+                    send(request, bytes);
+                } else {
+                    sampledOut.incrementAndGet();
+                }
+                break;
+            default:
+                drop(request);
+        }
+    }
+
+    @Override
+    public void delete(DeleteRequest request) {
+        if (spool != null && !spool.isEmpty()) {
+            deletedWhileSpooled.add(request.id());
+        }
+        forceReserve(SMALL_REQUEST_BYTES);
+        request.putInContext(CONTEXT_KEY, new AtomicLong(SMALL_REQUEST_BYTES));
+        delegate.delete(request);
+    }
+
+    @Override
+    public void update(UpdateRequest request) {
+        forceReserve(SMALL_REQUEST_BYTES);
+        request.putInContext(CONTEXT_KEY, new AtomicLong(SMALL_REQUEST_BYTES));
+        delegate.update(request);
+    }
+
+    @Override
+    public int maxConcurrentInserts() {
+        return delegate.maxConcurrentInserts();
+    }
+
+    @Override
+    public void setMaxConcurrentInserts(int maxConcurrentBulk) {
+        delegate.setMaxConcurrentInserts(maxConcurrentBulk);
+    }
+
+    /**
+     * Gives back the memory of a request once its bulk has been executed
+     */
+    public void release(ActionRequest request) {
+        AtomicLong reserved = request.getFromContext(CONTEXT_KEY);
+        if (reserved != null) {
+            long bytes = reserved.getAndSet(0);
+            if (bytes > 0) {
+                release(bytes);
+            }
+        }
+    }
+
+    /**
+     * Indexes spooled statuses again while there is room. Meant to be called regularly, off the stream thread.
+     */
+    public void replay() {
+        if (spool == null || closed || System.currentTimeMillis() < spoolUntil || !replaying.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            while (!closed && !spool.isEmpty()) {
+                IndexRequest request = spool.poll();
+                if (request == null) {
+                    break;
+                }
+                if (deletedWhileSpooled.remove(request.id())) {
+                    continue;
+                }
+                long bytes = sizeOf(request);
+                if (!enforced) {
+                    forceReserve(bytes);
+                } else if (!reserve(bytes, Long.MAX_VALUE)) {
+                    // Closed while waiting, let's put it back so it's indexed next time
+                    if (!spool.append(request)) {
+                        drop(request);
+                    }
+                    return;
+                }
+                send(request, bytes);
+                replayed.incrementAndGet();
+            }
+            if (spool.isEmpty()) {
+                deletedWhileSpooled.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            logger.warn("failed to read spooled statuses from [{}]", e, spool.file());
+        } finally {
+            replaying.set(false);
+        }
+    }
+
+    /**
+     * Bytes of the documents waiting to be indexed
+     */
+    public long usedBytes() {
+        return used.get();
+    }
+
+    public Policy policy() {
+        return policy;
+    }
+
+    private void send(IndexRequest request, long bytes) {
+        request.putInContext(CONTEXT_KEY, new AtomicLong(bytes));
+        accepted.incrementAndGet();
+        delegate.index(request);
+    }
+
+    private void block(IndexRequest request, long bytes) {
+        blocked.incrementAndGet();
+        long start = System.currentTimeMillis();
+        try {
+            if (reserve(bytes, start + maxWait.millis())) {
+                send(request, bytes);
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            blockedMillis.addAndGet(System.currentTimeMillis() - start);
+        }
+        logger.warn("no memory available after waiting [{}], dropping status [{}]", maxWait, request.id());
+        drop(request);
+    }
+
+    private void spool(IndexRequest request) {
+        try {
+            if (spool.append(request)) {
+                spooled.incrementAndGet();
+            } else {
+                spoolFull.incrementAndGet();
+                drop(request);
+            }
+        } catch (IOException e) {
+            logger.warn("failed to spool status [{}] to [{}]", e, request.id(), spool.file());
+            drop(request);
+        }
+    }
+
+    private void drop(IndexRequest request) {
+        dropped.incrementAndGet();
+        if (logger.isTraceEnabled()) {
+            logger.trace("memory budget exceeded, dropping status [{}]", request.id());
+        }
+    }
+
+    /**
+     * Reserves memory, waiting until the deadline for some to be released
+     * @return false if the deadline passed or the budget was closed first
+     */
+    private boolean reserve(long bytes, long deadline) throws InterruptedException {
+        while (true) {
+            long releasesBefore = releases.get();
+            long tripsBefore = breakerTrips.get();
+            if (tryReserve(bytes)) {
+                return true;
+            }
+            long nanos = TimeUnit.MILLISECONDS.toNanos(deadline - System.currentTimeMillis());
+            if (closed || nanos <= 0) {
+                return false;
+            }
+            if (breakerTrips.get() != tripsBefore) {
+                nanos = Math.min(nanos, BREAKER_RECHECK_NANOS);
+            }
+            roomLock.lock();
+            roomWaiters.incrementAndGet();
+            try {
+                // Memory released before we were counted as a waiter was not signalled
+                if (releases.get() == releasesBefore && !closed) {
+                    roomReleased.awaitNanos(nanos);
+                }
+            } finally {
+                roomWaiters.decrementAndGet();
+                roomLock.unlock();
+            }
+        }
+    }
+
+    private boolean tryReserve(long bytes) {
+        if (limit > 0) {
+            while (true) {
+                long current = used.get();
+                // A single request bigger than the limit is accepted when nothing else is pending
+                if (current + bytes > limit && current > 0) {
+                    return false;
+                }
+                if (used.compareAndSet(current, current + bytes)) {
+                    break;
+                }
+            }
+        } else {
+            used.addAndGet(bytes);
+        }
+        if (breaker != null) {
+            try {
+                breaker.addEstimateBytesAndMaybeBreak(bytes, BREAKER_LABEL);
+            } catch (CircuitBreakingException e) {
+                used.addAndGet(-bytes);
+                breakerTrips.incrementAndGet();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void forceReserve(long bytes) {
+        used.addAndGet(bytes);
+        if (breaker != null) {
+            breaker.addWithoutBreaking(bytes);
+        }
+    }
+
+    private void release(long bytes) {
+        used.addAndGet(-bytes);
+        if (breaker != null) {
+            breaker.addWithoutBreaking(-bytes);
+        }
+        releases.incrementAndGet();
+        if (roomWaiters.get() > 0) {
+            signalRoom();
+        }
+    }
+
+    private void signalRoom() {
+        roomLock.lock();
+        try {
+            roomReleased.signalAll();
+        } finally {
+            roomLock.unlock();
+        }
+    }
+
+    private static long sizeOf(IndexRequest request) {
+        return request.source() == null ? SMALL_REQUEST_BYTES : request.source().length() + SMALL_REQUEST_BYTES;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        signalRoom();
+        delegate.close();
+        if (spool != null) {
+            try {
+                spool.close();
+            } catch (IOException e) {
+                logger.warn("failed to close spool [{}]", e, spool.file());
+            }
+        }
+        // Whatever was not released will never be, let's not leave it in the breaker
+        long left = used.getAndSet(0);
+        if (left != 0 && breaker != null) {
+            breaker.addWithoutBreaking(-left);
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("memory");
+        builder.field("policy", enforced ? policy.name().toLowerCase(Locale.ROOT) : "none");
+        if (limit > 0) {
+            builder.byteSizeField("limit_in_bytes", "limit", limit);
+        }
+        builder.byteSizeField("used_in_bytes", "used", used.get());
+        builder.field("accepted", accepted.get());
+        builder.field("dropped", dropped.get());
+        builder.field("sampled_out", sampledOut.get());
+        builder.field("blocked", blocked.get());
+        builder.field("blocked_time_in_millis", blockedMillis.get());
+        builder.field("breaker_trips", breakerTrips.get());
+        if (spool != null) {
+            builder.field("spooled", spooled.get());
+            builder.field("spool_full", spoolFull.get());
+            builder.field("replayed", replayed.get());
+            builder.byteSizeField("spool_size_in_bytes", "spool_size", spool.sizeInBytes());
+            builder.byteSizeField("spool_max_size_in_bytes", "spool_max_size", spoolMaxSize);
+        }
+        builder.endObject();
+        delegate.toXContent(builder, params);
+        return builder;
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter;
+
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * Finds statuses whose text is almost the same as the text of a recent status, like the ones of spam campaigns.
+ * <p/>
+ * Texts are normalized (lowercased, without urls, mentions and punctuation) and reduced to a 64 bits SimHash.
+ * Two texts are near duplicates when their fingerprints differ by at most {@code max_distance} bits. Fingerprints
+ * are split in {@code max_distance + 1} bands: two near duplicates share at least one band, so only statuses
+ * sharing a band are compared.
+ * <p/>
+ * Fingerprints are kept for {@code window}, and at most {@code max_entries} of them. A near duplicate is either
+ * dropped, or collapsed: the first status gets a {@code duplicates} counter instead.
+ * <p/>
+ * Texts are hashed without lock. Bands are searched under a read lock, so workers only wait for each other
+ * when a status is recorded.
+ */
+public class NearDuplicateDetector implements ToXContent {
+
+    public enum Action {
+        DROP, COLLAPSE
+    }
+
+    /**
+     * Number of near duplicates of a status, and where the status was indexed
+     */
+    public static class Counter {
+        public final long statusId;
+        public final String index;
+        public final String type;
+        public final long duplicates;
+
+        Counter(long statusId, String index, String type, long duplicates) {
+            this.statusId = statusId;
+            this.index = index;
+            this.type = type;
+            this.duplicates = duplicates;
+        }
+    }
+
+    private static final Pattern URL = Pattern.compile("https?://\\S+");
+
+    private final int maxDistance;
+    private final TimeValue window;
+    private final int maxEntries;
+    private final int minTokens;
+    private final Action action;
+    private final TimeValue flushInterval;
+
+    private final int bandBits;
+    // Bands and entries are guarded by lock
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final List<Map<Long, List<Entry>>> bands;
+    private final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+    // Collapsed statuses whose counter changed since the last flush, guarded by itself with the counters
+    private final Set<Entry> dirty = new LinkedHashSet<Entry>();
+
+    private final AtomicLong checked = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+
+    public NearDuplicateDetector(Map<String, Object> settings) {
+        this.maxDistance = Math.max(0, Math.min(15, XContentMapValues.nodeIntegerValue(settings.get("max_distance"), 3)));
+        this.window = XContentMapValues.nodeTimeValue(settings.get("window"), TimeValue.timeValueMinutes(10));
+        this.maxEntries = XContentMapValues.nodeIntegerValue(settings.get("max_entries"), 100000);
+        this.minTokens = XContentMapValues.nodeIntegerValue(settings.get("min_tokens"), 4);
+        this.action = Action.valueOf(XContentMapValues.nodeStringValue(settings.get("action"), "drop").toUpperCase(Locale.ROOT));
+        this.flushInterval = XContentMapValues.nodeTimeValue(settings.get("flush_interval"), TimeValue.timeValueSeconds(10));
+
+        int bandCount = maxDistance + 1;
+        this.bandBits = 64 / bandCount;
+        this.bands = new ArrayList<Map<Long, List<Entry>>>(bandCount);
+        for (int i = 0; i < bandCount; i++) {
+            bands.add(new HashMap<Long, List<Entry>>());
+        }
+    }
+
+    public Action action() {
+        return action;
+    }
+
+    public TimeValue flushInterval() {
+        return flushInterval;
+    }
+
+    /**
+     * Records the status, unless it is a near duplicate of a recent one
+     * @return true if the status is a near duplicate
+     */
+    public boolean isDuplicate(long statusId, String index, String type, String text, long nowInMillis) {
+        checked.incrementAndGet();
+        List<String> tokens = tokens(text);
+        if (tokens.size() < minTokens) {
+            return false;
+        }
+        long fingerprint = simHash(tokens);
+        Entry match;
+        lock.readLock().lock();
+        try {
+            match = find(fingerprint, nowInMillis);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (match == null) {
+            lock.writeLock().lock();
+            try {
+                // Another worker may have recorded a near duplicate since we looked
+                match = find(fingerprint, nowInMillis);
+                if (match == null) {
+                    evict(nowInMillis);
+                    add(new Entry(statusId, index, type, fingerprint, nowInMillis));
+                    return false;
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        duplicates.incrementAndGet();
+        if (action == Action.COLLAPSE) {
+            synchronized (dirty) {
+                match.duplicates++;
+                dirty.add(match);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return a recent status near the fingerprint, null if there is none
+     */
+    private Entry find(long fingerprint, long nowInMillis) {
+        // Entries are only evicted when one is added, old ones may still be there
+        long oldest = nowInMillis - window.millis();
+        for (int band = 0; band < bands.size(); band++) {
+            List<Entry> candidates = bands.get(band).get(band(fingerprint, band));
+            if (candidates == null) {
+                continue;
+            }
+            for (Entry candidate : candidates) {
+                if (candidate.seenAt >= oldest && Long.bitCount(candidate.fingerprint ^ fingerprint) <= maxDistance) {
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void add(Entry entry) {
+        entries.addLast(entry);
+        for (int band = 0; band < bands.size(); band++) {
+            Map<Long, List<Entry>> index = bands.get(band);
+            long key = band(entry.fingerprint, band);
+            List<Entry> bucket = index.get(key);
+            if (bucket == null) {
+                bucket = new ArrayList<Entry>(1);
+                index.put(key, bucket);
+            }
+            bucket.add(entry);
+        }
+    }
+
+    /**
+     * @return the counters of the collapsed statuses which changed since the last call
+     */
+    public List<Counter> drainCounters() {
+        synchronized (dirty) {
+            List<Counter> counters = new ArrayList<Counter>(dirty.size());
+            for (Entry entry : dirty) {
+                counters.add(new Counter(entry.statusId, entry.index, entry.type, entry.duplicates));
+            }
+            dirty.clear();
+            return counters;
+        }
+    }
+
+    private void evict(long nowInMillis) {
+        long oldest = nowInMillis - window.millis();
+        while (!entries.isEmpty() && (entries.size() >= maxEntries || entries.peekFirst().seenAt < oldest)) {
+            Entry entry = entries.pollFirst();
+            for (int band = 0; band < bands.size(); band++) {
+                Map<Long, List<Entry>> index = bands.get(band);
+                long key = band(entry.fingerprint, band);
+                List<Entry> bucket = index.get(key);
+                if (bucket != null) {
+                    bucket.remove(entry);
+                    if (bucket.isEmpty()) {
+                        index.remove(key);
+                    }
+                }
+            }
+            evicted.incrementAndGet();
+        }
+    }
+
+    private long band(long fingerprint, int band) {
+        int shift = band * bandBits;
+        // The last band takes the remaining bits
+        if (band == bands.size() - 1) {
+            return fingerprint >>> shift;
+        }
+        return (fingerprint >>> shift) & ((1L << bandBits) - 1);
+    }
+
+    /**
+     * Lowercased words, without urls nor mentions
+     */
+    public static List<String> tokens(String text) {
+        List<String> tokens = new ArrayList<String>();
+        if (text == null) {
+            return tokens;
+        }
+        String normalized = URL.matcher(text.toLowerCase(Locale.ROOT)).replaceAll(" ");
+        int start = -1;
+        boolean mention = false;
+        for (int i = 0; i <= normalized.length(); i++) {
+            char c = i < normalized.length() ? normalized.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (start < 0) {
+                    start = i;
+                    mention = i > 0 && normalized.charAt(i - 1) == '@';
+                }
+            } else if (start >= 0) {
+                if (!mention) {
+                    tokens.add(normalized.substring(start, i));
+                }
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * 64 bits fingerprint of the tokens: each bit is set when most tokens have it set in their hash
+     */
+    public static long simHash(List<String> tokens) {
+        int[] weights = new int[64];
+        for (String token : tokens) {
+            long hash = hash(token);
+            for (int bit = 0; bit < 64; bit++) {
+                weights[bit] += ((hash >>> bit) & 1) == 1 ? 1 : -1;
+            }
+        }
+        long fingerprint = 0;
+        for (int bit = 0; bit < 64; bit++) {
+            if (weights[bit] > 0) {
+                fingerprint |= 1L << bit;
+            }
+        }
+        return fingerprint;
+    }
+
+    /**
+     * 64 bits FNV-1a, mixed so every bit depends on every character
+     */
+    private static long hash(String token) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < token.length(); i++) {
+            hash ^= token.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static class Entry {
+        final long statusId;
+        final String index;
+        final String type;
+        final long fingerprint;
+        final long seenAt;
+        long duplicates;
+
+        Entry(long statusId, String index, String type, long fingerprint, long seenAt) {
+            this.statusId = statusId;
+            this.index = index;
+            this.type = type;
+            this.fingerprint = fingerprint;
+            this.seenAt = seenAt;
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        int fingerprints;
+        lock.readLock().lock();
+        try {
+            fingerprints = entries.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+        builder.startObject("duplicates");
+        builder.field("action", action.name().toLowerCase(Locale.ROOT));
+        builder.field("checked", checked.get());
+        builder.field("duplicates", duplicates.get());
+        builder.field("fingerprints", fingerprints);
+        builder.field("evicted", evicted.get());
+        builder.endObject();
+        return builder;
+    }
+}
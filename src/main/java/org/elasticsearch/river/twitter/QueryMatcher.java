@@ -0,0 +1,285 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.LowerCaseFilter;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.util.CharArraySet;
+import org.apache.lucene.index.memory.MemoryIndex;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.Query;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import twitter4j.HashtagEntity;
+import twitter4j.Status;
+import twitter4j.UserMentionEntity;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Matches every status against saved queries before it is indexed, so alerts do not have to poll the index.
+ * <p/>
+ * Each status is indexed alone in a {@link MemoryIndex}, then every query runs against it. Queries use the
+ * Lucene query syntax on these fields: {@code text} (the default field), {@code language}, {@code user},
+ * {@code hashtag}, {@code mention} and {@code retweet}. All but {@code text} are lowercased keywords.
+ * <p/>
+ * Queries come from the {@code queries} setting and from the documents of {@code queries_index}, read again
+ * every {@code refresh_interval}. The id of a document is the name of its query, its {@code query} field the
+ * query itself.
+ */
+public class QueryMatcher implements ToXContent {
+
+    /**
+     * Notified of the statuses which matched at least a query
+     */
+    public interface Listener {
+        void onMatch(Status status, List<String> queries);
+    }
+
+    private static final Analyzer KEYWORDS = new Analyzer() {
+        @Override
+        protected TokenStreamComponents createComponents(String fieldName) {
+            Tokenizer tokenizer = new WhitespaceTokenizer();
+            return new TokenStreamComponents(tokenizer, new LowerCaseFilter(tokenizer));
+        }
+    };
+
+    private static final Analyzer ANALYZER;
+
+    static {
+        Map<String, Analyzer> keywords = new HashMap<String, Analyzer>();
+        for (String field : new String[]{"language", "user", "hashtag", "mention", "retweet"}) {
+            keywords.put(field, KEYWORDS);
+        }
+        ANALYZER = new PerFieldAnalyzerWrapper(new StandardAnalyzer(CharArraySet.EMPTY_SET), keywords);
+    }
+
+    private final ESLogger logger;
+    private final String indexName;
+    private final String typeName;
+    private final Map<String, String> staticQueries;
+    private final String queriesIndex;
+    private final String queriesType;
+    private final TimeValue refreshInterval;
+
+    private volatile Map<String, Query> queries = Collections.emptyMap();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    // Memory indices are reset and reused by each thread
+    private final ThreadLocal<MemoryIndex> memoryIndex = new ThreadLocal<MemoryIndex>() {
+        @Override
+        protected MemoryIndex initialValue() {
+            return new MemoryIndex();
+        }
+    };
+
+    private final AtomicLong evaluated = new AtomicLong();
+    private final AtomicLong matched = new AtomicLong();
+    private final AtomicLong matches = new AtomicLong();
+    private final AtomicLong timeInNanos = new AtomicLong();
+    private volatile int invalid;
+
+    public QueryMatcher(ESLogger logger, String indexName, String typeName, Map<String, String> staticQueries,
+                        String queriesIndex, String queriesType, TimeValue refreshInterval) {
+        this.logger = logger;
+        this.indexName = indexName;
+        this.typeName = typeName;
+        this.staticQueries = staticQueries;
+        this.queriesIndex = queriesIndex;
+        this.queriesType = queriesType;
+        this.refreshInterval = refreshInterval;
+        setQueries(Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * Reads {@code index}, {@code type}, {@code queries}, {@code queries_index}, {@code queries_type} and
+     * {@code refresh_interval} from the alerts settings
+     */
+    @SuppressWarnings({"unchecked"})
+    public static QueryMatcher parse(ESLogger logger, Map<String, Object> settings, String defaultIndexName) {
+        Map<String, String> queries = new HashMap<String, String>();
+        Object value = settings.get("queries");
+        if (value instanceof Map) {
+            for (Map.Entry<String, Object> query : ((Map<String, Object>) value).entrySet()) {
+                queries.put(query.getKey(), XContentMapValues.nodeStringValue(query.getValue(), null));
+            }
+        }
+        return new QueryMatcher(logger,
+                XContentMapValues.nodeStringValue(settings.get("index"), defaultIndexName + "_alerts"),
+                XContentMapValues.nodeStringValue(settings.get("type"), "alert"),
+                queries,
+                XContentMapValues.nodeStringValue(settings.get("queries_index"), defaultIndexName + "_queries"),
+                XContentMapValues.nodeStringValue(settings.get("queries_type"), "query"),
+                XContentMapValues.nodeTimeValue(settings.get("refresh_interval"), TimeValue.timeValueSeconds(10)));
+    }
+
+    public String indexName() {
+        return indexName;
+    }
+
+    public String typeName() {
+        return typeName;
+    }
+
+    public String queriesIndex() {
+        return queriesIndex;
+    }
+
+    public String queriesType() {
+        return queriesType;
+    }
+
+    public TimeValue refreshInterval() {
+        return refreshInterval;
+    }
+
+    /**
+     * Replaces the queries read from the queries index. Queries which can not be parsed are skipped.
+     */
+    public synchronized void setQueries(Map<String, String> indexedQueries) {
+        Map<String, String> sources = new HashMap<String, String>(indexedQueries);
+        sources.putAll(staticQueries);
+        Map<String, Query> parsed = new HashMap<String, Query>();
+        int failures = 0;
+        for (Map.Entry<String, String> query : sources.entrySet()) {
+            if (query.getValue() == null) {
+                continue;
+            }
+            try {
+                // Query parsers are not thread safe
+                QueryParser parser = new QueryParser("text", ANALYZER);
+                parsed.put(query.getKey(), parser.parse(query.getValue()));
+            } catch (ParseException e) {
+                failures++;
+                logger.warn("failed to parse query [{}]: {}", query.getKey(), e.getMessage());
+            }
+        }
+        if (parsed.size() != queries.size()) {
+            logger.debug("now matching [{}] queries", parsed.size());
+        }
+        queries = Collections.unmodifiableMap(parsed);
+        invalid = failures;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Notifies the listeners if the status matches some queries
+     * @return the names of the queries matching the status, empty if none
+     */
+    public List<String> match(Status status) {
+        Map<String, Query> current = queries;
+        if (current.isEmpty()) {
+            return Collections.emptyList();
+        }
+        long start = System.nanoTime();
+        MemoryIndex index = memoryIndex.get();
+        index.reset();
+        try {
+            index(index, status);
+            List<String> names = null;
+            for (Map.Entry<String, Query> query : current.entrySet()) {
+                if (index.search(query.getValue()) > 0.0f) {
+                    if (names == null) {
+                        names = new ArrayList<String>(1);
+                    }
+                    names.add(query.getKey());
+                }
+            }
+            evaluated.incrementAndGet();
+            if (names == null) {
+                return Collections.emptyList();
+            }
+            matched.incrementAndGet();
+            matches.addAndGet(names.size());
+            for (Listener listener : listeners) {
+                listener.onMatch(status, names);
+            }
+            return names;
+        } finally {
+            index.reset();
+            timeInNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private static void index(MemoryIndex index, Status status) {
+        if (status.getText() != null) {
+            index.addField("text", status.getText(), ANALYZER);
+        }
+        if (status.getLang() != null) {
+            index.addField("language", status.getLang(), ANALYZER);
+        }
+        if (status.getUser() != null && status.getUser().getScreenName() != null) {
+            index.addField("user", status.getUser().getScreenName(), ANALYZER);
+        }
+        // Fields can only be added once, values are separated by spaces
+        if (status.getHashtagEntities() != null && status.getHashtagEntities().length > 0) {
+            StringBuilder hashtags = new StringBuilder();
+            for (HashtagEntity hashtag : status.getHashtagEntities()) {
+                hashtags.append(hashtag.getText()).append(' ');
+            }
+            index.addField("hashtag", hashtags.toString(), ANALYZER);
+        }
+        if (status.getUserMentionEntities() != null && status.getUserMentionEntities().length > 0) {
+            StringBuilder mentions = new StringBuilder();
+            for (UserMentionEntity mention : status.getUserMentionEntities()) {
+                mentions.append(mention.getScreenName()).append(' ');
+            }
+            index.addField("mention", mentions.toString(), ANALYZER);
+        }
+        index.addField("retweet", Boolean.toString(status.isRetweet()), ANALYZER);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("alerts");
+        builder.field("index", indexName);
+        builder.field("queries", queries.size());
+        builder.field("invalid_queries", invalid);
+        builder.field("evaluated", evaluated.get());
+        builder.field("matched", matched.get());
+        builder.field("matches", matches.get());
+        builder.field("time_in_millis", TimeUnit.NANOSECONDS.toMillis(timeInNanos.get()));
+        builder.endObject();
+        return builder;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter;
+
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Requests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Index requests written to a local file, to be indexed later.
+ * <p/>
+ * The file is only appended to, and truncated once everything has been read. When it would grow over
+ * its maximum size, the requests already read are removed from it, and new requests are refused if
+ * that is not enough. It is kept when the river stops, so spooled requests are indexed again when the
+ * river starts.
+ */
+public class RequestSpool implements Closeable {
+
+    private final File file;
+    private final long maxSizeInBytes;
+    private final RandomAccessFile raf;
+    private long readPosition;
+    private long writePosition;
+    private long count;
+
+    /**
+     * @param maxSizeInBytes maximum size of the file, -1 for no limit
+     */
+    public RequestSpool(File file, long maxSizeInBytes) throws IOException {
+        this.file = file;
+        this.maxSizeInBytes = maxSizeInBytes;
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("can not create spool directory [" + parent + "]");
+        }
+        this.raf = new RandomAccessFile(file, "rw");
+        this.writePosition = raf.length();
+        // We don't know how many requests a previous run left, at least we know there are some
+        this.count = writePosition > 0 ? 1 : 0;
+    }
+
+    public File file() {
+        return file;
+    }
+
+    /**
+     * @return false if the spool is full, the request was not written
+     */
+    public synchronized boolean append(IndexRequest request) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(request.source().length() + 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeUTF(request.index());
+        out.writeUTF(request.type());
+        out.writeUTF(request.id());
+        byte[] source = request.source().toBytes();
+        out.writeInt(source.length);
+        out.write(source);
+        out.flush();
+        byte[] entry = bytes.toByteArray();
+        // Length of the entry, without the length itself
+        int length = entry.length - 4;
+        entry[0] = (byte) (length >>> 24);
+        entry[1] = (byte) (length >>> 16);
+        entry[2] = (byte) (length >>> 8);
+        entry[3] = (byte) length;
+
+        if (maxSizeInBytes >= 0 && writePosition + entry.length > maxSizeInBytes) {
+            if (readPosition > 0) {
+                compact();
+            }
+            if (writePosition + entry.length > maxSizeInBytes) {
+                return false;
+            }
+        }
+        raf.seek(writePosition);
+        raf.write(entry);
+        writePosition += entry.length;
+        count++;
+        return true;
+    }
+
+    /**
+     * @return the oldest spooled request, or null if the spool is empty
+     */
+    public synchronized IndexRequest poll() throws IOException {
+        if (readPosition >= writePosition) {
+            reset();
+            return null;
+        }
+        raf.seek(readPosition);
+        int length = raf.readInt();
+        if (readPosition + 4 + length > writePosition) {
+            // Truncated entry, a previous run probably died while writing it
+            reset();
+            return null;
+        }
+        String index = raf.readUTF();
+        String type = raf.readUTF();
+        String id = raf.readUTF();
+        byte[] source = new byte[raf.readInt()];
+        raf.readFully(source);
+        readPosition += 4 + length;
+        count = Math.max(0, count - 1);
+        if (readPosition >= writePosition) {
+            reset();
+        }
+        return Requests.indexRequest(index).type(type).id(id).source(source);
+    }
+
+    public synchronized boolean isEmpty() {
+        return writePosition == 0;
+    }
+
+    /**
+     * Number of requests waiting in the spool
+     */
+    public synchronized long size() {
+        return count;
+    }
+
+    public synchronized long sizeInBytes() {
+        return writePosition - readPosition;
+    }
+
+    private void reset() throws IOException {
+        raf.setLength(0);
+        readPosition = 0;
+        writePosition = 0;
+        count = 0;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        // Only keep what was not read yet
+        if (readPosition > 0 && readPosition < writePosition) {
+            compact();
+        }
+        raf.close();
+    }
+
+    private void compact() throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long from = readPosition;
+        long to = 0;
+        while (from < writePosition) {
+            int read = (int) Math.min(buffer.length, writePosition - from);
+            raf.seek(from);
+            raf.readFully(buffer, 0, read);
+            raf.seek(to);
+            raf.write(buffer, 0, read);
+            from += read;
+            to += read;
+        }
+        raf.setLength(to);
+        writePosition = to;
+        readPosition = 0;
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.river.twitter;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.river.RiverName;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lease on a river, so a warm standby can take it over as soon as its owner stops renewing it.
+ * <p/>
+ * The lease is the {@code _lease} document of the river in the river index. The owner rewrites it every
+ * {@code heartbeat_interval}, and writes are conditioned on the version read just before, so only one
+ * instance can take it. Other instances watch the version: when it did not change for {@code takeover_after},
+ * measured with their own clock, the owner is considered dead.
+ * <p/>
+ * An owner which can not renew its lease gives it up as soon as its next attempt could come after
+ * {@code takeover_after} elapsed since its last renewal, so it stops streaming before a standby may start.
+ * Lease requests time out after a heartbeat.
+ * <p/>
+ * The owner also picks a node to run the standby, another node having this plugin, and writes it with
+ * the river settings in the {@code _standby} document, read by the {@link RiverStandbyService} of that node.
+ */
+public class RiverOwnership implements ToXContent {
+
+    static final String LEASE_ID = "_lease";
+    static final String STANDBY_ID = "_standby";
+
+    // The standby node is checked every few heartbeats only
+    private static final int STANDBY_CHECK_HEARTBEATS = 5;
+
+    private final ESLogger logger;
+    private final Client client;
+    private final String riverIndexName;
+    private final RiverName riverName;
+    private final TimeValue heartbeatInterval;
+    private final TimeValue takeoverAfter;
+    private final String holder = Strings.randomBase64UUID();
+
+    private volatile boolean owner;
+    private volatile String ownerNode;
+    private volatile String localNode;
+    private volatile String standbyNode;
+    private long seenVersion = -1;
+    private long seenAt;
+    // When the lease was last written by this instance, while it owns it
+    private long renewedAt;
+    private int heartbeats;
+
+    private final AtomicLong takeovers = new AtomicLong();
+    private final AtomicLong renewFailures = new AtomicLong();
+
+    public RiverOwnership(ESLogger logger, Client client, String riverIndexName, RiverName riverName,
+                          TimeValue heartbeatInterval, TimeValue takeoverAfter) {
+        this.logger = logger;
+        this.client = client;
+        this.riverIndexName = riverIndexName;
+        this.riverName = riverName;
+        this.heartbeatInterval = heartbeatInterval;
+        this.takeoverAfter = takeoverAfter;
+    }
+
+    /**
+     * Reads {@code enabled}, {@code heartbeat_interval} and {@code takeover_after} from the standby settings
+     * @return null if the standby is disabled
+     */
+    @SuppressWarnings({"unchecked"})
+    public static RiverOwnership parse(ESLogger logger, Client client, String riverIndexName, RiverName riverName,
+                                       Object settings) {
+        if (settings instanceof Map) {
+            Map<String, Object> standby = (Map<String, Object>) settings;
+            if (!XContentMapValues.nodeBooleanValue(standby.get("enabled"), true)) {
+                return null;
+            }
+            return new RiverOwnership(logger, client, riverIndexName, riverName,
+                    XContentMapValues.nodeTimeValue(standby.get("heartbeat_interval"), TimeValue.timeValueSeconds(2)),
+                    XContentMapValues.nodeTimeValue(standby.get("takeover_after"), TimeValue.timeValueSeconds(10)));
+        }
+        if (XContentMapValues.nodeBooleanValue(settings, false)) {
+            return new RiverOwnership(logger, client, riverIndexName, riverName,
+                    TimeValue.timeValueSeconds(2), TimeValue.timeValueSeconds(10));
+        }
+        return null;
+    }
+
+    public TimeValue heartbeatInterval() {
+        return heartbeatInterval;
+    }
+
+    public boolean owner() {
+        return owner;
+    }
+
+    public String ownerNode() {
+        return ownerNode;
+    }
+
+    /**
+     * Takes or renews the lease
+     * @return true if this instance holds the lease
+     */
+    @SuppressWarnings({"unchecked"})
+    public synchronized boolean tryAcquire() {
+        long now = System.currentTimeMillis();
+        long version = -1;
+        try {
+            if (localNode == null) {
+                localNode = client.admin().cluster().prepareNodesInfo("_local").clear().get(heartbeatInterval).getNodes()[0].getNode().id();
+            }
+            GetResponse response = client.prepareGet(riverIndexName, riverName.name(), LEASE_ID).get(heartbeatInterval);
+            if (response.isExists()) {
+                version = response.getVersion();
+                Map<String, Object> source = response.getSourceAsMap();
+                ownerNode = XContentMapValues.nodeStringValue(source.get("node"), null);
+                if (!holder.equals(source.get("holder"))) {
+                    if (owner) {
+                        logger.warn("lease of river [{}] taken by node [{}]", riverName.name(), ownerNode);
+                        owner = false;
+                    }
+                    if (version != seenVersion) {
+                        // The owner is alive
+                        seenVersion = version;
+                        seenAt = now;
+                        return false;
+                    }
+                    if (now - seenAt < takeoverAfter.millis()) {
+                        return false;
+                    }
+                    logger.info("owner [{}] of river [{}] did not renew its lease for [{}], taking over", ownerNode,
+                            riverName.name(), TimeValue.timeValueMillis(now - seenAt));
+                }
+            }
+        } catch (Exception e) {
+            renewFailures.incrementAndGet();
+            logger.debug("failed to read lease of river [{}]", e, riverName.name());
+            return keepOwnership();
+        }
+
+        try {
+            XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+            builder.field("holder", holder);
+            builder.field("node", localNode);
+            builder.field("renewed_at", now);
+            builder.endObject();
+            if (version < 0) {
+                client.prepareIndex(riverIndexName, riverName.name(), LEASE_ID).setSource(builder).setCreate(true)
+                        .get(heartbeatInterval);
+            } else {
+                client.prepareIndex(riverIndexName, riverName.name(), LEASE_ID).setSource(builder).setVersion(version)
+                        .get(heartbeatInterval);
+            }
+        } catch (Exception e) {
+            if (ExceptionsHelper.status(e) == RestStatus.CONFLICT) {
+                // Somebody else was faster
+                owner = false;
+                return false;
+            }
+            renewFailures.incrementAndGet();
+            logger.debug("failed to write lease of river [{}]", e, riverName.name());
+            return keepOwnership();
+        }
+        // Standbys measure from when they read the new version, which is after this
+        renewedAt = now;
+        if (!owner) {
+            owner = true;
+            if (version >= 0) {
+                takeovers.incrementAndGet();
+            }
+        }
+        ownerNode = localNode;
+        return true;
+    }
+
+    /**
+     * Called when the lease could not be read or written
+     * @return true if the owner can keep streaming until its next attempt
+     */
+    private boolean keepOwnership() {
+        if (!owner) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        // The next attempt starts a heartbeat from now, and its read and write may each time out
+        long nextAttemptDone = now + 3 * heartbeatInterval.millis();
+        if (nextAttemptDone - renewedAt < takeoverAfter.millis()) {
+            return true;
+        }
+        logger.warn("lease of river [{}] not renewed for [{}], giving it up", riverName.name(),
+                TimeValue.timeValueMillis(now - renewedAt));
+        owner = false;
+        return false;
+    }
+
+    /**
+     * Gives the lease back, so the standby takes over at its next heartbeat
+     */
+    public synchronized void release() {
+        if (!owner) {
+            return;
+        }
+        owner = false;
+        try {
+            client.prepareDelete(riverIndexName, riverName.name(), LEASE_ID).get();
+        } catch (Exception e) {
+            logger.debug("failed to release lease of river [{}]", e, riverName.name());
+        }
+    }
+
+    /**
+     * Picks a standby node if there is none or if it left. Called by the owner on every heartbeat.
+     * @param riverSettings settings the standby starts the river with
+     */
+    public synchronized void checkStandby(Map<String, Object> riverSettings) {
+        if (!owner || heartbeats++ % STANDBY_CHECK_HEARTBEATS != 0) {
+            return;
+        }
+        try {
+            List<String> candidates = StreamShardCoordinator.pluginNodes(client);
+            candidates.remove(localNode);
+            if (candidates.isEmpty()) {
+                if (standbyNode != null) {
+                    logger.warn("no node left to run a standby of river [{}]", riverName.name());
+                    standbyNode = null;
+                }
+                return;
+            }
+            if (candidates.contains(standbyNode)) {
+                return;
+            }
+            // Spread the standbys of the rivers over the nodes
+            String node = candidates.get((riverName.name().hashCode() & Integer.MAX_VALUE) % candidates.size());
+            XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+            builder.startObject("standby");
+            builder.field("river", riverName.name());
+            builder.field("node", node);
+            builder.field("owner_node", localNode);
+            builder.endObject();
+            builder.field("settings", riverSettings);
+            builder.endObject();
+            client.prepareIndex(riverIndexName, riverName.name(), STANDBY_ID).setSource(builder).get();
+            logger.info("standby of river [{}] now runs on node [{}]", riverName.name(), node);
+            standbyNode = node;
+        } catch (Exception e) {
+            logger.warn("failed to pick a standby node for river [{}]", e, riverName.name());
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("ownership");
+        builder.field("owner", owner);
+        builder.field("owner_node", ownerNode);
+        builder.field("standby_node", standbyNode);
+        builder.field("heartbeat_interval", heartbeatInterval.toString());
+        builder.field("takeover_after", takeoverAfter.toString());
+        builder.field("takeovers", takeovers.get());
+        builder.field("renew_failures", renewFailures.get());
+        builder.endObject();
+        return builder;
+    }
+}
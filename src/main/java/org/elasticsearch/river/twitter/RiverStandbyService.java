@@ -0,0 +1,181 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.river.twitter;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.indices.IndexMissingException;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
+import org.elasticsearch.river.RiverIndexName;
+import org.elasticsearch.river.RiverName;
+import org.elasticsearch.river.RiverSettings;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Runs the warm standbys of the rivers whose owner picked this node, see {@link RiverOwnership}.
+ * <p/>
+ * A standby is a river started with the settings of the owner: it resolves its user lists, checks its
+ * indices and builds its clients, then waits for the lease of the river. Once it took over, it keeps
+ * running until the river is removed or its lease is lost, even if another node is picked as standby.
+ */
+public class RiverStandbyService extends AbstractLifecycleComponent<RiverStandbyService> {
+
+    // Far more than the number of rivers of a cluster
+    private static final int MAX_RIVERS = 10000;
+
+    private final Client client;
+    private final ClusterService clusterService;
+    private final ThreadPool threadPool;
+    private final TwitterIngestService ingestService;
+    private final CircuitBreakerService breakerService;
+    private final NodeEnvironment nodeEnvironment;
+    private final String riverIndexName;
+    private final TimeValue checkInterval;
+
+    private final Map<String, TwitterRiver> running = new HashMap<String, TwitterRiver>();
+
+    private volatile ScheduledFuture<?> checker;
+
+    @Inject
+    public RiverStandbyService(Settings settings, Client client, ClusterService clusterService, ThreadPool threadPool,
+                               TwitterIngestService ingestService, CircuitBreakerService breakerService,
+                               NodeEnvironment nodeEnvironment) {
+        super(settings);
+        this.client = client;
+        this.clusterService = clusterService;
+        this.threadPool = threadPool;
+        this.ingestService = ingestService;
+        this.breakerService = breakerService;
+        this.nodeEnvironment = nodeEnvironment;
+        this.riverIndexName = RiverIndexName.Conf.indexName(settings);
+        this.checkInterval = settings.getAsTime("river.twitter.standby.check_interval", TimeValue.timeValueSeconds(10));
+    }
+
+    @Override
+    protected void doStart() throws ElasticsearchException {
+        checker = threadPool.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                threadPool.executor(TwitterRiver.THREAD_POOL_NAME).execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        check();
+                    }
+                });
+            }
+        }, checkInterval);
+    }
+
+    @Override
+    protected void doStop() throws ElasticsearchException {
+        if (checker != null) {
+            checker.cancel(false);
+        }
+        synchronized (this) {
+            for (TwitterRiver river : running.values()) {
+                river.close();
+            }
+            running.clear();
+        }
+    }
+
+    @Override
+    protected void doClose() throws ElasticsearchException {
+    }
+
+    @SuppressWarnings({"unchecked"})
+    synchronized void check() {
+        if (!lifecycle.started()) {
+            return;
+        }
+        String localNode = clusterService.localNode().id();
+        Map<String, Map<String, Object>> designated = new HashMap<String, Map<String, Object>>();
+        try {
+            SearchResponse response = client.prepareSearch(riverIndexName)
+                    .setQuery(QueryBuilders.idsQuery().ids(RiverOwnership.STANDBY_ID))
+                    .setSize(MAX_RIVERS).get();
+            for (SearchHit hit : response.getHits()) {
+                Map<String, Object> standby = (Map<String, Object>) hit.getSource().get("standby");
+                Map<String, Object> riverSettings = (Map<String, Object>) hit.getSource().get("settings");
+                if (standby != null && riverSettings != null && localNode.equals(standby.get("node"))) {
+                    designated.put(hit.getType(), riverSettings);
+                }
+            }
+        } catch (IndexMissingException e) {
+            // No river yet
+        } catch (Exception e) {
+            logger.warn("failed to read river standbys", e);
+            return;
+        }
+
+        for (Iterator<Map.Entry<String, TwitterRiver>> it = running.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, TwitterRiver> entry = it.next();
+            TwitterRiver river = entry.getValue();
+            if (river.stopped()) {
+                // Lost its lease
+                it.remove();
+            } else if ((river.standby() && !designated.containsKey(entry.getKey())) || !riverExists(entry.getKey())) {
+                logger.info("stopping standby of river [{}]", entry.getKey());
+                river.close();
+                it.remove();
+            }
+        }
+
+        for (Map.Entry<String, Map<String, Object>> entry : designated.entrySet()) {
+            if (running.containsKey(entry.getKey())) {
+                continue;
+            }
+            logger.info("starting standby of river [{}]", entry.getKey());
+            try {
+                TwitterRiver river = new TwitterRiver(new RiverName("twitter", entry.getKey()),
+                        new RiverSettings(settings, entry.getValue()), riverIndexName, client, threadPool, settings,
+                        ingestService, breakerService, nodeEnvironment);
+                river.start();
+                running.put(entry.getKey(), river);
+            } catch (Exception e) {
+                logger.warn("failed to start standby of river [{}]", e, entry.getKey());
+            }
+        }
+    }
+
+    private boolean riverExists(String riverName) {
+        try {
+            return client.prepareGet(riverIndexName, riverName, "_meta").get().isExists();
+        } catch (Exception e) {
+            // Let's not stop a river because of a transient failure
+            return true;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter;
+
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Copies raw twitter JSON while dropping or shortening some paths.
+ * <p/>
+ * The JSON is read as a stream of tokens and written to the output as it goes: no tree is ever
+ * built. Objects which contain no configured path are copied at once.
+ * <ul>
+ * <li>{@code drop}: paths removed from the document</li>
+ * <li>{@code shorten}: objects replaced by a few of their fields, {@code keep}</li>
+ * </ul>
+ * Paths use dots, for example {@code retweeted_status.user}. Arrays are transparent, so
+ * {@code entities.media.sizes} matches the {@code sizes} of every media.
+ */
+public class SlimRawFilter {
+
+    public static final List<String> DEFAULT_SHORTEN = Arrays.asList("user", "retweeted_status.user",
+            "quoted_status.user", "retweeted_status.quoted_status.user");
+
+    public static final List<String> DEFAULT_KEEP = Arrays.asList("id", "screen_name");
+
+    private final Set<String> drop;
+    private final Set<String> shorten;
+    private final Set<String> keep;
+    // All the parents of the configured paths, so we know when we can copy a whole object
+    private final Set<String> prefixes = new HashSet<String>();
+
+    public SlimRawFilter(Collection<String> drop, Collection<String> shorten, Collection<String> keep) {
+        this.drop = new HashSet<String>(drop);
+        this.shorten = new HashSet<String>(shorten);
+        this.keep = new HashSet<String>(keep);
+        addPrefixes(this.drop);
+        addPrefixes(this.shorten);
+    }
+
+    /**
+     * Reads {@code drop}, {@code shorten} and {@code keep} from a settings map, {@code null} meaning defaults
+     */
+    @SuppressWarnings({"unchecked"})
+    public static SlimRawFilter parse(Map<String, Object> settings) {
+        if (settings == null) {
+            return new SlimRawFilter(Arrays.<String>asList(), DEFAULT_SHORTEN, DEFAULT_KEEP);
+        }
+        return new SlimRawFilter(
+                list(settings.get("drop"), Arrays.<String>asList()),
+                list(settings.get("shorten"), DEFAULT_SHORTEN),
+                list(settings.get("keep"), DEFAULT_KEEP));
+    }
+
+    @SuppressWarnings({"unchecked"})
+    private static List<String> list(Object value, List<String> defaults) {
+        if (value == null) {
+            return defaults;
+        }
+        if (value instanceof List) {
+            return (List<String>) value;
+        }
+        return Arrays.asList(Strings.commaDelimitedListToStringArray(value.toString()));
+    }
+
+    private void addPrefixes(Set<String> paths) {
+        for (String path : paths) {
+            int dot = path.indexOf('.');
+            while (dot > 0) {
+                prefixes.add(path.substring(0, dot));
+                dot = path.indexOf('.', dot + 1);
+            }
+        }
+    }
+
+    /**
+     * @param type content type of the filtered document
+     */
+    public XContentBuilder filter(String rawJson, XContentType type) throws IOException {
+        XContentBuilder builder = XContentFactory.contentBuilder(type);
+        try (XContentParser parser = XContentFactory.xContent(XContentType.JSON).createParser(rawJson)) {
+            parser.nextToken();
+            copyValue(parser, builder, null);
+        }
+        return builder;
+    }
+
+    /**
+     * Copies the value the parser is on
+     */
+    private void copyValue(XContentParser parser, XContentBuilder builder, String path) throws IOException {
+        XContentParser.Token token = parser.currentToken();
+        if (token == XContentParser.Token.START_OBJECT) {
+            if (path != null && shorten.contains(path)) {
+                copyKept(parser, builder);
+            } else if (path == null || prefixes.contains(path)) {
+                copyObject(parser, builder, path);
+            } else {
+                builder.copyCurrentStructure(parser);
+            }
+        } else if (token == XContentParser.Token.START_ARRAY) {
+            if (path != null && !prefixes.contains(path) && !shorten.contains(path)) {
+                builder.copyCurrentStructure(parser);
+                return;
+            }
+            builder.startArray();
+            while (parser.nextToken() != XContentParser.Token.END_ARRAY) {
+                copyValue(parser, builder, path);
+            }
+            builder.endArray();
+        } else {
+            builder.copyCurrentStructure(parser);
+        }
+    }
+
+    private void copyObject(XContentParser parser, XContentBuilder builder, String path) throws IOException {
+        builder.startObject();
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token != XContentParser.Token.FIELD_NAME) {
+                continue;
+            }
+            String name = parser.currentName();
+            String fieldPath = path == null ? name : path + '.' + name;
+            parser.nextToken();
+            if (drop.contains(fieldPath)) {
+                parser.skipChildren();
+                continue;
+            }
+            builder.field(name);
+            copyValue(parser, builder, fieldPath);
+        }
+        builder.endObject();
+    }
+
+    /**
+     * Copies only the kept fields of the current object
+     */
+    private void copyKept(XContentParser parser, XContentBuilder builder) throws IOException {
+        builder.startObject();
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token != XContentParser.Token.FIELD_NAME) {
+                continue;
+            }
+            String name = parser.currentName();
+            parser.nextToken();
+            if (keep.contains(name)) {
+                builder.field(name);
+                builder.copyCurrentStructure(parser);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        builder.endObject();
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter;
+
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides how the river reacts to the stall warnings twitter sends before disconnecting a slow consumer.
+ * <p/>
+ * Every warning doubles the serializer workers, up to {@code max_workers}, and adds one concurrent insert
+ * bulk, up to {@code max_concurrent_bulk}. When the twitter queue is more than {@code degrade_above}
+ * percent full, the river can also degrade for {@code cooldown}: it either keeps a {@code sample_ratio} of the
+ * statuses or spools them to disk. It does not degrade by default.
+ */
+public class StallMonitor implements ToXContent {
+
+    public enum Degrade {
+        NONE, SAMPLE, SPOOL
+    }
+
+    private final int maxWorkers;
+    private final int maxConcurrentBulk;
+    private final int degradeAbove;
+    private final Degrade degrade;
+    private final double sampleRatio;
+    private final TimeValue cooldown;
+
+    private final AtomicLong warnings = new AtomicLong();
+    private final AtomicLong workerScaleUps = new AtomicLong();
+    private final AtomicLong bulkScaleUps = new AtomicLong();
+    private final AtomicLong degradations = new AtomicLong();
+    private final AtomicInteger maxPercentFull = new AtomicInteger();
+    private volatile int lastPercentFull = -1;
+    private volatile long lastWarningAt;
+    private volatile long degradedUntil;
+
+    public StallMonitor(Map<String, Object> settings) {
+        if (settings == null) {
+            this.maxWorkers = Math.max(2, Runtime.getRuntime().availableProcessors());
+            this.maxConcurrentBulk = 4;
+            this.degradeAbove = 80;
+            this.degrade = Degrade.NONE;
+            this.sampleRatio = 0.5;
+            this.cooldown = TimeValue.timeValueMinutes(5);
+        } else {
+            this.maxWorkers = XContentMapValues.nodeIntegerValue(settings.get("max_workers"),
+                    Math.max(2, Runtime.getRuntime().availableProcessors()));
+            this.maxConcurrentBulk = XContentMapValues.nodeIntegerValue(settings.get("max_concurrent_bulk"), 4);
+            this.degradeAbove = XContentMapValues.nodeIntegerValue(settings.get("degrade_above"), 80);
+            this.degrade = Degrade.valueOf(XContentMapValues.nodeStringValue(settings.get("degrade"), "none").toUpperCase(Locale.ROOT));
+            this.sampleRatio = XContentMapValues.nodeDoubleValue(settings.get("sample_ratio"), 0.5);
+            this.cooldown = XContentMapValues.nodeTimeValue(settings.get("cooldown"), TimeValue.timeValueMinutes(5));
+        }
+    }
+
+    /**
+     * Records a warning
+     * @return true if the river should degrade
+     */
+    public boolean onWarning(int percentFull, long nowInMillis) {
+        warnings.incrementAndGet();
+        lastPercentFull = percentFull;
+        lastWarningAt = nowInMillis;
+        int max;
+        while (percentFull > (max = maxPercentFull.get())) {
+            if (maxPercentFull.compareAndSet(max, percentFull)) {
+                break;
+            }
+        }
+        if (degrade != Degrade.NONE && percentFull >= degradeAbove) {
+            if (degradedUntil < nowInMillis) {
+                degradations.incrementAndGet();
+            }
+            degradedUntil = nowInMillis + cooldown.millis();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of workers to use, given the current one
+     */
+    public int workers(int current) {
+        int target = Math.min(maxWorkers, Math.max(2, current * 2));
+        if (target > current) {
+            workerScaleUps.incrementAndGet();
+            return target;
+        }
+        return current;
+    }
+
+    /**
+     * @return the number of concurrent insert bulks to use, given the current one
+     */
+    public int concurrentBulks(int current) {
+        if (current >= 0 && current < maxConcurrentBulk) {
+            bulkScaleUps.incrementAndGet();
+            return current + 1;
+        }
+        return current;
+    }
+
+    public Degrade degrade() {
+        return degrade;
+    }
+
+    public long degradedUntil() {
+        return degradedUntil;
+    }
+
+    /**
+     * @return true if this status should be kept
+     */
+    public boolean acceptStatus(long statusId, long nowInMillis) {
+        return degrade != Degrade.SAMPLE || nowInMillis >= degradedUntil || StatusSampler.keep(statusId, sampleRatio);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("stall_warnings");
+        builder.field("warnings", warnings.get());
+        if (lastPercentFull >= 0) {
+            builder.field("last_percent_full", lastPercentFull);
+            builder.field("max_percent_full", maxPercentFull.get());
+            builder.field("last_warning_at", lastWarningAt);
+        }
+        builder.field("worker_scale_ups", workerScaleUps.get());
+        builder.field("bulk_scale_ups", bulkScaleUps.get());
+        builder.field("degradations", degradations.get());
+        builder.field("degraded", System.currentTimeMillis() < degradedUntil);
+        builder.endObject();
+        return builder;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter;
+
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which statuses are kept when a river is sampling its stream.
+ * <p/>
+ * The decision only depends on the status id, so every river and every node using the same ratio
+ * keeps exactly the same statuses, and deletion notices are kept for the same ids as the statuses.
+ * <p/>
+ * When a maximum rate is given, the ratio is adjusted on every {@link #tick(long)} so the accepted
+ * rate stays under that maximum. Deletion notices are then checked against the highest ratio ever
+ * applied so a deletion can never be dropped for a status which was indexed.
+ */
+public class StatusSampler implements ToXContent {
+
+    private final double configuredRatio;
+    private final double minRatio;
+    private final int maxDocsPerSec;
+
+    private volatile double ratio;
+    private volatile double maxAppliedRatio;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong sampledOut = new AtomicLong();
+    private final AtomicLong deletesReceived = new AtomicLong();
+    private final AtomicLong deletesSampledOut = new AtomicLong();
+
+    private long lastTickReceived;
+    private long lastTickTime = -1;
+
+    /**
+     * @param ratio ratio of statuses to keep, between 0 and 1
+     * @param minRatio lowest ratio the automatic mode can go down to
+     * @param maxDocsPerSec maximum number of statuses per second to keep, 0 or less to disable the automatic mode
+     */
+    public StatusSampler(double ratio, double minRatio, int maxDocsPerSec) {
+        if (ratio <= 0 || ratio > 1) {
+            throw new IllegalArgumentException("sampling ratio must be in ]0, 1], got [" + ratio + "]");
+        }
+        this.configuredRatio = ratio;
+        this.minRatio = Math.min(minRatio, ratio);
+        this.maxDocsPerSec = maxDocsPerSec;
+        this.ratio = ratio;
+        this.maxAppliedRatio = ratio;
+    }
+
+    /**
+     * Current sampling ratio
+     */
+    public double ratio() {
+        return ratio;
+    }
+
+    public boolean automatic() {
+        return maxDocsPerSec > 0;
+    }
+
+    /**
+     * @return true if the status should be indexed
+     */
+    public boolean acceptStatus(long statusId) {
+        received.incrementAndGet();
+        if (keep(statusId, ratio)) {
+            return true;
+        }
+        sampledOut.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @return true if the deletion notice should be sent
+     */
+    public boolean acceptDeletion(long statusId) {
+        deletesReceived.incrementAndGet();
+        if (keep(statusId, maxAppliedRatio)) {
+            return true;
+        }
+        deletesSampledOut.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Adjusts the ratio from the rate of statuses received since the previous call.
+     * Does nothing if the automatic mode is disabled.
+     */
+    public synchronized void tick(long nowInMillis) {
+        if (!automatic()) {
+            return;
+        }
+        long currentReceived = received.get();
+        if (lastTickTime >= 0 && nowInMillis > lastTickTime) {
+            double offeredRate = (currentReceived - lastTickReceived) * 1000.0 / (nowInMillis - lastTickTime);
+            double target = offeredRate <= maxDocsPerSec ? configuredRatio : Math.max(minRatio, maxDocsPerSec / offeredRate);
+            target = Math.min(configuredRatio, target);
+            // Go down at once so we protect the cluster, but go up slowly so we don't oscillate
+            double newRatio = target < ratio ? target : ratio + (target - ratio) / 2;
+            ratio = newRatio;
+            if (newRatio > maxAppliedRatio) {
+                maxAppliedRatio = newRatio;
+            }
+        }
+        lastTickReceived = currentReceived;
+        lastTickTime = nowInMillis;
+    }
+
+    /**
+     * Keeps a status if its hashed id falls under the ratio. We use the murmur3 finalizer to
+     * spread sequential ids over the whole range.
+     */
+    static boolean keep(long statusId, double ratio) {
+        if (ratio >= 1) {
+            return true;
+        }
+        long h = statusId;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        // 53 upper bits give an uniform double in [0, 1)
+        return (h >>> 11) * 0x1.0p-53 < ratio;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("sampling");
+        builder.field("ratio", ratio);
+        builder.field("configured_ratio", configuredRatio);
+        builder.field("automatic", automatic());
+        if (automatic()) {
+            builder.field("max_docs_per_sec", maxDocsPerSec);
+        }
+        builder.field("received", received.get());
+        builder.field("sampled_out", sampledOut.get());
+        builder.field("deletes_received", deletesReceived.get());
+        builder.field("deletes_sampled_out", deletesSampledOut.get());
+        builder.endObject();
+        return builder;
+    }
+}
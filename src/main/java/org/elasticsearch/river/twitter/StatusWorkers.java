@@ -0,0 +1,220 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Builds documents out of the twitter4j thread.
+ * <p/>
+ * Tasks are spread over a number of workers using a key (the status id). Tasks with the same key
+ * always run on the same worker, in order, so a deletion notice is never processed before its status.
+ * Workers have no thread of their own: they run on the given executor whenever they have pending tasks.
+ * When a worker queue is full, the caller waits, which slows down reading the stream.
+ * <p/>
+ * When workers are resized, keys go to other workers. New workers only start once every previous worker
+ * is idle, so a task never overtakes a task with the same key queued before the resize.
+ */
+public class StatusWorkers implements ToXContent {
+
+    // Number of tasks a worker runs before giving its thread back to the executor
+    private static final int BATCH = 100;
+
+    private final ESLogger logger;
+    private final Executor executor;
+    private final int queueSize;
+    private volatile Worker[] workers;
+
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+
+    public StatusWorkers(ESLogger logger, Executor executor, int workers, int queueSize) {
+        this.logger = logger;
+        this.executor = executor;
+        this.queueSize = queueSize;
+        this.workers = newWorkers(workers, null);
+    }
+
+    private Worker[] newWorkers(int size, Worker[] predecessors) {
+        Worker[] created = new Worker[size];
+        for (int i = 0; i < size; i++) {
+            created[i] = new Worker(queueSize, predecessors);
+        }
+        return created;
+    }
+
+    public int size() {
+        return workers.length;
+    }
+
+    public void execute(long key, Runnable task) {
+        Worker[] current = workers;
+        current[(int) ((key & Long.MAX_VALUE) % current.length)].add(task);
+    }
+
+    /**
+     * Changes the number of workers. Tasks already queued run on their worker, new tasks wait for them.
+     */
+    public synchronized void resize(int size) {
+        Worker[] previous = workers;
+        if (size == previous.length) {
+            return;
+        }
+        Worker[] next = newWorkers(size, previous);
+        for (Worker worker : previous) {
+            worker.successors = next;
+        }
+        workers = next;
+        // Previous workers may all be idle already, and would never wake the new ones up
+        for (Worker worker : next) {
+            worker.wakeUp();
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("workers");
+        builder.field("size", workers.length);
+        long queued = 0;
+        for (Worker worker : workers) {
+            queued += worker.tasks.size();
+        }
+        builder.field("queued", queued);
+        builder.field("executed", executed.get());
+        builder.field("waits", waits.get());
+        builder.endObject();
+        return builder;
+    }
+
+    private class Worker implements Runnable {
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private final Semaphore room;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        // Workers which must be idle before this one runs, null once they are
+        private volatile Worker[] predecessors;
+        // Workers to wake up when this one becomes idle, set when workers are resized
+        private volatile Worker[] successors;
+
+        Worker(int queueSize, Worker[] predecessors) {
+            this.room = new Semaphore(queueSize);
+            this.predecessors = predecessors;
+        }
+
+        boolean idle() {
+            return tasks.isEmpty() && !scheduled.get() && predecessorsIdle();
+        }
+
+        private boolean predecessorsIdle() {
+            Worker[] waitingFor = predecessors;
+            if (waitingFor == null) {
+                return true;
+            }
+            for (Worker predecessor : waitingFor) {
+                if (!predecessor.idle()) {
+                    return false;
+                }
+            }
+            predecessors = null;
+            return true;
+        }
+
+        void wakeUp() {
+            if (!tasks.isEmpty()) {
+                schedule();
+            } else {
+                // Workers created by a later resize may wait for us
+                wakeUpSuccessors();
+            }
+        }
+
+        private void wakeUpSuccessors() {
+            Worker[] next = successors;
+            if (next != null) {
+                for (Worker successor : next) {
+                    successor.wakeUp();
+                }
+            }
+        }
+
+        void add(Runnable task) {
+            if (!room.tryAcquire()) {
+                waits.incrementAndGet();
+                room.acquireUninterruptibly();
+            }
+            tasks.add(task);
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this);
+                } catch (EsRejectedExecutionException e) {
+                    // The pool is saturated, let's do the work ourselves
+                    logger.trace("twitter river thread pool is full, running worker on caller thread");
+                    run();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            if (!predecessorsIdle()) {
+                scheduled.set(false);
+                // The last predecessor may have become idle before we gave up, in which case nobody wakes us up
+                if (predecessorsIdle()) {
+                    wakeUp();
+                }
+                return;
+            }
+            for (int i = 0; i < BATCH; i++) {
+                Runnable task = tasks.poll();
+                if (task == null) {
+                    break;
+                }
+                room.release();
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    logger.warn("failed to process status", t);
+                }
+                executed.incrementAndGet();
+            }
+            scheduled.set(false);
+            // Something might have been added after our last poll
+            if (!tasks.isEmpty()) {
+                schedule();
+            } else {
+                wakeUpSuccessors();
+            }
+        }
+    }
+}
@@ -0,0 +1,498 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.river.twitter;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Raw statuses appended to local files, so documents can be built again without twitter.
+ * <p/>
+ * Statuses are grouped in blocks of about {@code block_size} bytes, compressed with deflate, and appended to
+ * a segment file ({@code .seg}). A new segment is started when the current one reaches {@code segment_size},
+ * and when the river starts. For each block, the segment index ({@code .idx}) holds its offset, length, number
+ * of statuses, and range of ids and creation dates, so a time range can be read without inflating other blocks.
+ * Ids of deleted statuses are appended to a third file ({@code .del}).
+ * <p/>
+ * Index entries are written after their block, so a block is only visible once complete: a segment cut short
+ * by a crash is read up to its last indexed block.
+ */
+public class StreamArchive implements ToXContent, Closeable {
+
+    static final String SEGMENT_SUFFIX = ".seg";
+    static final String INDEX_SUFFIX = ".idx";
+    static final String DELETIONS_SUFFIX = ".del";
+
+    // offset, compressed length, count, min id, max id, min created at, max created at
+    static final int INDEX_ENTRY_SIZE = 8 + 4 + 4 + 8 * 4;
+
+    /**
+     * A compressed block of statuses
+     */
+    public static class Block {
+        final File segment;
+        final long offset;
+        final int length;
+        final int count;
+        final long minId;
+        final long maxId;
+        final long minCreatedAt;
+        final long maxCreatedAt;
+
+        Block(File segment, long offset, int length, int count, long minId, long maxId, long minCreatedAt, long maxCreatedAt) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.count = count;
+            this.minId = minId;
+            this.maxId = maxId;
+            this.minCreatedAt = minCreatedAt;
+            this.maxCreatedAt = maxCreatedAt;
+        }
+
+        public int count() {
+            return count;
+        }
+    }
+
+    /**
+     * Receives the statuses of a block
+     */
+    public interface Visitor {
+        void onStatus(long id, long createdAt, String rawJSON);
+    }
+
+    private final ESLogger logger;
+    private final File directory;
+    private final String prefix;
+    private final int blockSize;
+    private final long segmentSize;
+    private final int compressionLevel;
+
+    // Guarded by this
+    private final ByteArrayOutputStream buffer;
+    private final DataOutputStream bufferOut;
+    private int blockCount;
+    private long blockMinId = Long.MAX_VALUE;
+    private long blockMaxId = Long.MIN_VALUE;
+    private long blockMinCreatedAt = Long.MAX_VALUE;
+    private long blockMaxCreatedAt = Long.MIN_VALUE;
+    private File segment;
+    private FileOutputStream segmentOut;
+    private DataOutputStream indexOut;
+    private DataOutputStream deletionsOut;
+    private long segmentPosition;
+    private boolean closed;
+
+    private final AtomicLong archived = new AtomicLong();
+    private final AtomicLong deletions = new AtomicLong();
+    private final AtomicLong blocks = new AtomicLong();
+    private final AtomicLong rawBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * @param defaultDirectory where segments are written, unless {@code path} is set. If null, {@code path} is required.
+     * @param prefix name of the segment files, before their creation date
+     */
+    public StreamArchive(ESLogger logger, File defaultDirectory, String prefix, Map<String, Object> settings) throws IOException {
+        this.logger = logger;
+        String path = XContentMapValues.nodeStringValue(settings.get("path"), null);
+        if (path == null && defaultDirectory == null) {
+            throw new IllegalArgumentException("archive path must be set on nodes without data path");
+        }
+        this.directory = path == null ? defaultDirectory : new File(path);
+        this.prefix = prefix;
+        this.blockSize = (int) parseBytes(settings.get("block_size"), new ByteSizeValue(256, ByteSizeUnit.KB));
+        this.segmentSize = parseBytes(settings.get("segment_size"), new ByteSizeValue(256, ByteSizeUnit.MB));
+        this.compressionLevel = XContentMapValues.nodeIntegerValue(settings.get("compression_level"), Deflater.BEST_SPEED);
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("can not create archive directory [" + directory + "]");
+        }
+        this.buffer = new ByteArrayOutputStream(blockSize + 4096);
+        this.bufferOut = new DataOutputStream(buffer);
+    }
+
+    private static long parseBytes(Object value, ByteSizeValue defaultValue) {
+        return value == null ? defaultValue.bytes() : ByteSizeValue.parseBytesSizeValue(value.toString()).bytes();
+    }
+
+    public File directory() {
+        return directory;
+    }
+
+    /**
+     * Adds a status to the current block, written once full
+     */
+    public synchronized void append(long id, long createdAt, String rawJSON) {
+        if (closed || rawJSON == null) {
+            return;
+        }
+        try {
+            byte[] bytes = rawJSON.getBytes(StandardCharsets.UTF_8);
+            bufferOut.writeLong(id);
+            bufferOut.writeLong(createdAt);
+            bufferOut.writeInt(bytes.length);
+            bufferOut.write(bytes);
+            blockCount++;
+            blockMinId = Math.min(blockMinId, id);
+            blockMaxId = Math.max(blockMaxId, id);
+            blockMinCreatedAt = Math.min(blockMinCreatedAt, createdAt);
+            blockMaxCreatedAt = Math.max(blockMaxCreatedAt, createdAt);
+            archived.incrementAndGet();
+            if (buffer.size() >= blockSize) {
+                writeBlock();
+            }
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            logger.warn("failed to archive status [{}]", e, id);
+        }
+    }
+
+    public synchronized void appendDeletion(long id) {
+        if (closed) {
+            return;
+        }
+        try {
+            openSegment();
+            deletionsOut.writeLong(id);
+            deletions.incrementAndGet();
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            logger.warn("failed to archive deletion of [{}]", e, id);
+        }
+    }
+
+    /**
+     * Writes the current block even if it is not full, so recent statuses can be read back
+     */
+    public synchronized void flush() {
+        if (closed) {
+            return;
+        }
+        try {
+            writeBlock();
+            if (deletionsOut != null) {
+                deletionsOut.flush();
+            }
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            logger.warn("failed to flush archive block", e);
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        if (blockCount == 0) {
+            return;
+        }
+        bufferOut.flush();
+        byte[] compressed = compress(buffer.toByteArray());
+        openSegment();
+        segmentOut.write(compressed);
+        segmentOut.flush();
+        indexOut.writeLong(segmentPosition);
+        indexOut.writeInt(compressed.length);
+        indexOut.writeInt(blockCount);
+        indexOut.writeLong(blockMinId);
+        indexOut.writeLong(blockMaxId);
+        indexOut.writeLong(blockMinCreatedAt);
+        indexOut.writeLong(blockMaxCreatedAt);
+        indexOut.flush();
+        deletionsOut.flush();
+        segmentPosition += compressed.length;
+        blocks.incrementAndGet();
+        rawBytes.addAndGet(buffer.size());
+        compressedBytes.addAndGet(compressed.length);
+
+        buffer.reset();
+        blockCount = 0;
+        blockMinId = Long.MAX_VALUE;
+        blockMaxId = Long.MIN_VALUE;
+        blockMinCreatedAt = Long.MAX_VALUE;
+        blockMaxCreatedAt = Long.MIN_VALUE;
+        if (segmentPosition >= segmentSize) {
+            closeSegment();
+        }
+    }
+
+    private byte[] compress(byte[] bytes) {
+        Deflater deflater = new Deflater(compressionLevel);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+            byte[] chunk = new byte[16384];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(chunk);
+                out.write(chunk, 0, length);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void openSegment() throws IOException {
+        if (segment != null) {
+            return;
+        }
+        // Names sort by creation date, so segments are read in order
+        long now = System.currentTimeMillis();
+        File file;
+        do {
+            file = new File(directory, prefix + "-" + String.format(Locale.ROOT, "%013d", now++) + SEGMENT_SUFFIX);
+        } while (file.exists());
+        String base = file.getPath().substring(0, file.getPath().length() - SEGMENT_SUFFIX.length());
+        segmentOut = new FileOutputStream(file);
+        indexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(base + INDEX_SUFFIX)));
+        deletionsOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(base + DELETIONS_SUFFIX)));
+        segment = file;
+        segmentPosition = 0;
+        logger.debug("archiving statuses to [{}]", file);
+    }
+
+    private void closeSegment() throws IOException {
+        if (segment == null) {
+            return;
+        }
+        try {
+            segmentOut.getFD().sync();
+            segmentOut.close();
+            indexOut.close();
+            deletionsOut.close();
+        } finally {
+            segment = null;
+            segmentOut = null;
+            indexOut = null;
+            deletionsOut = null;
+        }
+    }
+
+    /**
+     * Segments of this archive, oldest first
+     */
+    private File[] segments() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        List<File> segments = new ArrayList<File>();
+        for (File file : files) {
+            if (file.getName().startsWith(prefix + "-") && file.getName().endsWith(SEGMENT_SUFFIX)) {
+                segments.add(file);
+            }
+        }
+        File[] sorted = segments.toArray(new File[segments.size()]);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private static File sibling(File segment, String suffix) {
+        String path = segment.getPath();
+        return new File(path.substring(0, path.length() - SEGMENT_SUFFIX.length()) + suffix);
+    }
+
+    /**
+     * Blocks holding statuses created in the given range, oldest segment first
+     */
+    public List<Block> blocks(long fromCreatedAt, long toCreatedAt) throws IOException {
+        List<Block> result = new ArrayList<Block>();
+        for (File segment : segments()) {
+            File index = sibling(segment, INDEX_SUFFIX);
+            if (!index.exists()) {
+                continue;
+            }
+            byte[] bytes = readFile(index);
+            int entries = bytes.length / INDEX_ENTRY_SIZE;
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, entries * INDEX_ENTRY_SIZE));
+            for (int i = 0; i < entries; i++) {
+                Block block = new Block(segment, in.readLong(), in.readInt(), in.readInt(), in.readLong(), in.readLong(),
+                        in.readLong(), in.readLong());
+                if (block.maxCreatedAt >= fromCreatedAt && block.minCreatedAt < toCreatedAt) {
+                    result.add(block);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Ids of the statuses of the given blocks which were deleted so far, sorted. A deletion is archived after its
+     * status, so only the segments from the first one of the blocks are read.
+     */
+    public long[] deletedIds(List<Block> blocks) throws IOException {
+        if (blocks.isEmpty()) {
+            return new long[0];
+        }
+        synchronized (this) {
+            if (deletionsOut != null) {
+                deletionsOut.flush();
+            }
+        }
+        File firstSegment = blocks.get(0).segment;
+        long minId = Long.MAX_VALUE;
+        long maxId = Long.MIN_VALUE;
+        for (Block block : blocks) {
+            if (block.segment.compareTo(firstSegment) < 0) {
+                firstSegment = block.segment;
+            }
+            minId = Math.min(minId, block.minId);
+            maxId = Math.max(maxId, block.maxId);
+        }
+        long[] ids = new long[1024];
+        int size = 0;
+        for (File segment : segments()) {
+            if (segment.compareTo(firstSegment) < 0) {
+                continue;
+            }
+            File file = sibling(segment, DELETIONS_SUFFIX);
+            if (!file.exists()) {
+                continue;
+            }
+            // Read up to the last complete id, the file may be written meanwhile
+            long count = file.length() / 8;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                for (long i = 0; i < count; i++) {
+                    long id = in.readLong();
+                    if (id < minId || id > maxId) {
+                        continue;
+                    }
+                    if (size == ids.length) {
+                        ids = Arrays.copyOf(ids, size * 2);
+                    }
+                    ids[size++] = id;
+                }
+            }
+        }
+        ids = Arrays.copyOf(ids, size);
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Inflates a block and sends its statuses to the visitor
+     */
+    public static void read(Block block, Visitor visitor) throws IOException {
+        byte[] compressed = new byte[block.length];
+        try (RandomAccessFile file = new RandomAccessFile(block.segment, "r")) {
+            file.seek(block.offset);
+            file.readFully(compressed);
+        }
+        Inflater inflater = new Inflater();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(block.length * 4);
+        try {
+            inflater.setInput(compressed);
+            byte[] chunk = new byte[65536];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(chunk);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new EOFException("truncated block at [" + block.offset + "] of [" + block.segment + "]");
+                }
+                out.write(chunk, 0, length);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("corrupted block at [" + block.offset + "] of [" + block.segment + "]", e);
+        } finally {
+            inflater.end();
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        for (int i = 0; i < block.count; i++) {
+            long id = in.readLong();
+            long createdAt = in.readLong();
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            visitor.onStatus(id, createdAt, new String(bytes, StandardCharsets.UTF_8));
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return bytes;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        try {
+            writeBlock();
+            closeSegment();
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            logger.warn("failed to close archive segment", e);
+        }
+        closed = true;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        long segmentCount = 0;
+        long onDisk = 0;
+        for (File segment : segments()) {
+            segmentCount++;
+            onDisk += segment.length();
+        }
+        builder.startObject("archive");
+        builder.field("path", directory.getPath());
+        builder.field("segments", segmentCount);
+        builder.byteSizeField("size_in_bytes", "size", onDisk);
+        builder.field("archived", archived.get());
+        builder.field("deletions", deletions.get());
+        builder.field("blocks", blocks.get());
+        builder.byteSizeField("raw_in_bytes", "raw", rawBytes.get());
+        builder.byteSizeField("compressed_in_bytes", "compressed", compressedBytes.get());
+        builder.field("failures", failures.get());
+        builder.endObject();
+        return builder;
+    }
+}
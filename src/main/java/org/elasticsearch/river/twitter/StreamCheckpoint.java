@@ -0,0 +1,87 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter;
+
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Last status acknowledged by elasticsearch. Persisted in the river index so we know where
+ * to start from after a reconnection or a restart.
+ */
+public class StreamCheckpoint implements ToXContent {
+
+    private long lastStatusId = -1;
+    private long lastCreatedAt = -1;
+    private boolean dirty;
+
+    /**
+     * Records an indexed status. Only moves forward.
+     */
+    public synchronized void update(long statusId, long createdAt) {
+        if (statusId > lastStatusId) {
+            lastStatusId = statusId;
+            lastCreatedAt = createdAt;
+            dirty = true;
+        }
+    }
+
+    public synchronized long lastStatusId() {
+        return lastStatusId;
+    }
+
+    public synchronized long lastCreatedAt() {
+        return lastCreatedAt;
+    }
+
+    /**
+     * @return true if the checkpoint changed since the last call
+     */
+    public synchronized boolean clearDirty() {
+        boolean wasDirty = dirty;
+        dirty = false;
+        return wasDirty;
+    }
+
+    /**
+     * Loads a persisted checkpoint
+     */
+    public synchronized void load(Map<String, Object> source) {
+        if (source == null) {
+            return;
+        }
+        long statusId = XContentMapValues.nodeLongValue(source.get("last_status_id"), -1);
+        if (statusId > lastStatusId) {
+            lastStatusId = statusId;
+            lastCreatedAt = XContentMapValues.nodeLongValue(source.get("last_created_at"), -1);
+        }
+    }
+
+    @Override
+    public synchronized XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("last_status_id", lastStatusId);
+        builder.field("last_created_at", lastCreatedAt);
+        return builder;
+    }
+}
@@ -0,0 +1,468 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.river.twitter;
+
+import org.elasticsearch.action.admin.cluster.node.info.NodeInfo;
+import org.elasticsearch.action.admin.cluster.node.info.PluginInfo;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.river.RiverName;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Splits the filter of a river in shards, and spreads the shards over the nodes of the cluster.
+ * <p/>
+ * Tracks, follow ids and location boxes are dealt to the shards in a round robin fashion. Each shard
+ * gets a token of its own, as twitter allows a single stream per account. Shard {@code i} is described
+ * by the {@code _shard_<i>} document of the river in the river index, holding its node and the
+ * settings of the river it runs. The {@link StreamShardService} of that node runs it as river
+ * {@code <river>_shard_<i>}, which writes its own statistics.
+ * <p/>
+ * When nodes join or leave, the fewest shards possible are moved so every node runs about the same
+ * number of shards. A shard is restarted whenever its generation changes.
+ */
+public class StreamShardCoordinator implements ToXContent {
+
+    static final String SHARD_ID_PREFIX = "_shard_";
+
+    static final String PLUGIN_NAME = "river-twitter";
+
+    private static final String[] TOKEN_KEYS = {"consumer_key", "consumer_secret", "access_token", "access_token_secret"};
+
+    private static class Shard {
+        final int id;
+        volatile Map<String, Object> filter;
+        // Settings of the shard river, as read back from JSON so they compare with the stored ones
+        volatile Map<String, Object> settings;
+        volatile String node;
+        volatile long generation;
+        volatile boolean dirty = true;
+        volatile String status;
+        volatile long statsTimestamp = -1;
+
+        Shard(int id) {
+            this.id = id;
+        }
+    }
+
+    private final ESLogger logger;
+    private final Client client;
+    private final String riverIndexName;
+    private final RiverName riverName;
+    private final Map<String, Object> riverSettings;
+    private final String indexName;
+    private final List<Map<String, Object>> tokens;
+    private final TimeValue staleAfter;
+
+    private final String[] tracks;
+    private final double[][] locations;
+    private final Shard[] shards;
+
+    private final AtomicLong reassignments = new AtomicLong();
+    private volatile int nodes;
+    private boolean loaded;
+
+    /**
+     * @param riverSettings settings of the river, copied to the shards with their own filter and token
+     * @param shards wanted number of shards, capped by the number of tokens and of filter values
+     * @param tokens tokens of the shards after the first one, which uses the river token
+     * @param staleAfter statistics older than this make a shard unhealthy
+     */
+    public StreamShardCoordinator(ESLogger logger, Client client, String riverIndexName, RiverName riverName,
+                                  Map<String, Object> riverSettings, String indexName, int shards,
+                                  List<Map<String, Object>> tokens, String[] tracks, long[] followIds,
+                                  double[][] locations, TimeValue staleAfter) {
+        this.logger = logger;
+        this.client = client;
+        this.riverIndexName = riverIndexName;
+        this.riverName = riverName;
+        this.riverSettings = riverSettings;
+        this.indexName = indexName;
+        this.tokens = tokens;
+        this.staleAfter = staleAfter;
+        this.tracks = tracks == null ? new String[0] : tracks;
+        this.locations = locations == null ? new double[0][] : locations;
+
+        int values = this.tracks.length + (followIds == null ? 0 : followIds.length) + this.locations.length / 2;
+        int count = Math.min(shards, Math.min(tokens.size() + 1, Math.max(1, values)));
+        if (count < shards) {
+            logger.warn("can not run [{}] shards with [{}] tokens and [{}] filter values, using [{}] shards",
+                    shards, tokens.size() + 1, values, count);
+        }
+        this.shards = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            this.shards[i] = new Shard(i);
+        }
+        split(followIds);
+    }
+
+    public int shards() {
+        return shards.length;
+    }
+
+    static String shardRiverName(String riverName, int shard) {
+        return riverName + SHARD_ID_PREFIX + shard;
+    }
+
+    /**
+     * Splits the filter again with new follow ids. Shards whose filter changed are restarted.
+     */
+    public synchronized void setFollowIds(long[] followIds) {
+        split(followIds);
+        writeShards();
+    }
+
+    @SuppressWarnings({"unchecked"})
+    private void split(long[] followIds) {
+        List<List<String>> shardTracks = new ArrayList<List<String>>();
+        List<List<Long>> shardFollow = new ArrayList<List<Long>>();
+        List<List<List<Double>>> shardLocations = new ArrayList<List<List<Double>>>();
+        for (int i = 0; i < shards.length; i++) {
+            shardTracks.add(new ArrayList<String>());
+            shardFollow.add(new ArrayList<Long>());
+            shardLocations.add(new ArrayList<List<Double>>());
+        }
+        // A single counter for all the values, so every shard has something to filter
+        int next = 0;
+        for (String track : tracks) {
+            shardTracks.get(next++ % shards.length).add(track);
+        }
+        if (followIds != null) {
+            for (long id : followIds) {
+                shardFollow.get(next++ % shards.length).add(id);
+            }
+        }
+        // Locations go by boxes, south west corner then north east corner
+        for (int i = 0; i + 1 < locations.length; i += 2) {
+            List<List<Double>> box = shardLocations.get(next++ % shards.length);
+            box.add(point(locations[i]));
+            box.add(point(locations[i + 1]));
+        }
+
+        Map<String, Object> riverFilter = (Map<String, Object>) ((Map<String, Object>) riverSettings.get("twitter")).get("filter");
+        for (int i = 0; i < shards.length; i++) {
+            Map<String, Object> filter = new HashMap<String, Object>();
+            if (!shardTracks.get(i).isEmpty()) {
+                filter.put("tracks", shardTracks.get(i));
+            }
+            if (!shardFollow.get(i).isEmpty()) {
+                filter.put("follow", shardFollow.get(i));
+            }
+            if (!shardLocations.get(i).isEmpty()) {
+                filter.put("locations", shardLocations.get(i));
+            }
+            if (riverFilter.get("language") != null) {
+                filter.put("language", riverFilter.get("language"));
+            }
+            if (riverFilter.get("count") != null) {
+                filter.put("count", riverFilter.get("count"));
+            }
+            Map<String, Object> settings = shardSettings(i, filter);
+            if (shards[i].settings != null && !settings.equals(shards[i].settings)) {
+                shards[i].generation++;
+                shards[i].dirty = true;
+            }
+            shards[i].filter = filter;
+            shards[i].settings = settings;
+        }
+    }
+
+    private static List<Double> point(double[] point) {
+        List<Double> list = new ArrayList<Double>();
+        list.add(point[0]);
+        list.add(point[1]);
+        return list;
+    }
+
+    /**
+     * Settings of the river run by a shard: its part of the filter, its token, and the index of the river
+     */
+    @SuppressWarnings({"unchecked"})
+    private Map<String, Object> shardSettings(int shard, Map<String, Object> filter) {
+        Map<String, Object> settings = new HashMap<String, Object>(riverSettings);
+        Map<String, Object> twitter = copy(riverSettings.get("twitter"));
+        twitter.remove("shards");
+        // Shards are moved by the coordinator when their node leaves
+        twitter.remove("standby");
+        twitter.put("type", "filter");
+        twitter.put("filter", filter);
+        if (shard > 0) {
+            Map<String, Object> oauth = copy(twitter.get("oauth"));
+            Map<String, Object> token = tokens.get(shard - 1);
+            for (String key : TOKEN_KEYS) {
+                if (token.get(key) != null) {
+                    oauth.put(key, token.get(key));
+                }
+            }
+            twitter.put("oauth", oauth);
+        }
+        settings.put("twitter", twitter);
+        Map<String, Object> index = copy(riverSettings.get("index"));
+        index.put("index", indexName);
+        // Shards share the index of the river, they would save each other's relaxed settings as the original ones
+        index.remove("bulk_load");
+        settings.put("index", index);
+        try {
+            return XContentHelper.convertToMap(XContentFactory.jsonBuilder().map(settings).bytes(), false).v2();
+        } catch (IOException e) {
+            throw new IllegalStateException("can not serialize settings of shard [" + shard + "]", e);
+        }
+    }
+
+    @SuppressWarnings({"unchecked"})
+    private static Map<String, Object> copy(Object map) {
+        if (map instanceof Map) {
+            return new HashMap<String, Object>((Map<String, Object>) map);
+        }
+        return new HashMap<String, Object>();
+    }
+
+    /**
+     * Moves shards away from the nodes which left, balances them over the nodes which joined, and
+     * reads their health
+     */
+    public synchronized void check() {
+        List<String> candidates;
+        try {
+            candidates = pluginNodes(client);
+        } catch (Exception e) {
+            logger.warn("failed to list nodes for stream shards", e);
+            return;
+        }
+        if (candidates.isEmpty()) {
+            logger.warn("no node runs the [{}] plugin, stream shards are not assigned", PLUGIN_NAME);
+            return;
+        }
+        nodes = candidates.size();
+        if (!loaded) {
+            loadShards();
+            loaded = true;
+        }
+        assign(candidates);
+        writeShards();
+        readHealth();
+    }
+
+    /**
+     * Nodes which can run a river: the ones with this plugin, client nodes apart, sorted by id
+     */
+    static List<String> pluginNodes(Client client) {
+        List<String> candidates = new ArrayList<String>();
+        for (NodeInfo info : client.admin().cluster().prepareNodesInfo().clear().setPlugins(true).get().getNodes()) {
+            if (info.getNode().clientNode() || info.getPlugins() == null) {
+                continue;
+            }
+            for (PluginInfo plugin : info.getPlugins().getInfos()) {
+                if (PLUGIN_NAME.equals(plugin.getName())) {
+                    candidates.add(info.getNode().id());
+                    break;
+                }
+            }
+        }
+        Collections.sort(candidates);
+        return candidates;
+    }
+
+    /**
+     * Reads the assignments of a previous run, so a restarted river does not move its shards around
+     */
+    @SuppressWarnings({"unchecked"})
+    private void loadShards() {
+        for (Shard shard : shards) {
+            try {
+                GetResponse response = client.prepareGet(riverIndexName, riverName.name(), SHARD_ID_PREFIX + shard.id).get();
+                if (!response.isExists()) {
+                    continue;
+                }
+                Map<String, Object> stored = (Map<String, Object>) response.getSourceAsMap().get("stream_shard");
+                shard.node = XContentMapValues.nodeStringValue(stored.get("node"), null);
+                shard.generation = XContentMapValues.nodeLongValue(stored.get("generation"), 0);
+                if (shard.settings.equals(response.getSourceAsMap().get("settings"))) {
+                    shard.dirty = false;
+                } else {
+                    // Settings of the river changed
+                    shard.generation++;
+                }
+            } catch (Exception e) {
+                logger.debug("failed to read stream shard [{}]", e, shard.id);
+            }
+        }
+        // The river may have had more shards before
+        for (int i = shards.length; ; i++) {
+            try {
+                if (!client.prepareDelete(riverIndexName, riverName.name(), SHARD_ID_PREFIX + i).get().isFound()) {
+                    break;
+                }
+                logger.info("removed stream shard [{}]", i);
+            } catch (Exception e) {
+                logger.debug("failed to remove stream shard [{}]", e, i);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Keeps shards where they are as long as their node is alive and not above its share, then gives
+     * the others to the least loaded nodes
+     */
+    private void assign(List<String> candidates) {
+        int share = shards.length / candidates.size();
+        int extra = shards.length % candidates.size();
+        Map<String, Integer> load = new HashMap<String, Integer>();
+        for (String node : candidates) {
+            load.put(node, 0);
+        }
+        List<Shard> unassigned = new ArrayList<Shard>();
+        for (Shard shard : shards) {
+            Integer current = shard.node == null ? null : load.get(shard.node);
+            if (current != null && current < share) {
+                load.put(shard.node, current + 1);
+            } else if (current != null && current == share && extra > 0) {
+                load.put(shard.node, current + 1);
+                extra--;
+            } else {
+                unassigned.add(shard);
+            }
+        }
+        for (Shard shard : unassigned) {
+            String target = null;
+            for (String node : candidates) {
+                if (target == null || load.get(node) < load.get(target)) {
+                    target = node;
+                }
+            }
+            if (load.get(target) == share) {
+                extra--;
+            }
+            load.put(target, load.get(target) + 1);
+            if (shard.node != null) {
+                logger.info("moving stream shard [{}] from node [{}] to node [{}]", shard.id, shard.node, target);
+                reassignments.incrementAndGet();
+            } else {
+                logger.info("assigning stream shard [{}] to node [{}]", shard.id, target);
+            }
+            shard.node = target;
+            shard.generation++;
+            shard.dirty = true;
+        }
+    }
+
+    private void writeShards() {
+        for (Shard shard : shards) {
+            if (!shard.dirty || shard.node == null) {
+                continue;
+            }
+            try {
+                XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+                builder.startObject("stream_shard");
+                builder.field("river", riverName.name());
+                builder.field("shard", shard.id);
+                builder.field("shards", shards.length);
+                builder.field("node", shard.node);
+                builder.field("generation", shard.generation);
+                builder.endObject();
+                builder.field("settings", shard.settings);
+                builder.endObject();
+                client.prepareIndex(riverIndexName, riverName.name(), SHARD_ID_PREFIX + shard.id).setSource(builder).get();
+                shard.dirty = false;
+            } catch (Exception e) {
+                logger.warn("failed to write stream shard [{}]", e, shard.id);
+            }
+        }
+    }
+
+    private void readHealth() {
+        for (Shard shard : shards) {
+            try {
+                GetResponse response = client.prepareGet(riverIndexName, shardRiverName(riverName.name(), shard.id), "_stats").get();
+                if (response.isExists()) {
+                    Map<String, Object> stats = response.getSourceAsMap();
+                    shard.status = XContentMapValues.nodeStringValue(stats.get("status"), null);
+                    shard.statsTimestamp = XContentMapValues.nodeLongValue(stats.get("timestamp"), -1);
+                }
+            } catch (Exception e) {
+                logger.debug("failed to read statistics of stream shard [{}]", e, shard.id);
+            }
+        }
+    }
+
+    /**
+     * Removes the shard documents, which stops the shards
+     */
+    public synchronized void removeShards() {
+        for (Shard shard : shards) {
+            try {
+                client.prepareDelete(riverIndexName, riverName.name(), SHARD_ID_PREFIX + shard.id).get();
+            } catch (Exception e) {
+                logger.debug("failed to remove stream shard [{}]", e, shard.id);
+            }
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        long now = System.currentTimeMillis();
+        builder.startObject("stream_shards");
+        builder.field("count", shards.length);
+        builder.field("nodes", nodes);
+        builder.field("reassignments", reassignments.get());
+        builder.startArray("shards");
+        for (Shard shard : shards) {
+            builder.startObject();
+            builder.field("shard", shard.id);
+            builder.field("river", shardRiverName(riverName.name(), shard.id));
+            builder.field("node", shard.node);
+            builder.field("generation", shard.generation);
+            Map<String, Object> filter = shard.filter;
+            builder.field("tracks", size(filter.get("tracks")));
+            builder.field("follow", size(filter.get("follow")));
+            builder.field("locations", size(filter.get("locations")) / 2);
+            builder.field("status", shard.status);
+            long age = shard.statsTimestamp < 0 ? -1 : now - shard.statsTimestamp;
+            if (age >= 0) {
+                builder.field("stats_age_in_millis", age);
+            }
+            builder.field("healthy", "RUNNING".equals(shard.status) && age >= 0 && age <= staleAfter.millis());
+            builder.endObject();
+        }
+        builder.endArray();
+        builder.endObject();
+        return builder;
+    }
+
+    private static int size(Object list) {
+        return list instanceof List ? ((List) list).size() : 0;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.river.twitter;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.indices.IndexMissingException;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
+import org.elasticsearch.river.RiverIndexName;
+import org.elasticsearch.river.RiverName;
+import org.elasticsearch.river.RiverSettings;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Runs the stream shards assigned to this node by a {@link StreamShardCoordinator}.
+ * <p/>
+ * Shard documents are read from the river index every {@code river.twitter.shards.check_interval}.
+ * A shard is started when it is assigned to this node, restarted when its generation changes, and
+ * stopped when it is moved to another node or removed.
+ */
+public class StreamShardService extends AbstractLifecycleComponent<StreamShardService> {
+
+    // Far more than the number of tokens anyone has
+    private static final int MAX_SHARDS = 10000;
+
+    private static class RunningShard {
+        final TwitterRiver river;
+        final long generation;
+
+        RunningShard(TwitterRiver river, long generation) {
+            this.river = river;
+            this.generation = generation;
+        }
+    }
+
+    private final Client client;
+    private final ClusterService clusterService;
+    private final ThreadPool threadPool;
+    private final TwitterIngestService ingestService;
+    private final CircuitBreakerService breakerService;
+    private final NodeEnvironment nodeEnvironment;
+    private final String riverIndexName;
+    private final TimeValue checkInterval;
+
+    private final Map<String, RunningShard> running = new HashMap<String, RunningShard>();
+
+    private volatile ScheduledFuture<?> checker;
+
+    @Inject
+    public StreamShardService(Settings settings, Client client, ClusterService clusterService, ThreadPool threadPool,
+                              TwitterIngestService ingestService, CircuitBreakerService breakerService,
+                              NodeEnvironment nodeEnvironment) {
+        super(settings);
+        this.client = client;
+        this.clusterService = clusterService;
+        this.threadPool = threadPool;
+        this.ingestService = ingestService;
+        this.breakerService = breakerService;
+        this.nodeEnvironment = nodeEnvironment;
+        this.riverIndexName = RiverIndexName.Conf.indexName(settings);
+        this.checkInterval = settings.getAsTime("river.twitter.shards.check_interval", TimeValue.timeValueSeconds(10));
+    }
+
+    @Override
+    protected void doStart() throws ElasticsearchException {
+        checker = threadPool.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                threadPool.executor(TwitterRiver.THREAD_POOL_NAME).execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        check();
+                    }
+                });
+            }
+        }, checkInterval);
+    }
+
+    @Override
+    protected void doStop() throws ElasticsearchException {
+        if (checker != null) {
+            checker.cancel(false);
+        }
+        synchronized (this) {
+            for (RunningShard shard : running.values()) {
+                shard.river.close();
+            }
+            running.clear();
+        }
+    }
+
+    @Override
+    protected void doClose() throws ElasticsearchException {
+    }
+
+    @SuppressWarnings({"unchecked"})
+    synchronized void check() {
+        if (!lifecycle.started()) {
+            return;
+        }
+        String localNode = clusterService.localNode().id();
+        Map<String, SearchHit> assigned = new HashMap<String, SearchHit>();
+        try {
+            SearchResponse response = client.prepareSearch(riverIndexName)
+                    .setQuery(QueryBuilders.rangeQuery("stream_shard.shards").gte(1))
+                    .setSize(MAX_SHARDS).get();
+            for (SearchHit hit : response.getHits()) {
+                Map<String, Object> shard = (Map<String, Object>) hit.getSource().get("stream_shard");
+                if (shard != null && localNode.equals(shard.get("node"))) {
+                    assigned.put(StreamShardCoordinator.shardRiverName(hit.getType(),
+                            XContentMapValues.nodeIntegerValue(shard.get("shard"), 0)), hit);
+                }
+            }
+        } catch (IndexMissingException e) {
+            // No river yet
+        } catch (Exception e) {
+            logger.warn("failed to read stream shards", e);
+            return;
+        }
+
+        for (Iterator<Map.Entry<String, RunningShard>> it = running.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, RunningShard> entry = it.next();
+            SearchHit hit = assigned.get(entry.getKey());
+            if (hit == null || generation(hit) != entry.getValue().generation) {
+                logger.info("stopping stream shard [{}]", entry.getKey());
+                entry.getValue().river.close();
+                it.remove();
+            }
+        }
+
+        for (Map.Entry<String, SearchHit> entry : assigned.entrySet()) {
+            if (running.containsKey(entry.getKey())) {
+                continue;
+            }
+            Map<String, Object> shardSettings = (Map<String, Object>) entry.getValue().getSource().get("settings");
+            if (shardSettings == null) {
+                continue;
+            }
+            logger.info("starting stream shard [{}]", entry.getKey());
+            try {
+                TwitterRiver river = new TwitterRiver(new RiverName("twitter", entry.getKey()),
+                        new RiverSettings(settings, shardSettings), riverIndexName, client, threadPool, settings,
+                        ingestService, breakerService, nodeEnvironment);
+                river.start();
+                running.put(entry.getKey(), new RunningShard(river, generation(entry.getValue())));
+            } catch (Exception e) {
+                logger.warn("failed to start stream shard [{}]", e, entry.getKey());
+            }
+        }
+    }
+
+    @SuppressWarnings({"unchecked"})
+    private static long generation(SearchHit hit) {
+        Map<String, Object> shard = (Map<String, Object>) hit.getSource().get("stream_shard");
+        return XContentMapValues.nodeLongValue(shard.get("generation"), 0);
+    }
+}
@@ -0,0 +1,438 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import twitter4j.Status;
+import twitter4j.StatusDeletionNotice;
+import twitter4j.TwitterObjectFactory;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates fake statuses at a given rate, in place of the twitter stream, to measure the throughput
+ * the river can sustain without any network access or credentials.
+ * <p/>
+ * Statuses are real twitter JSON documents parsed by twitter4j, so they go through the whole river.
+ * A few users post most of the statuses, the number of hashtags, mentions and urls follows a geometric
+ * distribution, and the rate can be multiplied during periodic bursts.
+ */
+public class SyntheticStream implements ToXContent {
+
+    /**
+     * Receives the generated statuses, like a twitter4j stream listener
+     */
+    public interface Listener {
+        void onStatus(Status status, String rawJSON);
+
+        void onDeletionNotice(StatusDeletionNotice statusDeletionNotice);
+    }
+
+    private static final long TWITTER_EPOCH = 1288834974657L;
+
+    private static final String[] WORDS = {"the", "elasticsearch", "search", "river", "tweet", "love", "new", "today",
+            "great", "time", "world", "data", "music", "game", "happy", "news", "live", "check", "night", "people"};
+    private static final String[] LANGUAGES = {"en", "en", "en", "es", "fr", "ja", "pt", "de"};
+
+    // Statuses we can delete later
+    private static final int RECENT = 4096;
+
+    private final ESLogger logger;
+    private final Listener listener;
+
+    private final int rate;
+    private final double retweetRatio;
+    private final double deletionRatio;
+    private final double meanHashtags;
+    private final double meanMentions;
+    private final double meanUrls;
+    private final String urlPrefix;
+    private final int users;
+    private final TimeValue burstInterval;
+    private final TimeValue burstDuration;
+    private final int burstFactor;
+
+    private final Random random;
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("EEE MMM dd HH:mm:ss ZZZZZ yyyy", Locale.ENGLISH);
+    private final long[] recentIds = new long[RECENT];
+    private final long[] recentUsers = new long[RECENT];
+    // Next slot of the ring of recent statuses, and number of slots in use
+    private int recentNext;
+    private int recentSize;
+    private long sequence;
+
+    private final AtomicLong generated = new AtomicLong();
+    private final AtomicLong retweets = new AtomicLong();
+    private final AtomicLong deletions = new AtomicLong();
+    private volatile long startedAt;
+
+    private volatile boolean running;
+    private volatile Thread thread;
+
+    public SyntheticStream(ESLogger logger, Listener listener, Map<String, Object> settings) {
+        this.logger = logger;
+        this.listener = listener;
+        this.rate = XContentMapValues.nodeIntegerValue(settings.get("rate"), 1000);
+        this.retweetRatio = XContentMapValues.nodeDoubleValue(settings.get("retweet_ratio"), 0.3);
+        this.deletionRatio = XContentMapValues.nodeDoubleValue(settings.get("deletion_ratio"), 0.01);
+        this.meanHashtags = XContentMapValues.nodeDoubleValue(settings.get("hashtags"), 0.5);
+        this.meanMentions = XContentMapValues.nodeDoubleValue(settings.get("mentions"), 0.8);
+        this.meanUrls = XContentMapValues.nodeDoubleValue(settings.get("urls"), 0.3);
+        this.urlPrefix = XContentMapValues.nodeStringValue(settings.get("url_prefix"), "http://www.elastic.co/blog/");
+        this.users = Math.max(1, XContentMapValues.nodeIntegerValue(settings.get("users"), 100000));
+        Object seed = settings.get("seed");
+        this.random = seed == null ? new Random() : new Random(XContentMapValues.nodeLongValue(seed, 0));
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        @SuppressWarnings({"unchecked"})
+        Map<String, Object> burst = (Map<String, Object>) settings.get("burst");
+        if (burst != null) {
+            this.burstInterval = XContentMapValues.nodeTimeValue(burst.get("interval"), TimeValue.timeValueMinutes(1));
+            this.burstDuration = XContentMapValues.nodeTimeValue(burst.get("duration"), TimeValue.timeValueSeconds(5));
+            this.burstFactor = XContentMapValues.nodeIntegerValue(burst.get("factor"), 10);
+        } else {
+            this.burstInterval = null;
+            this.burstDuration = null;
+            this.burstFactor = 1;
+        }
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        startedAt = System.currentTimeMillis();
+        thread = EsExecutors.daemonThreadFactory("twitter_river_synthetic").newThread(new Runnable() {
+            @Override
+            public void run() {
+                generate();
+            }
+        });
+        thread.start();
+        logger.info("synthetic stream started, [{}] statuses per second", rate);
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+    }
+
+    /**
+     * Target rate, in statuses per second, at this time of the run
+     */
+    int currentRate(long elapsedMillis) {
+        if (burstInterval != null && elapsedMillis % burstInterval.millis() < burstDuration.millis()) {
+            return rate * burstFactor;
+        }
+        return rate;
+    }
+
+    private void generate() {
+        long start = System.nanoTime();
+        long lastTick = start;
+        double budget = 0;
+        while (running) {
+            long now = System.nanoTime();
+            int currentRate = currentRate((now - start) / 1000000);
+            budget += currentRate * (now - lastTick) / 1000000000.0;
+            lastTick = now;
+            // When the river can not keep up, we don't want to build an endless backlog
+            budget = Math.min(budget, currentRate);
+            while (budget >= 1 && running) {
+                try {
+                    emit();
+                } catch (Exception e) {
+                    logger.warn("failed to generate synthetic status", e);
+                }
+                budget--;
+            }
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void emit() throws Exception {
+        long now = System.currentTimeMillis();
+        long userId = nextUserId();
+        String rawJSON;
+        long id = nextId(now);
+        if (random.nextDouble() < retweetRatio) {
+            long originalUserId = nextUserId();
+            long originalCreatedAt = now - random.nextInt(3600000);
+            rawJSON = statusJson(id, now, userId, nextId(originalCreatedAt), originalCreatedAt, originalUserId);
+            retweets.incrementAndGet();
+        } else {
+            rawJSON = statusJson(id, now, userId, -1, -1, -1);
+        }
+        Status status = TwitterObjectFactory.createStatus(rawJSON);
+        listener.onStatus(status, rawJSON);
+        generated.incrementAndGet();
+
+        recentIds[recentNext] = id;
+        recentUsers[recentNext] = userId;
+        recentNext = (recentNext + 1) % RECENT;
+        recentSize = Math.min(recentSize + 1, RECENT);
+
+        if (random.nextDouble() < deletionRatio) {
+            int deleted = random.nextInt(recentSize);
+            listener.onDeletionNotice(new Deletion(recentIds[deleted], recentUsers[deleted]));
+            deletions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Ids are built like twitter ones: a timestamp followed by a sequence number
+     */
+    private long nextId(long createdAt) {
+        return ((createdAt - TWITTER_EPOCH) << 22) | (sequence++ & 0x3FFFFF);
+    }
+
+    /**
+     * Log uniform user ids: a few users post most of the statuses
+     */
+    private long nextUserId() {
+        return (long) Math.pow(users, random.nextDouble());
+    }
+
+    /**
+     * Number of entities following a geometric distribution of the given mean
+     */
+    private int count(double mean) {
+        if (mean <= 0) {
+            return 0;
+        }
+        int count = 0;
+        double p = mean / (1 + mean);
+        while (random.nextDouble() < p && count < 10) {
+            count++;
+        }
+        return count;
+    }
+
+    private String statusJson(long id, long createdAt, long userId,
+                              long originalId, long originalCreatedAt, long originalUserId) throws IOException {
+        XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+        if (originalId < 0) {
+            Text text = new Text();
+            text.words();
+            writeFields(builder, id, createdAt, userId, text);
+        } else {
+            Text original = new Text();
+            original.words();
+            Text retweet = new Text();
+            retweet.append("RT ");
+            retweet.mention(originalUserId);
+            retweet.append(": " + original.text);
+            writeFields(builder, id, createdAt, userId, retweet);
+            builder.startObject("retweeted_status");
+            writeFields(builder, originalId, originalCreatedAt, originalUserId, original);
+            builder.endObject();
+        }
+        return builder.endObject().string();
+    }
+
+    private void writeFields(XContentBuilder builder, long id, long createdAt, long userId, Text text) throws IOException {
+        builder.field("id", id);
+        builder.field("id_str", Long.toString(id));
+        builder.field("created_at", dateFormat.format(new Date(createdAt)));
+        builder.field("text", text.text.toString());
+        builder.field("source", "<a href=\"http://www.elastic.co\" rel=\"nofollow\">synthetic</a>");
+        builder.field("truncated", false);
+        builder.field("lang", LANGUAGES[random.nextInt(LANGUAGES.length)]);
+        builder.field("retweet_count", 0);
+        builder.field("favorite_count", 0);
+
+        builder.startObject("user");
+        builder.field("id", userId);
+        builder.field("id_str", Long.toString(userId));
+        builder.field("name", "User " + userId);
+        builder.field("screen_name", screenName(userId));
+        builder.field("location", "Somewhere " + (userId % 100));
+        builder.field("description", "Synthetic user " + userId);
+        builder.field("profile_image_url", "http://pbs.twimg.com/profile_images/" + userId + "/normal.png");
+        builder.field("profile_image_url_https", "https://pbs.twimg.com/profile_images/" + userId + "/normal.png");
+        builder.field("followers_count", userId % 10000);
+        builder.field("created_at", dateFormat.format(new Date(TWITTER_EPOCH)));
+        builder.endObject();
+
+        builder.startObject("entities");
+        builder.startArray("hashtags");
+        for (Entity hashtag : text.hashtags) {
+            builder.startObject().field("text", hashtag.value).startArray("indices").value(hashtag.start).value(hashtag.end).endArray().endObject();
+        }
+        builder.endArray();
+        builder.startArray("user_mentions");
+        for (Entity mention : text.mentions) {
+            builder.startObject()
+                    .field("id", mention.id)
+                    .field("id_str", Long.toString(mention.id))
+                    .field("screen_name", mention.value)
+                    .field("name", "User " + mention.id)
+                    .startArray("indices").value(mention.start).value(mention.end).endArray()
+                    .endObject();
+        }
+        builder.endArray();
+        builder.startArray("urls");
+        for (Entity url : text.urls) {
+            builder.startObject()
+                    .field("url", url.value)
+                    .field("expanded_url", urlPrefix + url.id)
+                    .field("display_url", "elastic.co/blog/" + url.id)
+                    .startArray("indices").value(url.start).value(url.end).endArray()
+                    .endObject();
+        }
+        builder.endArray();
+        builder.endObject();
+    }
+
+    private static String screenName(long userId) {
+        return "user_" + userId;
+    }
+
+    private static class Entity {
+        final String value;
+        final long id;
+        final int start;
+        final int end;
+
+        Entity(String value, long id, int start, int end) {
+            this.value = value;
+            this.id = id;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Text of a status with the position of its entities
+     */
+    private class Text {
+        final StringBuilder text = new StringBuilder();
+        final List<Entity> hashtags = new ArrayList<Entity>();
+        final List<Entity> mentions = new ArrayList<Entity>();
+        final List<Entity> urls = new ArrayList<Entity>();
+
+        void append(String value) {
+            text.append(value);
+        }
+
+        void mention(long userId) {
+            String screenName = screenName(userId);
+            int start = text.length();
+            text.append('@').append(screenName);
+            mentions.add(new Entity(screenName, userId, start, text.length()));
+        }
+
+        void words() {
+            int words = 5 + random.nextInt(15);
+            for (int i = 0; i < words; i++) {
+                text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            for (int i = count(meanMentions); i > 0; i--) {
+                mention(nextUserId());
+                text.append(' ');
+            }
+            for (int i = count(meanHashtags); i > 0; i--) {
+                String tag = WORDS[random.nextInt(WORDS.length)];
+                int start = text.length();
+                text.append('#').append(tag);
+                this.hashtags.add(new Entity(tag, 0, start, text.length()));
+                text.append(' ');
+            }
+            for (int i = count(meanUrls); i > 0; i--) {
+                long urlId = random.nextInt(100000);
+                String url = "http://t.co/" + Long.toString(urlId, 36);
+                int start = text.length();
+                text.append(url);
+                this.urls.add(new Entity(url, urlId, start, text.length()));
+                text.append(' ');
+            }
+            text.setLength(text.length() - 1);
+        }
+    }
+
+    private static class Deletion implements StatusDeletionNotice {
+        private final long statusId;
+        private final long userId;
+
+        Deletion(long statusId, long userId) {
+            this.statusId = statusId;
+            this.userId = userId;
+        }
+
+        @Override
+        public long getStatusId() {
+            return statusId;
+        }
+
+        @Override
+        public long getUserId() {
+            return userId;
+        }
+
+        @Override
+        public int compareTo(StatusDeletionNotice other) {
+            return Long.compare(statusId, other.getStatusId());
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("synthetic");
+        builder.field("target_rate", rate);
+        long count = generated.get();
+        builder.field("generated", count);
+        builder.field("retweets", retweets.get());
+        builder.field("deletions", deletions.get());
+        long elapsed = System.currentTimeMillis() - startedAt;
+        if (startedAt > 0 && elapsed > 0) {
+            builder.field("rate", count * 1000 / elapsed);
+        }
+        builder.endObject();
+        return builder;
+    }
+}
@@ -0,0 +1,506 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.river.RiverName;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Node level service shared by all twitter rivers running on a node.
+ * <p/>
+ * Rivers using the shared mode push their inserts into their own bounded queue. A single dispatcher
+ * drains the queues in a round robin fashion, so a busy river can not starve the others, and fills
+ * shared bulks with a global concurrency. The memory held by pending requests is bounded node wide.
+ * A river waits at most {@code max_wait} for room, in its queue and under the memory limit together, as it
+ * is usually called by the stream thread which must keep reading.
+ * <p/>
+ * Deletes and updates skip the queues and go straight to the shared delete and update lanes.
+ */
+public class TwitterIngestService extends AbstractLifecycleComponent<TwitterIngestService> {
+
+    private static final String RIVER_CONTEXT_KEY = "twitter_river";
+    private static final long STOP_TIMEOUT_MILLIS = 30000;
+
+    private final Client client;
+
+    private final BulkLanes.LaneSettings insertLane;
+    private final BulkLanes.LaneSettings deleteLane;
+    private final BulkLanes.LaneSettings updateLane;
+    private final int stripes;
+    private final int queueSize;
+    private final int quantum;
+    private final long maxPendingBytes;
+    private final TimeValue maxWait;
+
+    private final List<RiverIngest> rivers = new CopyOnWriteArrayList<RiverIngest>();
+
+    private final ConcurrentMap<String, ToXContent> riverStats = ConcurrentCollections.newConcurrentMap();
+
+    private final ConcurrentMap<String, LiveTail> tails = ConcurrentCollections.newConcurrentMap();
+
+    private final ConcurrentMap<String, ArchiveReindexer> reindexers = ConcurrentCollections.newConcurrentMap();
+
+    // Final urls of expanded urls, for all the rivers of the node
+    private final Cache<String, String> expandedUrls;
+
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final Object signal = new Object();
+    // Signalled when pending bytes are released, only if someone waits for room
+    private final ReentrantLock roomLock = new ReentrantLock();
+    private final Condition roomReleased = roomLock.newCondition();
+    private final AtomicInteger roomWaiters = new AtomicInteger();
+
+    private volatile BulkLanes lanes;
+    private volatile Thread dispatcher;
+    private volatile boolean running;
+
+    @Inject
+    public TwitterIngestService(Settings settings, Client client) {
+        super(settings);
+        this.client = client;
+        this.insertLane = new BulkLanes.LaneSettings(
+                settings.getAsInt("river.twitter.ingest.bulk_size", 1000),
+                settings.getAsInt("river.twitter.ingest.max_concurrent_bulk", 2),
+                settings.getAsTime("river.twitter.ingest.flush_interval", TimeValue.timeValueSeconds(5)));
+        this.deleteLane = new BulkLanes.LaneSettings(
+                settings.getAsInt("river.twitter.ingest.deletes.bulk_size", 100),
+                settings.getAsInt("river.twitter.ingest.deletes.max_concurrent_bulk", 1),
+                settings.getAsTime("river.twitter.ingest.deletes.flush_interval", TimeValue.timeValueSeconds(1)));
+        this.updateLane = new BulkLanes.LaneSettings(
+                settings.getAsInt("river.twitter.ingest.updates.bulk_size", 100),
+                settings.getAsInt("river.twitter.ingest.updates.max_concurrent_bulk", 1),
+                settings.getAsTime("river.twitter.ingest.updates.flush_interval", TimeValue.timeValueSeconds(5)));
+        this.stripes = settings.getAsInt("river.twitter.ingest.stripes", 1);
+        this.queueSize = settings.getAsInt("river.twitter.ingest.queue_size", 10000);
+        this.quantum = settings.getAsInt("river.twitter.ingest.quantum", 100);
+        this.maxPendingBytes = settings.getAsBytesSize("river.twitter.ingest.max_pending",
+                new ByteSizeValue(64, ByteSizeUnit.MB)).bytes();
+        this.maxWait = settings.getAsTime("river.twitter.ingest.max_wait", TimeValue.timeValueSeconds(1));
+        this.expandedUrls = CacheBuilder.newBuilder()
+                .maximumSize(settings.getAsInt("river.twitter.expand_urls.cache_size", 100000)).build();
+    }
+
+    @Override
+    protected void doStart() throws ElasticsearchException {
+        running = true;
+        dispatcher = EsExecutors.daemonThreadFactory(settings, "twitter_river_ingest").newThread(new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        });
+        dispatcher.start();
+    }
+
+    @Override
+    protected void doStop() throws ElasticsearchException {
+        running = false;
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+        signalRoom();
+        if (dispatcher != null) {
+            try {
+                dispatcher.join(STOP_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (lanes != null) {
+                lanes.close();
+                lanes = null;
+            }
+        }
+    }
+
+    @Override
+    protected void doClose() throws ElasticsearchException {
+    }
+
+    /**
+     * Registers a river. Requests given to the returned indexer are sent through the shared bulks.
+     */
+    public BulkIndexer register(RiverName riverName, BulkLanes.Listener listener) {
+        RiverIngest river = new RiverIngest(riverName.name(), listener);
+        rivers.add(river);
+        logger.debug("river [{}] registered, {} rivers use the shared ingestion", riverName.name(), rivers.size());
+        return river;
+    }
+
+    /**
+     * Cache of the final urls found by the {@link UrlExpander}s of the rivers
+     */
+    public Cache<String, String> expandedUrls() {
+        return expandedUrls;
+    }
+
+    /**
+     * Makes the statistics of a river running on this node available to the REST API
+     */
+    public void registerStats(RiverName riverName, ToXContent stats) {
+        riverStats.put(riverName.name(), stats);
+    }
+
+    /**
+     * Removes the statistics of a river, unless another instance of the river registered its own since
+     */
+    public void unregisterStats(RiverName riverName, ToXContent stats) {
+        riverStats.remove(riverName.name(), stats);
+    }
+
+    /**
+     * Statistics of the rivers running on this node, by river name
+     */
+    public Map<String, ToXContent> riverStats() {
+        return riverStats;
+    }
+
+    /**
+     * Makes the live tail of a river running on this node available to the REST API
+     */
+    public void registerTail(RiverName riverName, LiveTail tail) {
+        tails.put(riverName.name(), tail);
+    }
+
+    public void unregisterTail(RiverName riverName, LiveTail tail) {
+        tails.remove(riverName.name(), tail);
+    }
+
+    /**
+     * @return null if the river does not run on this node or has no tail
+     */
+    public LiveTail tail(String riverName) {
+        return tails.get(riverName);
+    }
+
+    /**
+     * Makes the archive of a river running on this node available to the REST API
+     */
+    public void registerReindexer(RiverName riverName, ArchiveReindexer reindexer) {
+        reindexers.put(riverName.name(), reindexer);
+    }
+
+    public void unregisterReindexer(RiverName riverName, ArchiveReindexer reindexer) {
+        reindexers.remove(riverName.name(), reindexer);
+    }
+
+    /**
+     * @return null if the river does not run on this node or has no archive
+     */
+    public ArchiveReindexer reindexer(String riverName) {
+        return reindexers.get(riverName);
+    }
+
+    private BulkLanes lanes() {
+        BulkLanes current = lanes;
+        if (current == null) {
+            synchronized (this) {
+                if (lanes == null) {
+                    lanes = new BulkLanes(client, logger, insertLane, deleteLane, updateLane, new BulkLanes.Listener() {
+                        @Override
+                        public void onRequestSubmitted(ActionRequest request) {
+                            RiverIngest river = request.getFromContext(RIVER_CONTEXT_KEY);
+                            if (river != null && river.listener != null) {
+                                river.listener.onRequestSubmitted(request);
+                            }
+                        }
+
+                        @Override
+                        public void onRequestDone(ActionRequest request, boolean failed) {
+                            RiverIngest river = request.getFromContext(RIVER_CONTEXT_KEY);
+                            if (river != null) {
+                                river.done(request, failed);
+                            }
+                        }
+                    }, stripes);
+                }
+                current = lanes;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Moves up to {@code quantum} requests of every river queue in turn into the shared bulks
+     */
+    private void dispatch() {
+        List<IndexRequest> batch = new ArrayList<IndexRequest>(quantum);
+        while (running) {
+            boolean moved = false;
+            for (RiverIngest river : rivers) {
+                batch.clear();
+                river.queue.drainTo(batch, quantum);
+                if (!batch.isEmpty()) {
+                    moved = true;
+                    BulkLanes current = lanes();
+                    for (IndexRequest request : batch) {
+                        current.submit(request);
+                    }
+                }
+            }
+            if (!moved) {
+                synchronized (signal) {
+                    try {
+                        signal.wait(100);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+        // Flush what is left when stopping
+        for (RiverIngest river : rivers) {
+            batch.clear();
+            river.queue.drainTo(batch);
+            for (IndexRequest request : batch) {
+                lanes().submit(request);
+            }
+        }
+    }
+
+    private static long sizeOf(ActionRequest request) {
+        if (request instanceof IndexRequest && ((IndexRequest) request).source() != null) {
+            return ((IndexRequest) request).source().length();
+        }
+        // Deletes and partial updates are small, let's use a rough estimate
+        return 128;
+    }
+
+    /**
+     * Waits for room under the node wide memory limit
+     * @return false if there was no room before the deadline
+     */
+    private boolean acquire(long bytes, long deadline) {
+        while (true) {
+            long current = pendingBytes.get();
+            // A single request bigger than the limit is accepted when nothing else is pending
+            if (current + bytes <= maxPendingBytes || current == 0) {
+                if (pendingBytes.compareAndSet(current, current + bytes)) {
+                    return true;
+                }
+                continue;
+            }
+            if (!running) {
+                return false;
+            }
+            roomLock.lock();
+            roomWaiters.incrementAndGet();
+            try {
+                // Room released before we were counted as a waiter was not signalled
+                if (pendingBytes.get() == current) {
+                    long nanos = TimeUnit.MILLISECONDS.toNanos(deadline - System.currentTimeMillis());
+                    if (nanos <= 0) {
+                        return false;
+                    }
+                    roomReleased.awaitNanos(nanos);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                roomWaiters.decrementAndGet();
+                roomLock.unlock();
+            }
+        }
+    }
+
+    private void releaseRoom(long bytes) {
+        pendingBytes.addAndGet(-bytes);
+        if (roomWaiters.get() > 0) {
+            signalRoom();
+        }
+    }
+
+    private void signalRoom() {
+        roomLock.lock();
+        try {
+            roomReleased.signalAll();
+        } finally {
+            roomLock.unlock();
+        }
+    }
+
+    /**
+     * Requests of a single river, with its own statistics
+     */
+    private class RiverIngest implements BulkIndexer {
+        private final String name;
+        private final BulkLanes.Listener listener;
+        private final BlockingQueue<IndexRequest> queue;
+
+        private final AtomicLong added = new AtomicLong();
+        private final AtomicLong succeeded = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong pending = new AtomicLong();
+
+        RiverIngest(String name, BulkLanes.Listener listener) {
+            this.name = name;
+            this.listener = listener;
+            this.queue = new ArrayBlockingQueue<IndexRequest>(queueSize);
+        }
+
+        @Override
+        public void index(IndexRequest request) {
+            long deadline = System.currentTimeMillis() + maxWait.millis();
+            if (!accept(request, deadline)) {
+                return;
+            }
+            lanes().reserve(request);
+            try {
+                long wait = Math.max(0, deadline - System.currentTimeMillis());
+                if (!queue.offer(request, wait, TimeUnit.MILLISECONDS)) {
+                    logger.warn("[{}] shared ingestion queue is full, rejecting [{}]", name, request.id());
+                    rejected.incrementAndGet();
+                    // Nothing will be executed for this request, release it as a failure
+                    lanes().cancel(request);
+                    done(request, true);
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                lanes().cancel(request);
+                done(request, true);
+                return;
+            }
+            synchronized (signal) {
+                signal.notify();
+            }
+        }
+
+        @Override
+        public void delete(DeleteRequest request) {
+            if (accept(request, System.currentTimeMillis() + maxWait.millis())) {
+                lanes().delete(request);
+            }
+        }
+
+        @Override
+        public void update(UpdateRequest request) {
+            if (accept(request, System.currentTimeMillis() + maxWait.millis())) {
+                lanes().update(request);
+            }
+        }
+
+        private boolean accept(ActionRequest request, long deadline) {
+            long bytes = sizeOf(request);
+            if (!acquire(bytes, deadline)) {
+                logger.warn("[{}] shared ingestion memory limit [{}] reached, rejecting request", name, new ByteSizeValue(maxPendingBytes));
+                rejected.incrementAndGet();
+                if (listener != null) {
+                    listener.onRequestDone(request, true);
+                }
+                return false;
+            }
+            request.putInContext(RIVER_CONTEXT_KEY, this);
+            added.incrementAndGet();
+            pending.addAndGet(bytes);
+            return true;
+        }
+
+        void done(ActionRequest request, boolean failedRequest) {
+            long bytes = sizeOf(request);
+            releaseRoom(bytes);
+            pending.addAndGet(-bytes);
+            if (failedRequest) {
+                failed.incrementAndGet();
+            } else {
+                succeeded.incrementAndGet();
+            }
+            if (listener != null) {
+                listener.onRequestDone(request, failedRequest);
+            }
+        }
+
+        @Override
+        public int maxConcurrentInserts() {
+            // Shared bulks are sized for the whole node
+            return -1;
+        }
+
+        @Override
+        public void setMaxConcurrentInserts(int maxConcurrentBulk) {
+        }
+
+        @Override
+        public void close() {
+            rivers.remove(this);
+            // Whatever is still in the queue is flushed by the dispatcher or when the service stops
+            List<IndexRequest> left = new ArrayList<IndexRequest>();
+            queue.drainTo(left);
+            for (IndexRequest request : left) {
+                lanes().submit(request);
+            }
+            logger.debug("river [{}] unregistered from the shared ingestion", name);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject("shared_ingest");
+            builder.field("added", added.get());
+            builder.field("succeeded", succeeded.get());
+            builder.field("failed", failed.get());
+            builder.field("rejected", rejected.get());
+            builder.field("queued", queue.size());
+            builder.byteSizeField("pending_in_bytes", "pending", pending.get());
+            builder.field("rivers", rivers.size());
+            builder.byteSizeField("node_pending_in_bytes", "node_pending", pendingBytes.get());
+            BulkLanes current = lanes;
+            if (current != null) {
+                current.toXContent(builder, params);
+            }
+            builder.endObject();
+            return builder;
+        }
+    }
+}
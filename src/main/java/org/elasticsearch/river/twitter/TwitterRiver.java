@@ -20,47 +20,95 @@
 package org.elasticsearch.river.twitter;
 
 import org.elasticsearch.ExceptionsHelper;
-import org.elasticsearch.action.bulk.BulkItemResponse;
-import org.elasticsearch.action.bulk.BulkProcessor;
-import org.elasticsearch.action.bulk.BulkRequest;
-import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequestBuilder;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.Requests;
 import org.elasticsearch.cluster.block.ClusterBlockException;
 import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.env.NodeEnvironment;
 import org.elasticsearch.indices.IndexAlreadyExistsException;
+import org.elasticsearch.indices.IndexMissingException;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
 import org.elasticsearch.river.AbstractRiverComponent;
 import org.elasticsearch.river.River;
+import org.elasticsearch.river.RiverIndexName;
 import org.elasticsearch.river.RiverName;
 import org.elasticsearch.river.RiverSettings;
+import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.threadpool.ThreadPool;
 import twitter4j.*;
 import twitter4j.conf.Configuration;
 import twitter4j.conf.ConfigurationBuilder;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  *
  */
 public class TwitterRiver extends AbstractRiverComponent implements River {
 
+    /**
+     * Thread pool running river startups, reconnections, serializer workers and list refreshes
+     */
+    public static final String THREAD_POOL_NAME = "twitter_river";
+
+    // Deletes are sent quickly and in small bulks so they never wait behind inserts
+    private static final BulkLanes.LaneSettings DEFAULT_DELETE_LANE = new BulkLanes.LaneSettings(100, 1, TimeValue.timeValueSeconds(1));
+    private static final BulkLanes.LaneSettings DEFAULT_UPDATE_LANE = new BulkLanes.LaneSettings(100, 1, TimeValue.timeValueSeconds(5));
+
+    // Saved queries read from the queries index
+    private static final int MAX_SAVED_QUERIES = 10000;
+
     private final ThreadPool threadPool;
 
     private final Client client;
 
+    private final TwitterIngestService ingestService;
+
+    private final CircuitBreakerService breakerService;
+    private final NodeEnvironment nodeEnvironment;
+
+    private final String riverIndexName;
+
     private final String oauthConsumerKey;
     private final String oauthConsumerSecret;
     private final String oauthAccessToken;
     private final String oauthAccessTokenSecret;
+    // More tokens for REST calls
+    private final List<Map<String, Object>> oauthPool;
 
     private final TimeValue retryAfter;
 
@@ -70,8 +118,44 @@ public class TwitterRiver extends AbstractRiverComponent implements River {
     private final String proxyPassword;
 
     private final boolean raw;
+    private final SlimRawFilter slimRawFilter;
+    // Applied to raw documents: slim_raw, or shortened users when profiles have their own index
+    private final SlimRawFilter rawFilter;
     private final boolean ignoreRetweet;
     private final boolean geoAsArray;
+    // Entities written as arrays of objects with offsets, as flat arrays of values, or both
+    private final boolean entityObjects;
+    private final boolean flatEntities;
+
+    private final StatusSampler sampler;
+
+    private final int serializerWorkers;
+    private final int serializerQueueSize;
+
+    private final GapBackfiller backfiller;
+    private final StallMonitor stallMonitor;
+    private final NearDuplicateDetector duplicates;
+    private final UrlExpander urlExpander;
+    private final LiveTail liveTail;
+    // Raw statuses kept on local disk, null when disabled
+    private final Map<String, Object> archiveSettings;
+    private final StreamCheckpoint checkpoint = new StreamCheckpoint();
+    private final IngestLatency latency = new IngestLatency();
+    private final Cache<Long, Boolean> recentIds;
+    private volatile CredentialPool credentialPool;
+    private volatile boolean firehoseBackfill;
+
+    private String[] tracks;
+    private String[] userLists;
+    private TimeValue userListsRefreshInterval;
+    private volatile long[] followIds;
+    private double[][] locations;
+    private Map<String, Object> syntheticSettings;
+    // Filter split in shards run by several nodes
+    private final int streamShards;
+    private final TimeValue shardCheckInterval;
+    // Lease held by the instance running the river, null without standby
+    private final RiverOwnership ownership;
 
     private final String indexName;
 
@@ -79,7 +163,23 @@ public class TwitterRiver extends AbstractRiverComponent implements River {
 
     private final int bulkSize;
     private final int maxConcurrentBulk;
+    private final int bulkStripes;
     private final TimeValue bulkFlushInterval;
+    private final TimeValue statsInterval;
+    private final BulkLanes.LaneSettings deleteLane;
+    private final BulkLanes.LaneSettings updateLane;
+    private final boolean sharedIngest;
+    private final TimeValue checkpointInterval;
+    private final UserProfileIndexer userProfiles;
+    private final QueryMatcher queryMatcher;
+    private final IndexRouter router;
+    private final XContentType sourceType;
+    private final boolean datesAsMillis;
+    private final Map<String, Object> memorySettings;
+    // Index settings relaxed during bursts, null when disabled
+    private final Map<String, Object> bulkLoadSettings;
+    private final String mappingProfile;
+    private final String templatePattern;
 
     private final FilterQuery filterQuery;
 
@@ -89,24 +189,142 @@ public class TwitterRiver extends AbstractRiverComponent implements River {
 
     private volatile TwitterStream stream;
 
-    private volatile BulkProcessor bulkProcessor;
+    private volatile SyntheticStream syntheticStream;
+
+    private volatile BulkIndexer bulkIndexer;
+
+    private volatile ScheduledFuture<?> samplerTicker;
+
+    private volatile ScheduledFuture<?> statsReporter;
+
+    private volatile ScheduledFuture<?> userListsRefresher;
+
+    private volatile ScheduledFuture<?> checkpointWriter;
+
+    private volatile ScheduledFuture<?> spoolReplayer;
+
+    private volatile ScheduledFuture<?> queriesRefresher;
+
+    private volatile ScheduledFuture<?> duplicatesFlusher;
+
+    private volatile ScheduledFuture<?> shardChecker;
+
+    private volatile StreamShardCoordinator shardCoordinator;
+
+    private volatile ScheduledFuture<?> ownershipTask;
+
+    private volatile MemoryBudget memoryBudget;
+
+    private volatile BulkLoadTuner bulkLoad;
+
+    private volatile ScheduledFuture<?> bulkLoadChecker;
+
+    private volatile StreamArchive archive;
+
+    private volatile ArchiveReindexer reindexer;
+
+    private volatile ScheduledFuture<?> archiveFlusher;
+
+    private volatile StatusWorkers workers;
 
     @SuppressWarnings({"unchecked"})
     @Inject
-    public TwitterRiver(RiverName riverName, RiverSettings riverSettings, Client client, ThreadPool threadPool, Settings settings) {
+    public TwitterRiver(RiverName riverName, RiverSettings riverSettings, @RiverIndexName String riverIndexName,
+                        Client client, ThreadPool threadPool, Settings settings, TwitterIngestService ingestService,
+                        CircuitBreakerService breakerService, NodeEnvironment nodeEnvironment) {
         super(riverName, riverSettings);
         this.riverStatus = RiverStatus.UNKNOWN;
+        this.riverIndexName = riverIndexName;
         this.client = client;
         this.threadPool = threadPool;
+        this.ingestService = ingestService;
+        this.breakerService = breakerService;
+        this.nodeEnvironment = nodeEnvironment;
+        this.shardCheckInterval = settings.getAsTime("river.twitter.shards.check_interval", TimeValue.timeValueSeconds(10));
+        Object standbySettings = null;
+        if (riverSettings.settings().get("twitter") instanceof Map) {
+            standbySettings = ((Map<String, Object>) riverSettings.settings().get("twitter")).get("standby");
+        }
+        this.ownership = RiverOwnership.parse(logger, client, riverIndexName, riverName, standbySettings);
 
         String riverStreamType;
 
         if (riverSettings.settings().containsKey("twitter")) {
             Map<String, Object> twitterSettings = (Map<String, Object>) riverSettings.settings().get("twitter");
 
-            raw = XContentMapValues.nodeBooleanValue(twitterSettings.get("raw"), false);
+            Object slimRaw = twitterSettings.get("slim_raw");
+            if (slimRaw instanceof Map) {
+                slimRawFilter = SlimRawFilter.parse((Map<String, Object>) slimRaw);
+            } else if (XContentMapValues.nodeBooleanValue(slimRaw, false)) {
+                slimRawFilter = SlimRawFilter.parse(null);
+            } else {
+                slimRawFilter = null;
+            }
+            // slim raw is a flavor of raw
+            raw = slimRawFilter != null || XContentMapValues.nodeBooleanValue(twitterSettings.get("raw"), false);
             ignoreRetweet = XContentMapValues.nodeBooleanValue(twitterSettings.get("ignore_retweet"), false);
             geoAsArray = XContentMapValues.nodeBooleanValue(twitterSettings.get("geo_as_array"), false);
+            String entities = XContentMapValues.nodeStringValue(twitterSettings.get("entities"), "objects");
+            if (!entities.equals("objects") && !entities.equals("flat") && !entities.equals("both")) {
+                throw new IllegalArgumentException("entities must be one of [objects, flat, both], got [" + entities + "]");
+            }
+            entityObjects = !entities.equals("flat");
+            flatEntities = !entities.equals("objects");
+            streamShards = XContentMapValues.nodeIntegerValue(twitterSettings.get("shards"), 1);
+
+            if (twitterSettings.containsKey("sampling")) {
+                Map<String, Object> samplingSettings = (Map<String, Object>) twitterSettings.get("sampling");
+                sampler = new StatusSampler(
+                        XContentMapValues.nodeDoubleValue(samplingSettings.get("ratio"), 1.0),
+                        XContentMapValues.nodeDoubleValue(samplingSettings.get("min_ratio"), 0.01),
+                        XContentMapValues.nodeIntegerValue(samplingSettings.get("max_docs_per_sec"), 0));
+            } else {
+                sampler = null;
+            }
+
+            serializerWorkers = XContentMapValues.nodeIntegerValue(twitterSettings.get("serializer_workers"), 0);
+            serializerQueueSize = XContentMapValues.nodeIntegerValue(twitterSettings.get("serializer_queue_size"), 1000);
+            stallMonitor = new StallMonitor((Map<String, Object>) twitterSettings.get("stall"));
+            if (twitterSettings.get("duplicates") instanceof Map) {
+                duplicates = new NearDuplicateDetector((Map<String, Object>) twitterSettings.get("duplicates"));
+            } else {
+                duplicates = null;
+            }
+            Object expandUrls = twitterSettings.get("expand_urls");
+            if (expandUrls instanceof Map) {
+                urlExpander = new UrlExpander(logger, threadPool.executor(THREAD_POOL_NAME), ingestService.expandedUrls(),
+                        new ExpandedUrlWriter(), (Map<String, Object>) expandUrls);
+            } else if (XContentMapValues.nodeBooleanValue(expandUrls, false)) {
+                urlExpander = new UrlExpander(logger, threadPool.executor(THREAD_POOL_NAME), ingestService.expandedUrls(),
+                        new ExpandedUrlWriter(), new HashMap<String, Object>());
+            } else {
+                urlExpander = null;
+            }
+            Object tail = twitterSettings.get("tail");
+            if (tail instanceof Map) {
+                liveTail = new LiveTail(threadPool, (Map<String, Object>) tail);
+            } else if (XContentMapValues.nodeBooleanValue(tail, false)) {
+                liveTail = new LiveTail(threadPool, new HashMap<String, Object>());
+            } else {
+                liveTail = null;
+            }
+            Object archiveSetting = twitterSettings.get("archive");
+            if (archiveSetting instanceof Map) {
+                archiveSettings = (Map<String, Object>) archiveSetting;
+            } else if (XContentMapValues.nodeBooleanValue(archiveSetting, false)) {
+                archiveSettings = new HashMap<String, Object>();
+            } else {
+                archiveSettings = null;
+            }
+
+            backfiller = new GapBackfiller(logger, threadPool.executor(THREAD_POOL_NAME), new GapBackfiller.Sink() {
+                @Override
+                public void onStatus(Status status) {
+                    processBackfilledStatus(status);
+                }
+            }, (Map<String, Object>) twitterSettings.get("backfill"));
+            // Ids seen recently, so statuses fetched by the backfill are not indexed twice
+            recentIds = backfiller.enabled() ? CacheBuilder.newBuilder().maximumSize(100000).<Long, Boolean>build() : null;
 
             if (twitterSettings.containsKey("oauth")) {
                 Map<String, Object> oauth = (Map<String, Object>) twitterSettings.get("oauth");
@@ -130,11 +348,17 @@ public class TwitterRiver extends AbstractRiverComponent implements River {
                 } else {
                     oauthAccessTokenSecret = settings.get("river.twitter.oauth.access_token_secret");
                 }
+                if (oauth.get("pool") instanceof List) {
+                    oauthPool = (List<Map<String, Object>>) oauth.get("pool");
+                } else {
+                    oauthPool = nodeOAuthPool(settings);
+                }
             } else {
                 oauthConsumerKey = settings.get("river.twitter.oauth.consumer_key");
                 oauthConsumerSecret = settings.get("river.twitter.oauth.consumer_secret");
                 oauthAccessToken = settings.get("river.twitter.oauth.access_token");
                 oauthAccessTokenSecret = settings.get("river.twitter.oauth.access_token_secret");
+                oauthPool = nodeOAuthPool(settings);
             }
 
             if (twitterSettings.containsKey("retry_after")) {
@@ -158,6 +382,12 @@ public class TwitterRiver extends AbstractRiverComponent implements River {
             }
 
             riverStreamType = XContentMapValues.nodeStringValue(twitterSettings.get("type"), "sample");
+            if (riverStreamType.equals("synthetic")) {
+                syntheticSettings = (Map<String, Object>) twitterSettings.get("synthetic");
+                if (syntheticSettings == null) {
+                    syntheticSettings = new HashMap<String, Object>();
+                }
+            }
             Map<String, Object> filterSettings = (Map<String, Object>) twitterSettings.get("filter");
 
             if (riverStreamType.equals("filter") && filterSettings == null) {
@@ -168,7 +398,23 @@ public class TwitterRiver extends AbstractRiverComponent implements River {
                 typeName = "status";
                 bulkSize = 100;
                 this.maxConcurrentBulk = 1;
+                this.bulkStripes = 1;
                 this.bulkFlushInterval = TimeValue.timeValueSeconds(5);
+                this.statsInterval = TimeValue.timeValueSeconds(30);
+                this.deleteLane = DEFAULT_DELETE_LANE;
+                this.updateLane = DEFAULT_UPDATE_LANE;
+                this.sharedIngest = false;
+                this.checkpointInterval = TimeValue.timeValueSeconds(10);
+                this.sourceType = XContentType.JSON;
+                this.datesAsMillis = false;
+                this.memorySettings = null;
+                this.bulkLoadSettings = null;
+                this.mappingProfile = null;
+                this.templatePattern = null;
+                this.userProfiles = null;
+                this.queryMatcher = null;
+                this.router = null;
+                this.rawFilter = null;
                 logger.warn("no filter defined for type filter. Disabling river...");
                 return;
             }
@@ -182,34 +428,34 @@ public class TwitterRiver extends AbstractRiverComponent implements River {
                 if (tracks != null) {
                     if (tracks instanceof List) {
                         List<String> lTracks = (List<String>) tracks;
-                        filterQuery.track(lTracks.toArray(new String[lTracks.size()]));
+                        this.tracks = lTracks.toArray(new String[lTracks.size()]);
                     } else {
-                        filterQuery.track(Strings.commaDelimitedListToStringArray(tracks.toString()));
+                        this.tracks = Strings.commaDelimitedListToStringArray(tracks.toString());
                     }
+                    filterQuery.track(this.tracks);
                     filterSet = true;
                 }
                 Object follow = filterSettings.get("follow");
                 if (follow != null) {
                     if (follow instanceof List) {
                         List lFollow = (List) follow;
-                        long[] followIds = new long[lFollow.size()];
+                        followIds = new long[lFollow.size()];
                         for (int i = 0; i < lFollow.size(); i++) {
                             Object o = lFollow.get(i);
                             if (o instanceof Number) {
-                                followIds[i] = ((Number) o).intValue();
+                                followIds[i] = ((Number) o).longValue();
                             } else {
                                 followIds[i] = Long.parseLong(o.toString());
                             }
                         }
-                        filterQuery.follow(followIds);
                     } else {
                         String[] ids = Strings.commaDelimitedListToStringArray(follow.toString());
-                        long[] followIds = new long[ids.length];
+                        followIds = new long[ids.length];
                         for (int i = 0; i < ids.length; i++) {
                             followIds[i] = Long.parseLong(ids[i]);
                         }
-                        filterQuery.follow(followIds);
                     }
+                    filterQuery.follow(followIds);
                     filterSet = true;
                 }
                 Object locations = filterSettings.get("locations");
@@ -240,6 +486,7 @@ public class TwitterRiver extends AbstractRiverComponent implements River {
                             }
                             dLocations[i] = new double[]{lon, lat};
                         }
+                        this.locations = dLocations;
                         filterQuery.locations(dLocations);
                     } else {
                         String[] sLocations = Strings.commaDelimitedListToStringArray(locations.toString());
@@ -250,6 +497,7 @@ public class TwitterRiver extends AbstractRiverComponent implements River {
                             double lat = Double.parseDouble(sLocations[++i]);
                             dLocations[dCounter++] = new double[]{lon, lat};
                         }
+                        this.locations = dLocations;
                         filterQuery.locations(dLocations);
                     }
                     filterSet = true;
@@ -258,12 +506,13 @@ public class TwitterRiver extends AbstractRiverComponent implements River {
                 if (userLists != null) {
                     if (userLists instanceof List) {
                         List<String> lUserlists = (List<String>) userLists;
-                        String[] tUserlists = lUserlists.toArray(new String[lUserlists.size()]);
-                        filterQuery.follow(getUsersListMembers(tUserlists));
+                        this.userLists = lUserlists.toArray(new String[lUserlists.size()]);
                     } else {
-                        String[] tUserlists = Strings.commaDelimitedListToStringArray(userLists.toString());
-                        filterQuery.follow(getUsersListMembers(tUserlists));
+                        this.userLists = Strings.commaDelimitedListToStringArray(userLists.toString());
                     }
+                    followIds = getUsersListMembers(this.userLists);
+                    filterQuery.follow(followIds);
+                    userListsRefreshInterval = XContentMapValues.nodeTimeValue(filterSettings.get("user_lists_refresh_interval"), null);
                     filterSet = true;
                 }
 
@@ -274,7 +523,23 @@ public class TwitterRiver extends AbstractRiverComponent implements River {
                     typeName = "status";
                     bulkSize = 100;
                     this.maxConcurrentBulk = 1;
+                    this.bulkStripes = 1;
                     this.bulkFlushInterval = TimeValue.timeValueSeconds(5);
+                    this.statsInterval = TimeValue.timeValueSeconds(30);
+                    this.deleteLane = DEFAULT_DELETE_LANE;
+                    this.updateLane = DEFAULT_UPDATE_LANE;
+                    this.sharedIngest = false;
+                    this.checkpointInterval = TimeValue.timeValueSeconds(10);
+                    this.sourceType = XContentType.JSON;
+                    this.datesAsMillis = false;
+                    this.memorySettings = null;
+                    this.bulkLoadSettings = null;
+                    this.mappingProfile = null;
+                    this.templatePattern = null;
+                    this.userProfiles = null;
+                    this.queryMatcher = null;
+                    this.router = null;
+                    this.rawFilter = null;
                     logger.warn("can not set language filter without tracks, follow, locations or user_lists. Disabling river.");
                     return;
                 }
@@ -295,12 +560,27 @@ public class TwitterRiver extends AbstractRiverComponent implements River {
             // No specific settings. We need to use some defaults
             riverStreamType = "sample";
             raw = false;
+            slimRawFilter = null;
             ignoreRetweet = false;
             geoAsArray = false;
+            entityObjects = true;
+            flatEntities = false;
+            streamShards = 1;
+            sampler = null;
+            serializerWorkers = 0;
+            serializerQueueSize = 1000;
+            stallMonitor = new StallMonitor(null);
+            duplicates = null;
+            urlExpander = null;
+            liveTail = null;
+            archiveSettings = null;
+            backfiller = new GapBackfiller(logger, threadPool.executor(THREAD_POOL_NAME), null, null);
+            recentIds = null;
             oauthConsumerKey = settings.get("river.twitter.oauth.consumer_key");
             oauthConsumerSecret = settings.get("river.twitter.oauth.consumer_secret");
             oauthAccessToken = settings.get("river.twitter.oauth.access_token");
             oauthAccessTokenSecret = settings.get("river.twitter.oauth.access_token_secret");
+            oauthPool = nodeOAuthPool(settings);
             retryAfter = XContentMapValues.nodeTimeValue(settings.get("river.twitter.retry_after"), TimeValue.timeValueSeconds(10));
             filterQuery = null;
             proxyHost = null;
@@ -309,14 +589,32 @@ public class TwitterRiver extends AbstractRiverComponent implements River {
             proxyPassword =null;
         }
 
-        if (oauthAccessToken == null || oauthConsumerKey == null || oauthConsumerSecret == null || oauthAccessTokenSecret == null) {
+        // A synthetic stream does not need to connect to twitter
+        if (syntheticSettings == null && (oauthAccessToken == null || oauthConsumerKey == null
+                || oauthConsumerSecret == null || oauthAccessTokenSecret == null)) {
             stream = null;
             streamType = null;
             indexName = null;
             typeName = "status";
             bulkSize = 100;
             this.maxConcurrentBulk = 1;
+            this.bulkStripes = 1;
             this.bulkFlushInterval = TimeValue.timeValueSeconds(5);
+            this.statsInterval = TimeValue.timeValueSeconds(30);
+            this.deleteLane = DEFAULT_DELETE_LANE;
+            this.updateLane = DEFAULT_UPDATE_LANE;
+            this.sharedIngest = false;
+            this.checkpointInterval = TimeValue.timeValueSeconds(10);
+            this.sourceType = XContentType.JSON;
+            this.datesAsMillis = false;
+            this.memorySettings = null;
+            this.bulkLoadSettings = null;
+            this.mappingProfile = null;
+            this.templatePattern = null;
+            this.userProfiles = null;
+            this.queryMatcher = null;
+            this.router = null;
+            this.rawFilter = null;
             logger.warn("no oauth specified, disabling river...");
             return;
         }
@@ -329,18 +627,88 @@ public class TwitterRiver extends AbstractRiverComponent implements River {
             this.bulkFlushInterval = TimeValue.parseTimeValue(XContentMapValues.nodeStringValue(
                     indexSettings.get("flush_interval"), "5s"), TimeValue.timeValueSeconds(5));
             this.maxConcurrentBulk = XContentMapValues.nodeIntegerValue(indexSettings.get("max_concurrent_bulk"), 1);
+            this.bulkStripes = XContentMapValues.nodeIntegerValue(indexSettings.get("stripes"), 1);
+            this.statsInterval = TimeValue.parseTimeValue(XContentMapValues.nodeStringValue(
+                    indexSettings.get("stats_interval"), "30s"), TimeValue.timeValueSeconds(30));
+            this.deleteLane = BulkLanes.LaneSettings.parse((Map<String, Object>) indexSettings.get("deletes"), DEFAULT_DELETE_LANE);
+            this.updateLane = BulkLanes.LaneSettings.parse((Map<String, Object>) indexSettings.get("updates"), DEFAULT_UPDATE_LANE);
+            this.sharedIngest = XContentMapValues.nodeBooleanValue(indexSettings.get("shared"), false);
+            this.checkpointInterval = TimeValue.parseTimeValue(XContentMapValues.nodeStringValue(
+                    indexSettings.get("checkpoint_interval"), "10s"), TimeValue.timeValueSeconds(10));
+            String sourceFormat = XContentMapValues.nodeStringValue(indexSettings.get("source_format"), "json");
+            XContentType type = XContentType.fromRestContentType(sourceFormat);
+            if (type == null) {
+                logger.warn("unknown source_format [{}], using json", sourceFormat);
+                type = XContentType.JSON;
+            }
+            this.sourceType = type;
+            this.datesAsMillis = "epoch_millis".equals(XContentMapValues.nodeStringValue(indexSettings.get("date_format"), "date"));
+            this.memorySettings = (Map<String, Object>) indexSettings.get("memory");
+            Object bulkLoadSetting = indexSettings.get("bulk_load");
+            if (bulkLoadSetting instanceof Map) {
+                this.bulkLoadSettings = (Map<String, Object>) bulkLoadSetting;
+            } else if (XContentMapValues.nodeBooleanValue(bulkLoadSetting, false)) {
+                this.bulkLoadSettings = new HashMap<String, Object>();
+            } else {
+                this.bulkLoadSettings = null;
+            }
+            this.mappingProfile = XContentMapValues.nodeStringValue(indexSettings.get("mapping_profile"), null);
+            if (mappingProfile != null && !IngestMapping.PROFILE.equals(mappingProfile)) {
+                logger.warn("unknown mapping_profile [{}], using the default mapping", mappingProfile);
+            }
+            this.templatePattern = XContentMapValues.nodeStringValue(indexSettings.get("template_pattern"), indexName);
+            if (indexSettings.containsKey("users")) {
+                this.userProfiles = UserProfileIndexer.parse((Map<String, Object>) indexSettings.get("users"), indexName, sourceType);
+            } else {
+                this.userProfiles = null;
+            }
+            if (indexSettings.containsKey("alerts")) {
+                this.queryMatcher = QueryMatcher.parse(logger, (Map<String, Object>) indexSettings.get("alerts"), indexName);
+            } else {
+                this.queryMatcher = null;
+            }
+            if (indexSettings.get("routing") instanceof List) {
+                this.router = new IndexRouter((List<Object>) indexSettings.get("routing"), typeName);
+            } else {
+                this.router = null;
+            }
         } else {
             indexName = riverName.name();
             typeName = "status";
             bulkSize = 100;
             this.maxConcurrentBulk = 1;
+            this.bulkStripes = 1;
             this.bulkFlushInterval = TimeValue.timeValueSeconds(5);
+            this.statsInterval = TimeValue.timeValueSeconds(30);
+            this.deleteLane = DEFAULT_DELETE_LANE;
+            this.updateLane = DEFAULT_UPDATE_LANE;
+            this.sharedIngest = false;
+            this.checkpointInterval = TimeValue.timeValueSeconds(10);
+            this.sourceType = XContentType.JSON;
+            this.datesAsMillis = false;
+            this.memorySettings = null;
+            this.bulkLoadSettings = null;
+            this.mappingProfile = null;
+            this.templatePattern = null;
+            this.userProfiles = null;
+            this.queryMatcher = null;
+            this.router = null;
+        }
+
+        if (slimRawFilter == null && raw && userProfiles != null) {
+            this.rawFilter = SlimRawFilter.parse(null);
+        } else {
+            this.rawFilter = slimRawFilter;
         }
 
         logger.info("creating twitter stream river");
         if (raw && logger.isDebugEnabled()) {
             logger.debug("will index twitter raw content...");
         }
+        if (sampler != null) {
+            logger.info("sampling statuses with ratio [{}], max docs per sec [{}]", sampler.ratio(),
+                    sampler.automatic() ? "auto" : "none");
+        }
 
         streamType = riverStreamType;
         this.riverStatus = RiverStatus.INITIALIZED;
@@ -351,33 +719,53 @@ public class TwitterRiver extends AbstractRiverComponent implements River {
      * @param tUserlists List of user list. Should be a public list.
      * @return
      */
-    private long[] getUsersListMembers(String[] tUserlists) {
+    private long[] getUsersListMembers(final String[] tUserlists) {
         logger.debug("Fetching user id of given lists");
-        List<Long> listUserIdToFollow = new ArrayList<Long>();
-        Configuration cb = buildTwitterConfiguration();
-        Twitter twitterImpl = new TwitterFactory(cb).getInstance();
+        final CredentialPool credentials = credentials();
+        final long[][] members = new long[tUserlists.length][];
 
-        //For each list given in parameter
-        for (String listId : tUserlists) {
-            logger.debug("Adding users of list {} ",listId);
-            String[] splitListId = listId.split("/");
-            try {
-                long cursor = -1;
-                PagableResponseList<User> itUserListMembers;
-                do {
-                    itUserListMembers = twitterImpl.getUserListMembers(splitListId[0], splitListId[1], cursor);
-                    for (User member : itUserListMembers) {
-                        long userId = member.getId();
-                        listUserIdToFollow.add(userId);
+        // Lists are resolved in parallel, one per token
+        final AtomicInteger nextList = new AtomicInteger();
+        final Runnable resolver = new Runnable() {
+            @Override
+            public void run() {
+                int list;
+                while ((list = nextList.getAndIncrement()) < tUserlists.length) {
+                    members[list] = getUserListMembers(credentials, tUserlists[list]);
+                }
+            }
+        };
+        int tasks = Math.min(credentials.size(), tUserlists.length);
+        final CountDownLatch done = new CountDownLatch(Math.max(0, tasks - 1));
+        for (int i = 1; i < tasks; i++) {
+            threadPool.executor(THREAD_POOL_NAME).execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        resolver.run();
+                    } finally {
+                        done.countDown();
                     }
-                } while ((cursor = itUserListMembers.getNextCursor()) != 0);
+                }
+            });
+        }
+        // The current thread helps, so we never wait for a busy thread pool
+        resolver.run();
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
 
-            } catch (TwitterException te) {
-                logger.error("Failed to get list members for : {}", listId, te);
+        List<Long> listUserIdToFollow = new ArrayList<Long>();
+        for (long[] listMembers : members) {
+            if (listMembers != null) {
+                for (long userId : listMembers) {
+                    listUserIdToFollow.add(userId);
+                }
             }
         }
 
-
         //Just casting from Long to long
         long ret[] = new long[listUserIdToFollow.size()];
         int pos = 0;
@@ -388,24 +776,95 @@ public class TwitterRiver extends AbstractRiverComponent implements River {
         return ret;
     }
 
+    /**
+     * @param listId owner screen name and list slug, separated by a slash
+     */
+    private long[] getUserListMembers(CredentialPool credentials, String listId) {
+        logger.debug("Adding users of list {} ",listId);
+        final String[] splitListId = listId.split("/");
+        List<Long> listMembers = new ArrayList<Long>();
+        try {
+            long cursor = -1;
+            PagableResponseList<User> itUserListMembers;
+            do {
+                final long pageCursor = cursor;
+                itUserListMembers = credentials.call("/lists/members", new CredentialPool.TwitterCall<PagableResponseList<User>>() {
+                    @Override
+                    public PagableResponseList<User> call(Twitter twitter) throws TwitterException {
+                        return twitter.getUserListMembers(splitListId[0], splitListId[1], pageCursor);
+                    }
+                });
+                if (itUserListMembers == null) {
+                    // River closed
+                    break;
+                }
+                for (User member : itUserListMembers) {
+                    listMembers.add(member.getId());
+                }
+            } while ((cursor = itUserListMembers.getNextCursor()) != 0);
+        } catch (TwitterException te) {
+            logger.error("Failed to get list members for : {}", listId, te);
+        }
+        long[] ids = new long[listMembers.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = listMembers.get(i);
+        }
+        return ids;
+    }
+
+    /**
+     * Fetch again members of user lists and reconnect if they changed
+     */
+    private void refreshUserLists() {
+        if (riverStatus != RiverStatus.RUNNING) {
+            logger.debug("river is not running, skipping user lists refresh");
+            return;
+        }
+        long[] newFollowIds = getUsersListMembers(userLists);
+        long[] sortedNew = newFollowIds.clone();
+        long[] sortedOld = followIds.clone();
+        Arrays.sort(sortedNew);
+        Arrays.sort(sortedOld);
+        if (Arrays.equals(sortedNew, sortedOld)) {
+            logger.debug("user lists members did not change");
+            return;
+        }
+        followIds = newFollowIds;
+        filterQuery.follow(newFollowIds);
+        if (shardCoordinator != null) {
+            logger.info("user lists members changed, now following {} users. Splitting shards again...", newFollowIds.length);
+            shardCoordinator.setFollowIds(newFollowIds);
+            return;
+        }
+        logger.info("user lists members changed, now following {} users. Reconnecting...", newFollowIds.length);
+        reconnect();
+    }
+
     /**
      * Build configuration object with credentials and proxy settings
      * @return
      */
     private Configuration buildTwitterConfiguration() {
+        return buildTwitterConfiguration(oauthConsumerKey, oauthConsumerSecret, oauthAccessToken, oauthAccessTokenSecret);
+    }
+
+    private Configuration buildTwitterConfiguration(String consumerKey, String consumerSecret,
+                                                    String accessToken, String accessTokenSecret) {
         logger.debug("creating twitter configuration");
         ConfigurationBuilder cb = new ConfigurationBuilder();
 
-        cb.setOAuthConsumerKey(oauthConsumerKey)
-                .setOAuthConsumerSecret(oauthConsumerSecret)
-                .setOAuthAccessToken(oauthAccessToken)
-                .setOAuthAccessTokenSecret(oauthAccessTokenSecret);
+        cb.setOAuthConsumerKey(consumerKey)
+                .setOAuthConsumerSecret(consumerSecret)
+                .setOAuthAccessToken(accessToken)
+                .setOAuthAccessTokenSecret(accessTokenSecret);
 
         if (proxyHost != null) cb.setHttpProxyHost(proxyHost);
         if (proxyPort != null) cb.setHttpProxyPort(Integer.parseInt(proxyPort));
         if (proxyUser != null) cb.setHttpProxyUser(proxyUser);
         if (proxyPassword != null) cb.setHttpProxyPassword(proxyPassword);
-        if (raw) cb.setJSONStoreEnabled(true);
+        if (raw || archiveSettings != null) cb.setJSONStoreEnabled(true);
+        // Twitter warns us before disconnecting us for being too slow
+        cb.setStallWarningsEnabled(true);
         logger.debug("twitter configuration created");
         return cb.build();
     }
@@ -416,6 +875,16 @@ public class TwitterRiver extends AbstractRiverComponent implements River {
     private void startTwitterStream() {
         logger.info("starting {} twitter stream", streamType);
 
+        if (syntheticSettings != null) {
+            if (syntheticStream == null) {
+                syntheticStream = new SyntheticStream(logger, new StatusHandler(), syntheticSettings);
+            }
+            if (riverStatus != RiverStatus.STOPPED && riverStatus != RiverStatus.STOPPING) {
+                syntheticStream.start();
+            }
+            return;
+        }
+
         if (stream == null) {
             logger.debug("creating twitter stream");
 
@@ -433,7 +902,10 @@ public class TwitterRiver extends AbstractRiverComponent implements River {
             if (streamType.equals("filter") || filterQuery != null) {
                 stream.filter(filterQuery);
             } else if (streamType.equals("firehose")) {
-                stream.firehose(0);
+                // When reconnecting, we ask twitter to send again the last statuses
+                int count = firehoseBackfill ? backfiller.firehoseCount() : 0;
+                firehoseBackfill = false;
+                stream.firehose(count);
             } else if (streamType.equals("user")) {
                 stream.user();
             } else {
@@ -447,7 +919,7 @@ public class TwitterRiver extends AbstractRiverComponent implements River {
     public void start() {
         this.riverStatus = RiverStatus.STARTING;
         // Let's start this in another thread so we won't stop the start process
-        threadPool.generic().execute(new Runnable() {
+        threadPool.executor(THREAD_POOL_NAME).execute(new Runnable() {
             @Override
             public void run() {
                 if (riverStatus != RiverStatus.STOPPED && riverStatus != RiverStatus.STOPPING) {
@@ -457,6 +929,10 @@ public class TwitterRiver extends AbstractRiverComponent implements River {
                     logger.debug("yellow or green status received");
                 }
 
+                if (IngestMapping.PROFILE.equals(mappingProfile) && riverStatus != RiverStatus.STOPPED && riverStatus != RiverStatus.STOPPING) {
+                    putIngestTemplate();
+                }
+
                 if (riverStatus != RiverStatus.STOPPED && riverStatus != RiverStatus.STOPPING) {
                     // We push ES mapping only if raw is false
                     if (!raw) {
@@ -481,14 +957,7 @@ public class TwitterRiver extends AbstractRiverComponent implements River {
 
                         if (client.admin().indices().prepareGetMappings(indexName).setTypes(typeName).get().getMappings().isEmpty()) {
                             try {
-                                String mapping = XContentFactory.jsonBuilder().startObject().startObject(typeName).startObject("properties")
-                                        .startObject("location").field("type", "geo_point").endObject()
-                                        .startObject("language").field("type", "string").field("index", "not_analyzed").endObject()
-                                        .startObject("user").startObject("properties").startObject("screen_name").field("type", "string").field("index", "not_analyzed").endObject().endObject().endObject()
-                                        .startObject("mention").startObject("properties").startObject("screen_name").field("type", "string").field("index", "not_analyzed").endObject().endObject().endObject()
-                                        .startObject("in_reply").startObject("properties").startObject("user_screen_name").field("type", "string").field("index", "not_analyzed").endObject().endObject().endObject()
-                                        .startObject("retweet").startObject("properties").startObject("user_screen_name").field("type", "string").field("index", "not_analyzed").endObject().endObject().endObject()
-                                        .endObject().endObject().endObject().string();
+                                String mapping = defaultMapping(typeName);
                                 logger.debug("Applying default mapping for [{}]/[{}]: {}", indexName, typeName, mapping);
                                 client.admin().indices().preparePutMapping(indexName).setType(typeName).setSource(mapping).execute().actionGet();
                             } catch (Exception e) {
@@ -498,289 +967,1434 @@ public class TwitterRiver extends AbstractRiverComponent implements River {
                         } else {
                             logger.debug("Mapping already exists for [{}]/[{}], skipping...", indexName, typeName);
                         }
+                    } else if (IngestMapping.PROFILE.equals(mappingProfile)) {
+                        putRawIngestMapping();
                     }
                 }
 
-                // Creating bulk processor
-                logger.debug("creating bulk processor [{}]", indexName);
-                bulkProcessor = BulkProcessor.builder(client, new BulkProcessor.Listener() {
-                    @Override
-                    public void beforeBulk(long executionId, BulkRequest request) {
-                        logger.debug("Going to execute new bulk composed of {} actions", request.numberOfActions());
-                    }
+                if (router != null && riverStatus != RiverStatus.STOPPED && riverStatus != RiverStatus.STOPPING) {
+                    createRoutedIndices();
+                }
 
-                    @Override
-                    public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
-                        logger.debug("Executed bulk composed of {} actions", request.numberOfActions());
-                        if (response.hasFailures()) {
-                            logger.warn("There was failures while executing bulk", response.buildFailureMessage());
-                            if (logger.isDebugEnabled()) {
-                                for (BulkItemResponse item : response.getItems()) {
-                                    if (item.isFailed()) {
-                                        logger.debug("Error for {}/{}/{} for {} operation: {}", item.getIndex(),
-                                                item.getType(), item.getId(), item.getOpType(), item.getFailureMessage());
-                                    }
-                                }
-                            }
-                        }
-                    }
+                if (userProfiles != null && riverStatus != RiverStatus.STOPPED && riverStatus != RiverStatus.STOPPING) {
+                    createUserProfilesIndex();
+                }
 
-                    @Override
-                    public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
-                        logger.warn("Error executing bulk", failure);
+                if (streamShards > 1 && filterQuery != null) {
+                    if (riverStatus != RiverStatus.STOPPED && riverStatus != RiverStatus.STOPPING) {
+                        startShardCoordinator();
                     }
-                })
-                        .setBulkActions(bulkSize)
-                        .setConcurrentRequests(maxConcurrentBulk)
-                        .setFlushInterval(bulkFlushInterval)
-                    .build();
+                    return;
+                }
 
-                logger.debug("Bulk processor created with bulkSize [{}], bulkFlushInterval [{}]", bulkSize, bulkFlushInterval);
-                if (riverStatus != RiverStatus.STOPPED && riverStatus != RiverStatus.STOPPING) {
-                    startTwitterStream();
-                    riverStatus = RiverStatus.RUNNING;
+                if (ownership != null) {
+                    // Everything is ready, we may only have to wait for the owner to go away
+                    if (syntheticSettings == null) {
+                        credentials();
+                    }
+                    waitForOwnership();
+                    return;
                 }
+                startIndexing();
             }
         });
     }
 
-    private void reconnect() {
-        if (riverStatus == RiverStatus.STOPPING || riverStatus == RiverStatus.STOPPED ) {
-            logger.debug("can not reconnect twitter on a closed river");
+    /**
+     * Creates the bulk pipeline and the scheduled tasks, then connects to twitter
+     */
+    private void startIndexing() {
+        BulkLanes.Listener bulkListener = new BulkLanes.Listener() {
+            @Override
+            public void onRequestSubmitted(ActionRequest request) {
+                latency.onSubmitted(request);
+            }
+
+            @Override
+            public void onRequestDone(ActionRequest request, boolean failed) {
+                if (memoryBudget != null) {
+                    memoryBudget.release(request);
+                }
+                IngestLatency.Timings timings = IngestLatency.timings(request);
+                if (timings != null && !failed) {
+                    checkpoint.update(timings.statusId(), timings.createdAt());
+                    latency.onDone(request);
+                    BulkLoadTuner tuner = bulkLoad;
+                    if (tuner != null && timings.submittedAt() >= 0) {
+                        tuner.onBulkDone(System.currentTimeMillis() - timings.submittedAt());
+                    }
+                }
+            }
+        };
+        BulkIndexer indexer;
+        if (sharedIngest) {
+            logger.debug("using node shared ingestion [{}]", indexName);
+            indexer = ingestService.register(riverName, bulkListener);
+        } else {
+            // Creating bulk lanes
+            logger.debug("creating bulk lanes [{}]", indexName);
+            indexer = new BulkLanes(client, logger,
+                    new BulkLanes.LaneSettings(bulkSize, maxConcurrentBulk, bulkFlushInterval), deleteLane, updateLane,
+                    bulkListener, bulkStripes);
+            logger.debug("Bulk lanes created with bulkSize [{}], bulkFlushInterval [{}], stripes [{}]", bulkSize,
+                    bulkFlushInterval, bulkStripes);
+        }
+        try {
+            memoryBudget = new MemoryBudget(logger, indexer, breakerService.getBreaker(CircuitBreaker.REQUEST),
+                    memorySettings, riverDataDirectory(), riverName.name() + ".spool");
+        } catch (Exception e) {
+            logger.warn("failed to create memory budget, disabling river...", e);
+            indexer.close();
+            riverStatus = RiverStatus.STOPPED;
             return;
         }
-
-        riverStatus = RiverStatus.STARTING;
-
-        if (stream != null) {
-            try {
-                logger.debug("cleanup stream");
-                stream.cleanUp();
-            } catch (Exception e) {
-                logger.debug("failed to cleanup after failure", e);
+        bulkIndexer = memoryBudget;
+        // Statuses may be spooled because of the memory policy, stall warnings, or by a previous run
+        spoolReplayer = threadPool.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                threadPool.executor(THREAD_POOL_NAME).execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        memoryBudget.replay();
+                    }
+                });
             }
-            try {
-                logger.debug("shutdown stream");
-                stream.shutdown();
-            } catch (Exception e) {
-                logger.debug("failed to shutdown after failure", e);
+        }, TimeValue.timeValueSeconds(1));
+
+        startBulkLoadTuner();
+        if (archiveSettings != null) {
+            startArchive();
+        }
+        if (sampler != null && sampler.automatic()) {
+            samplerTicker = threadPool.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    sampler.tick(System.currentTimeMillis());
+                }
+            }, TimeValue.timeValueSeconds(1));
+        }
+        if (serializerWorkers > 0) {
+            workers = new StatusWorkers(logger, threadPool.executor(THREAD_POOL_NAME), serializerWorkers, serializerQueueSize);
+            logger.debug("using [{}] serializer workers", serializerWorkers);
+        }
+        if (userLists != null && userListsRefreshInterval != null && userListsRefreshInterval.millis() > 0) {
+            userListsRefresher = threadPool.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    threadPool.executor(THREAD_POOL_NAME).execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            refreshUserLists();
+                        }
+                    });
+                }
+            }, userListsRefreshInterval);
+        }
+        if (queryMatcher != null) {
+            queryMatcher.addListener(new AlertWriter());
+            refreshQueries();
+            if (queryMatcher.refreshInterval().millis() > 0) {
+                queriesRefresher = threadPool.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        threadPool.executor(THREAD_POOL_NAME).execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                refreshQueries();
+                            }
+                        });
+                    }
+                }, queryMatcher.refreshInterval());
             }
         }
-
-        if (riverStatus == RiverStatus.STOPPING || riverStatus == RiverStatus.STOPPED ) {
-            logger.debug("can not reconnect twitter on a closed river");
-            return;
+        if (duplicates != null && duplicates.action() == NearDuplicateDetector.Action.COLLAPSE) {
+            duplicatesFlusher = threadPool.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    threadPool.executor(THREAD_POOL_NAME).execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            flushDuplicateCounters();
+                        }
+                    });
+                }
+            }, duplicates.flushInterval());
+        }
+        if (checkpointInterval.millis() > 0) {
+            loadCheckpoint();
+            checkpointWriter = threadPool.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    writeCheckpoint();
+                }
+            }, checkpointInterval);
+        }
+        ingestService.registerStats(riverName, stats);
+        if (liveTail != null) {
+            ingestService.registerTail(riverName, liveTail);
+        }
+        if (reindexer != null) {
+            ingestService.registerReindexer(riverName, reindexer);
+        }
+        if (statsInterval.millis() > 0) {
+            statsReporter = threadPool.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    reportStats();
+                }
+            }, statsInterval);
         }
 
-        try {
+        if (riverStatus != RiverStatus.STOPPED && riverStatus != RiverStatus.STOPPING) {
+            // We may have been stopped for a while, let's fill the gap
+            firehoseBackfill = true;
             startTwitterStream();
             riverStatus = RiverStatus.RUNNING;
-        } catch (Exception e) {
-            if (riverStatus == RiverStatus.STOPPING || riverStatus == RiverStatus.STOPPED ) {
-                logger.debug("river is closing. we won't reconnect.");
-                close();
-                return;
+            backfill();
+        }
+    }
+
+    /**
+     * Takes the river lease if nobody holds it. Otherwise waits, as a warm standby, for the owner to stop renewing it.
+     */
+    private void waitForOwnership() {
+        if (riverStatus == RiverStatus.STOPPED || riverStatus == RiverStatus.STOPPING) {
+            return;
+        }
+        if (!ownership.tryAcquire()) {
+            if (riverStatus != RiverStatus.STANDBY) {
+                logger.info("river is owned by node [{}], waiting as standby", ownership.ownerNode());
+                riverStatus = RiverStatus.STANDBY;
             }
-            // TODO, we can update the status of the river to RECONNECT
-            logger.warn("failed to connect after failure, throttling", e);
-            threadPool.schedule(retryAfter, ThreadPool.Names.GENERIC, new Runnable() {
+            ownershipTask = threadPool.schedule(ownership.heartbeatInterval(), THREAD_POOL_NAME, new Runnable() {
                 @Override
                 public void run() {
-                    reconnect();
+                    waitForOwnership();
                 }
             });
+            return;
         }
+        logger.info("river lease acquired");
+        ownershipTask = threadPool.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                threadPool.executor(THREAD_POOL_NAME).execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        renewOwnership();
+                    }
+                });
+            }
+        }, ownership.heartbeatInterval());
+        // The checkpoint is read now, so we start where the previous owner stopped
+        riverStatus = RiverStatus.STARTING;
+        startIndexing();
     }
 
-    @Override
-    public void close() {
-        riverStatus = RiverStatus.STOPPING;
-
-        logger.info("closing twitter stream river");
-
-        if (bulkProcessor != null) {
-            bulkProcessor.close();
+    private void renewOwnership() {
+        if (riverStatus == RiverStatus.STOPPED || riverStatus == RiverStatus.STOPPING) {
+            return;
         }
-
-        if (stream != null) {
-            // No need to call stream.cleanUp():
-            // - since it is done by the implementation of shutdown()
-            // - it will lead to a thread leak (see TwitterStreamImpl.cleanUp() and TwitterStreamImpl.shutdown() )
-            stream.shutdown();
+        if (!ownership.tryAcquire()) {
+            logger.warn("river lease lost to node [{}], closing", ownership.ownerNode());
+            close();
+            return;
         }
+        ownership.checkStandby(settings.settings());
+    }
 
-        riverStatus = RiverStatus.STOPPED;
+    /**
+     * True while waiting for the owner of the river to go away
+     */
+    boolean standby() {
+        return riverStatus == RiverStatus.STANDBY;
     }
 
-    private class StatusHandler extends StatusAdapter {
+    boolean stopped() {
+        return riverStatus == RiverStatus.STOPPED;
+    }
 
-        @Override
-        public void onStatus(Status status) {
-            if (riverStatus != RiverStatus.STOPPED && riverStatus != RiverStatus.STOPPING) {
-                try {
-                    // #24: We want to ignore retweets (default to false) https://github.com/elasticsearch/elasticsearch-river-twitter/issues/24
-                    if (status.isRetweet() && ignoreRetweet) {
-                        if (logger.isTraceEnabled()) {
-                            logger.trace("ignoring status cause retweet {} : {}", status.getUser().getName(), status.getText());
-                        }
-                    } else {
-                        if (logger.isTraceEnabled()) {
-                            logger.trace("status {} : {}", status.getUser().getName(), status.getText());
+    /**
+     * Splits the filter in shards run by the nodes of the cluster. This node opens no stream itself.
+     */
+    private void startShardCoordinator() {
+        shardCoordinator = new StreamShardCoordinator(logger, client, riverIndexName, riverName, settings.settings(),
+                indexName, streamShards, oauthPool, tracks, followIds, locations,
+                TimeValue.timeValueMillis(statsInterval.millis() * 3));
+        logger.info("splitting filter in [{}] stream shards", shardCoordinator.shards());
+        shardCoordinator.check();
+        shardChecker = threadPool.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                threadPool.executor(THREAD_POOL_NAME).execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        shardCoordinator.check();
+                    }
+                });
+            }
+        }, shardCheckInterval);
+        if (userLists != null && userListsRefreshInterval != null && userListsRefreshInterval.millis() > 0) {
+            userListsRefresher = threadPool.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    threadPool.executor(THREAD_POOL_NAME).execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            refreshUserLists();
                         }
+                    });
+                }
+            }, userListsRefreshInterval);
+        }
+        ingestService.registerStats(riverName, stats);
+        if (statsInterval.millis() > 0) {
+            statsReporter = threadPool.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    reportStats();
+                }
+            }, statsInterval);
+        }
+        riverStatus = RiverStatus.RUNNING;
+    }
 
-                        // If we want to index tweets as is, we don't need to convert it to JSon doc
-                        if (raw) {
-                            String rawJSON = TwitterObjectFactory.getRawJSON(status);
-                            if (riverStatus != RiverStatus.STOPPED && riverStatus != RiverStatus.STOPPING) {
-                                bulkProcessor.add(Requests.indexRequest(indexName).type(typeName).id(Long.toString(status.getId())).source(rawJSON));
-                            }
-                        } else {
-                            XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
-                            builder.field("text", status.getText());
-                            builder.field("created_at", status.getCreatedAt());
-                            builder.field("source", status.getSource());
-                            builder.field("truncated", status.isTruncated());
-                            builder.field("language", status.getLang());
-
-                            if (status.getUserMentionEntities() != null) {
-                                builder.startArray("mention");
-                                for (UserMentionEntity user : status.getUserMentionEntities()) {
-                                    builder.startObject();
-                                    builder.field("id", user.getId());
-                                    builder.field("name", user.getName());
-                                    builder.field("screen_name", user.getScreenName());
-                                    builder.field("start", user.getStart());
-                                    builder.field("end", user.getEnd());
-                                    builder.endObject();
-                                }
-                                builder.endArray();
-                            }
-
-                            if (status.getRetweetCount() != -1) {
-                                builder.field("retweet_count", status.getRetweetCount());
-                            }
+    /**
+     * Live statistics of the river, written to the {@code _stats} document and served by the REST API
+     */
+    private final ToXContent stats = new ToXContent() {
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.field("status", riverStatus.name());
+            builder.field("timestamp", System.currentTimeMillis());
+            if (syntheticStream != null) {
+                syntheticStream.toXContent(builder, params);
+            }
+            if (shardCoordinator != null) {
+                shardCoordinator.toXContent(builder, params);
+            }
+            if (ownership != null) {
+                ownership.toXContent(builder, params);
+            }
+            if (sampler != null) {
+                sampler.toXContent(builder, params);
+            }
+            stallMonitor.toXContent(builder, params);
+            if (workers != null) {
+                workers.toXContent(builder, params);
+            }
+            if (backfiller.enabled()) {
+                backfiller.toXContent(builder, params);
+            }
+            if (credentialPool != null) {
+                credentialPool.toXContent(builder, params);
+            }
+            if (queryMatcher != null) {
+                queryMatcher.toXContent(builder, params);
+            }
+            if (duplicates != null) {
+                duplicates.toXContent(builder, params);
+            }
+            if (urlExpander != null) {
+                urlExpander.toXContent(builder, params);
+            }
+            if (liveTail != null) {
+                liveTail.toXContent(builder, params);
+            }
+            if (bulkLoad != null) {
+                bulkLoad.toXContent(builder, params);
+            }
+            if (archive != null) {
+                archive.toXContent(builder, params);
+                reindexer.toXContent(builder, params);
+            }
+            if (router != null) {
+                router.toXContent(builder, params);
+            }
+            if (userProfiles != null) {
+                userProfiles.toXContent(builder, params);
+            }
+            latency.toXContent(builder, params);
+            if (bulkIndexer != null) {
+                bulkIndexer.toXContent(builder, params);
+            }
+            return builder;
+        }
+    };
 
-                            if (status.isRetweet() && status.getRetweetedStatus() != null) {
-                                builder.startObject("retweet");
-                                builder.field("id", status.getRetweetedStatus().getId());
-                                if (status.getRetweetedStatus().getUser() != null) {
-                                    builder.field("user_id", status.getRetweetedStatus().getUser().getId());
-                                    builder.field("user_screen_name", status.getRetweetedStatus().getUser().getScreenName());
-                                    if (status.getRetweetedStatus().getRetweetCount() != -1) {
-                                        builder.field("retweet_count", status.getRetweetedStatus().getRetweetCount());
-                                    }
-                                }
-                                builder.endObject();
-                            }
+    /**
+     * Write river statistics in the river index, under the {@code _stats} id.
+     */
+    private void reportStats() {
+        if (riverStatus == RiverStatus.STOPPING || riverStatus == RiverStatus.STOPPED) {
+            return;
+        }
+        try {
+            XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+            stats.toXContent(builder, XContentBuilder.EMPTY_PARAMS);
+            builder.endObject();
+            client.prepareIndex(riverIndexName, riverName.name(), "_stats").setSource(builder).execute(new ActionListener<IndexResponse>() {
+                @Override
+                public void onResponse(IndexResponse indexResponse) {
+                    logger.trace("river stats updated");
+                }
 
-                            if (status.getInReplyToStatusId() != -1) {
-                                builder.startObject("in_reply");
-                                builder.field("status", status.getInReplyToStatusId());
-                                if (status.getInReplyToUserId() != -1) {
-                                    builder.field("user_id", status.getInReplyToUserId());
-                                    builder.field("user_screen_name", status.getInReplyToScreenName());
-                                }
-                                builder.endObject();
-                            }
+                @Override
+                public void onFailure(Throwable e) {
+                    logger.debug("failed to update river stats", e);
+                }
+            });
+        } catch (Exception e) {
+            logger.debug("failed to build river stats", e);
+        }
+    }
 
-                            if (status.getHashtagEntities() != null) {
-                                builder.startArray("hashtag");
-                                for (HashtagEntity hashtag : status.getHashtagEntities()) {
-                                    builder.startObject();
-                                    builder.field("text", hashtag.getText());
-                                    builder.field("start", hashtag.getStart());
-                                    builder.field("end", hashtag.getEnd());
-                                    builder.endObject();
-                                }
-                                builder.endArray();
+    /**
+     * Puts the ingest mapping in an index template, so indices created later get it as well
+     */
+    private void putIngestTemplate() {
+        String templateName = "twitter_river_" + riverName.name();
+        try {
+            client.admin().indices().preparePutTemplate(templateName)
+                    .setTemplate(templatePattern)
+                    .addMapping(typeName, IngestMapping.mapping(typeName, raw))
+                    .get();
+            logger.debug("index template [{}] applied to [{}]", templateName, templatePattern);
+        } catch (Exception e) {
+            logger.warn("failed to put index template [{}]", e, templateName);
+        }
+    }
+
+    /**
+     * Raw documents are not mapped by the river, but an index which exists before the template must still get the
+     * twitter date format, or no raw document could be parsed
+     */
+    private void putRawIngestMapping() {
+        try {
+            if (client.admin().indices().prepareGetMappings(indexName).setTypes(typeName).get().getMappings().isEmpty()) {
+                client.admin().indices().preparePutMapping(indexName).setType(typeName)
+                        .setSource(IngestMapping.mapping(typeName, true)).get();
+                logger.debug("ingest mapping applied to raw documents of [{}]/[{}]", indexName, typeName);
+            }
+        } catch (Exception e) {
+            if (ExceptionsHelper.unwrapCause(e) instanceof IndexMissingException) {
+                // The template maps it when the first document creates the index
+                logger.debug("Index [{}] does not exist yet, the template will map it", indexName);
+            } else {
+                logger.warn("failed to apply ingest mapping to [{}]/[{}]", e, indexName, typeName);
+            }
+        }
+    }
+
+    private void createUserProfilesIndex() {
+        String usersIndex = userProfiles.indexName();
+        String usersType = userProfiles.typeName();
+        try {
+            logger.debug("Trying to create users index [{}]", usersIndex);
+            client.admin().indices().prepareCreate(usersIndex).addMapping(usersType, XContentFactory.jsonBuilder()
+                    .startObject().startObject(usersType).startObject("properties")
+                    .startObject("screen_name").field("type", "string").field("index", "not_analyzed").endObject()
+                    .startObject("profile_hash").field("type", "long").field("index", "no").endObject()
+                    .endObject().endObject().endObject()).execute().actionGet();
+            logger.debug("users index created [{}]", usersIndex);
+        } catch (Exception e) {
+            if (ExceptionsHelper.unwrapCause(e) instanceof IndexAlreadyExistsException) {
+                logger.debug("Users index [{}] already exists, skipping...", usersIndex);
+            } else {
+                // Profiles will be sent anyway and the index created with a dynamic mapping
+                logger.warn("failed to create users index [{}]", e, usersIndex);
+            }
+        }
+    }
+
+    private void loadCheckpoint() {
+        try {
+            GetResponse response = client.prepareGet(riverIndexName, riverName.name(), "_checkpoint").get();
+            if (response.isExists()) {
+                checkpoint.load(response.getSourceAsMap());
+                logger.debug("loaded checkpoint, last status [{}]", checkpoint.lastStatusId());
+            }
+        } catch (Exception e) {
+            logger.warn("failed to load checkpoint", e);
+        }
+    }
+
+    /**
+     * Write the last indexed status in the river index, under the {@code _checkpoint} id.
+     */
+    private void writeCheckpoint() {
+        if (!checkpoint.clearDirty()) {
+            return;
+        }
+        try {
+            XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+            checkpoint.toXContent(builder, XContentBuilder.EMPTY_PARAMS);
+            builder.field("timestamp", System.currentTimeMillis());
+            builder.endObject();
+            client.prepareIndex(riverIndexName, riverName.name(), "_checkpoint").setSource(builder).execute(new ActionListener<IndexResponse>() {
+                @Override
+                public void onResponse(IndexResponse indexResponse) {
+                    logger.trace("checkpoint updated");
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    logger.debug("failed to update checkpoint", e);
+                }
+            });
+        } catch (Exception e) {
+            logger.debug("failed to build checkpoint", e);
+        }
+    }
+
+    /**
+     * Mapping of the statuses, depending on the mapping profile
+     */
+    private String defaultMapping(String type) throws IOException {
+        if (IngestMapping.PROFILE.equals(mappingProfile)) {
+            return IngestMapping.mapping(type, raw).string();
+        }
+        return XContentFactory.jsonBuilder().startObject().startObject(type).startObject("properties")
+                .startObject("created_at").field("type", "date").endObject()
+                .startObject("location").field("type", "geo_point").endObject()
+                .startObject("language").field("type", "string").field("index", "not_analyzed").endObject()
+                .startObject("user").startObject("properties").startObject("screen_name").field("type", "string").field("index", "not_analyzed").endObject().endObject().endObject()
+                .startObject("mention").startObject("properties").startObject("screen_name").field("type", "string").field("index", "not_analyzed").endObject().endObject().endObject()
+                .startObject("in_reply").startObject("properties").startObject("user_screen_name").field("type", "string").field("index", "not_analyzed").endObject().endObject().endObject()
+                .startObject("retweet").startObject("properties").startObject("user_screen_name").field("type", "string").field("index", "not_analyzed").endObject().endObject().endObject()
+                .startObject("hashtags").field("type", "string").field("index", "not_analyzed").field("doc_values", true).endObject()
+                .startObject("mention_ids").field("type", "long").field("doc_values", true).endObject()
+                .startObject("urls").field("type", "string").field("index", "not_analyzed").field("doc_values", true).endObject()
+                .startObject("resolved_urls").field("type", "string").field("index", "not_analyzed").field("doc_values", true).endObject()
+                .endObject().endObject().endObject().string();
+    }
+
+    /**
+     * Checks the load of the river indices, which may change their settings, so it runs on the river thread pool.
+     * Settings relaxed by a previous run are put back first, even if {@code bulk_load} was disabled since.
+     */
+    private void startBulkLoadTuner() {
+        List<String> indices = new ArrayList<String>();
+        indices.add(indexName);
+        if (router != null) {
+            for (IndexRouter.Route route : router.routes()) {
+                indices.add(route.index());
+            }
+        }
+        BulkLoadTuner tuner;
+        try {
+            tuner = new BulkLoadTuner(logger, client, riverIndexName, riverName.name(), indices,
+                    bulkLoadSettings == null ? Collections.<String, Object>emptyMap() : bulkLoadSettings);
+        } catch (IllegalArgumentException e) {
+            logger.warn("invalid bulk_load settings, index settings will not be tuned", e);
+            return;
+        }
+        tuner.recover();
+        if (bulkLoadSettings == null) {
+            tuner.close();
+            return;
+        }
+        bulkLoad = tuner;
+        bulkLoadChecker = threadPool.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                threadPool.executor(THREAD_POOL_NAME).execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        bulkLoad.check(memoryBudget.usedBytes(), System.currentTimeMillis());
+                    }
+                });
+            }
+        }, bulkLoad.checkInterval());
+    }
+
+    /**
+     * Opens a new archive segment, and writes the current block every {@code flush_interval} so recent statuses
+     * can be reindexed too
+     */
+    private void startArchive() {
+        File dataDirectory = riverDataDirectory();
+        File directory = dataDirectory == null ? null : new File(dataDirectory, riverName.name() + "_archive");
+        try {
+            archive = new StreamArchive(logger, directory, riverName.name(), archiveSettings);
+        } catch (Exception e) {
+            logger.warn("failed to open archive [{}], statuses will not be archived", e, directory);
+            return;
+        }
+        logger.info("archiving raw statuses to [{}]", archive.directory());
+        // Reindex workers block on disk reads and bulks for as long as a job runs. They use the generic pool, which
+        // grows as needed, so a reindex never holds the threads the river needs to follow the stream.
+        reindexer = new ArchiveReindexer(logger, client, threadPool.executor(ThreadPool.Names.GENERIC), archive,
+                new ArchiveReindexer.Pipeline() {
+                    @Override
+                    public void prepare(String index, String type) throws IOException {
+                        prepareReindexTarget(index, type);
+                    }
+
+                    @Override
+                    public IndexRequest build(Status status, String rawJSON, String index, String type) throws IOException {
+                        return reindexRequest(status, rawJSON, index, type);
+                    }
+                }, typeName);
+        TimeValue flushInterval = XContentMapValues.nodeTimeValue(archiveSettings.get("flush_interval"), TimeValue.timeValueSeconds(5));
+        archiveFlusher = threadPool.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                threadPool.executor(THREAD_POOL_NAME).execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        archive.flush();
+                    }
+                });
+            }
+        }, flushInterval);
+    }
+
+    /**
+     * Directory holding the local files of the rivers under the first data path of the node, null if the node
+     * has no data path
+     */
+    private File riverDataDirectory() {
+        if (!nodeEnvironment.hasNodeFile()) {
+            return null;
+        }
+        return nodeEnvironment.nodeDataPaths()[0].resolve("twitter_river").toFile();
+    }
+
+    /**
+     * Creates the target index of a reindex with the current mapping, unless it exists
+     */
+    private void prepareReindexTarget(String index, String type) throws IOException {
+        try {
+            client.admin().indices().prepareCreate(index).execute().actionGet();
+            logger.debug("reindex target created [{}]", index);
+        } catch (Exception e) {
+            if (!(ExceptionsHelper.unwrapCause(e) instanceof IndexAlreadyExistsException)) {
+                throw e;
+            }
+        }
+        if (!raw && client.admin().indices().prepareGetMappings(index).setTypes(type).get().getMappings().isEmpty()) {
+            client.admin().indices().preparePutMapping(index).setType(type).setSource(defaultMapping(type)).get();
+        }
+    }
+
+    /**
+     * Builds an archived status as the river would build it now. Sampling, routing, near duplicates, alerts and
+     * user profiles only make sense for the live stream, so they are left out.
+     */
+    private IndexRequest reindexRequest(Status status, String rawJSON, String index, String type) throws IOException {
+        if (status.isRetweet() && ignoreRetweet) {
+            return null;
+        }
+        IndexRequest request = Requests.indexRequest(index).type(type).id(Long.toString(status.getId()));
+        if (!raw) {
+            return request.source(statusDocument(status, null, null));
+        }
+        if (rawFilter != null) {
+            return request.source(rawFilter.filter(rawJSON, sourceType));
+        }
+        return request.source(rawJSON);
+    }
+
+    /**
+     * Creates the indices of the routing rules, with their settings and mappings
+     */
+    private void createRoutedIndices() {
+        Set<String> created = new HashSet<String>();
+        for (IndexRouter.Route route : router.routes()) {
+            if (!created.add(route.index() + '/' + route.type())) {
+                continue;
+            }
+            try {
+                CreateIndexRequestBuilder request = client.admin().indices().prepareCreate(route.index());
+                if (route.settings() != null) {
+                    request.setSettings(route.settings());
+                }
+                request.execute().actionGet();
+                logger.debug("routed index created [{}]", route.index());
+            } catch (Exception e) {
+                if (!(ExceptionsHelper.unwrapCause(e) instanceof IndexAlreadyExistsException)) {
+                    logger.warn("failed to create routed index [{}]", e, route.index());
+                    continue;
+                }
+            }
+            try {
+                if (client.admin().indices().prepareGetMappings(route.index()).setTypes(route.type()).get().getMappings().isEmpty()) {
+                    if (route.mapping() != null) {
+                        client.admin().indices().preparePutMapping(route.index()).setType(route.type()).setSource(route.mapping()).get();
+                    } else if (!raw) {
+                        client.admin().indices().preparePutMapping(route.index()).setType(route.type())
+                                .setSource(defaultMapping(route.type())).get();
+                    }
+                }
+            } catch (Exception e) {
+                logger.warn("failed to apply mapping [{}]/[{}]", e, route.index(), route.type());
+            }
+        }
+    }
+
+    /**
+     * Writes how many near duplicates were collapsed into each status
+     */
+    private void flushDuplicateCounters() {
+        BulkIndexer indexer = bulkIndexer;
+        if (indexer == null) {
+            return;
+        }
+        for (NearDuplicateDetector.Counter counter : duplicates.drainCounters()) {
+            try {
+                XContentBuilder builder = XContentFactory.contentBuilder(sourceType).startObject()
+                        .field("duplicates", counter.duplicates)
+                        .endObject();
+                // Held back by the bulk lanes until the status itself is indexed
+                indexer.update(new UpdateRequest(counter.index, counter.type, Long.toString(counter.statusId)).doc(builder));
+            } catch (IOException e) {
+                logger.warn("failed to build duplicates counter of status [{}]", e, counter.statusId);
+            }
+        }
+    }
+
+    /**
+     * Reads the saved queries again from the queries index
+     */
+    private void refreshQueries() {
+        Map<String, String> indexed = new HashMap<String, String>();
+        try {
+            SearchResponse response = client.prepareSearch(queryMatcher.queriesIndex()).setTypes(queryMatcher.queriesType())
+                    .setSize(MAX_SAVED_QUERIES).get();
+            for (SearchHit hit : response.getHits()) {
+                Object query = hit.getSource() == null ? null : hit.getSource().get("query");
+                if (query != null) {
+                    indexed.put(hit.getId(), query.toString());
+                }
+            }
+        } catch (IndexMissingException e) {
+            // No saved query yet
+        } catch (Exception e) {
+            logger.warn("failed to read saved queries from [{}]", e, queryMatcher.queriesIndex());
+            return;
+        }
+        queryMatcher.setQueries(indexed);
+    }
+
+    /**
+     * Writes a document in the alerts index for every query a status matched
+     */
+    private class AlertWriter implements QueryMatcher.Listener {
+        @Override
+        public void onMatch(Status status, List<String> queries) {
+            BulkIndexer indexer = bulkIndexer;
+            if (indexer == null) {
+                return;
+            }
+            for (String query : queries) {
+                try {
+                    XContentBuilder builder = XContentFactory.contentBuilder(sourceType).startObject();
+                    builder.field("query", query);
+                    builder.field("status_id", status.getId());
+                    builder.field("text", status.getText());
+                    if (status.getUser() != null) {
+                        builder.field("user_screen_name", status.getUser().getScreenName());
+                    }
+                    builder.field("created_at", status.getCreatedAt());
+                    builder.field("matched_at", new Date());
+                    builder.endObject();
+                    // Upserts are never sampled nor spooled, and a status indexed twice gives a single alert
+                    indexer.update(new UpdateRequest(queryMatcher.indexName(), queryMatcher.typeName(), status.getId() + "_" + query)
+                            .doc(builder).docAsUpsert(true));
+                } catch (IOException e) {
+                    logger.warn("failed to build alert for status [{}]", e, status.getId());
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the final urls to an indexed status
+     */
+    private class ExpandedUrlWriter implements UrlExpander.Sink {
+        @Override
+        public void onExpanded(long statusId, String index, String type, List<String> urls) {
+            BulkIndexer indexer = bulkIndexer;
+            if (indexer == null) {
+                return;
+            }
+            try {
+                XContentBuilder builder = XContentFactory.contentBuilder(sourceType).startObject();
+                builder.field("resolved_urls", urls);
+                builder.endObject();
+                // Held back by the bulk lanes until the status itself is indexed
+                indexer.update(new UpdateRequest(index, type, Long.toString(statusId)).doc(builder));
+            } catch (IOException e) {
+                logger.warn("failed to build resolved urls of status [{}]", e, statusId);
+            }
+        }
+    }
+
+    /**
+     * Fetch statuses we may have missed since the last checkpoint
+     */
+    private void backfill() {
+        long sinceId = checkpoint.lastStatusId();
+        if (sinceId <= 0 || !backfiller.canBackfill(checkpoint.lastCreatedAt())) {
+            return;
+        }
+        if (streamType.equals("user")) {
+            backfiller.backfillHome(credentials(), sinceId);
+        } else if (streamType.equals("filter")) {
+            if (followIds != null && followIds.length > 0) {
+                backfiller.backfillUsers(credentials(), followIds, sinceId);
+            }
+            if (tracks != null && tracks.length > 0) {
+                backfiller.backfillSearch(credentials(), tracks, sinceId);
+            }
+        } else if (!streamType.equals("firehose")) {
+            logger.debug("no backfill for {} stream", streamType);
+        }
+    }
+
+    /**
+     * Tokens used for REST calls: the one of the river, then the ones of {@code oauth.pool}
+     */
+    private synchronized CredentialPool credentials() {
+        if (credentialPool == null) {
+            List<Twitter> clients = new ArrayList<Twitter>();
+            clients.add(new TwitterFactory(buildTwitterConfiguration()).getInstance());
+            for (Map<String, Object> token : oauthPool) {
+                // Tokens usually belong to the same application
+                clients.add(new TwitterFactory(buildTwitterConfiguration(
+                        XContentMapValues.nodeStringValue(token.get("consumer_key"), oauthConsumerKey),
+                        XContentMapValues.nodeStringValue(token.get("consumer_secret"), oauthConsumerSecret),
+                        XContentMapValues.nodeStringValue(token.get("access_token"), null),
+                        XContentMapValues.nodeStringValue(token.get("access_token_secret"), null))).getInstance());
+            }
+            if (clients.size() > 1) {
+                logger.info("using [{}] tokens for REST calls", clients.size());
+            }
+            credentialPool = new CredentialPool(logger, clients);
+        }
+        return credentialPool;
+    }
+
+    /**
+     * Reads {@code river.twitter.oauth.pool.<n>.*} node settings
+     */
+    private static List<Map<String, Object>> nodeOAuthPool(Settings settings) {
+        List<Map<String, Object>> pool = new ArrayList<Map<String, Object>>();
+        for (Settings token : settings.getGroups("river.twitter.oauth.pool").values()) {
+            pool.add(new HashMap<String, Object>(token.getAsMap()));
+        }
+        return pool;
+    }
+
+    private void reconnect() {
+        if (riverStatus == RiverStatus.STOPPING || riverStatus == RiverStatus.STOPPED ) {
+            logger.debug("can not reconnect twitter on a closed river");
+            return;
+        }
+
+        riverStatus = RiverStatus.STARTING;
+
+        if (stream != null) {
+            try {
+                logger.debug("cleanup stream");
+                stream.cleanUp();
+            } catch (Exception e) {
+                logger.debug("failed to cleanup after failure", e);
+            }
+            try {
+                logger.debug("shutdown stream");
+                stream.shutdown();
+            } catch (Exception e) {
+                logger.debug("failed to shutdown after failure", e);
+            }
+        }
+
+        if (riverStatus == RiverStatus.STOPPING || riverStatus == RiverStatus.STOPPED ) {
+            logger.debug("can not reconnect twitter on a closed river");
+            return;
+        }
+
+        try {
+            firehoseBackfill = true;
+            startTwitterStream();
+            riverStatus = RiverStatus.RUNNING;
+            backfill();
+        } catch (Exception e) {
+            if (riverStatus == RiverStatus.STOPPING || riverStatus == RiverStatus.STOPPED ) {
+                logger.debug("river is closing. we won't reconnect.");
+                close();
+                return;
+            }
+            // TODO, we can update the status of the river to RECONNECT
+            logger.warn("failed to connect after failure, throttling", e);
+            threadPool.schedule(retryAfter, THREAD_POOL_NAME, new Runnable() {
+                @Override
+                public void run() {
+                    reconnect();
+                }
+            });
+        }
+    }
+
+    @Override
+    public void close() {
+        riverStatus = RiverStatus.STOPPING;
+
+        logger.info("closing twitter stream river");
+
+        if (samplerTicker != null) {
+            samplerTicker.cancel(false);
+        }
+        if (bulkLoadChecker != null) {
+            bulkLoadChecker.cancel(false);
+        }
+        if (archiveFlusher != null) {
+            archiveFlusher.cancel(false);
+        }
+        if (reindexer != null) {
+            ingestService.unregisterReindexer(riverName, reindexer);
+            reindexer.cancel();
+        }
+        if (statsReporter != null) {
+            statsReporter.cancel(false);
+        }
+        ingestService.unregisterStats(riverName, stats);
+        if (liveTail != null) {
+            ingestService.unregisterTail(riverName, liveTail);
+            liveTail.close();
+        }
+        if (userListsRefresher != null) {
+            userListsRefresher.cancel(false);
+        }
+        if (spoolReplayer != null) {
+            spoolReplayer.cancel(false);
+        }
+        if (queriesRefresher != null) {
+            queriesRefresher.cancel(false);
+        }
+        if (duplicatesFlusher != null) {
+            duplicatesFlusher.cancel(false);
+            flushDuplicateCounters();
+        }
+        if (shardChecker != null) {
+            shardChecker.cancel(false);
+            removeStreamShards();
+        }
+        if (ownershipTask != null) {
+            ownershipTask.cancel(false);
+        }
+        backfiller.stop();
+        if (urlExpander != null) {
+            urlExpander.stop();
+        }
+        if (credentialPool != null) {
+            credentialPool.close();
+        }
+
+        if (bulkIndexer != null) {
+            bulkIndexer.close();
+        }
+        if (bulkLoad != null) {
+            // Pending statuses have been flushed, the indices can go back to their settings
+            bulkLoad.close();
+        }
+        if (checkpointWriter != null) {
+            checkpointWriter.cancel(false);
+            // Last statuses have been flushed, let's keep track of them
+            writeCheckpoint();
+        }
+
+        if (syntheticStream != null) {
+            syntheticStream.stop();
+        }
+
+        if (stream != null) {
+            // No need to call stream.cleanUp():
+            // - since it is done by the implementation of shutdown()
+            // - it will lead to a thread leak (see TwitterStreamImpl.cleanUp() and TwitterStreamImpl.shutdown() )
+            stream.shutdown();
+        }
+
+        if (archive != null) {
+            // The stream is closed, the last block can be written
+            archive.close();
+        }
+
+        if (ownership != null) {
+            // The standby takes over at its next heartbeat
+            ownership.release();
+        }
+
+        riverStatus = RiverStatus.STOPPED;
+    }
+
+    /**
+     * Stops the stream shards if the river was removed. When the river only moves to another node, the
+     * shards keep running and the new coordinator takes them over.
+     */
+    private void removeStreamShards() {
+        try {
+            if (!client.prepareGet(riverIndexName, riverName.name(), "_meta").get().isExists()) {
+                logger.info("river removed, stopping its stream shards");
+                shardCoordinator.removeShards();
+            }
+        } catch (Exception e) {
+            logger.debug("failed to check if river [{}] still exists", e, riverName.name());
+        }
+    }
+
+    /**
+     * Build the document of a status and send it to the bulk indexer
+     * @param rawJSON the status as sent by twitter, only needed in raw mode
+     * @param receivedAt when the status was read from the stream, -1 if it comes from the REST API
+     */
+    private void processStatus(Status status, String rawJSON, long receivedAt) {
+        if (riverStatus != RiverStatus.STOPPED && riverStatus != RiverStatus.STOPPING) {
+            try {
+                // #24: We want to ignore retweets (default to false) https://github.com/elasticsearch/elasticsearch-river-twitter/issues/24
+                if (status.isRetweet() && ignoreRetweet) {
+                    if (logger.isTraceEnabled()) {
+                        logger.trace("ignoring status cause retweet {} : {}", status.getUser().getName(), status.getText());
+                    }
+                } else {
+                    if (sampler != null && !sampler.acceptStatus(status.getId())) {
+                        if (logger.isTraceEnabled()) {
+                            logger.trace("sampling out status [{}]", status.getId());
+                        }
+                        return;
+                    }
+                    if (!stallMonitor.acceptStatus(status.getId(), System.currentTimeMillis())) {
+                        if (logger.isTraceEnabled()) {
+                            logger.trace("stalling, sampling out status [{}]", status.getId());
+                        }
+                        return;
+                    }
+                    if (logger.isTraceEnabled()) {
+                        logger.trace("status {} : {}", status.getUser().getName(), status.getText());
+                    }
+                    String targetIndex = indexName;
+                    String targetType = typeName;
+                    if (router != null) {
+                        IndexRouter.Route route = router.route(status);
+                        if (route != null) {
+                            targetIndex = route.index();
+                            targetType = route.type();
+                        }
+                    }
+                    // Retweets share the text of the original status, but they are not spam
+                    if (duplicates != null && !status.isRetweet() && duplicates.isDuplicate(status.getId(), targetIndex,
+                            targetType, status.getText(), System.currentTimeMillis())) {
+                        if (logger.isTraceEnabled()) {
+                            logger.trace("near duplicate status [{}] : {}", status.getId(), status.getText());
+                        }
+                        return;
+                    }
+                    if (queryMatcher != null) {
+                        queryMatcher.match(status);
+                    }
+
+                    // If we want to index tweets as is, we don't need to convert it to JSon doc
+                    if (raw) {
+                        if (riverStatus != RiverStatus.STOPPED && riverStatus != RiverStatus.STOPPING) {
+                            if (userProfiles != null) {
+                                userProfiles.process(status.getUser(), bulkIndexer);
                             }
-                            if (status.getContributors() != null && status.getContributors().length > 0) {
-                                builder.array("contributor", status.getContributors());
+                            IndexRequest request = Requests.indexRequest(targetIndex).type(targetType).id(Long.toString(status.getId()));
+                            if (rawFilter != null) {
+                                request.source(rawFilter.filter(rawJSON, sourceType));
+                            } else {
+                                request.source(rawJSON);
                             }
-                            if (status.getGeoLocation() != null) {
-                                if (geoAsArray) {
-                                    builder.startArray("location");
-                                    builder.value(status.getGeoLocation().getLongitude());
-                                    builder.value(status.getGeoLocation().getLatitude());
-                                    builder.endArray();
-                                } else {
-                                    builder.startObject("location");
-                                    builder.field("lat", status.getGeoLocation().getLatitude());
-                                    builder.field("lon", status.getGeoLocation().getLongitude());
-                                    builder.endObject();
+                            submitStatus(status, request, receivedAt);
+                            if (urlExpander != null) {
+                                List<String> urls = UrlExpander.urls(status);
+                                if (!urls.isEmpty()) {
+                                    urlExpander.expand(status.getId(), targetIndex, targetType, urls);
                                 }
                             }
-                            if (status.getPlace() != null) {
-                                builder.startObject("place");
-                                builder.field("id", status.getPlace().getId());
-                                builder.field("name", status.getPlace().getName());
-                                builder.field("type", status.getPlace().getPlaceType());
-                                builder.field("full_name", status.getPlace().getFullName());
-                                builder.field("street_address", status.getPlace().getStreetAddress());
-                                builder.field("country", status.getPlace().getCountry());
-                                builder.field("country_code", status.getPlace().getCountryCode());
-                                builder.field("url", status.getPlace().getURL());
-                                builder.endObject();
-                            }
-                            if (status.getURLEntities() != null) {
-                                builder.startArray("link");
-                                for (URLEntity url : status.getURLEntities()) {
-                                    if (url != null) {
-                                        builder.startObject();
-                                        if (url.getURL() != null) {
-                                            builder.field("url", url.getURL());
-                                        }
-                                        if (url.getDisplayURL() != null) {
-                                            builder.field("display_url", url.getDisplayURL());
-                                        }
-                                        if (url.getExpandedURL() != null) {
-                                            builder.field("expand_url", url.getExpandedURL());
-                                        }
-                                        builder.field("start", url.getStart());
-                                        builder.field("end", url.getEnd());
-                                        builder.endObject();
-                                    }
-                                }
-                                builder.endArray();
+                        }
+                    } else {
+                        List<String> pendingUrls = new ArrayList<String>();
+                        XContentBuilder builder = statusDocument(status, pendingUrls, bulkIndexer);
+                        if (riverStatus != RiverStatus.STOPPED && riverStatus != RiverStatus.STOPPING) {
+                            submitStatus(status, Requests.indexRequest(targetIndex).type(targetType).id(Long.toString(status.getId())).source(builder),
+                                    receivedAt);
+                            if (!pendingUrls.isEmpty()) {
+                                // The final urls come later, as a partial update
+                                urlExpander.expand(status.getId(), targetIndex, targetType, pendingUrls);
                             }
+                        }
+                    }
+                }
+
+            } catch (Exception e) {
+                logger.warn("failed to construct index request", e);
+            }
+        } else {
+            logger.debug("river is closing. ignoring tweet [{}]", status.getId());
+        }
+    }
 
-                            builder.startObject("user");
-                            builder.field("id", status.getUser().getId());
-                            builder.field("name", status.getUser().getName());
-                            builder.field("screen_name", status.getUser().getScreenName());
-                            builder.field("location", status.getUser().getLocation());
-                            builder.field("description", status.getUser().getDescription());
-                            builder.field("profile_image_url", status.getUser().getProfileImageURL());
-                            builder.field("profile_image_url_https", status.getUser().getProfileImageURLHttps());
+    /**
+     * Builds the document of a status, when not in raw mode
+     * @param pendingUrls receives the urls which are not resolved yet, null to ignore them
+     * @param profiles where user profiles are sent, null to skip them
+     */
+    private XContentBuilder statusDocument(Status status, List<String> pendingUrls, BulkIndexer profiles) throws IOException {
+        XContentBuilder builder = XContentFactory.contentBuilder(sourceType).startObject();
+        builder.field("text", status.getText());
+        if (datesAsMillis) {
+            // Saves formatting the date here and parsing it again on the shards
+            builder.field("created_at", status.getCreatedAt().getTime());
+        } else {
+            builder.field("created_at", status.getCreatedAt());
+        }
+        builder.field("source", status.getSource());
+        builder.field("truncated", status.isTruncated());
+        builder.field("language", status.getLang());
+        if (sampler != null) {
+            builder.field("sample_ratio", sampler.ratio());
+        }
 
-                            builder.endObject();
+        if (entityObjects && status.getUserMentionEntities() != null) {
+            builder.startArray("mention");
+            for (UserMentionEntity user : status.getUserMentionEntities()) {
+                builder.startObject();
+                builder.field("id", user.getId());
+                builder.field("name", user.getName());
+                builder.field("screen_name", user.getScreenName());
+                builder.field("start", user.getStart());
+                builder.field("end", user.getEnd());
+                builder.endObject();
+            }
+            builder.endArray();
+        }
 
-                            builder.endObject();
-                            if (riverStatus != RiverStatus.STOPPED && riverStatus != RiverStatus.STOPPING) {
-                                bulkProcessor.add(Requests.indexRequest(indexName).type(typeName).id(Long.toString(status.getId())).source(builder));
-                            }
+        if (status.getRetweetCount() != -1) {
+            builder.field("retweet_count", status.getRetweetCount());
+        }
+
+        if (status.isRetweet() && status.getRetweetedStatus() != null) {
+            builder.startObject("retweet");
+            builder.field("id", status.getRetweetedStatus().getId());
+            if (status.getRetweetedStatus().getUser() != null) {
+                builder.field("user_id", status.getRetweetedStatus().getUser().getId());
+                builder.field("user_screen_name", status.getRetweetedStatus().getUser().getScreenName());
+                if (status.getRetweetedStatus().getRetweetCount() != -1) {
+                    builder.field("retweet_count", status.getRetweetedStatus().getRetweetCount());
+                }
+            }
+            builder.endObject();
+        }
+
+        if (status.getInReplyToStatusId() != -1) {
+            builder.startObject("in_reply");
+            builder.field("status", status.getInReplyToStatusId());
+            if (status.getInReplyToUserId() != -1) {
+                builder.field("user_id", status.getInReplyToUserId());
+                builder.field("user_screen_name", status.getInReplyToScreenName());
+            }
+            builder.endObject();
+        }
+
+        if (entityObjects && status.getHashtagEntities() != null) {
+            builder.startArray("hashtag");
+            for (HashtagEntity hashtag : status.getHashtagEntities()) {
+                builder.startObject();
+                builder.field("text", hashtag.getText());
+                builder.field("start", hashtag.getStart());
+                builder.field("end", hashtag.getEnd());
+                builder.endObject();
+            }
+            builder.endArray();
+        }
+        if (status.getContributors() != null && status.getContributors().length > 0) {
+            builder.array("contributor", status.getContributors());
+        }
+        if (status.getGeoLocation() != null) {
+            if (geoAsArray) {
+                builder.startArray("location");
+                builder.value(status.getGeoLocation().getLongitude());
+                builder.value(status.getGeoLocation().getLatitude());
+                builder.endArray();
+            } else {
+                builder.startObject("location");
+                builder.field("lat", status.getGeoLocation().getLatitude());
+                builder.field("lon", status.getGeoLocation().getLongitude());
+                builder.endObject();
+            }
+        }
+        if (status.getPlace() != null) {
+            builder.startObject("place");
+            builder.field("id", status.getPlace().getId());
+            builder.field("name", status.getPlace().getName());
+            builder.field("type", status.getPlace().getPlaceType());
+            builder.field("full_name", status.getPlace().getFullName());
+            builder.field("street_address", status.getPlace().getStreetAddress());
+            builder.field("country", status.getPlace().getCountry());
+            builder.field("country_code", status.getPlace().getCountryCode());
+            builder.field("url", status.getPlace().getURL());
+            builder.endObject();
+        }
+        if (entityObjects && status.getURLEntities() != null) {
+            builder.startArray("link");
+            for (URLEntity url : status.getURLEntities()) {
+                if (url != null) {
+                    builder.startObject();
+                    if (url.getURL() != null) {
+                        builder.field("url", url.getURL());
+                    }
+                    if (url.getDisplayURL() != null) {
+                        builder.field("display_url", url.getDisplayURL());
+                    }
+                    if (url.getExpandedURL() != null) {
+                        builder.field("expand_url", url.getExpandedURL());
+                    }
+                    builder.field("start", url.getStart());
+                    builder.field("end", url.getEnd());
+                    builder.endObject();
+                }
+            }
+            builder.endArray();
+        }
+        if (flatEntities) {
+            writeFlatEntities(builder, status);
+        }
+        if (urlExpander != null) {
+            List<String> urls = UrlExpander.urls(status);
+            if (!urls.isEmpty()) {
+                List<String> resolvedUrls = urlExpander.cached(urls);
+                if (resolvedUrls != null) {
+                    builder.field("resolved_urls", resolvedUrls);
+                } else if (pendingUrls != null) {
+                    pendingUrls.addAll(urls);
+                }
+            }
+        }
+
+        builder.startObject("user");
+        builder.field("id", status.getUser().getId());
+        if (userProfiles != null) {
+            // The full profile lives in the users index
+            builder.field("screen_name", status.getUser().getScreenName());
+            if (profiles != null) {
+                userProfiles.process(status.getUser(), profiles);
+            }
+        } else {
+            builder.field("name", status.getUser().getName());
+            builder.field("screen_name", status.getUser().getScreenName());
+            builder.field("location", status.getUser().getLocation());
+            builder.field("description", status.getUser().getDescription());
+            builder.field("profile_image_url", status.getUser().getProfileImageURL());
+            builder.field("profile_image_url_https", status.getUser().getProfileImageURLHttps());
+        }
+
+        builder.endObject();
+
+        builder.endObject();
+        return builder;
+    }
+
+    private void submitStatus(Status status, IndexRequest request, long receivedAt) {
+        IngestLatency.attach(request, new IngestLatency.Timings(status.getId(), status.getCreatedAt().getTime(),
+                receivedAt, System.currentTimeMillis()));
+        if (recentIds != null) {
+            recentIds.put(status.getId(), Boolean.TRUE);
+        }
+        bulkIndexer.index(request);
+        if (liveTail != null) {
+            liveTail.publish(status, request.index(), request.source());
+        }
+    }
+
+    /**
+     * Statuses fetched by the backfill are indexed unless the stream already sent them. They go through the same
+     * workers as the stream, so a deletion received meanwhile is processed after the status it deletes.
+     */
+    private void processBackfilledStatus(final Status status) {
+        if (recentIds != null && recentIds.asMap().putIfAbsent(status.getId(), Boolean.TRUE) != null) {
+            return;
+        }
+        // REST responses are read on the calling thread, so the raw JSON is available here
+        final String rawJSON = raw || archiveSettings != null ? TwitterObjectFactory.getRawJSON(status) : null;
+        StreamArchive currentArchive = archive;
+        if (currentArchive != null) {
+            currentArchive.append(status.getId(), status.getCreatedAt().getTime(), rawJSON);
+        }
+        StatusWorkers currentWorkers = workers;
+        if (currentWorkers != null) {
+            currentWorkers.execute(status.getId(), new Runnable() {
+                @Override
+                public void run() {
+                    processStatus(status, rawJSON, -1);
+                }
+            });
+        } else {
+            processStatus(status, rawJSON, -1);
+        }
+    }
+
+    private void processDeletion(StatusDeletionNotice statusDeletionNotice) {
+        if (riverStatus != RiverStatus.STOPPED && riverStatus != RiverStatus.STOPPING) {
+            if (statusDeletionNotice.getStatusId() != -1) {
+                if (sampler != null && !sampler.acceptDeletion(statusDeletionNotice.getStatusId())) {
+                    return;
+                }
+                String id = Long.toString(statusDeletionNotice.getStatusId());
+                bulkIndexer.delete(Requests.deleteRequest(indexName).type(typeName).id(id));
+                if (router != null) {
+                    // We do not know where the status was routed to
+                    Set<String> targets = new HashSet<String>();
+                    targets.add(indexName + '/' + typeName);
+                    for (IndexRouter.Route route : router.routes()) {
+                        if (targets.add(route.index() + '/' + route.type())) {
+                            bulkIndexer.delete(Requests.deleteRequest(route.index()).type(route.type()).id(id));
                         }
                     }
+                }
+            }
+        } else {
+            logger.debug("river is closing. ignoring deletion of tweet [{}]", statusDeletionNotice.getStatusId());
+        }
+    }
+
+    /**
+     * Scales the consumer side up, and degrades if asked to, before twitter disconnects us
+     */
+    private synchronized void handleStallWarning(int percentFull) {
+        if (riverStatus == RiverStatus.STOPPING || riverStatus == RiverStatus.STOPPED) {
+            return;
+        }
+        boolean degrade = stallMonitor.onWarning(percentFull, System.currentTimeMillis());
+
+        int currentWorkers = workers == null ? 0 : workers.size();
+        int targetWorkers = stallMonitor.workers(currentWorkers);
+        if (targetWorkers > currentWorkers) {
+            logger.info("scaling serializer workers from [{}] to [{}]", currentWorkers, targetWorkers);
+            if (workers == null) {
+                // Statuses were serialized by the stream thread, nothing is pending
+                workers = new StatusWorkers(logger, threadPool.executor(THREAD_POOL_NAME), targetWorkers, serializerQueueSize);
+            } else {
+                workers.resize(targetWorkers);
+            }
+        }
+
+        BulkIndexer indexer = bulkIndexer;
+        if (indexer != null) {
+            int currentBulks = indexer.maxConcurrentInserts();
+            int targetBulks = stallMonitor.concurrentBulks(currentBulks);
+            if (targetBulks > currentBulks) {
+                indexer.setMaxConcurrentInserts(targetBulks);
+            }
+        }
+
+        if (degrade) {
+            if (stallMonitor.degrade() == StallMonitor.Degrade.SPOOL && memoryBudget != null) {
+                logger.warn("twitter queue is [{}%] full, spooling statuses until [{}]", percentFull,
+                        new Date(stallMonitor.degradedUntil()));
+                memoryBudget.spoolUntil(stallMonitor.degradedUntil());
+            } else if (stallMonitor.degrade() == StallMonitor.Degrade.SAMPLE) {
+                logger.warn("twitter queue is [{}%] full, sampling statuses until [{}]", percentFull,
+                        new Date(stallMonitor.degradedUntil()));
+            }
+        }
+    }
 
-                } catch (Exception e) {
-                    logger.warn("failed to construct index request", e);
+    /**
+     * Writes hashtags, mentioned user ids and urls as arrays of distinct values. Hashtags are lowercased, so
+     * #Elasticsearch and #elasticsearch are counted together by terms aggregations.
+     */
+    private static void writeFlatEntities(XContentBuilder builder, Status status) throws IOException {
+        if (status.getHashtagEntities() != null && status.getHashtagEntities().length > 0) {
+            Set<String> hashtags = new LinkedHashSet<String>();
+            for (HashtagEntity hashtag : status.getHashtagEntities()) {
+                hashtags.add(hashtag.getText().toLowerCase(Locale.ROOT));
+            }
+            builder.field("hashtags", hashtags);
+        }
+        if (status.getUserMentionEntities() != null && status.getUserMentionEntities().length > 0) {
+            Set<Long> mentionIds = new LinkedHashSet<Long>();
+            for (UserMentionEntity user : status.getUserMentionEntities()) {
+                mentionIds.add(user.getId());
+            }
+            builder.field("mention_ids", mentionIds);
+        }
+        if (status.getURLEntities() != null && status.getURLEntities().length > 0) {
+            // Paths are case sensitive, urls are only deduplicated
+            Set<String> urls = new LinkedHashSet<String>();
+            for (URLEntity url : status.getURLEntities()) {
+                if (url != null) {
+                    String value = url.getExpandedURL() != null ? url.getExpandedURL() : url.getURL();
+                    if (value != null) {
+                        urls.add(value);
+                    }
                 }
+            }
+            if (!urls.isEmpty()) {
+                builder.field("urls", urls);
+            }
+        }
+    }
+
+    private class StatusHandler extends StatusAdapter implements SyntheticStream.Listener {
+
+        @Override
+        public void onStatus(Status status) {
+            // twitter4j keeps the raw JSON in a thread local, we must read it before handing the status to a worker
+            onStatus(status, raw || archiveSettings != null ? TwitterObjectFactory.getRawJSON(status) : null);
+        }
+
+        @Override
+        public void onStatus(final Status status, final String rawJSON) {
+            final long receivedAt = System.currentTimeMillis();
+            StreamArchive currentArchive = archive;
+            if (currentArchive != null) {
+                // Everything twitter sent is archived, whatever the river does with it
+                currentArchive.append(status.getId(), status.getCreatedAt().getTime(), rawJSON);
+            }
+            if (workers != null) {
+                workers.execute(status.getId(), new Runnable() {
+                    @Override
+                    public void run() {
+                        processStatus(status, rawJSON, receivedAt);
+                    }
+                });
             } else {
-                logger.debug("river is closing. ignoring tweet [{}]", status.getId());
+                processStatus(status, rawJSON, receivedAt);
             }
         }
 
         @Override
-        public void onDeletionNotice(StatusDeletionNotice statusDeletionNotice) {
-            if (riverStatus != RiverStatus.STOPPED && riverStatus != RiverStatus.STOPPING) {
-                if (statusDeletionNotice.getStatusId() != -1) {
-                    bulkProcessor.add(Requests.deleteRequest(indexName).type(typeName).id(Long.toString(statusDeletionNotice.getStatusId())));
-                }
+        public void onDeletionNotice(final StatusDeletionNotice statusDeletionNotice) {
+            StreamArchive currentArchive = archive;
+            if (currentArchive != null && statusDeletionNotice.getStatusId() != -1) {
+                currentArchive.appendDeletion(statusDeletionNotice.getStatusId());
+            }
+            if (workers != null) {
+                workers.execute(statusDeletionNotice.getStatusId(), new Runnable() {
+                    @Override
+                    public void run() {
+                        processDeletion(statusDeletionNotice);
+                    }
+                });
             } else {
-                logger.debug("river is closing. ignoring deletion of tweet [{}]", statusDeletionNotice.getStatusId());
+                processDeletion(statusDeletionNotice);
             }
         }
 
+        @Override
+        public void onStallWarning(final StallWarning warning) {
+            logger.warn("stall warning [{}]: {} ({}% full)", warning.getCode(), warning.getMessage(), warning.getPercentFull());
+            threadPool.executor(THREAD_POOL_NAME).execute(new Runnable() {
+                @Override
+                public void run() {
+                    handleStallWarning(warning.getPercentFull());
+                }
+            });
+        }
+
         @Override
         public void onTrackLimitationNotice(int numberOfLimitedStatuses) {
             logger.info("received track limitation notice, number_of_limited_statuses {}", numberOfLimitedStatuses);
@@ -789,7 +2403,7 @@ public class TwitterRiver extends AbstractRiverComponent implements River {
         @Override
         public void onException(Exception ex) {
             logger.warn("stream failure, restarting stream...", ex);
-            threadPool.generic().execute(new Runnable() {
+            threadPool.executor(THREAD_POOL_NAME).execute(new Runnable() {
                 @Override
                 public void run() {
                     reconnect();
@@ -816,6 +2430,11 @@ public class TwitterRiver extends AbstractRiverComponent implements River {
         public void onDeletionNotice(StatusDeletionNotice statusDeletionNotice) {
             statusHandler.onDeletionNotice(statusDeletionNotice);
         }
+
+        @Override
+        public void onStallWarning(StallWarning warning) {
+            statusHandler.onStallWarning(warning);
+        }
     }
 
     public enum RiverStatus {
@@ -823,6 +2442,7 @@ public class TwitterRiver extends AbstractRiverComponent implements River {
         INITIALIZED,
         STARTING,
         RUNNING,
+        STANDBY,
         STOPPING,
         STOPPED;
     }
@@ -0,0 +1,391 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.river.twitter;
+
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import twitter4j.Status;
+import twitter4j.URLEntity;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Follows the redirections of the urls of statuses, as {@code expanded_url} is often another shortener.
+ * <p/>
+ * Statuses are indexed right away: their urls are queued, and the final urls are sent later as a partial
+ * update. Resolved urls are kept in a LRU cache shared by the rivers of the node, so urls found in the
+ * cache are written with the status itself. Requests are made by at most {@code concurrency} tasks of the
+ * river thread pool, which only run while there are urls to resolve, and at most {@code per_host} at a
+ * time go to the same host. When the queue is full, urls are not resolved. Urls which could not be reached
+ * are not cached, so they are tried again with the next status.
+ * <p/>
+ * Urls come from anyone who can tweet, so only http and https urls of public addresses are requested, unless
+ * {@code allow_private_addresses} is set. Every redirection is checked before it is followed.
+ */
+public class UrlExpander implements ToXContent {
+
+    /**
+     * Receives the final urls of a status
+     */
+    public interface Sink {
+        void onExpanded(long statusId, String index, String type, List<String> urls);
+    }
+
+    private static class Task {
+        final long statusId;
+        final String index;
+        final String type;
+        final List<String> urls;
+
+        Task(long statusId, String index, String type, List<String> urls) {
+            this.statusId = statusId;
+            this.index = index;
+            this.type = type;
+            this.urls = urls;
+        }
+    }
+
+    /**
+     * Requests allowed to a host, kept while some task uses the host
+     */
+    private static class Host {
+        final Semaphore permits;
+        // Guarded by the hosts map
+        int users;
+
+        Host(int perHost) {
+            this.permits = new Semaphore(perHost);
+        }
+    }
+
+    // How long a task waits for its host before going back to the queue
+    private static final long HOST_WAIT_MILLIS = 50;
+
+    private final ESLogger logger;
+    private final Executor executor;
+    private final Cache<String, String> cache;
+    private final Sink sink;
+
+    private final int concurrency;
+    private final int perHost;
+    private final TimeValue connectTimeout;
+    private final TimeValue readTimeout;
+    private final int maxRedirects;
+    private final boolean allowPrivateAddresses;
+
+    private final BlockingQueue<Task> queue;
+    // Hosts some task is using, guarded by itself
+    private final Map<String, Host> hosts = new HashMap<String, Host>();
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+    private volatile boolean stopped;
+
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong resolved = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+    private final AtomicLong deferred = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final LatencyHistogram requests = new LatencyHistogram("requests");
+
+    public UrlExpander(ESLogger logger, Executor executor, Cache<String, String> cache, Sink sink, Map<String, Object> settings) {
+        this.logger = logger;
+        this.executor = executor;
+        this.cache = cache;
+        this.sink = sink;
+        this.concurrency = XContentMapValues.nodeIntegerValue(settings.get("concurrency"), 8);
+        this.perHost = XContentMapValues.nodeIntegerValue(settings.get("per_host"), 2);
+        this.connectTimeout = XContentMapValues.nodeTimeValue(settings.get("connect_timeout"), TimeValue.timeValueSeconds(2));
+        this.readTimeout = XContentMapValues.nodeTimeValue(settings.get("read_timeout"), TimeValue.timeValueSeconds(5));
+        this.maxRedirects = XContentMapValues.nodeIntegerValue(settings.get("max_redirects"), 5);
+        this.allowPrivateAddresses = XContentMapValues.nodeBooleanValue(settings.get("allow_private_addresses"), false);
+        this.queue = new ArrayBlockingQueue<Task>(XContentMapValues.nodeIntegerValue(settings.get("queue_size"), 10000));
+    }
+
+    /**
+     * Distinct expanded urls of a status, empty if it has none
+     */
+    public static List<String> urls(Status status) {
+        Set<String> urls = new LinkedHashSet<String>();
+        if (status.getURLEntities() != null) {
+            for (URLEntity url : status.getURLEntities()) {
+                if (url != null && url.getExpandedURL() != null) {
+                    urls.add(url.getExpandedURL());
+                }
+            }
+        }
+        return new ArrayList<String>(urls);
+    }
+
+    /**
+     * @return the final urls if all of them are in the cache, null otherwise
+     */
+    public List<String> cached(List<String> urls) {
+        List<String> finalUrls = new ArrayList<String>(urls.size());
+        for (String url : urls) {
+            String finalUrl = cache.getIfPresent(url);
+            if (finalUrl == null) {
+                return null;
+            }
+            finalUrls.add(finalUrl);
+        }
+        cacheHits.addAndGet(urls.size());
+        return finalUrls;
+    }
+
+    /**
+     * Queues the urls of a status. Never blocks.
+     */
+    public void expand(long statusId, String index, String type, List<String> urls) {
+        if (stopped) {
+            return;
+        }
+        if (!queue.offer(new Task(statusId, index, type, urls))) {
+            dropped.incrementAndGet();
+            return;
+        }
+        if (addWorker()) {
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        work();
+                    }
+                });
+            } catch (EsRejectedExecutionException e) {
+                // The task stays queued for a running worker, or for the worker started by the next status
+                activeWorkers.decrementAndGet();
+                logger.debug("river thread pool is full, url expansion of status [{}] is delayed", statusId);
+            }
+        }
+    }
+
+    private boolean addWorker() {
+        int workers;
+        while ((workers = activeWorkers.get()) < concurrency) {
+            if (activeWorkers.compareAndSet(workers, workers + 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void stop() {
+        stopped = true;
+        queue.clear();
+    }
+
+    private void work() {
+        do {
+            try {
+                Task task;
+                while (!stopped && (task = queue.poll()) != null) {
+                    if (!process(task)) {
+                        deferred.incrementAndGet();
+                        if (!queue.offer(task)) {
+                            dropped.incrementAndGet();
+                        }
+                    }
+                }
+            } finally {
+                activeWorkers.decrementAndGet();
+            }
+            // A task may have been queued after our last poll, while we were still counted as active
+        } while (!stopped && !queue.isEmpty() && addWorker());
+    }
+
+    /**
+     * @return false if a host of the task is busy, the task must be tried again later
+     */
+    private boolean process(Task task) {
+        List<String> finalUrls = new ArrayList<String>(task.urls.size());
+        for (String url : task.urls) {
+            String finalUrl = cache.getIfPresent(url);
+            if (finalUrl != null) {
+                cacheHits.incrementAndGet();
+            } else {
+                String hostName = hostName(url);
+                Host host = useHost(hostName);
+                try {
+                    try {
+                        if (!host.permits.tryAcquire(HOST_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                            return false;
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return true;
+                    }
+                    try {
+                        finalUrl = resolve(url);
+                    } finally {
+                        host.permits.release();
+                    }
+                } finally {
+                    releaseHost(hostName, host);
+                }
+                if (finalUrl != null) {
+                    cache.put(url, finalUrl);
+                } else {
+                    finalUrl = url;
+                }
+            }
+            finalUrls.add(finalUrl);
+        }
+        if (!stopped) {
+            sink.onExpanded(task.statusId, task.index, task.type, finalUrls);
+        }
+        return true;
+    }
+
+    private static String hostName(String url) {
+        try {
+            return new URL(url).getHost().toLowerCase(Locale.ROOT);
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    private Host useHost(String hostName) {
+        synchronized (hosts) {
+            Host host = hosts.get(hostName);
+            if (host == null) {
+                host = new Host(perHost);
+                hosts.put(hostName, host);
+            }
+            host.users++;
+            return host;
+        }
+    }
+
+    /**
+     * Forgets the host once no task uses it, so only the hosts being requested are kept
+     */
+    private void releaseHost(String hostName, Host host) {
+        synchronized (hosts) {
+            if (--host.users == 0) {
+                hosts.remove(hostName);
+            }
+        }
+    }
+
+    /**
+     * @return true if the url may be requested: http or https, to a public address
+     */
+    private boolean allowed(URL url) throws IOException {
+        String protocol = url.getProtocol().toLowerCase(Locale.ROOT);
+        if (!"http".equals(protocol) && !"https".equals(protocol)) {
+            return false;
+        }
+        if (allowPrivateAddresses) {
+            return true;
+        }
+        for (InetAddress address : InetAddress.getAllByName(url.getHost())) {
+            if (address.isLoopbackAddress() || address.isSiteLocalAddress() || address.isLinkLocalAddress()
+                    || address.isAnyLocalAddress() || address.isMulticastAddress()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Follows redirections with HEAD requests
+     * @return the last url reached, or null if a request failed or an url was refused
+     */
+    String resolve(String url) {
+        long start = System.currentTimeMillis();
+        String current = url;
+        try {
+            for (int i = 0; i <= maxRedirects; i++) {
+                URL currentUrl = new URL(current);
+                if (!allowed(currentUrl)) {
+                    refused.incrementAndGet();
+                    logger.debug("not following url [{}] of [{}], it is not a public http url", current, url);
+                    return null;
+                }
+                HttpURLConnection connection = (HttpURLConnection) currentUrl.openConnection();
+                connection.setInstanceFollowRedirects(false);
+                connection.setConnectTimeout((int) connectTimeout.millis());
+                connection.setReadTimeout((int) readTimeout.millis());
+                connection.setRequestMethod("HEAD");
+                try {
+                    int code = connection.getResponseCode();
+                    String location = connection.getHeaderField("Location");
+                    if (code < 300 || code >= 400 || location == null) {
+                        resolved.incrementAndGet();
+                        return current;
+                    }
+                    // Location may be relative
+                    current = new URL(currentUrl, location).toString();
+                } finally {
+                    connection.disconnect();
+                }
+            }
+            // Too many redirections, the last one is as good as any
+            resolved.incrementAndGet();
+            return current;
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            logger.trace("failed to resolve url [{}]", e, url);
+            return null;
+        } finally {
+            requests.record(System.currentTimeMillis() - start);
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("url_expansion");
+        builder.field("queued", queue.size());
+        builder.field("workers", activeWorkers.get());
+        builder.field("cache_hits", cacheHits.get());
+        builder.field("cached", cache.size());
+        builder.field("resolved", resolved.get());
+        builder.field("failures", failures.get());
+        builder.field("refused", refused.get());
+        builder.field("deferred", deferred.get());
+        builder.field("dropped", dropped.get());
+        requests.toXContent(builder, params);
+        builder.endObject();
+        return builder;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter;
+
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import twitter4j.User;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes user profiles to their own index.
+ * <p/>
+ * A hash of the profile fields is kept in a LRU cache for recently seen users, and a profile is
+ * only upserted when its hash changed, so a prolific user is written once and not with every tweet.
+ */
+public class UserProfileIndexer implements ToXContent {
+
+    private final String indexName;
+    private final String typeName;
+    private final Cache<Long, Long> hashes;
+    private final XContentType sourceType;
+
+    private final AtomicLong seen = new AtomicLong();
+    private final AtomicLong updated = new AtomicLong();
+
+    public UserProfileIndexer(String indexName, String typeName, int cacheSize, XContentType sourceType) {
+        this.indexName = indexName;
+        this.typeName = typeName;
+        this.hashes = CacheBuilder.newBuilder().maximumSize(cacheSize).build();
+        this.sourceType = sourceType;
+    }
+
+    /**
+     * Reads {@code index}, {@code type} and {@code cache_size} from the users settings
+     */
+    public static UserProfileIndexer parse(Map<String, Object> settings, String defaultIndexName, XContentType sourceType) {
+        return new UserProfileIndexer(
+                XContentMapValues.nodeStringValue(settings.get("index"), defaultIndexName + "_users"),
+                XContentMapValues.nodeStringValue(settings.get("type"), "user"),
+                XContentMapValues.nodeIntegerValue(settings.get("cache_size"), 100000),
+                sourceType);
+    }
+
+    public String indexName() {
+        return indexName;
+    }
+
+    public String typeName() {
+        return typeName;
+    }
+
+    /**
+     * Sends the user profile to the indexer if it changed since we last saw it
+     */
+    public void process(User user, BulkIndexer bulkIndexer) throws IOException {
+        seen.incrementAndGet();
+        long hash = hash(user);
+        Long previous = hashes.getIfPresent(user.getId());
+        if (previous != null && previous == hash) {
+            return;
+        }
+        hashes.put(user.getId(), hash);
+
+        XContentBuilder builder = XContentFactory.contentBuilder(sourceType).startObject();
+        builder.field("id", user.getId());
+        builder.field("name", user.getName());
+        builder.field("screen_name", user.getScreenName());
+        builder.field("location", user.getLocation());
+        builder.field("description", user.getDescription());
+        builder.field("profile_image_url", user.getProfileImageURL());
+        builder.field("profile_image_url_https", user.getProfileImageURLHttps());
+        builder.field("profile_hash", hash);
+        builder.endObject();
+
+        bulkIndexer.update(new UpdateRequest(indexName, typeName, Long.toString(user.getId())).doc(builder).docAsUpsert(true));
+        updated.incrementAndGet();
+    }
+
+    /**
+     * 64 bits FNV-1a hash of the profile fields
+     */
+    static long hash(User user) {
+        long hash = 0xcbf29ce484222325L;
+        hash = hash(hash, user.getName());
+        hash = hash(hash, user.getScreenName());
+        hash = hash(hash, user.getLocation());
+        hash = hash(hash, user.getDescription());
+        hash = hash(hash, user.getProfileImageURL());
+        hash = hash(hash, user.getProfileImageURLHttps());
+        return hash;
+    }
+
+    private static long hash(long hash, String value) {
+        if (value != null) {
+            for (int i = 0; i < value.length(); i++) {
+                hash ^= value.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+        }
+        // Field separator, so "ab" + "c" and "a" + "bc" differ
+        hash ^= 0xff;
+        hash *= 0x100000001b3L;
+        return hash;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("users");
+        builder.field("index", indexName);
+        builder.field("seen", seen.get());
+        builder.field("updated", updated.get());
+        builder.field("cached", hashes.size());
+        builder.endObject();
+        return builder;
+    }
+}
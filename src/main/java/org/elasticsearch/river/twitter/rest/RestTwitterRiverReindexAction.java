@@ -0,0 +1,99 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.river.twitter.rest;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.joda.FormatDateTimeFormatter;
+import org.elasticsearch.common.joda.Joda;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.*;
+import org.elasticsearch.river.twitter.ArchiveReindexer;
+import org.elasticsearch.river.twitter.TwitterIngestService;
+
+import static org.elasticsearch.rest.RestRequest.Method.DELETE;
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+
+/**
+ * Rebuilds documents from the archive of a river running on the node receiving the request:
+ * {@code POST /_twitter_river/{river}/_reindex?index=tweets_v2&from=2015-01-01&to=2015-02-01} starts a reindex,
+ * {@code GET} gives its progress and {@code DELETE} cancels it.
+ */
+public class RestTwitterRiverReindexAction extends BaseRestHandler {
+
+    private static final FormatDateTimeFormatter DATE_FORMAT = Joda.forPattern("dateOptionalTime||epoch_millis");
+
+    private final TwitterIngestService ingestService;
+
+    @Inject
+    public RestTwitterRiverReindexAction(Settings settings, RestController controller, Client client,
+                                         TwitterIngestService ingestService) {
+        super(settings, controller, client);
+        this.ingestService = ingestService;
+        controller.registerHandler(POST, "/_twitter_river/{river}/_reindex", this);
+        controller.registerHandler(GET, "/_twitter_river/{river}/_reindex", this);
+        controller.registerHandler(DELETE, "/_twitter_river/{river}/_reindex", this);
+    }
+
+    @Override
+    protected void handleRequest(RestRequest request, RestChannel channel, Client client) throws Exception {
+        String river = request.param("river");
+        ArchiveReindexer reindexer = ingestService.reindexer(river);
+        if (reindexer == null) {
+            sendError(channel, RestStatus.NOT_FOUND, "river [" + river + "] has no archive on this node");
+            return;
+        }
+        if (request.method() == POST) {
+            String index = request.param("index");
+            if (index == null) {
+                sendError(channel, RestStatus.BAD_REQUEST, "missing [index] parameter");
+                return;
+            }
+            long from = request.hasParam("from") ? DATE_FORMAT.parser().parseMillis(request.param("from")) : 0;
+            long to = request.hasParam("to") ? DATE_FORMAT.parser().parseMillis(request.param("to")) : Long.MAX_VALUE;
+            try {
+                reindexer.start(index, request.param("type"), from, to,
+                        request.paramAsInt("concurrency", Runtime.getRuntime().availableProcessors()),
+                        request.paramAsInt("bulk_size", 500));
+            } catch (IllegalStateException e) {
+                sendError(channel, RestStatus.CONFLICT, e.getMessage());
+                return;
+            }
+        } else if (request.method() == DELETE) {
+            reindexer.cancel();
+        }
+        XContentBuilder builder = channel.newBuilder();
+        builder.startObject();
+        reindexer.toXContent(builder, request);
+        builder.endObject();
+        channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+    }
+
+    private static void sendError(RestChannel channel, RestStatus status, String error) throws Exception {
+        XContentBuilder builder = channel.newBuilder();
+        builder.startObject();
+        builder.field("error", error);
+        builder.endObject();
+        channel.sendResponse(new BytesRestResponse(status, builder));
+    }
+}
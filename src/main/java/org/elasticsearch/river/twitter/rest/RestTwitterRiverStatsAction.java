@@ -0,0 +1,69 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter.rest;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.*;
+import org.elasticsearch.river.twitter.TwitterIngestService;
+
+import java.util.Map;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+/**
+ * Live statistics of the twitter rivers running on the node receiving the request:
+ * {@code GET /_twitter_river/stats} or {@code GET /_twitter_river/{river}/stats}
+ */
+public class RestTwitterRiverStatsAction extends BaseRestHandler {
+
+    private final TwitterIngestService ingestService;
+
+    @Inject
+    public RestTwitterRiverStatsAction(Settings settings, RestController controller, Client client,
+                                       TwitterIngestService ingestService) {
+        super(settings, controller, client);
+        this.ingestService = ingestService;
+        controller.registerHandler(GET, "/_twitter_river/stats", this);
+        controller.registerHandler(GET, "/_twitter_river/{river}/stats", this);
+    }
+
+    @Override
+    protected void handleRequest(RestRequest request, RestChannel channel, Client client) throws Exception {
+        String river = request.param("river");
+        XContentBuilder builder = channel.newBuilder();
+        builder.startObject();
+        builder.startObject("rivers");
+        for (Map.Entry<String, ToXContent> entry : ingestService.riverStats().entrySet()) {
+            if (river != null && !river.equals(entry.getKey())) {
+                continue;
+            }
+            builder.startObject(entry.getKey());
+            entry.getValue().toXContent(builder, request);
+            builder.endObject();
+        }
+        builder.endObject();
+        builder.endObject();
+        channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.river.twitter.rest;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.*;
+import org.elasticsearch.river.twitter.LiveTail;
+import org.elasticsearch.river.twitter.TwitterIngestService;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+/**
+ * Long polling on the statuses a river running on the node receiving the request has just read:
+ * {@code GET /_twitter_river/{river}/tail?since=42&track=elasticsearch}
+ * <p/>
+ * The response is sent as soon as a matching status arrives, or when {@code wait} elapsed. Its
+ * {@code next} field is the {@code since} of the following request.
+ */
+public class RestTwitterRiverTailAction extends BaseRestHandler {
+
+    private static final int MAX_SIZE = 100;
+
+    private final TwitterIngestService ingestService;
+
+    @Inject
+    public RestTwitterRiverTailAction(Settings settings, RestController controller, Client client,
+                                      TwitterIngestService ingestService) {
+        super(settings, controller, client);
+        this.ingestService = ingestService;
+        controller.registerHandler(GET, "/_twitter_river/{river}/tail", this);
+    }
+
+    @Override
+    protected void handleRequest(RestRequest request, final RestChannel channel, Client client) throws Exception {
+        String river = request.param("river");
+        LiveTail tail = ingestService.tail(river);
+        if (tail == null) {
+            XContentBuilder builder = channel.newBuilder();
+            builder.startObject();
+            builder.field("error", "river [" + river + "] has no tail on this node");
+            builder.endObject();
+            channel.sendResponse(new BytesRestResponse(RestStatus.NOT_FOUND, builder));
+            return;
+        }
+        LiveTail.Filter filter = new LiveTail.Filter(request.param("track"), request.param("language"),
+                request.param("user"), request.param("hashtag"));
+        int size = Math.max(1, Math.min(MAX_SIZE, request.paramAsInt("size", MAX_SIZE)));
+        tail.poll(filter, request.paramAsLong("since", -1), size, request.paramAsTime("wait", tail.maxWait()),
+                new LiveTail.Listener() {
+                    @Override
+                    public void onDocuments(long next, long missed, List<LiveTail.Entry> entries) {
+                        try {
+                            XContentBuilder builder = channel.newBuilder();
+                            builder.startObject();
+                            builder.field("next", next);
+                            builder.field("missed", missed);
+                            builder.startArray("statuses");
+                            for (LiveTail.Entry entry : entries) {
+                                builder.startObject();
+                                builder.field("_index", entry.index());
+                                builder.field("_id", entry.id());
+                                builder.field("_seq", entry.seq());
+                                builder.rawField("_source", entry.source());
+                                builder.endObject();
+                            }
+                            builder.endArray();
+                            builder.endObject();
+                            channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+                        } catch (IOException e) {
+                            logger.warn("failed to send tail response", e);
+                        }
+                    }
+                });
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter.test;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.Requests;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.river.twitter.BulkLanes;
+import org.elasticsearch.test.ElasticsearchIntegrationTest;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+
+/**
+ * Checks that a delete waits for the insert of the same document, while other deletes do not
+ */
+@ElasticsearchIntegrationTest.ClusterScope(
+        scope = ElasticsearchIntegrationTest.Scope.SUITE,
+        numDataNodes = 1,
+        transportClientRatio = 0.0)
+public class BulkLanesTest extends ElasticsearchIntegrationTest {
+
+    private static String event(String event, ActionRequest request) {
+        if (request instanceof IndexRequest) {
+            return event + " index " + ((IndexRequest) request).id();
+        }
+        return event + " delete " + ((DeleteRequest) request).id();
+    }
+
+    @SuppressWarnings({"unchecked"})
+    private static Map<String, Object> stats(BulkLanes lanes) throws Exception {
+        XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+        lanes.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        builder.endObject();
+        return (Map<String, Object>) XContentHelper.convertToMap(builder.bytes(), false).v2().get("lanes");
+    }
+
+    @Test
+    public void testHeldBackDeleteFollowsItsInsert() throws Exception {
+        createIndex("lanes");
+        ensureGreen("lanes");
+        index("lanes", "status", "2", "{\"text\":\"already there\"}");
+
+        // Inserts wait for their flush interval, deletes are sent one by one
+        BulkLanes lanes = new BulkLanes(client(), logger,
+                new BulkLanes.LaneSettings(100, 1, TimeValue.timeValueSeconds(1)),
+                new BulkLanes.LaneSettings(1, 1, TimeValue.timeValueMillis(100)),
+                new BulkLanes.LaneSettings(1, 1, TimeValue.timeValueMillis(100)));
+
+        lanes.index(Requests.indexRequest("lanes").type("status").id("1").source("{\"text\":\"deleted soon\"}"));
+        lanes.delete(Requests.deleteRequest("lanes").type("status").id("1"));
+        // No insert pending for this one, it goes right away
+        lanes.delete(Requests.deleteRequest("lanes").type("status").id("2"));
+        assertThat(((Number) stats(lanes).get("held_back")).longValue(), equalTo(1L));
+        lanes.close();
+
+        // Had the delete been sent first, the insert would have created the document again
+        refresh();
+        assertFalse(client().prepareGet("lanes", "status", "1").get().isExists());
+        assertFalse(client().prepareGet("lanes", "status", "2").get().isExists());
+        assertThat(((Number) stats(lanes).get("held_back")).longValue(), equalTo(0L));
+    }
+
+    @Test
+    public void testHeldBackDeleteFollowsItsInsertAcrossStripes() throws Exception {
+        createIndex("striped_lanes");
+        ensureGreen("striped_lanes");
+        index("striped_lanes", "status", "2", "{\"text\":\"already there\"}");
+
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        int stripes = randomIntBetween(2, 4);
+        BulkLanes lanes = new BulkLanes(client(), logger,
+                new BulkLanes.LaneSettings(100, 2, TimeValue.timeValueSeconds(1)),
+                new BulkLanes.LaneSettings(1, 1, TimeValue.timeValueMillis(100)),
+                new BulkLanes.LaneSettings(1, 1, TimeValue.timeValueMillis(100)),
+                new BulkLanes.Listener() {
+                    @Override
+                    public void onRequestSubmitted(ActionRequest request) {
+                        events.add(event("submitted", request));
+                    }
+
+                    @Override
+                    public void onRequestDone(ActionRequest request, boolean failed) {
+                        assertFalse(failed);
+                        events.add(event("done", request));
+                    }
+                }, stripes);
+
+        lanes.index(Requests.indexRequest("striped_lanes").type("status").id("1").source("{\"text\":\"deleted soon\"}"));
+        lanes.delete(Requests.deleteRequest("striped_lanes").type("status").id("1"));
+        lanes.delete(Requests.deleteRequest("striped_lanes").type("status").id("2"));
+        lanes.close();
+
+        List<String> order = new ArrayList<String>(events);
+        assertThat(order.toString(), order.size(), equalTo(6));
+        assertThat(order.toString(), order.indexOf("done index 1"), lessThan(order.indexOf("submitted delete 1")));
+        assertThat(order.toString(), order.indexOf("done delete 2"), lessThan(order.indexOf("done index 1")));
+        assertThat(((Number) stats(lanes).get("stripes")).intValue(), equalTo(stripes));
+
+        refresh();
+        assertFalse(client().prepareGet("striped_lanes", "status", "1").get().isExists());
+        assertFalse(client().prepareGet("striped_lanes", "status", "2").get().isExists());
+    }
+
+    @SuppressWarnings({"unchecked"})
+    private static int processors(BulkLanes lanes, String lane) throws Exception {
+        Map<String, Object> stats = (Map<String, Object>) stats(lanes).get(lane);
+        return ((Number) stats.get("bulk_processors")).intValue();
+    }
+
+    @Test
+    public void testStripesShareTheConcurrencyOfTheirLane() throws Exception {
+        createIndex("shared_lanes");
+        ensureGreen("shared_lanes");
+        for (int i = 0; i < 8; i++) {
+            index("shared_lanes", "status", Integer.toString(i), "{\"text\":\"updated soon\"}");
+        }
+
+        final Thread caller = Thread.currentThread();
+        final AtomicInteger updated = new AtomicInteger();
+        BulkLanes lanes = new BulkLanes(client(), logger,
+                new BulkLanes.LaneSettings(100, 2, TimeValue.timeValueSeconds(1)),
+                new BulkLanes.LaneSettings(1, 1, TimeValue.timeValueMillis(100)),
+                new BulkLanes.LaneSettings(1, 0, TimeValue.timeValueMillis(100)),
+                new BulkLanes.Listener() {
+                    @Override
+                    public void onRequestSubmitted(ActionRequest request) {
+                    }
+
+                    @Override
+                    public void onRequestDone(ActionRequest request, boolean failed) {
+                        assertFalse(failed);
+                        if (request instanceof UpdateRequest) {
+                            // A synchronous lane runs its bulks on the calling thread
+                            assertSame(caller, Thread.currentThread());
+                            updated.incrementAndGet();
+                        }
+                    }
+                }, 4);
+
+        // A processor per concurrent bulk at most
+        assertThat(processors(lanes, "inserts"), equalTo(2));
+        assertThat(processors(lanes, "deletes"), equalTo(1));
+        assertThat(processors(lanes, "updates"), equalTo(1));
+        lanes.setMaxConcurrentInserts(3);
+        assertThat(processors(lanes, "inserts"), equalTo(3));
+        lanes.setMaxConcurrentInserts(8);
+        assertThat(processors(lanes, "inserts"), equalTo(4));
+
+        for (int i = 0; i < 8; i++) {
+            lanes.update(new UpdateRequest("shared_lanes", "status", Integer.toString(i)).doc("{\"seen\":true}"));
+            assertThat(updated.get(), equalTo(i + 1));
+        }
+        lanes.close();
+    }
+}
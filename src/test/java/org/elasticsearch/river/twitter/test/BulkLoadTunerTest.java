@@ -0,0 +1,159 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter.test;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.river.twitter.BulkLoadTuner;
+import org.elasticsearch.test.ElasticsearchIntegrationTest;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Checks when index settings are relaxed and put back
+ */
+@ElasticsearchIntegrationTest.ClusterScope(
+        scope = ElasticsearchIntegrationTest.Scope.SUITE,
+        numDataNodes = 1,
+        transportClientRatio = 0.0)
+public class BulkLoadTunerTest extends ElasticsearchIntegrationTest {
+
+    private static final long KB = 1024;
+
+    private BulkLoadTuner tuner(String calmFor, String maxDuration, String... indices) {
+        Map<String, Object> settings = new HashMap<String, Object>();
+        settings.put("backlog_above", "1kb");
+        settings.put("latency_above", "1s");
+        settings.put("calm_for", calmFor);
+        settings.put("max_duration", maxDuration);
+        settings.put("refresh_interval", "30s");
+        return new BulkLoadTuner(logger, client(), "bulk_load_river", "tuning", Arrays.asList(indices), settings);
+    }
+
+    private String setting(String index, String name) {
+        return client().admin().indices().prepareGetSettings(index).get().getSetting(index, name);
+    }
+
+    @SuppressWarnings({"unchecked"})
+    private static Map<String, Object> stats(BulkLoadTuner tuner) throws Exception {
+        XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+        tuner.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        builder.endObject();
+        return (Map<String, Object>) XContentHelper.convertToMap(builder.bytes(), false).v2().get("bulk_load");
+    }
+
+    @Test
+    public void testSettingsAreRestoredOnceTheLoadIsCalm() throws Exception {
+        createIndex("tuned");
+        // Already more relaxed than what the tuner would set
+        client().admin().indices().prepareCreate("bulk_loaded").setSettings(Settings.builder()
+                .put("index.refresh_interval", "-1")
+                .put("index.translog.durability", "async")).get();
+        ensureGreen("tuned", "bulk_loaded");
+        BulkLoadTuner tuner = tuner("1m", "1h", "tuned", "bulk_loaded");
+        long now = System.currentTimeMillis();
+
+        tuner.check(KB / 2, now);
+        assertThat(stats(tuner).get("relaxed"), equalTo((Object) false));
+        tuner.check(2 * KB, now);
+        assertThat(setting("tuned", "index.refresh_interval"), equalTo("30s"));
+        assertThat(setting("tuned", "index.translog.durability"), equalTo("async"));
+        assertThat(setting("bulk_loaded", "index.refresh_interval"), equalTo("-1"));
+        assertThat(stats(tuner).get("relaxed_indices"), equalTo((Object) Arrays.asList("tuned")));
+
+        // Calm means under half the thresholds
+        tuner.check(KB / 2 + 1, now + 10000);
+        tuner.check(KB / 4, now + 20000);
+        tuner.check(KB / 4, now + 70000);
+        assertThat(stats(tuner).get("relaxed"), equalTo((Object) true));
+        // A slow bulk starts the calm period again
+        tuner.onBulkDone(800);
+        tuner.check(KB / 4, now + 75000);
+        tuner.check(KB / 4, now + 80000);
+        tuner.check(KB / 4, now + 139000);
+        assertThat(stats(tuner).get("relaxed"), equalTo((Object) true));
+        tuner.check(KB / 4, now + 140000);
+
+        Map<String, Object> stats = stats(tuner);
+        assertThat(stats.get("relaxed"), equalTo((Object) false));
+        assertThat(((Number) stats.get("relaxations")).longValue(), equalTo(1L));
+        assertThat(((Number) stats.get("restorations")).longValue(), equalTo(1L));
+        assertThat(stats.get("last_reason"), equalTo((Object) "calm"));
+        assertThat(setting("tuned", "index.refresh_interval"), equalTo("1s"));
+        assertThat(setting("tuned", "index.translog.durability"), equalTo("request"));
+        tuner.close();
+    }
+
+    @Test
+    public void testMaxDurationRestoresWhateverTheLoad() throws Exception {
+        createIndex("overloaded");
+        ensureGreen("overloaded");
+        BulkLoadTuner tuner = tuner("1m", "10m", "overloaded");
+        long now = System.currentTimeMillis();
+        long tenMinutes = TimeValue.timeValueMinutes(10).millis();
+
+        tuner.check(2 * KB, now);
+        assertThat(setting("overloaded", "index.refresh_interval"), equalTo("30s"));
+        tuner.check(2 * KB, now + tenMinutes);
+        assertThat(setting("overloaded", "index.refresh_interval"), equalTo("1s"));
+        assertThat(stats(tuner).get("last_reason"), equalTo((Object) "max_duration"));
+        // Indices refresh normally for calm_for before being relaxed again
+        tuner.check(2 * KB, now + tenMinutes + 30000);
+        assertThat(stats(tuner).get("relaxed"), equalTo((Object) false));
+        tuner.check(2 * KB, now + tenMinutes + 60000);
+        assertThat(setting("overloaded", "index.refresh_interval"), equalTo("30s"));
+
+        tuner.close();
+        Map<String, Object> stats = stats(tuner);
+        assertThat(((Number) stats.get("relaxations")).longValue(), equalTo(2L));
+        assertThat(((Number) stats.get("restorations")).longValue(), equalTo(2L));
+        assertThat(stats.get("last_reason"), equalTo((Object) "close"));
+        assertThat(setting("overloaded", "index.refresh_interval"), equalTo("1s"));
+    }
+
+    @Test
+    public void testSettingsLeftRelaxedByAPreviousRunAreRestored() throws Exception {
+        createIndex("left_relaxed");
+        ensureGreen("left_relaxed");
+        BulkLoadTuner crashed = tuner("1m", "1h", "left_relaxed");
+        crashed.check(2 * KB, System.currentTimeMillis());
+        assertThat(setting("left_relaxed", "index.refresh_interval"), equalTo("30s"));
+        assertTrue(client().prepareGet("bulk_load_river", "tuning", "_bulk_load").get().isExists());
+
+        // The river starts again without closing the previous tuner
+        BulkLoadTuner restarted = tuner("1m", "1h", "left_relaxed");
+        restarted.recover();
+        assertThat(setting("left_relaxed", "index.refresh_interval"), equalTo("1s"));
+        assertThat(setting("left_relaxed", "index.translog.durability"), equalTo("request"));
+        assertFalse(client().prepareGet("bulk_load_river", "tuning", "_bulk_load").get().isExists());
+        Map<String, Object> stats = stats(restarted);
+        assertThat(((Number) stats.get("restorations")).longValue(), equalTo(1L));
+        assertThat(stats.get("last_reason"), equalTo((Object) "recover"));
+    }
+}
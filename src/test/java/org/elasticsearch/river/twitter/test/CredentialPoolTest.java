@@ -0,0 +1,213 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter.test;
+
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.river.twitter.CredentialPool;
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+import twitter4j.RateLimitStatus;
+import twitter4j.Twitter;
+import twitter4j.TwitterException;
+import twitter4j.TwitterFactory;
+import twitter4j.TwitterResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+
+/**
+ * Checks which token serves a call, and that calls wait for a reset once every token is exhausted
+ */
+public class CredentialPoolTest extends ElasticsearchTestCase {
+
+    private static final String RESOURCE = "/lists/members";
+
+    private static List<Twitter> clients(int size) {
+        List<Twitter> clients = new ArrayList<Twitter>(size);
+        for (int i = 0; i < size; i++) {
+            clients.add(new TwitterFactory().getInstance());
+        }
+        return clients;
+    }
+
+    /**
+     * A response telling how many calls are left in the current window
+     */
+    private static class Response implements TwitterResponse {
+        private final int remaining;
+        private final int secondsUntilReset;
+
+        Response(int remaining, int secondsUntilReset) {
+            this.remaining = remaining;
+            this.secondsUntilReset = secondsUntilReset;
+        }
+
+        @Override
+        public RateLimitStatus getRateLimitStatus() {
+            return new RateLimitStatus() {
+                @Override
+                public int getRemaining() {
+                    return remaining;
+                }
+
+                @Override
+                public int getLimit() {
+                    return 15;
+                }
+
+                @Override
+                public int getResetTimeInSeconds() {
+                    return (int) (System.currentTimeMillis() / 1000) + secondsUntilReset;
+                }
+
+                @Override
+                public int getSecondsUntilReset() {
+                    return secondsUntilReset;
+                }
+            };
+        }
+
+        @Override
+        public int getAccessLevel() {
+            return TwitterResponse.READ;
+        }
+    }
+
+    /**
+     * Records the token used and answers with the given budget
+     */
+    private static int call(CredentialPool pool, List<Twitter> clients, boolean primary, int remaining,
+                            int secondsUntilReset) throws TwitterException {
+        final AtomicReference<Twitter> used = new AtomicReference<Twitter>();
+        final Response response = new Response(remaining, secondsUntilReset);
+        CredentialPool.TwitterCall<Response> call = new CredentialPool.TwitterCall<Response>() {
+            @Override
+            public Response call(Twitter twitter) throws TwitterException {
+                used.set(twitter);
+                return response;
+            }
+        };
+        if (primary) {
+            assertThat(pool.callAsPrimary(RESOURCE, call), equalTo(response));
+        } else {
+            assertThat(pool.call(RESOURCE, call), equalTo(response));
+        }
+        return clients.indexOf(used.get());
+    }
+
+    @SuppressWarnings({"unchecked"})
+    private static Map<String, Object> stats(CredentialPool pool) throws Exception {
+        XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+        pool.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        builder.endObject();
+        return (Map<String, Object>) XContentHelper.convertToMap(builder.bytes(), false).v2().get("credentials");
+    }
+
+    @Test
+    public void testCallsGoToTheTokenWithTheBiggestBudget() throws Exception {
+        List<Twitter> clients = clients(3);
+        CredentialPool pool = new CredentialPool(logger, clients);
+
+        // Budgets are unknown until a token answers, the first one wins ties
+        assertThat(call(pool, clients, false, 5, 60), equalTo(0));
+        assertThat(call(pool, clients, false, 10, 60), equalTo(1));
+        assertThat(call(pool, clients, false, 2, 60), equalTo(2));
+        // 5, 10 and 2 calls left
+        assertThat(call(pool, clients, false, 9, 60), equalTo(1));
+        assertThat(call(pool, clients, false, 8, 60), equalTo(1));
+        // The river token is used for primary calls, whatever its budget
+        assertThat(call(pool, clients, true, 4, 60), equalTo(0));
+        pool.close();
+    }
+
+    @Test
+    public void testCallsWaitForTheFirstReset() throws Exception {
+        final List<Twitter> clients = clients(2);
+        CredentialPool pool = new CredentialPool(logger, clients);
+        final AtomicReference<Twitter> used = new AtomicReference<Twitter>();
+
+        // The first token is exhausted for a second, the other one for the default 15 minutes
+        assertThat(call(pool, clients, false, 0, 1), equalTo(0));
+        Response response = pool.call(RESOURCE, new CredentialPool.TwitterCall<Response>() {
+            @Override
+            public Response call(Twitter twitter) throws TwitterException {
+                if (twitter == clients.get(1)) {
+                    throw new TwitterException("rate limit exceeded", null, 429);
+                }
+                used.set(twitter);
+                return new Response(14, 900);
+            }
+        });
+        assertThat(response.getRateLimitStatus().getRemaining(), equalTo(14));
+        assertThat(used.get(), equalTo(clients.get(0)));
+
+        Map<String, Object> stats = stats(pool);
+        assertThat(((Number) stats.get("rate_limit_waits")).longValue(), greaterThanOrEqualTo(1L));
+        @SuppressWarnings({"unchecked"})
+        List<Map<String, Object>> tokens = (List<Map<String, Object>>) stats.get("tokens");
+        assertThat(((Number) tokens.get(0).get("requests")).longValue(), equalTo(2L));
+        assertThat(((Number) tokens.get(1).get("rate_limit_hits")).longValue(), equalTo(1L));
+        pool.close();
+    }
+
+    @Test
+    public void testCloseStopsWaitingCalls() throws Exception {
+        List<Twitter> clients = clients(2);
+        final CredentialPool pool = new CredentialPool(logger, clients);
+        CredentialPool.TwitterCall<Response> exhausted = new CredentialPool.TwitterCall<Response>() {
+            @Override
+            public Response call(Twitter twitter) throws TwitterException {
+                throw new TwitterException("rate limit exceeded", null, 429);
+            }
+        };
+
+        Thread closer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                pool.close();
+            }
+        };
+        closer.start();
+        // Both tokens are exhausted for 15 minutes, only closing the pool gets us out
+        assertThat(pool.call(RESOURCE, exhausted), nullValue());
+        closer.join();
+
+        Map<String, Object> stats = stats(pool);
+        assertThat(((Number) stats.get("rate_limit_waits")).longValue(), greaterThanOrEqualTo(1L));
+        for (Object token : (List<?>) stats.get("tokens")) {
+            assertThat(((Number) ((Map<?, ?>) token).get("rate_limit_hits")).longValue(), equalTo(1L));
+        }
+        assertThat(((Number) stats.get("size")).intValue(), equalTo(2));
+    }
+}
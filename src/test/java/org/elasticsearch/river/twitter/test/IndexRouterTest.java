@@ -0,0 +1,119 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter.test;
+
+import org.elasticsearch.river.twitter.IndexRouter;
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+import twitter4j.Status;
+import twitter4j.TwitterException;
+import twitter4j.TwitterObjectFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+
+/**
+ * Checks that statuses go to the first routing rule they match
+ */
+public class IndexRouterTest extends ElasticsearchTestCase {
+
+    private static Map<String, Object> rule(String index, String key, Object value) {
+        Map<String, Object> rule = new HashMap<String, Object>();
+        rule.put("index", index);
+        if (key != null) {
+            rule.put(key, value);
+        }
+        return rule;
+    }
+
+    private static Status status(long id, long userId, String lang, String countryCode, String text) throws TwitterException {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"id\":").append(id).append(",\"id_str\":\"").append(id).append("\"");
+        json.append(",\"created_at\":\"Mon Oct 19 10:00:00 +0000 2026\"");
+        json.append(",\"text\":\"").append(text).append("\"");
+        json.append(",\"lang\":\"").append(lang).append("\"");
+        json.append(",\"user\":{\"id\":").append(userId).append(",\"id_str\":\"").append(userId)
+                .append("\",\"screen_name\":\"user").append(userId)
+                .append("\",\"created_at\":\"Mon Oct 19 10:00:00 +0000 2026\"}");
+        if (countryCode != null) {
+            json.append(",\"place\":{\"id\":\"p").append(id).append("\",\"name\":\"somewhere\",\"full_name\":\"somewhere\"")
+                    .append(",\"country\":\"somewhere\",\"place_type\":\"city\",\"url\":\"http://localhost\"")
+                    .append(",\"country_code\":\"").append(countryCode).append("\"}");
+        }
+        json.append("}");
+        return TwitterObjectFactory.createStatus(json.toString());
+    }
+
+    @Test
+    public void testFirstMatchingRuleWins() throws Exception {
+        List<Object> rules = new ArrayList<Object>();
+        rules.add(rule("tweets_fr", "language", "fr"));
+        rules.add(rule("tweets_followed", "follow", Arrays.asList("42")));
+        rules.add(rule("tweets_france", "country_code", "FR"));
+        rules.add(rule("tweets_elastic", "track", "elasticsearch river, kibana"));
+        IndexRouter router = new IndexRouter(rules, "status");
+
+        // matches the language, the follow and the country rules: the language rule comes first
+        assertThat(router.route(status(1, 42, "fr", "FR", "bonjour")).index(), equalTo("tweets_fr"));
+        // matches the follow and the country rules
+        assertThat(router.route(status(2, 42, "en", "FR", "hello")).index(), equalTo("tweets_followed"));
+        assertThat(router.route(status(3, 7, "en", "fr", "hello")).index(), equalTo("tweets_france"));
+        // a track needs all of its words, in any order
+        assertThat(router.route(status(4, 7, "en", null, "a river for Elasticsearch")).index(), equalTo("tweets_elastic"));
+        assertThat(router.route(status(5, 7, "en", null, "just kibana")).index(), equalTo("tweets_elastic"));
+        assertThat(router.route(status(6, 7, "en", null, "only elasticsearch")), nullValue());
+
+        assertThat(router.routes().get(0).type(), equalTo("status"));
+    }
+
+    @Test
+    public void testRuleWithoutConditionsCatchesEverything() throws Exception {
+        List<Object> rules = new ArrayList<Object>();
+        rules.add(rule("tweets_fr", "language", "fr"));
+        Map<String, Object> catchAll = rule("tweets", null, null);
+        catchAll.put("type", "tweet");
+        rules.add(catchAll);
+        rules.add(rule("tweets_en", "language", "en"));
+        IndexRouter router = new IndexRouter(rules, "status");
+
+        assertThat(router.route(status(1, 7, "FR", null, "bonjour")).index(), equalTo("tweets_fr"));
+        IndexRouter.Route route = router.route(status(2, 7, "en", null, "hello"));
+        assertThat(route.index(), equalTo("tweets"));
+        assertThat(route.type(), equalTo("tweet"));
+    }
+
+    @Test
+    public void testRuleNeedsAnIndex() {
+        List<Object> rules = new ArrayList<Object>();
+        rules.add(rule(null, "language", "fr"));
+        try {
+            new IndexRouter(rules, "status");
+            fail("a rule without index should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
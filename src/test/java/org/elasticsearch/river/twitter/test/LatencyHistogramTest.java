@@ -0,0 +1,83 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter.test;
+
+import org.elasticsearch.river.twitter.LatencyHistogram;
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+/**
+ * Checks percentiles against the ones computed on the sorted values
+ */
+public class LatencyHistogramTest extends ElasticsearchTestCase {
+
+    private static long exactPercentile(long[] sorted, double percentile) {
+        int rank = (int) Math.max(1, Math.ceil(percentile / 100.0 * sorted.length));
+        return sorted[rank - 1];
+    }
+
+    @Test
+    public void testNothingRecorded() {
+        LatencyHistogram histogram = new LatencyHistogram("latency");
+        assertThat(histogram.count(), equalTo(0L));
+        assertThat(histogram.percentile(50), equalTo(-1L));
+    }
+
+    @Test
+    public void testSmallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram("latency");
+        for (int i = 1; i <= 31; i++) {
+            histogram.record(i);
+        }
+        // Statuses from a clock ahead of ours count as 0
+        histogram.record(-5);
+        assertThat(histogram.count(), equalTo(32L));
+        assertThat(histogram.percentile(0), equalTo(0L));
+        assertThat(histogram.percentile(50), equalTo(15L));
+        assertThat(histogram.percentile(100), equalTo(31L));
+    }
+
+    @Test
+    public void testPercentilesStayWithinTheBucketWidth() {
+        LatencyHistogram histogram = new LatencyHistogram("latency");
+        long[] values = new long[randomIntBetween(100, 10000)];
+        for (int i = 0; i < values.length; i++) {
+            // Spread the values over many powers of two
+            values[i] = randomInt(1 << randomIntBetween(0, 30));
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        for (double percentile : new double[]{0, 50, 75, 90, 95, 99, 99.9, 100}) {
+            long exact = exactPercentile(values, percentile);
+            long estimate = histogram.percentile(percentile);
+            // Values are rounded up to the highest value of their bucket, at most 1/16th of the value away
+            assertThat(estimate, greaterThanOrEqualTo(exact));
+            assertThat(estimate - exact, lessThanOrEqualTo(exact / 16));
+        }
+        assertThat(histogram.percentile(100), equalTo(values[values.length - 1]));
+    }
+}
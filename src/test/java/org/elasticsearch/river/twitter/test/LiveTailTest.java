@@ -0,0 +1,164 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter.test;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.river.twitter.LiveTail;
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import twitter4j.Status;
+import twitter4j.TwitterObjectFactory;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+
+/**
+ * Checks what clients of the live tail get when they fall behind the ring, or when too many of them wait
+ */
+public class LiveTailTest extends ElasticsearchTestCase {
+
+    private static final LiveTail.Filter ALL = new LiveTail.Filter(null, null, null, null);
+
+    private ThreadPool threadPool;
+
+    private static class Answer implements LiveTail.Listener {
+        volatile Long next;
+        volatile long missed;
+        volatile List<LiveTail.Entry> entries;
+
+        @Override
+        public void onDocuments(long next, long missed, List<LiveTail.Entry> entries) {
+            this.missed = missed;
+            this.entries = entries;
+            this.next = next;
+        }
+    }
+
+    @Before
+    public void createThreadPool() {
+        threadPool = new ThreadPool("test");
+    }
+
+    @After
+    public void terminateThreadPool() {
+        ThreadPool.terminate(threadPool, 10, TimeUnit.SECONDS);
+    }
+
+    private static LiveTail tail(ThreadPool threadPool, int bufferSize, int maxSubscribers) {
+        Map<String, Object> settings = new HashMap<String, Object>();
+        settings.put("buffer_size", bufferSize);
+        settings.put("max_subscribers", maxSubscribers);
+        settings.put("max_wait", "30s");
+        return new LiveTail(threadPool, settings);
+    }
+
+    private static void publish(LiveTail tail, long id) throws Exception {
+        Status status = TwitterObjectFactory.createStatus("{\"id\":" + id + ",\"id_str\":\"" + id + "\"" +
+                ",\"created_at\":\"Mon Oct 19 10:00:00 +0000 2026\",\"text\":\"status " + id + "\",\"lang\":\"en\"" +
+                ",\"user\":{\"id\":1,\"id_str\":\"1\",\"screen_name\":\"someone\"" +
+                ",\"created_at\":\"Mon Oct 19 10:00:00 +0000 2026\"}}");
+        tail.publish(status, "twitter", new BytesArray("{\"id\":" + id + "}"));
+    }
+
+    @SuppressWarnings({"unchecked"})
+    private static Map<String, Object> stats(LiveTail tail) throws Exception {
+        XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+        tail.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        builder.endObject();
+        return (Map<String, Object>) XContentHelper.convertToMap(builder.bytes(), false).v2().get("tail");
+    }
+
+    @Test
+    public void testMissedDocumentsAreCounted() throws Exception {
+        LiveTail tail = tail(threadPool, 5, 10);
+        for (long id = 1; id <= 12; id++) {
+            publish(tail, id);
+        }
+
+        // Sequences 1 to 7 left the ring of 5, the client saw up to 2
+        Answer answer = new Answer();
+        tail.poll(ALL, 2, 100, TimeValue.timeValueMillis(0), answer);
+        assertThat(answer.missed, equalTo(5L));
+        assertThat(answer.next, equalTo(12L));
+        assertThat(answer.entries.size(), equalTo(5));
+        assertThat(answer.entries.get(0).seq(), equalTo(8L));
+        assertThat(answer.entries.get(0).id(), equalTo("8"));
+
+        // A client which is up to date misses nothing
+        Answer upToDate = new Answer();
+        tail.poll(ALL, 10, 100, TimeValue.timeValueMillis(0), upToDate);
+        assertThat(upToDate.missed, equalTo(0L));
+        assertThat(upToDate.entries.size(), equalTo(2));
+
+        // Size limits the page, the next poll goes on from there
+        Answer page = new Answer();
+        tail.poll(ALL, 0, 2, TimeValue.timeValueMillis(0), page);
+        assertThat(page.missed, equalTo(7L));
+        assertThat(page.next, equalTo(9L));
+
+        Map<String, Object> stats = stats(tail);
+        assertThat(((Number) stats.get("missed")).longValue(), equalTo(12L));
+        assertThat(((Number) stats.get("evicted")).longValue(), equalTo(0L));
+    }
+
+    @Test
+    public void testOldestWaiterIsEvicted() throws Exception {
+        LiveTail tail = tail(threadPool, 5, 2);
+        Answer first = new Answer();
+        Answer second = new Answer();
+        Answer third = new Answer();
+        tail.poll(ALL, -1, 10, TimeValue.timeValueSeconds(30), first);
+        tail.poll(ALL, -1, 10, TimeValue.timeValueSeconds(30), second);
+        assertThat(first.next, nullValue());
+        assertThat(second.next, nullValue());
+
+        // Only two clients may wait: the oldest one is answered right away, with nothing
+        tail.poll(ALL, -1, 10, TimeValue.timeValueSeconds(30), third);
+        assertThat(first.next, equalTo(0L));
+        assertThat(first.entries.size(), equalTo(0));
+        assertThat(second.next, nullValue());
+        assertThat(third.next, nullValue());
+
+        // The others get the next document
+        publish(tail, 1);
+        assertThat(second.next, equalTo(1L));
+        assertThat(second.entries.size(), equalTo(1));
+        assertThat(third.next, equalTo(1L));
+        assertThat(third.entries.get(0).id(), equalTo("1"));
+
+        Map<String, Object> stats = stats(tail);
+        assertThat(((Number) stats.get("evicted")).longValue(), equalTo(1L));
+        assertThat(((Number) stats.get("waiting")).intValue(), equalTo(0));
+        assertThat(((Number) stats.get("delivered")).longValue(), equalTo(2L));
+    }
+}
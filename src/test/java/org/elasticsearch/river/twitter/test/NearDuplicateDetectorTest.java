@@ -0,0 +1,110 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter.test;
+
+import org.elasticsearch.river.twitter.NearDuplicateDetector;
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+
+/**
+ * Checks that bands find every fingerprint within {@code max_distance}, and only those
+ */
+public class NearDuplicateDetectorTest extends ElasticsearchTestCase {
+
+    private static NearDuplicateDetector detector(int maxDistance) {
+        Map<String, Object> settings = new HashMap<String, Object>();
+        settings.put("max_distance", maxDistance);
+        settings.put("window", "10m");
+        return new NearDuplicateDetector(settings);
+    }
+
+    private List<String> words(int count) {
+        List<String> words = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            words.add(randomAsciiOfLengthBetween(3, 10));
+        }
+        return words;
+    }
+
+    private static String text(List<String> words) {
+        StringBuilder text = new StringBuilder();
+        for (String word : words) {
+            text.append(word).append(' ');
+        }
+        return text.toString();
+    }
+
+    @Test
+    public void testBandRecall() {
+        int maxDistance = randomIntBetween(1, 6);
+        List<String> base = words(200);
+        String baseText = text(base);
+        long baseFingerprint = NearDuplicateDetector.simHash(NearDuplicateDetector.tokens(baseText));
+
+        int near = 0;
+        int far = 0;
+        for (int i = 0; i < 2000; i++) {
+            // Changing a few words moves the fingerprint by a few bits, in any band
+            List<String> variant = new ArrayList<String>(base);
+            int changes = randomIntBetween(1, 3);
+            for (int c = 0; c < changes; c++) {
+                variant.set(randomInt(variant.size() - 1), randomAsciiOfLengthBetween(3, 10));
+            }
+            String variantText = text(variant);
+            int distance = Long.bitCount(baseFingerprint ^ NearDuplicateDetector.simHash(NearDuplicateDetector.tokens(variantText)));
+
+            NearDuplicateDetector detector = detector(maxDistance);
+            assertFalse(detector.isDuplicate(1, "twitter", "status", baseText, 0));
+            boolean duplicate = detector.isDuplicate(2, "twitter", "status", variantText, 0);
+            assertThat("distance " + distance + " with max_distance " + maxDistance, duplicate, equalTo(distance <= maxDistance));
+            if (distance <= maxDistance) {
+                near++;
+            } else {
+                far++;
+            }
+        }
+        assertThat(near, greaterThan(0));
+        assertThat(far, greaterThan(0));
+    }
+
+    @Test
+    public void testNormalizationAndWindow() {
+        NearDuplicateDetector detector = detector(3);
+        String text = "Win a brand new phone today, just follow and retweet";
+        assertFalse(detector.isDuplicate(1, "twitter", "status", text + " http://t.co/abc", 0));
+        // Urls, mentions, case and punctuation are not part of the fingerprint
+        assertTrue(detector.isDuplicate(2, "twitter", "status", "@someone WIN a brand new phone today!!! just follow and retweet http://t.co/xyz", 1000));
+        // Too short texts are never duplicates
+        assertFalse(detector.isDuplicate(3, "twitter", "status", "good morning", 2000));
+        assertFalse(detector.isDuplicate(4, "twitter", "status", "good morning", 3000));
+        // Out of the window, the text is recorded again
+        long later = 11 * 60 * 1000;
+        assertFalse(detector.isDuplicate(5, "twitter", "status", text, later));
+        assertTrue(detector.isDuplicate(6, "twitter", "status", text, later + 1));
+    }
+}
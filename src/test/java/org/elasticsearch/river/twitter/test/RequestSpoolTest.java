@@ -0,0 +1,91 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter.test;
+
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Requests;
+import org.elasticsearch.river.twitter.RequestSpool;
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+
+/**
+ * Checks that the spool gives requests back in order, makes room from what was read, and survives a restart
+ */
+public class RequestSpoolTest extends ElasticsearchTestCase {
+
+    private static IndexRequest request(int n) {
+        return Requests.indexRequest("twitter").type("status").id(Integer.toString(n)).source("{\"n\":" + n + "}");
+    }
+
+    private static void assertPolled(RequestSpool spool, int n) throws Exception {
+        IndexRequest request = spool.poll();
+        assertThat(request.index(), equalTo("twitter"));
+        assertThat(request.type(), equalTo("status"));
+        assertThat(request.id(), equalTo(Integer.toString(n)));
+        assertThat(request.source().toUtf8(), equalTo("{\"n\":" + n + "}"));
+    }
+
+    @Test
+    public void testRoundTripAndCompaction() throws Exception {
+        File file = createTempDir().resolve("test.spool").toFile();
+
+        // Requests all have the same size, measure one
+        RequestSpool spool = new RequestSpool(file, -1);
+        assertTrue(spool.append(request(0)));
+        long entrySize = spool.sizeInBytes();
+        assertPolled(spool, 0);
+        assertTrue(spool.isEmpty());
+        spool.close();
+
+        spool = new RequestSpool(file, 4 * entrySize);
+        for (int n = 1; n <= 4; n++) {
+            assertTrue(spool.append(request(n)));
+        }
+        assertFalse(spool.append(request(5)));
+        assertThat(spool.size(), equalTo(4L));
+
+        // Reading makes room, the next append removes what was read
+        assertPolled(spool, 1);
+        assertPolled(spool, 2);
+        assertTrue(spool.append(request(5)));
+        assertThat(file.length(), equalTo(3 * entrySize));
+        assertTrue(spool.append(request(6)));
+        assertFalse(spool.append(request(7)));
+        assertPolled(spool, 3);
+        spool.close();
+
+        // Only what was not read is kept, in order
+        assertThat(file.length(), equalTo(3 * entrySize));
+        spool = new RequestSpool(file, 4 * entrySize);
+        assertFalse(spool.isEmpty());
+        for (int n = 4; n <= 6; n++) {
+            assertPolled(spool, n);
+        }
+        assertThat(spool.poll(), nullValue());
+        assertTrue(spool.isEmpty());
+        assertThat(file.length(), equalTo(0L));
+        spool.close();
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter.test;
+
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.river.RiverName;
+import org.elasticsearch.river.twitter.RiverOwnership;
+import org.elasticsearch.test.ElasticsearchIntegrationTest;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+
+/**
+ * Checks that a single instance owns a river, and when a standby may take it over
+ */
+@ElasticsearchIntegrationTest.ClusterScope(
+        scope = ElasticsearchIntegrationTest.Scope.SUITE,
+        numDataNodes = 1,
+        transportClientRatio = 0.0)
+public class RiverOwnershipTest extends ElasticsearchIntegrationTest {
+
+    private static final RiverName RIVER = new RiverName("twitter", "leased");
+
+    private RiverOwnership ownership(String riverIndexName) {
+        return new RiverOwnership(logger, client(), riverIndexName, RIVER,
+                TimeValue.timeValueMillis(100), TimeValue.timeValueSeconds(1));
+    }
+
+    @SuppressWarnings({"unchecked"})
+    private static Map<String, Object> stats(RiverOwnership ownership) throws Exception {
+        XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+        ownership.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        builder.endObject();
+        return (Map<String, Object>) XContentHelper.convertToMap(builder.bytes(), false).v2().get("ownership");
+    }
+
+    @Test
+    public void testStandbyTakesOverWhenTheLeaseIsNotRenewed() throws Exception {
+        createIndex("lease_takeover");
+        ensureGreen("lease_takeover");
+        RiverOwnership owner = ownership("lease_takeover");
+        RiverOwnership standby = ownership("lease_takeover");
+
+        assertTrue(owner.tryAcquire());
+        assertFalse(standby.tryAcquire());
+        // Every renewal tells the standby that the owner is alive
+        for (int i = 0; i < 3; i++) {
+            assertTrue(owner.tryAcquire());
+            assertFalse(standby.tryAcquire());
+        }
+        assertFalse(standby.tryAcquire());
+
+        // The owner stops renewing its lease
+        Thread.sleep(1200);
+        assertTrue(standby.tryAcquire());
+        assertTrue(standby.owner());
+        assertThat(((Number) stats(standby).get("takeovers")).longValue(), equalTo(1L));
+
+        assertFalse(owner.tryAcquire());
+        assertFalse(owner.owner());
+        assertThat(owner.ownerNode(), equalTo(standby.ownerNode()));
+    }
+
+    @Test
+    public void testReleasedLeaseIsTakenRightAway() throws Exception {
+        createIndex("lease_release");
+        ensureGreen("lease_release");
+        RiverOwnership owner = ownership("lease_release");
+        RiverOwnership standby = ownership("lease_release");
+
+        assertTrue(owner.tryAcquire());
+        assertFalse(standby.tryAcquire());
+        owner.release();
+        assertFalse(owner.owner());
+        // No need to wait for takeover_after
+        assertTrue(standby.tryAcquire());
+        assertThat(((Number) stats(standby).get("takeovers")).longValue(), equalTo(0L));
+    }
+
+    @Test
+    public void testOwnerGivesUpBeforeTheStandbyTakesOver() throws Exception {
+        createIndex("lease_cut_off");
+        ensureGreen("lease_cut_off");
+        RiverOwnership owner = ownership("lease_cut_off");
+
+        assertTrue(owner.tryAcquire());
+        long renewedAt = System.currentTimeMillis();
+        // The lease can not be read anymore
+        client().admin().indices().prepareClose("lease_cut_off").get();
+        assertTrue(owner.tryAcquire());
+        while (owner.tryAcquire()) {
+            Thread.sleep(100);
+        }
+        long gaveUpAfter = System.currentTimeMillis() - renewedAt;
+        // Three heartbeats before takeover_after, so the next attempt could not have ended after it
+        assertThat(gaveUpAfter, lessThan(1000L));
+        assertThat(gaveUpAfter, greaterThan(600L));
+        assertFalse(owner.owner());
+        assertThat(((Number) stats(owner).get("renew_failures")).longValue(), greaterThan(1L));
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter.test;
+
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.river.twitter.SlimRawFilter;
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+
+/**
+ * Checks that slim raw documents hold the same fields whatever their content type
+ */
+public class SlimRawFilterTest extends ElasticsearchTestCase {
+
+    private static final String RAW = "{\"id\":240558470661799936,\"text\":\"just another test\"," +
+            "\"user\":{\"id\":6253282,\"screen_name\":\"twitterapi\",\"description\":\"The Real Twitter API.\"," +
+            "\"followers_count\":1000}," +
+            "\"entities\":{\"media\":[{\"id\":1,\"sizes\":{\"large\":{\"w\":1024}}},{\"id\":2,\"sizes\":{}}]}," +
+            "\"retweet_count\":0}";
+
+    private static Map<String, Object> filter(SlimRawFilter filter, XContentType type) throws IOException {
+        return XContentHelper.convertToMap(filter.filter(RAW, type).bytes(), false).v2();
+    }
+
+    @Test
+    public void testSameDocumentWhateverTheContentType() throws IOException {
+        Map<String, Object> settings = new HashMap<String, Object>();
+        settings.put("drop", Arrays.asList("entities.media.sizes"));
+        SlimRawFilter filter = SlimRawFilter.parse(settings);
+
+        Map<String, Object> json = filter(filter, XContentType.JSON);
+        assertThat(json.get("text"), equalTo((Object) "just another test"));
+        assertThat(XContentMapValues.extractValue("user.screen_name", json), equalTo((Object) "twitterapi"));
+        assertThat(XContentMapValues.extractValue("user.description", json), nullValue());
+        List<?> media = (List<?>) XContentMapValues.extractValue("entities.media", json);
+        assertThat(media.size(), equalTo(2));
+        for (Object medium : media) {
+            assertThat(((Map<?, ?>) medium).containsKey("sizes"), equalTo(false));
+        }
+
+        assertThat(filter(filter, XContentType.SMILE), equalTo(json));
+        assertThat(filter(filter, XContentType.CBOR), equalTo(json));
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter.test;
+
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.river.twitter.StallMonitor;
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Checks how the river scales up and degrades when twitter warns it is falling behind
+ */
+public class StallMonitorTest extends ElasticsearchTestCase {
+
+    @SuppressWarnings({"unchecked"})
+    private static Map<String, Object> stats(StallMonitor monitor) throws IOException {
+        XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+        monitor.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        builder.endObject();
+        return (Map<String, Object>) XContentHelper.convertToMap(builder.bytes(), false).v2().get("stall_warnings");
+    }
+
+    @Test
+    public void testWarningsScaleUpToTheLimits() throws IOException {
+        Map<String, Object> settings = new HashMap<String, Object>();
+        settings.put("max_workers", 6);
+        settings.put("max_concurrent_bulk", 2);
+        StallMonitor monitor = new StallMonitor(settings);
+
+        assertThat(monitor.workers(1), equalTo(2));
+        assertThat(monitor.workers(2), equalTo(4));
+        assertThat(monitor.workers(4), equalTo(6));
+        assertThat(monitor.workers(6), equalTo(6));
+        assertThat(monitor.concurrentBulks(0), equalTo(1));
+        assertThat(monitor.concurrentBulks(1), equalTo(2));
+        assertThat(monitor.concurrentBulks(2), equalTo(2));
+        // Shared bulk processors are left alone
+        assertThat(monitor.concurrentBulks(-1), equalTo(-1));
+
+        // The river does not degrade by default
+        assertFalse(monitor.onWarning(95, 0));
+        assertTrue(monitor.acceptStatus(1, 0));
+
+        Map<String, Object> stats = stats(monitor);
+        assertThat(stats.get("warnings"), equalTo((Object) 1));
+        assertThat(stats.get("worker_scale_ups"), equalTo((Object) 3));
+        assertThat(stats.get("bulk_scale_ups"), equalTo((Object) 2));
+        assertThat(stats.get("degradations"), equalTo((Object) 0));
+    }
+
+    @Test
+    public void testSamplingLastsForTheCooldown() throws IOException {
+        Map<String, Object> settings = new HashMap<String, Object>();
+        settings.put("degrade", "sample");
+        settings.put("degrade_above", 50);
+        settings.put("sample_ratio", 0.25);
+        settings.put("cooldown", "1m");
+        StallMonitor monitor = new StallMonitor(settings);
+
+        assertFalse(monitor.onWarning(40, 0));
+        assertTrue(monitor.onWarning(60, 1000));
+        assertThat(monitor.degradedUntil(), equalTo(61000L));
+        // A warning while degraded extends the cooldown without counting a new degradation
+        assertTrue(monitor.onWarning(55, 30000));
+        assertThat(monitor.degradedUntil(), equalTo(90000L));
+
+        int kept = 0;
+        for (long id = 0; id < 10000; id++) {
+            if (monitor.acceptStatus(id, 60000)) {
+                kept++;
+            }
+            assertTrue(monitor.acceptStatus(id, 90000));
+        }
+        assertTrue("kept " + kept, kept > 2000 && kept < 3000);
+
+        Map<String, Object> stats = stats(monitor);
+        assertThat(stats.get("warnings"), equalTo((Object) 3));
+        assertThat(stats.get("degradations"), equalTo((Object) 1));
+        assertThat(stats.get("max_percent_full"), equalTo((Object) 60));
+        assertThat(stats.get("last_percent_full"), equalTo((Object) 55));
+    }
+}
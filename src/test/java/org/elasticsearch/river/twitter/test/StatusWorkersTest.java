@@ -0,0 +1,139 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter.test;
+
+import org.elasticsearch.river.twitter.StatusWorkers;
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Checks that tasks with the same key run in the order they were given, even when workers are resized
+ */
+public class StatusWorkersTest extends ElasticsearchTestCase {
+
+    private ThreadPool threadPool;
+
+    @Before
+    public void createThreadPool() {
+        threadPool = new ThreadPool("test");
+    }
+
+    @After
+    public void terminateThreadPool() {
+        ThreadPool.terminate(threadPool, 10, TimeUnit.SECONDS);
+    }
+
+    private static List<List<Integer>> runs(int keys) {
+        List<List<Integer>> runs = new ArrayList<List<Integer>>(keys);
+        for (int key = 0; key < keys; key++) {
+            runs.add(Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+        return runs;
+    }
+
+    private static Runnable task(final List<Integer> run, final int sequence, final CountDownLatch done) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                run.add(sequence);
+                done.countDown();
+            }
+        };
+    }
+
+    private static void assertInOrder(List<List<Integer>> runs, int tasksPerKey) {
+        for (List<Integer> run : runs) {
+            assertThat(run.size(), equalTo(tasksPerKey));
+            for (int i = 0; i < tasksPerKey; i++) {
+                assertThat(run.get(i), equalTo(i));
+            }
+        }
+    }
+
+    @Test
+    public void testTasksOfAKeyRunInOrder() throws InterruptedException {
+        int keys = randomIntBetween(5, 20);
+        int tasksPerKey = 200;
+        StatusWorkers workers = new StatusWorkers(logger, threadPool.executor(ThreadPool.Names.GENERIC),
+                randomIntBetween(1, 4), randomIntBetween(1, 10));
+        List<List<Integer>> runs = runs(keys);
+        CountDownLatch done = new CountDownLatch(keys * tasksPerKey);
+
+        for (int i = 0; i < tasksPerKey; i++) {
+            for (int key = 0; key < keys; key++) {
+                workers.execute(key, task(runs.get(key), i, done));
+            }
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertInOrder(runs, tasksPerKey);
+    }
+
+    @Test
+    public void testResizeKeepsTasksOfAKeyInOrder() throws InterruptedException {
+        int keys = randomIntBetween(5, 20);
+        int tasksPerKey = 200;
+        StatusWorkers workers = new StatusWorkers(logger, threadPool.executor(ThreadPool.Names.GENERIC), 2, 10);
+        List<List<Integer>> runs = runs(keys);
+        CountDownLatch done = new CountDownLatch(keys * tasksPerKey);
+
+        for (int i = 0; i < tasksPerKey; i++) {
+            if (i % 50 == 25) {
+                workers.resize(randomIntBetween(1, 8));
+            }
+            for (int key = 0; key < keys; key++) {
+                workers.execute(key, task(runs.get(key), i, done));
+            }
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertInOrder(runs, tasksPerKey);
+    }
+
+    @Test
+    public void testFailingTaskDoesNotStopItsWorker() throws InterruptedException {
+        StatusWorkers workers = new StatusWorkers(logger, threadPool.executor(ThreadPool.Names.GENERIC), 1, 10);
+        List<List<Integer>> runs = runs(1);
+        CountDownLatch done = new CountDownLatch(2);
+
+        workers.execute(0, task(runs.get(0), 0, done));
+        workers.execute(0, new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("bad status");
+            }
+        });
+        workers.execute(0, task(runs.get(0), 1, done));
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertInOrder(runs, 2);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter.test;
+
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.river.twitter.StreamCheckpoint;
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Checks that the checkpoint only moves forward, whether it is updated or loaded
+ */
+public class StreamCheckpointTest extends ElasticsearchTestCase {
+
+    private static Map<String, Object> source(StreamCheckpoint checkpoint) throws IOException {
+        XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+        checkpoint.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        builder.endObject();
+        return XContentHelper.convertToMap(builder.bytes(), false).v2();
+    }
+
+    @Test
+    public void testUpdatesOnlyMoveForward() {
+        StreamCheckpoint checkpoint = new StreamCheckpoint();
+        assertThat(checkpoint.lastStatusId(), equalTo(-1L));
+        assertFalse(checkpoint.clearDirty());
+
+        checkpoint.update(20, 2000);
+        checkpoint.update(10, 1000);
+        assertThat(checkpoint.lastStatusId(), equalTo(20L));
+        assertThat(checkpoint.lastCreatedAt(), equalTo(2000L));
+        assertTrue(checkpoint.clearDirty());
+        assertFalse(checkpoint.clearDirty());
+
+        // An older status does not make the checkpoint dirty again
+        checkpoint.update(15, 1500);
+        assertFalse(checkpoint.clearDirty());
+        checkpoint.update(30, 3000);
+        assertTrue(checkpoint.clearDirty());
+    }
+
+    @Test
+    public void testLoadKeepsTheLatestStatus() throws IOException {
+        StreamCheckpoint persisted = new StreamCheckpoint();
+        persisted.update(20, 2000);
+
+        StreamCheckpoint restarted = new StreamCheckpoint();
+        restarted.load(null);
+        assertThat(restarted.lastStatusId(), equalTo(-1L));
+        restarted.load(source(persisted));
+        assertThat(restarted.lastStatusId(), equalTo(20L));
+        assertThat(restarted.lastCreatedAt(), equalTo(2000L));
+
+        // Statuses indexed before the checkpoint was read win over it
+        StreamCheckpoint ahead = new StreamCheckpoint();
+        ahead.update(30, 3000);
+        ahead.load(source(persisted));
+        assertThat(ahead.lastStatusId(), equalTo(30L));
+        assertThat(ahead.lastCreatedAt(), equalTo(3000L));
+    }
+}
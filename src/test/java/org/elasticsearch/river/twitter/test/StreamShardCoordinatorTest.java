@@ -0,0 +1,205 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter.test;
+
+import com.carrotsearch.randomizedtesting.annotations.ThreadLeakFilters;
+import org.elasticsearch.action.admin.cluster.node.info.NodeInfo;
+import org.elasticsearch.common.base.Predicate;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.plugins.PluginsService;
+import org.elasticsearch.river.RiverName;
+import org.elasticsearch.river.twitter.StreamShardCoordinator;
+import org.elasticsearch.test.ElasticsearchIntegrationTest;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.elasticsearch.cluster.metadata.IndexMetaData.SETTING_NUMBER_OF_REPLICAS;
+import static org.elasticsearch.cluster.metadata.IndexMetaData.SETTING_NUMBER_OF_SHARDS;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Checks that stream shards are spread evenly, and that only the shards which must move do so when nodes
+ * leave or join
+ */
+@ElasticsearchIntegrationTest.ClusterScope(
+        scope = ElasticsearchIntegrationTest.Scope.TEST,
+        numDataNodes = 3,
+        transportClientRatio = 0.0)
+@ThreadLeakFilters(defaultFilters = true, filters = {Twitter4JThreadFilter.class})
+public class StreamShardCoordinatorTest extends ElasticsearchIntegrationTest {
+
+    // Not the river index of the nodes, so the shards are assigned but never started
+    private static final String RIVER_INDEX = "shards_river";
+
+    @Override
+    protected Settings nodeSettings(int nodeOrdinal) {
+        return Settings.builder()
+                .put(super.nodeSettings(nodeOrdinal))
+                .put("path.home", createTempDir())
+                .put("plugins." + PluginsService.LOAD_PLUGIN_FROM_CLASSPATH, true)
+                .build();
+    }
+
+    private StreamShardCoordinator coordinator(int shards) {
+        String[] tracks = new String[shards];
+        List<Map<String, Object>> tokens = new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < shards; i++) {
+            tracks[i] = "track" + i;
+            if (i > 0) {
+                Map<String, Object> token = new HashMap<String, Object>();
+                token.put("consumer_key", "key" + i);
+                token.put("consumer_secret", "secret" + i);
+                token.put("access_token", "token" + i);
+                token.put("access_token_secret", "token_secret" + i);
+                tokens.add(token);
+            }
+        }
+        Map<String, Object> filter = new HashMap<String, Object>();
+        filter.put("tracks", Arrays.asList(tracks));
+        Map<String, Object> twitter = new HashMap<String, Object>();
+        twitter.put("type", "filter");
+        twitter.put("filter", filter);
+        Map<String, Object> settings = new HashMap<String, Object>();
+        settings.put("type", "twitter");
+        settings.put("twitter", twitter);
+        return new StreamShardCoordinator(logger, client(), RIVER_INDEX, new RiverName("twitter", "sharded"), settings,
+                "sharded", shards, tokens, tracks, null, null, TimeValue.timeValueMinutes(1));
+    }
+
+    @SuppressWarnings({"unchecked"})
+    private static Map<String, Object> stats(StreamShardCoordinator coordinator) throws Exception {
+        XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+        coordinator.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        builder.endObject();
+        return (Map<String, Object>) XContentHelper.convertToMap(builder.bytes(), false).v2().get("stream_shards");
+    }
+
+    /**
+     * Node of every shard
+     */
+    @SuppressWarnings({"unchecked"})
+    private static List<String> assignments(StreamShardCoordinator coordinator) throws Exception {
+        List<String> nodes = new ArrayList<String>();
+        for (Object shard : (List<Object>) stats(coordinator).get("shards")) {
+            nodes.add((String) ((Map<String, Object>) shard).get("node"));
+        }
+        return nodes;
+    }
+
+    /**
+     * Nodes which can run shards
+     */
+    private Set<String> nodeIds() {
+        Set<String> ids = new HashSet<String>();
+        for (NodeInfo info : client().admin().cluster().prepareNodesInfo().get().getNodes()) {
+            if (!info.getNode().clientNode()) {
+                ids.add(info.getNode().id());
+            }
+        }
+        return ids;
+    }
+
+    private static void assertBalanced(List<String> assignments, Set<String> nodes) {
+        int share = assignments.size() / nodes.size();
+        for (String node : nodes) {
+            int count = 0;
+            for (String assigned : assignments) {
+                if (node.equals(assigned)) {
+                    count++;
+                }
+            }
+            assertTrue(assignments + " not balanced over " + nodes, count == share || count == share + 1);
+        }
+    }
+
+    /**
+     * Checks until the coordinator sees the given number of nodes
+     */
+    private static void checkWithNodes(final StreamShardCoordinator coordinator, final int nodes) throws Exception {
+        assertTrue(awaitBusy(new Predicate<Object>() {
+            @Override
+            public boolean apply(Object input) {
+                coordinator.check();
+                try {
+                    return ((Number) stats(coordinator).get("nodes")).intValue() == nodes;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }));
+    }
+
+    @Test
+    public void testOnlyShardsOfLeavingNodesMove() throws Exception {
+        client().admin().indices().prepareCreate(RIVER_INDEX).setSettings(Settings.builder()
+                .put(SETTING_NUMBER_OF_SHARDS, 1)
+                .put(SETTING_NUMBER_OF_REPLICAS, 2)).get();
+        ensureGreen(RIVER_INDEX);
+        StreamShardCoordinator coordinator = coordinator(6);
+        assertThat(coordinator.shards(), equalTo(6));
+
+        checkWithNodes(coordinator, 3);
+        List<String> before = assignments(coordinator);
+        assertBalanced(before, nodeIds());
+        assertThat(((Number) stats(coordinator).get("reassignments")).longValue(), equalTo(0L));
+
+        internalCluster().stopRandomDataNode();
+        checkWithNodes(coordinator, 2);
+        Set<String> alive = nodeIds();
+        List<String> after = assignments(coordinator);
+        assertBalanced(after, alive);
+        int moved = 0;
+        for (int i = 0; i < before.size(); i++) {
+            if (alive.contains(before.get(i))) {
+                assertThat("shard [" + i + "] was on a node which stayed", after.get(i), equalTo(before.get(i)));
+            } else {
+                moved++;
+            }
+        }
+        assertThat(moved, equalTo(2));
+        assertThat(((Number) stats(coordinator).get("reassignments")).longValue(), equalTo(2L));
+
+        // A new node takes one shard of each of the others
+        internalCluster().startNode();
+        checkWithNodes(coordinator, 3);
+        List<String> rebalanced = assignments(coordinator);
+        assertBalanced(rebalanced, nodeIds());
+        moved = 0;
+        for (int i = 0; i < after.size(); i++) {
+            if (!after.get(i).equals(rebalanced.get(i))) {
+                moved++;
+            }
+        }
+        assertThat(moved, equalTo(2));
+        assertThat(((Number) stats(coordinator).get("reassignments")).longValue(), equalTo(4L));
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.river.twitter.test;
+
+import com.carrotsearch.randomizedtesting.annotations.ThreadLeakFilters;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.common.base.Predicate;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.plugins.PluginsService;
+import org.elasticsearch.river.twitter.ArchiveReindexer;
+import org.elasticsearch.river.twitter.TwitterIngestService;
+import org.elasticsearch.test.ElasticsearchIntegrationTest;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.elasticsearch.cluster.metadata.IndexMetaData.SETTING_NUMBER_OF_REPLICAS;
+import static org.elasticsearch.cluster.metadata.IndexMetaData.SETTING_NUMBER_OF_SHARDS;
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.notNullValue;
+
+/**
+ * Archives synthetic statuses, and builds them again in another index. Needs no internet access.
+ */
+@ElasticsearchIntegrationTest.ClusterScope(
+        scope = ElasticsearchIntegrationTest.Scope.SUITE,
+        numDataNodes = 1,
+        transportClientRatio = 0.0)
+@ThreadLeakFilters(defaultFilters = true, filters = {Twitter4JThreadFilter.class})
+public class TwitterArchiveTest extends ElasticsearchIntegrationTest {
+
+    private static final String RIVER = "archived";
+    private static final String TARGET = "archived_v2";
+
+    @Override
+    protected Settings nodeSettings(int nodeOrdinal) {
+        return Settings.builder()
+                .put(super.nodeSettings(nodeOrdinal))
+                .put("path.home", createTempDir())
+                .put("plugins." + PluginsService.LOAD_PLUGIN_FROM_CLASSPATH, true)
+                .build();
+    }
+
+    @Test
+    public void testReindexFromArchive() throws Exception {
+        client().admin().indices().prepareCreate("_river").setSettings(Settings.builder()
+                .put(SETTING_NUMBER_OF_SHARDS, 1)
+                .put(SETTING_NUMBER_OF_REPLICAS, 0)).get();
+        client().admin().indices().prepareCreate(RIVER).setSettings(Settings.builder()
+                .put(SETTING_NUMBER_OF_REPLICAS, 0)).get();
+
+        index("_river", RIVER, "_meta", jsonBuilder()
+            .startObject()
+                .field("type", "twitter")
+                .startObject("twitter")
+                    .field("type", "synthetic")
+                    .startObject("synthetic")
+                        .field("rate", 200)
+                    .endObject()
+                    .startObject("archive")
+                        .field("path", createTempDir().toString())
+                        .field("block_size", "16kb")
+                        .field("flush_interval", "1s")
+                    .endObject()
+                .endObject()
+                .startObject("index")
+                    .field("index", RIVER)
+                    .field("flush_interval", "1s")
+                    .field("stats_interval", "1s")
+                .endObject()
+            .endObject());
+
+        assertThat(awaitBusy(new Predicate<Object>() {
+            @Override
+            public boolean apply(Object o) {
+                GetResponse stats = client().prepareGet("_river", RIVER, "_stats").get();
+                if (!stats.isExists()) {
+                    return false;
+                }
+                Number blocks = (Number) XContentMapValues.extractValue("archive.blocks", stats.getSourceAsMap());
+                return blocks != null && blocks.longValue() >= 3;
+            }
+        }, 1, TimeUnit.MINUTES), equalTo(true));
+
+        final ArchiveReindexer reindexer = internalCluster().getInstance(TwitterIngestService.class).reindexer(RIVER);
+        assertThat(reindexer, notNullValue());
+        reindexer.start(TARGET, null, 0, Long.MAX_VALUE, 2, 50);
+        assertThat(awaitBusy(new Predicate<Object>() {
+            @Override
+            public boolean apply(Object o) {
+                return !reindexer.running();
+            }
+        }, 1, TimeUnit.MINUTES), equalTo(true));
+
+        client().prepareDelete("_river", RIVER, "_meta").get();
+
+        refresh();
+        long rebuilt = client().prepareCount(TARGET).get().getCount();
+        assertThat(rebuilt, greaterThan(0L));
+        // The stream kept going while the archive was read back
+        assertThat(rebuilt, lessThanOrEqualTo(client().prepareCount(RIVER).get().getCount()));
+    }
+}
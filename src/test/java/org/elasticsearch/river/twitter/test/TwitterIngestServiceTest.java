@@ -0,0 +1,230 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter.test;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Requests;
+import org.elasticsearch.common.base.Predicate;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.river.RiverName;
+import org.elasticsearch.river.twitter.BulkIndexer;
+import org.elasticsearch.river.twitter.BulkLanes;
+import org.elasticsearch.river.twitter.TwitterIngestService;
+import org.elasticsearch.test.ElasticsearchIntegrationTest;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+
+/**
+ * Checks that the rivers of a node share the ingestion service, and what happens when it is full
+ */
+@ElasticsearchIntegrationTest.ClusterScope(
+        scope = ElasticsearchIntegrationTest.Scope.SUITE,
+        numDataNodes = 1,
+        transportClientRatio = 0.0)
+public class TwitterIngestServiceTest extends ElasticsearchIntegrationTest {
+
+    private TwitterIngestService service(Settings.Builder settings) {
+        return new TwitterIngestService(settings
+                .put("river.twitter.ingest.flush_interval", "100ms")
+                .build(), client());
+    }
+
+    private static void index(BulkIndexer indexer, String index, String type, int count) {
+        for (int i = 0; i < count; i++) {
+            indexer.index(Requests.indexRequest(index).type(type).id(Integer.toString(i))
+                    .source("{\"text\":\"status " + i + "\"}"));
+        }
+    }
+
+    /**
+     * Indexes documents of about 600 bytes
+     */
+    private static void indexLarge(BulkIndexer indexer, String index, int count) {
+        char[] text = new char[600];
+        Arrays.fill(text, 'a');
+        for (int i = 0; i < count; i++) {
+            indexer.index(Requests.indexRequest(index).type("status").id(Integer.toString(i))
+                    .source("{\"text\":\"" + new String(text) + "\"}"));
+        }
+    }
+
+    @SuppressWarnings({"unchecked"})
+    private static Map<String, Object> stats(BulkIndexer indexer) throws Exception {
+        XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+        indexer.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        builder.endObject();
+        return (Map<String, Object>) XContentHelper.convertToMap(builder.bytes(), false).v2().get("shared_ingest");
+    }
+
+    private static long stat(BulkIndexer indexer, String name) throws Exception {
+        return ((Number) stats(indexer).get(name)).longValue();
+    }
+
+    @Test
+    public void testEveryRiverIsIndexed() throws Exception {
+        createIndex("shared");
+        ensureGreen("shared");
+        TwitterIngestService service = service(Settings.builder()
+                .put("river.twitter.ingest.bulk_size", 50)
+                .put("river.twitter.ingest.quantum", 10));
+        service.start();
+        BulkIndexer busy = service.register(new RiverName("twitter", "busy"), null);
+        BulkIndexer quiet = service.register(new RiverName("twitter", "quiet"), null);
+
+        index(busy, "shared", "busy", 300);
+        index(quiet, "shared", "quiet", 30);
+        // Stopping flushes whatever is queued
+        service.stop();
+        service.close();
+
+        assertThat(stat(busy, "added"), equalTo(300L));
+        assertThat(stat(busy, "succeeded"), equalTo(300L));
+        assertThat(stat(quiet, "succeeded"), equalTo(30L));
+        assertThat(stat(quiet, "rivers"), equalTo(2L));
+        refresh();
+        assertThat(client().prepareCount("shared").setTypes("busy").get().getCount(), equalTo(300L));
+        assertThat(client().prepareCount("shared").setTypes("quiet").get().getCount(), equalTo(30L));
+    }
+
+    @Test
+    public void testFullQueueRejectsAfterMaxWait() throws Exception {
+        createIndex("rejected");
+        ensureGreen("rejected");
+        TwitterIngestService service = service(Settings.builder()
+                .put("river.twitter.ingest.queue_size", 2)
+                .put("river.twitter.ingest.max_wait", "100ms"));
+        BulkIndexer river = service.register(new RiverName("twitter", "rejected"), null);
+
+        // Nothing drains the queue until the service starts
+        index(river, "rejected", "status", 3);
+        assertThat(stat(river, "queued"), equalTo(2L));
+        assertThat(stat(river, "rejected"), equalTo(1L));
+        assertThat(stat(river, "failed"), equalTo(1L));
+
+        service.start();
+        service.stop();
+        service.close();
+        assertThat(stat(river, "succeeded"), equalTo(2L));
+        assertThat(stat(river, "pending_in_bytes"), equalTo(0L));
+    }
+
+    @Test
+    public void testRiversAreServedInTurn() throws Exception {
+        createIndex("fair");
+        ensureGreen("fair");
+        final List<String> submitted = Collections.synchronizedList(new ArrayList<String>());
+        BulkLanes.Listener listener = new BulkLanes.Listener() {
+            @Override
+            public void onRequestSubmitted(ActionRequest request) {
+                submitted.add(((IndexRequest) request).type());
+            }
+
+            @Override
+            public void onRequestDone(ActionRequest request, boolean failed) {
+            }
+        };
+        TwitterIngestService service = service(Settings.builder()
+                .put("river.twitter.ingest.bulk_size", 10)
+                .put("river.twitter.ingest.max_concurrent_bulk", 1)
+                .put("river.twitter.ingest.quantum", 10));
+        BulkIndexer busy = service.register(new RiverName("twitter", "busy"), listener);
+        BulkIndexer quiet = service.register(new RiverName("twitter", "quiet"), listener);
+
+        // Both queues are full before the dispatcher starts
+        index(busy, "fair", "busy", 300);
+        index(quiet, "fair", "quiet", 30);
+        service.start();
+        assertTrue(awaitBusy(new Predicate<Object>() {
+            @Override
+            public boolean apply(Object input) {
+                return submitted.size() == 330;
+            }
+        }));
+        service.stop();
+        service.close();
+
+        // The quiet river does not wait behind the backlog of the busy one
+        assertThat(submitted.toString(), submitted.lastIndexOf("quiet"), lessThan(60));
+    }
+
+    @Test
+    public void testRiversWaitForRoomUntilABulkIsDone() throws Exception {
+        createIndex("room");
+        ensureGreen("room");
+        TwitterIngestService service = service(Settings.builder()
+                .put("river.twitter.ingest.bulk_size", 1)
+                .put("river.twitter.ingest.max_pending", "1kb")
+                .put("river.twitter.ingest.max_wait", "10s"));
+        service.start();
+        BulkIndexer river = service.register(new RiverName("twitter", "room"), null);
+
+        // Every document but the first one waits for the previous one to be indexed
+        indexLarge(river, "room", 5);
+        service.stop();
+        service.close();
+        assertThat(stat(river, "rejected"), equalTo(0L));
+        assertThat(stat(river, "succeeded"), equalTo(5L));
+    }
+
+    @Test
+    public void testRiversGiveUpWhenNoRoomIsMadeInTime() throws Exception {
+        createIndex("no_room");
+        ensureGreen("no_room");
+        final List<String> failed = Collections.synchronizedList(new ArrayList<String>());
+        TwitterIngestService service = service(Settings.builder()
+                .put("river.twitter.ingest.max_pending", "1kb")
+                .put("river.twitter.ingest.max_wait", "200ms"));
+        BulkIndexer river = service.register(new RiverName("twitter", "no_room"), new BulkLanes.Listener() {
+            @Override
+            public void onRequestSubmitted(ActionRequest request) {
+            }
+
+            @Override
+            public void onRequestDone(ActionRequest request, boolean failedRequest) {
+                if (failedRequest) {
+                    failed.add(((IndexRequest) request).id());
+                }
+            }
+        });
+
+        // The first document is never sent until the service starts, so the second one finds no room
+        indexLarge(river, "no_room", 2);
+        assertThat(failed, equalTo(Arrays.asList("1")));
+        assertThat(stat(river, "rejected"), equalTo(1L));
+
+        service.start();
+        service.stop();
+        service.close();
+        assertThat(stat(river, "succeeded"), equalTo(1L));
+    }
+}
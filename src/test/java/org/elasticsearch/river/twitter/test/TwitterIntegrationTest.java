@@ -20,6 +20,7 @@
 package org.elasticsearch.river.twitter.test;
 
 import com.carrotsearch.randomizedtesting.annotations.ThreadLeakFilters;
+import org.elasticsearch.action.admin.indices.template.get.GetIndexTemplatesResponse;
 import org.elasticsearch.action.count.CountResponse;
 import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.action.search.SearchPhaseExecutionException;
@@ -35,6 +36,7 @@ import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.indices.IndexAlreadyExistsException;
 import org.elasticsearch.indices.IndexMissingException;
 import org.elasticsearch.plugins.PluginsService;
+import org.elasticsearch.river.twitter.IngestMapping;
 import org.elasticsearch.river.twitter.test.helper.HttpClient;
 import org.elasticsearch.river.twitter.test.helper.HttpClientResponse;
 import org.elasticsearch.search.SearchHit;
@@ -47,6 +49,9 @@ import twitter4j.TwitterFactory;
 import twitter4j.auth.AccessToken;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import static org.elasticsearch.cluster.metadata.IndexMetaData.SETTING_NUMBER_OF_REPLICAS;
@@ -448,4 +453,186 @@ public class TwitterIntegrationTest extends AbstractTwitterTest {
         logger.info("  -> Remove river");
         client().prepareDelete("_river", getDbName(), "_meta").get();
     }
+
+    @Test
+    public void testSampling() throws IOException, InterruptedException {
+        launchTest(jsonBuilder()
+            .startObject()
+                .field("type", "twitter")
+                .startObject("twitter")
+                    .field("type", "sample")
+                    .startObject("sampling")
+                        .field("ratio", 0.5)
+                    .endObject()
+                .endObject()
+                .startObject("index")
+                    .field("stats_interval", "1s")
+                .endObject()
+            .endObject(), randomIntBetween(5, 50), false);
+
+        SearchResponse response = client().prepareSearch(getDbName())
+                .addField("sample_ratio")
+                .get();
+
+        // Every document should carry the sampling ratio
+        for (SearchHit hit : response.getHits().getHits()) {
+            assertThat(hit.field("sample_ratio"), notNullValue());
+            assertThat(((Number) hit.field("sample_ratio").getValue()).doubleValue(), is(0.5));
+        }
+
+        // Sampled out statuses should be reported
+        assertThat(awaitBusy1Second(new Predicate<Object>() {
+            public boolean apply(Object obj) {
+                GetResponse stats = get("_river", getDbName(), "_stats");
+                if (!stats.isExists()) {
+                    return false;
+                }
+                Object sampling = stats.getSourceAsMap().get("sampling");
+                return sampling != null && ((Number) ((Map) sampling).get("sampled_out")).longValue() > 0;
+            }
+        }, 1, TimeUnit.MINUTES), is(true));
+
+        logger.info("  -> Remove river");
+        client().prepareDelete("_river", getDbName(), "_meta").get();
+    }
+
+    @Test
+    public void testSlimRaw() throws IOException, InterruptedException {
+        launchTest(jsonBuilder()
+            .startObject()
+                .field("type", "twitter")
+                .startObject("twitter")
+                    .field("type", "sample")
+                    .field("slim_raw", true)
+                .endObject()
+            .endObject(), randomIntBetween(5, 50), true);
+
+        SearchResponse response = client().prepareSearch(getDbName()).get();
+
+        // Users should only have an id and a screen_name
+        for (SearchHit hit : response.getHits().getHits()) {
+            Map<String, Object> user = (Map<String, Object>) hit.getSource().get("user");
+            assertThat(user, notNullValue());
+            assertThat(user.size(), is(2));
+            assertThat(user.get("id"), notNullValue());
+            assertThat(user.get("screen_name"), notNullValue());
+            // But we still have the full tweet
+            assertThat(hit.getSource().get("text"), notNullValue());
+            assertThat(hit.getSource().get("entities"), notNullValue());
+        }
+    }
+
+    @Test
+    public void testIngestMappingProfile() throws IOException, InterruptedException {
+        launchTest(jsonBuilder()
+            .startObject()
+                .field("type", "twitter")
+                .startObject("twitter")
+                    .field("type", "sample")
+                .endObject()
+                .startObject("index")
+                    .field("index", getDbName())
+                    .field("mapping_profile", "ingest")
+                .endObject()
+            .endObject(), randomIntBetween(5, 50), true);
+
+        // The template is there for indices created later
+        GetIndexTemplatesResponse templates = client().admin().indices().prepareGetTemplates("twitter_river_" + getDbName()).get();
+        assertThat(templates.getIndexTemplates().size(), is(1));
+
+        // And the existing index got the ingest mapping
+        Map<String, Object> mapping = client().admin().indices().prepareGetMappings(getDbName()).setTypes("status").get()
+                .getMappings().get(getDbName()).get("status").sourceAsMap();
+        Map<String, Object> all = (Map<String, Object>) mapping.get("_all");
+        assertThat(all, notNullValue());
+        assertThat(all.get("enabled"), is((Object) false));
+
+        // Raw documents keep twitter dates, which the profile must be able to parse
+        client().admin().indices().prepareDelete(getDbName()).get();
+        client().admin().indices().prepareDeleteTemplate("twitter_river_" + getDbName()).get();
+        launchTest(jsonBuilder()
+            .startObject()
+                .field("type", "twitter")
+                .startObject("twitter")
+                    .field("type", "sample")
+                    .field("raw", true)
+                .endObject()
+                .startObject("index")
+                    .field("index", getDbName())
+                    .field("mapping_profile", "ingest")
+                .endObject()
+            .endObject(), randomIntBetween(5, 50), true);
+
+        mapping = client().admin().indices().prepareGetMappings(getDbName()).setTypes("status").get()
+                .getMappings().get(getDbName()).get("status").sourceAsMap();
+        Map<String, Object> createdAt = (Map<String, Object>) ((Map<String, Object>) mapping.get("properties")).get("created_at");
+        assertThat(createdAt.get("type"), is((Object) "date"));
+        assertThat(createdAt.get("format"), is((Object) IngestMapping.TWITTER_DATE_FORMAT));
+    }
+
+    @Test
+    public void testFlatEntities() throws IOException, InterruptedException {
+        launchTest(jsonBuilder()
+            .startObject()
+                .field("type", "twitter")
+                .startObject("twitter")
+                    .field("type", "sample")
+                    .field("entities", "flat")
+                .endObject()
+            .endObject(), randomIntBetween(5, 50), true);
+
+        SearchResponse response = client().prepareSearch(getDbName()).get();
+
+        for (SearchHit hit : response.getHits().getHits()) {
+            // No more objects with offsets
+            assertThat(hit.getSource().get("hashtag"), nullValue());
+            assertThat(hit.getSource().get("mention"), nullValue());
+            assertThat(hit.getSource().get("link"), nullValue());
+            List<String> hashtags = (List<String>) hit.getSource().get("hashtags");
+            if (hashtags != null) {
+                for (String hashtag : hashtags) {
+                    assertThat(hashtag, is(hashtag.toLowerCase(Locale.ROOT)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testAlerts() throws IOException, InterruptedException {
+        launchTest(jsonBuilder()
+            .startObject()
+                .field("type", "twitter")
+                .startObject("twitter")
+                    .field("type", "sample")
+                .endObject()
+                .startObject("index")
+                    .startObject("alerts")
+                        .startObject("queries")
+                            .field("everything", "retweet:true OR retweet:false")
+                        .endObject()
+                    .endObject()
+                    .startObject("updates")
+                        .field("flush_interval", "1s")
+                    .endObject()
+                .endObject()
+            .endObject(), randomIntBetween(5, 50), false);
+
+        // Every tweet matches, so we should get alerts
+        assertThat(awaitBusy1Second(new Predicate<Object>() {
+            public boolean apply(Object obj) {
+                try {
+                    refresh();
+                    return client().prepareCount(getDbName() + "_alerts").get().getCount() > 0;
+                } catch (IndexMissingException e) {
+                    return false;
+                }
+            }
+        }, 1, TimeUnit.MINUTES), equalTo(true));
+
+        SearchResponse response = client().prepareSearch(getDbName() + "_alerts").get();
+        for (SearchHit hit : response.getHits().getHits()) {
+            assertThat(hit.getSource().get("query"), is((Object) "everything"));
+            assertThat(hit.getSource().get("status_id"), notNullValue());
+        }
+    }
 }
@@ -0,0 +1,219 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.twitter.test;
+
+import com.carrotsearch.randomizedtesting.annotations.ThreadLeakFilters;
+import com.carrotsearch.randomizedtesting.annotations.TimeoutSuite;
+import org.apache.lucene.util.TimeUnits;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.plugins.PluginsService;
+import org.elasticsearch.test.ElasticsearchIntegrationTest;
+import org.junit.Test;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Map;
+
+import static org.elasticsearch.cluster.metadata.IndexMetaData.SETTING_NUMBER_OF_REPLICAS;
+import static org.elasticsearch.cluster.metadata.IndexMetaData.SETTING_NUMBER_OF_SHARDS;
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+
+/**
+ * Sustained throughput of the whole river, fed by a synthetic stream, on an embedded node.
+ * <p/>
+ * Launch it using:
+ * mvn test -Dtests.soak=true -Dtests.class=org.elasticsearch.river.twitter.test.TwitterSoakTest
+ * <p/>
+ * Options: -Dtests.soak.duration=1h (how long to run) and -Dtests.soak.rate=2000 (statuses per second)
+ * <p/>
+ * It reports the indexed statuses per second, the bulk and freshness latency percentiles and the time spent
+ * in GC by the JVM running the node.
+ */
+@ElasticsearchIntegrationTest.ClusterScope(
+        scope = ElasticsearchIntegrationTest.Scope.SUITE,
+        numDataNodes = 1,
+        transportClientRatio = 0.0)
+@ThreadLeakFilters(defaultFilters = true, filters = {Twitter4JThreadFilter.class})
+@TimeoutSuite(millis = 6 * TimeUnits.HOUR)
+@Soak
+public class TwitterSoakTest extends ElasticsearchIntegrationTest {
+
+    private static final String RIVER = "soak";
+
+    @Override
+    protected Settings nodeSettings(int nodeOrdinal) {
+        return Settings.builder()
+                .put(super.nodeSettings(nodeOrdinal))
+                .put("path.home", createTempDir())
+                .put("plugins." + PluginsService.LOAD_PLUGIN_FROM_CLASSPATH, true)
+                .build();
+    }
+
+    @Test
+    public void testSustainedThroughput() throws Exception {
+        TimeValue duration = TimeValue.parseTimeValue(System.getProperty("tests.soak.duration", "1h"), null);
+        int rate = Integer.parseInt(System.getProperty("tests.soak.rate", "2000"));
+
+        client().admin().indices().prepareCreate("_river").setSettings(Settings.builder()
+                .put(SETTING_NUMBER_OF_SHARDS, 1)
+                .put(SETTING_NUMBER_OF_REPLICAS, 0)).get();
+        client().admin().indices().prepareCreate(RIVER).setSettings(Settings.builder()
+                .put(SETTING_NUMBER_OF_REPLICAS, 0)).get();
+
+        logger.info("  -> Soak test for [{}] at [{}] statuses per second", duration, rate);
+        index("_river", RIVER, "_meta", jsonBuilder()
+            .startObject()
+                .field("type", "twitter")
+                .startObject("twitter")
+                    .field("type", "synthetic")
+                    .field("serializer_workers", 4)
+                    .startObject("synthetic")
+                        .field("rate", rate)
+                        .field("retweet_ratio", 0.3)
+                        .field("deletion_ratio", 0.01)
+                        .startObject("burst")
+                            .field("interval", "5m")
+                            .field("duration", "10s")
+                            .field("factor", 5)
+                        .endObject()
+                    .endObject()
+                .endObject()
+                .startObject("index")
+                    .field("index", RIVER)
+                    .field("bulk_size", 1000)
+                    .field("max_concurrent_bulk", 2)
+                    .field("flush_interval", "1s")
+                    .field("stats_interval", "1s")
+                .endObject()
+            .endObject());
+
+        GcStats gc = new GcStats();
+        long start = System.currentTimeMillis();
+        long end = start + duration.millis();
+        long nextReport = start + TimeValue.timeValueMinutes(1).millis();
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(1000);
+            gc.sample();
+            if (System.currentTimeMillis() >= nextReport) {
+                nextReport += TimeValue.timeValueMinutes(1).millis();
+                Map<String, Object> stats = riverStats();
+                logger.info("  -> [{}] indexed [{}], freshness p99 [{}ms], heap used [{}], gc time [{}ms]",
+                        TimeValue.timeValueMillis(System.currentTimeMillis() - start),
+                        XContentMapValues.extractValue("latency.freshness.count", stats),
+                        XContentMapValues.extractValue("latency.freshness.percentiles_in_millis.p99", stats),
+                        new ByteSizeValue(gc.heapUsed()), gc.totalTime());
+            }
+        }
+        // Let the last stats document be written
+        Thread.sleep(2000);
+        Map<String, Object> stats = riverStats();
+        long elapsedSeconds = Math.max(1, (System.currentTimeMillis() - start) / 1000);
+        Number indexed = (Number) XContentMapValues.extractValue("latency.freshness.count", stats);
+
+        logger.info("  -> Soak test report");
+        logger.info("  -> duration: [{}], target rate: [{}] statuses per second", duration, rate);
+        logger.info("  -> generated: [{}]", XContentMapValues.extractValue("synthetic.generated", stats));
+        logger.info("  -> indexed: [{}], throughput: [{}] statuses per second", indexed, indexed.longValue() / elapsedSeconds);
+        logger.info("  -> bulk latency percentiles (ms): {}", XContentMapValues.extractValue("latency.bulk.percentiles_in_millis", stats));
+        logger.info("  -> freshness percentiles (ms): {}", XContentMapValues.extractValue("latency.freshness.percentiles_in_millis", stats));
+        logger.info("  -> gc: [{}] collections, [{}ms] total, [{}ms] max in one second, [{}%] of the time",
+                gc.totalCount(), gc.totalTime(), gc.maxTimePerSample(), gc.totalTime() * 100 / (elapsedSeconds * 1000));
+        logger.info("  -> heap used: [{}], max seen: [{}]", new ByteSizeValue(gc.heapUsed()), new ByteSizeValue(gc.maxHeapUsed()));
+
+        assertThat(XContentMapValues.extractValue("status", stats), equalTo((Object) "RUNNING"));
+        assertThat(indexed.longValue(), greaterThan(0L));
+
+        client().prepareDelete("_river", RIVER, "_meta").get();
+    }
+
+    private Map<String, Object> riverStats() {
+        GetResponse response = client().prepareGet("_river", RIVER, "_stats").get();
+        assertThat(response.isExists(), equalTo(true));
+        return response.getSourceAsMap();
+    }
+
+    /**
+     * Time spent in GC, sampled every second from the JVM management beans
+     */
+    private static class GcStats {
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private final long initialCount;
+        private final long initialTime;
+        private long lastTime;
+        private long maxTimePerSample;
+        private long maxHeapUsed;
+
+        GcStats() {
+            initialCount = count();
+            initialTime = time();
+            lastTime = initialTime;
+        }
+
+        void sample() {
+            long time = time();
+            maxTimePerSample = Math.max(maxTimePerSample, time - lastTime);
+            lastTime = time;
+            maxHeapUsed = Math.max(maxHeapUsed, heapUsed());
+        }
+
+        long totalCount() {
+            return count() - initialCount;
+        }
+
+        long totalTime() {
+            return time() - initialTime;
+        }
+
+        long maxTimePerSample() {
+            return maxTimePerSample;
+        }
+
+        long heapUsed() {
+            return memory.getHeapMemoryUsage().getUsed();
+        }
+
+        long maxHeapUsed() {
+            return maxHeapUsed;
+        }
+
+        private static long count() {
+            long count = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(0, gc.getCollectionCount());
+            }
+            return count;
+        }
+
+        private static long time() {
+            long time = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                time += Math.max(0, gc.getCollectionTime());
+            }
+            return time;
+        }
+    }
+}
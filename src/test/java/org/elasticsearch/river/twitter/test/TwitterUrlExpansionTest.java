@@ -0,0 +1,142 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.river.twitter.test;
+
+import com.carrotsearch.randomizedtesting.annotations.ThreadLeakFilters;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.common.base.Predicate;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.plugins.PluginsService;
+import org.elasticsearch.test.ElasticsearchIntegrationTest;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import static org.elasticsearch.cluster.metadata.IndexMetaData.SETTING_NUMBER_OF_REPLICAS;
+import static org.elasticsearch.cluster.metadata.IndexMetaData.SETTING_NUMBER_OF_SHARDS;
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+
+/**
+ * Expansion of the urls of synthetic statuses, against a local HTTP server redirecting {@code /blog/<id>}
+ * to {@code /post/<id>}. Needs no internet access.
+ */
+@ElasticsearchIntegrationTest.ClusterScope(
+        scope = ElasticsearchIntegrationTest.Scope.SUITE,
+        numDataNodes = 1,
+        transportClientRatio = 0.0)
+@ThreadLeakFilters(defaultFilters = true, filters = {Twitter4JThreadFilter.class})
+public class TwitterUrlExpansionTest extends ElasticsearchIntegrationTest {
+
+    private static final String RIVER = "expansion";
+
+    @Override
+    protected Settings nodeSettings(int nodeOrdinal) {
+        return Settings.builder()
+                .put(super.nodeSettings(nodeOrdinal))
+                .put("path.home", createTempDir())
+                .put("plugins." + PluginsService.LOAD_PLUGIN_FROM_CLASSPATH, true)
+                .build();
+    }
+
+    @Test
+    public void testExpandUrls() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                if (path.startsWith("/blog/")) {
+                    exchange.getResponseHeaders().add("Location", "/post/" + path.substring("/blog/".length()));
+                    exchange.sendResponseHeaders(301, -1);
+                } else {
+                    exchange.sendResponseHeaders(200, -1);
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+        try {
+            String base = "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+            final String finalPrefix = base + "/post/";
+
+            client().admin().indices().prepareCreate("_river").setSettings(Settings.builder()
+                    .put(SETTING_NUMBER_OF_SHARDS, 1)
+                    .put(SETTING_NUMBER_OF_REPLICAS, 0)).get();
+            client().admin().indices().prepareCreate(RIVER).setSettings(Settings.builder()
+                    .put(SETTING_NUMBER_OF_REPLICAS, 0)).get();
+
+            index("_river", RIVER, "_meta", jsonBuilder()
+                .startObject()
+                    .field("type", "twitter")
+                    .startObject("twitter")
+                        .field("type", "synthetic")
+                        .startObject("synthetic")
+                            .field("rate", 20)
+                            .field("urls", 2.0)
+                            .field("url_prefix", base + "/blog/")
+                        .endObject()
+                        .startObject("expand_urls")
+                            .field("concurrency", 2)
+                            .field("per_host", 1)
+                            // The test server listens on the loopback address
+                            .field("allow_private_addresses", true)
+                        .endObject()
+                    .endObject()
+                    .startObject("index")
+                        .field("index", RIVER)
+                        .field("flush_interval", "1s")
+                        .field("stats_interval", "1s")
+                        .startObject("updates")
+                            .field("flush_interval", "1s")
+                        .endObject()
+                    .endObject()
+                .endObject());
+
+            assertThat(awaitBusy(new Predicate<Object>() {
+                @Override
+                public boolean apply(Object o) {
+                    refresh();
+                    return client().prepareCount(RIVER)
+                            .setQuery(QueryBuilders.prefixQuery("resolved_urls", finalPrefix)).get().getCount() > 0;
+                }
+            }, 1, TimeUnit.MINUTES), equalTo(true));
+
+            GetResponse stats = client().prepareGet("_river", RIVER, "_stats").get();
+            assertThat(stats.isExists(), equalTo(true));
+            Number resolved = (Number) XContentMapValues.extractValue("url_expansion.resolved", stats.getSourceAsMap());
+            assertThat(resolved.longValue(), greaterThan(0L));
+
+            client().prepareDelete("_river", RIVER, "_meta").get();
+        } finally {
+            server.stop(0);
+        }
+    }
+}